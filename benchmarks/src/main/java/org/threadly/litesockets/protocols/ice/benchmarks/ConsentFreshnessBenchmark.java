@@ -0,0 +1,64 @@
+package org.threadly.litesockets.protocols.ice.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.litesockets.protocols.ice.ConsentFreshnessMonitor;
+import org.threadly.litesockets.protocols.stun.StunClientTransactionManager;
+
+/**
+ * What keeping consent for {@code sessions} sessions costs the thread ticking a
+ * {@link ConsentFreshnessMonitor}.  Each invocation runs one simulated second of ticks, so the
+ * average time is the share of a core the monitor needs, about 1/5th of the sessions send a signed
+ * request every second.  The sender drops the requests and the timeout is a day, so no session
+ * expires during the run.  The cost should grow with the number of sessions and nothing else, run
+ * with {@code -prof gc} for the allocation per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConsentFreshnessBenchmark {
+  private static final InetSocketAddress REMOTE = new InetSocketAddress("10.0.0.2", 5000);
+
+  @Param({"10000", "200000"})
+  public int sessions;
+
+  private ConsentFreshnessMonitor monitor;
+  private long now;
+  private long sent = 0;
+
+  @Setup
+  public void setup() {
+    now = StunClientTransactionManager.currentTimeMillis();
+    monitor = new ConsentFreshnessMonitor(null, sessions, (ByteBuffer packet, int local, InetSocketAddress to) -> {
+      sent += packet.remaining();
+    }, (sessionId, remote) -> { }, ConsentFreshnessMonitor.DEFAULT_INTERVAL_MILLIS, TimeUnit.DAYS.toMillis(1));
+    for(int i=0; i<sessions; i++) {
+      monitor.addSession(REMOTE, i, "local"+i, "remote"+i, "password-for-session-"+i, 1862270975, true);
+    }
+  }
+
+  @Benchmark
+  public long oneSecond() {
+    for(int i=0; i<1000 / ConsentFreshnessMonitor.DEFAULT_TICK_MILLIS; i++) {
+      now += ConsentFreshnessMonitor.DEFAULT_TICK_MILLIS;
+      monitor.tick(now);
+    }
+    return sent;
+  }
+}
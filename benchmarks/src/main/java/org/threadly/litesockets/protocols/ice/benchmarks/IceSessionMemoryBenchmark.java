@@ -0,0 +1,152 @@
+package org.threadly.litesockets.protocols.ice.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.litesockets.protocols.ice.IceAgent;
+import org.threadly.litesockets.protocols.ice.IceCandidate;
+import org.threadly.litesockets.protocols.ice.IceCandidateType;
+import org.threadly.litesockets.protocols.ice.IceCheckScheduler;
+import org.threadly.litesockets.protocols.ice.IceLiteResponder;
+import org.threadly.litesockets.protocols.stun.StunAttribute;
+import org.threadly.litesockets.protocols.stun.StunMessageType;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+
+/**
+ * Measures what an ICE session costs on a server holding many of them, an {@link IceLiteResponder}
+ * slot against a full {@link IceAgent} with a single candidate pair.
+ * <p>
+ * The {@code lite} and {@code full} benchmarks build {@code sessions} sessions per invocation and
+ * report the retained heap per session as the {@code bytesPerSession} secondary result, measured
+ * from the heap after a full GC before and after.  {@code liteCheck} answers checks spread over all
+ * sessions of a populated responder, run it with {@code -prof gc} for the allocation per check.
+ */
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class IceSessionMemoryBenchmark {
+  private static final InetSocketAddress FROM = new InetSocketAddress("10.0.0.1", 5000);
+  private static final InetSocketAddress TO = new InetSocketAddress("10.0.0.2", 5000);
+
+  @State(Scope.Benchmark)
+  public static class Sessions {
+    @Param({"100000"})
+    public int sessions;
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Footprint {
+    // of the last invocation in the iteration, every invocation builds the same sessions
+    public long bytesPerSession;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytesPerSession = 0;
+    }
+  }
+
+  private static long usedHeapAfterGc() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for(int i=0; i<3; i++) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public Object lite(Sessions s, Footprint footprint) {
+    long before = usedHeapAfterGc();
+    IceLiteResponder responder = new IceLiteResponder(s.sessions);
+    for(int i=0; i<s.sessions; i++) {
+      responder.addSession(Integer.toHexString(0x10000000 + i), "Ab3x5H7Jk9Lm1Np3Qr5St7Vw");
+    }
+    footprint.bytesPerSession = (usedHeapAfterGc() - before) / s.sessions;
+    return responder;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public Object full(Sessions s, Footprint footprint) {
+    long before = usedHeapAfterGc();
+    IceCheckScheduler scheduler = new IceCheckScheduler(null);
+    IceAgent.CheckSender sender = (local, remote, request) -> new CompletableFuture<>();
+    long priority = IceCandidate.computePriority(IceCandidateType.HOST, 65535, 1);
+    IceAgent[] agents = new IceAgent[s.sessions];
+    for(int i=0; i<s.sessions; i++) {
+      agents[i] = new IceAgent(scheduler, sender, false, Integer.toHexString(0x10000000 + i),
+                               "Ab3x5H7Jk9Lm1Np3Qr5St7Vw");
+      agents[i].setRemoteCredentials("9HtW", "VOkJxbRl1RmTxUk/WvJxBt");
+      agents[i].addLocalCandidate(new IceCandidate("1", 1, IceCandidateType.HOST, priority, TO));
+      agents[i].addRemoteCandidate(new IceCandidate("1", 1, IceCandidateType.HOST, priority, FROM));
+    }
+    footprint.bytesPerSession = (usedHeapAfterGc() - before) / s.sessions;
+    return agents;
+  }
+
+  @State(Scope.Benchmark)
+  public static class Checks {
+    @Param({"100000"})
+    public int sessions;
+    private IceLiteResponder responder;
+    private StunPacket[] requests;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws StunProtocolException {
+      responder = new IceLiteResponder(sessions);
+      // a sample of the sessions gets checks, enough to miss the integrity engine's key cache
+      requests = new StunPacket[1024];
+      for(int i=0; i<sessions; i++) {
+        String ufrag = Integer.toHexString(0x10000000 + i);
+        String password = "Ab3x5H7Jk9Lm1Np3Qr5St7" + Integer.toHexString(i);
+        responder.addSession(ufrag, password);
+        if(i % (sessions / requests.length + 1) == 0 && next < requests.length) {
+          requests[next++] = new StunPacketBuilder().setType(StunMessageType.REQUEST)
+              .setUsername(ByteBuffer.wrap((ufrag+":9HtW").getBytes(StandardCharsets.US_ASCII)))
+              .setAttribute(StunAttribute.ICE_CONTROLLING, ByteBuffer.allocate(8).putLong(0, 0x1f2e3d4c5b6a7988L))
+              .setAttribute(StunAttribute.USE_CANDIDATE, ByteBuffer.allocate(0))
+              .setAttribute(StunAttribute.PRIORITY, ByteBuffer.allocate(4).putInt(0, 0x6e7f1eff))
+              .setKey(password.getBytes(StandardCharsets.US_ASCII)).enableFingerPrint().build();
+        }
+      }
+      int count = next;
+      StunPacket[] sample = new StunPacket[count];
+      System.arraycopy(requests, 0, sample, 0, count);
+      requests = sample;
+      next = 0;
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public StunPacket liteCheck(Checks c) throws StunProtocolException {
+    StunPacket request = c.requests[c.next];
+    c.next = (c.next + 1) % c.requests.length;
+    return c.responder.handleRequest(request, 0, FROM);
+  }
+}
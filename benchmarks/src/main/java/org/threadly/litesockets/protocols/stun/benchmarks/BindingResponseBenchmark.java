@@ -0,0 +1,98 @@
+package org.threadly.litesockets.protocols.stun.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.litesockets.protocols.stun.BindingResponseWriter;
+import org.threadly.litesockets.protocols.stun.StunMessageType;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunPacketDecoder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.TransactionID;
+
+/**
+ * Answers a Chrome style connectivity check sitting in a direct receive buffer, the way a server
+ * would: by parsing it and building a new {@link StunPacket}, by encoding a reused
+ * {@link StunPacketBuilder} into a send buffer, and by {@link BindingResponseWriter} rewriting the
+ * request in place.  Every operation first copies the request back into the receive buffer.
+ * Run with {@code -prof gc} for the allocation per response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BindingResponseBenchmark {
+  private static final InetSocketAddress FROM = new InetSocketAddress("192.0.2.1", 32853);
+
+  @Param({"false", "true"})
+  public boolean key;
+
+  private byte[] responseKey;
+  private ByteBuffer request;
+  private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(1500);
+  private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(1500);
+  private final StunPacketDecoder decoder = new StunPacketDecoder();
+  private final StunPacketBuilder builder = new StunPacketBuilder().setType(StunMessageType.SUCCESS);
+  private final BindingResponseWriter writer = new BindingResponseWriter();
+
+  @Setup
+  public void setup() throws StunProtocolException {
+    StunPacketBuilder spb = IceCheckCorpus.chromeCheckBuilder().enableFingerPrint();
+    if(key) {
+      responseKey = IceCheckCorpus.Sample.CHROME_REQUEST.getKey();
+      spb.setKey(responseKey);
+    }
+    request = spb.build().getBytes();
+    builder.setKey(responseKey).enableFingerPrint();
+  }
+
+  private void receive() {
+    receiveBuffer.clear();
+    receiveBuffer.put(request.duplicate());
+    receiveBuffer.flip();
+  }
+
+  @Benchmark
+  public ByteBuffer parseAndBuild() throws StunProtocolException {
+    receive();
+    StunPacket sp = new StunPacket(receiveBuffer);
+    return new StunPacketBuilder().setType(StunMessageType.SUCCESS).setTxID(sp.getTxID())
+        .setXorMappedAddress(FROM).setKey(responseKey).enableFingerPrint().build().getBytes();
+  }
+
+  @Benchmark
+  public ByteBuffer builderWriteTo() throws StunProtocolException {
+    receive();
+    decoder.wrap(receiveBuffer);
+    builder.setTxID(new TransactionID(decoder.getTxID0(), decoder.getTxID1(), decoder.getTxID2()));
+    builder.clearAllAttributes();
+    builder.setXorMappedAddress(FROM);
+    sendBuffer.clear();
+    builder.writeTo(sendBuffer);
+    sendBuffer.flip();
+    return sendBuffer;
+  }
+
+  @Benchmark
+  public ByteBuffer rewriteInPlace() throws StunProtocolException {
+    receive();
+    decoder.wrap(receiveBuffer);
+    writer.rewrite(decoder, FROM, responseKey, true);
+    return receiveBuffer;
+  }
+}
@@ -0,0 +1,72 @@
+package org.threadly.litesockets.protocols.stun.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.litesockets.protocols.stun.DirectBufferPool;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+
+/**
+ * Gets a Chrome style connectivity check into a direct buffer ready to send: built on the heap and
+ * copied into a direct buffer the way the channel does for heap buffers, against encoded straight
+ * into a pooled direct buffer.  {@code acquireRelease} is the cost of the pool alone.  Run with
+ * {@code -prof gc} for the allocation per packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferPoolBenchmark {
+  @Param({"false", "true"})
+  public boolean key;
+
+  private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(1500);
+  private final DirectBufferPool pool = new DirectBufferPool();
+  private StunPacketBuilder builder;
+
+  @Setup
+  public void setup() {
+    builder = IceCheckCorpus.chromeCheckBuilder().enableFingerPrint();
+    if(key) {
+      builder.setKey(IceCheckCorpus.Sample.CHROME_REQUEST.getKey());
+    }
+  }
+
+  @Benchmark
+  public ByteBuffer heapBuildAndCopy() throws StunProtocolException {
+    sendBuffer.clear();
+    sendBuffer.put(builder.build().getBytes());
+    sendBuffer.flip();
+    return sendBuffer;
+  }
+
+  @Benchmark
+  public int pooledEncode() throws StunProtocolException {
+    ByteBuffer bb = builder.encode(pool);
+    int size = bb.remaining();
+    pool.release(bb);
+    return size;
+  }
+
+  @Benchmark
+  public int acquireRelease() {
+    ByteBuffer bb = pool.acquire(200);
+    int capacity = bb.capacity();
+    pool.release(bb);
+    return capacity;
+  }
+}
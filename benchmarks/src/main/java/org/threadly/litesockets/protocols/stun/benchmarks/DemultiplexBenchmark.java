@@ -0,0 +1,83 @@
+package org.threadly.litesockets.protocols.stun.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.threadly.litesockets.protocols.stun.RtcPacketClassifier;
+import org.threadly.litesockets.protocols.stun.RtcPacketType;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.StunUtils;
+
+/**
+ * Classifies a bundled media mix (mostly RTP, some RTCP, DTLS and STUN) in random order.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DemultiplexBenchmark {
+  private static final int BATCH_SIZE = 1024;
+
+  private final ByteBuffer[] packets = new ByteBuffer[BATCH_SIZE];
+  private final RtcPacketType[] types = new RtcPacketType[BATCH_SIZE];
+
+  @Setup
+  public void setup() throws StunProtocolException {
+    ByteBuffer stun = IceCheckCorpus.chromeCheckBuilder().build().getBytes();
+    for(int i=0; i<BATCH_SIZE; i++) {
+      int kind = ThreadLocalRandom.current().nextInt(100);
+      ByteBuffer bb;
+      if(kind < 85) {
+        bb = ByteBuffer.allocate(1200);
+        bb.putShort(0, (short)0x8060);
+      } else if(kind < 93) {
+        bb = ByteBuffer.allocate(80);
+        bb.putShort(0, (short)0x80c9);
+      } else if(kind < 97) {
+        bb = ByteBuffer.allocate(100);
+        bb.put(0, (byte)23);
+      } else {
+        bb = stun.duplicate();
+      }
+      packets[i] = bb;
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void classifyEach(Blackhole bh) {
+    for(int i=0; i<BATCH_SIZE; i++) {
+      bh.consume(RtcPacketClassifier.classify(packets[i]));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public RtcPacketType[] classifyBatch() {
+    RtcPacketClassifier.classify(packets, 0, BATCH_SIZE, types);
+    return types;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void isStunPacket(Blackhole bh) {
+    for(int i=0; i<BATCH_SIZE; i++) {
+      bh.consume(StunUtils.isStunPacket(packets[i]));
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package org.threadly.litesockets.protocols.stun.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.threadly.litesockets.protocols.stun.StunAttribute;
+import org.threadly.litesockets.protocols.stun.StunMessageType;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.StunUtils;
+
+/**
+ * ICE connectivity checks shaped like the ones browsers send.
+ * <p>
+ * The samples follow the attribute order, ufrag and password lengths and attribute values that
+ * Chrome (libwebrtc) and Firefox (nICEr) put on the wire, so parsing and hashing costs line up with
+ * production traffic.  Transaction ids are random per build.
+ */
+public class IceCheckCorpus {
+  // libwebrtc specific, comprehension optional
+  private static final int GOOG_NETWORK_INFO = 0xc057;
+
+  private IceCheckCorpus() {}
+
+  /**
+   * Returns a builder for a nominating check from a controlling Chrome agent, without integrity
+   * or fingerprint enabled.
+   *
+   * @return a {@link StunPacketBuilder} for the check.
+   */
+  public static StunPacketBuilder chromeCheckBuilder() {
+    StunPacketBuilder spb = new StunPacketBuilder();
+    spb.setType(StunMessageType.REQUEST);
+    spb.setUsername(ByteBuffer.wrap("Xq4b:9HtW".getBytes()));
+    spb.setAttribute(StunAttribute.ICE_CONTROLLING, ByteBuffer.allocate(8).putLong(0, 0x1f2e3d4c5b6a7988L));
+    spb.setAttribute(StunAttribute.USE_CANDIDATE, ByteBuffer.allocate(0));
+    spb.setAttribute(StunAttribute.PRIORITY, ByteBuffer.allocate(4).putInt(0, 0x6e7f1eff));
+    return spb;
+  }
+
+  /**
+   * The packets in the corpus, each signed with its own ICE password and fingerprinted.
+   */
+  public enum Sample {
+    /** Nominating check from a controlling Chrome agent, with GOOG-NETWORK-INFO. */
+    CHROME_REQUEST("Ab3x5H7Jk9Lm1Np3Qr5St7Vw") {
+      @Override
+      StunPacket encode(byte[] key) throws StunProtocolException {
+        return encodeRequest(key, new int[] {
+            StunAttribute.USERNAME.bits, GOOG_NETWORK_INFO, StunAttribute.ICE_CONTROLLING.bits,
+            StunAttribute.USE_CANDIDATE.bits, StunAttribute.PRIORITY.bits
+        }, new byte[][] {
+            "Xq4b:9HtW".getBytes(StandardCharsets.US_ASCII),
+            ByteBuffer.allocate(4).putShort((short)1).putShort((short)10).array(),
+            ByteBuffer.allocate(8).putLong(0x1f2e3d4c5b6a7988L).array(),
+            new byte[0],
+            ByteBuffer.allocate(4).putInt(0x6e7f1eff).array()
+        });
+      }
+    },
+    /** Chrome's success response to a host candidate over IPv4. */
+    CHROME_RESPONSE("Ab3x5H7Jk9Lm1Np3Qr5St7Vw") {
+      @Override
+      StunPacket encode(byte[] key) throws StunProtocolException {
+        return new StunPacketBuilder().setType(StunMessageType.SUCCESS)
+            .setXorMappedAddress(new InetSocketAddress("192.168.1.37", 61732))
+            .setKey(key).enableFingerPrint().build();
+      }
+    },
+    /** Check from a controlled Firefox agent, with its 8 hex digit ufrags. */
+    FIREFOX_REQUEST("3f2c0b5d8e9a14c7b6d2e8f0a1c3b5d7") {
+      @Override
+      StunPacket encode(byte[] key) throws StunProtocolException {
+        return encodeRequest(key, new int[] {
+            StunAttribute.PRIORITY.bits, StunAttribute.USERNAME.bits, StunAttribute.ICE_CONTROLLED.bits
+        }, new byte[][] {
+            ByteBuffer.allocate(4).putInt(0x6e0001ff).array(),
+            "9b4424d9:e9ee6d3b".getBytes(StandardCharsets.US_ASCII),
+            ByteBuffer.allocate(8).putLong(0x6a1b9c3e0f7d2e45L).array()
+        });
+      }
+    },
+    /** Firefox's success response to a host candidate over IPv6. */
+    FIREFOX_RESPONSE("3f2c0b5d8e9a14c7b6d2e8f0a1c3b5d7") {
+      @Override
+      StunPacket encode(byte[] key) throws StunProtocolException {
+        return new StunPacketBuilder().setType(StunMessageType.SUCCESS)
+            .setXorMappedAddress(new InetSocketAddress("2001:db8:85a3::8a2e:370:7334", 51472))
+            .setKey(key).enableFingerPrint().build();
+      }
+    };
+
+    private final byte[] key;
+
+    private Sample(String password) {
+      this.key = password.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    abstract StunPacket encode(byte[] key) throws StunProtocolException;
+
+    /**
+     * Encodes the sample with a fresh transaction id.
+     *
+     * @return the signed and fingerprinted packet.
+     * @throws StunProtocolException if the sample could not be encoded.
+     */
+    public StunPacket build() throws StunProtocolException {
+      return encode(key);
+    }
+
+    public byte[] getKey() {
+      return key.clone();
+    }
+  }
+
+  private static StunPacket encodeRequest(byte[] key, int[] types, byte[][] values) throws StunProtocolException {
+    int size = 20;
+    for(byte[] value: values) {
+      size += 4 + ((value.length + 3) & ~3);
+    }
+    ByteBuffer bb = ByteBuffer.allocate(size);
+    bb.putShort((short)StunMessageType.REQUEST.bits);
+    bb.putShort((short)(size - 20));
+    bb.putInt(StunUtils.STUN_MAGIC);
+    StunUtils.generateTxID().writeTo(bb);
+    for(int i=0; i<types.length; i++) {
+      bb.putShort((short)types[i]);
+      bb.putShort((short)values[i].length);
+      bb.put(values[i]);
+      bb.position((bb.position() + 3) & ~3);
+    }
+    bb.flip();
+    StunPacket sp = StunUtils.addMessageIntegerity(new StunPacket(bb), key);
+    return StunUtils.addFingerPrint(sp);
+  }
+}
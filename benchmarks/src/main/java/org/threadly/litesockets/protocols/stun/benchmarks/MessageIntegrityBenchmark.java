@@ -0,0 +1,77 @@
+package org.threadly.litesockets.protocols.stun.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.litesockets.protocols.stun.StunIntegrityEngine;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunPacketDecoder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.StunUtils;
+
+/**
+ * Compares the static MESSAGE-INTEGRITY helpers in {@link StunUtils} against a shared
+ * {@link StunIntegrityEngine} for a short ICE connectivity check.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageIntegrityBenchmark {
+  private final StunIntegrityEngine engine = new StunIntegrityEngine();
+  private byte[] key;
+  private StunPacket unsigned;
+  private StunPacket signed;
+  private StunPacketDecoder decoder;
+
+  @Setup
+  public void setup() throws StunProtocolException {
+    key = "VOkJxbRl1RmTxUk/WvJxBt".getBytes();
+    StunPacketBuilder spb = IceCheckCorpus.chromeCheckBuilder();
+    unsigned = spb.build();
+    signed = spb.setKey(key).build();
+    ByteBuffer direct = ByteBuffer.allocateDirect(signed.getBytes().remaining());
+    direct.put(signed.getBytes());
+    direct.flip();
+    decoder = new StunPacketDecoder();
+    decoder.wrap(direct);
+  }
+
+  @Benchmark
+  public boolean verifyStatic() {
+    return StunUtils.verifyMessageIntegerity(signed, key);
+  }
+
+  @Benchmark
+  public boolean verifyEngine() {
+    return engine.verifyMessageIntegerity(signed, key);
+  }
+
+  @Benchmark
+  public boolean verifyEngineDirectDecoder() {
+    return engine.verifyMessageIntegerity(decoder, key);
+  }
+
+  @Benchmark
+  public StunPacket signStatic() throws StunProtocolException {
+    return StunUtils.addMessageIntegerity(unsigned, key);
+  }
+
+  @Benchmark
+  public StunPacket signEngine() throws StunProtocolException {
+    return engine.addMessageIntegerity(unsigned, key);
+  }
+}
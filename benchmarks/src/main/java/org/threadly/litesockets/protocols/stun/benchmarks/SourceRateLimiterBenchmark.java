@@ -0,0 +1,68 @@
+package org.threadly.litesockets.protocols.stun.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.litesockets.protocols.stun.SourceRateLimiter;
+
+/**
+ * Per packet cost of {@link SourceRateLimiter}: a tracked source within its rate, a tracked source
+ * being dropped, a flood of unique (spoofed) sources, and the key from an {@link InetSocketAddress}.
+ * Run with {@code -prof gc}, none of these should allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SourceRateLimiterBenchmark {
+  private static final long KEY = SourceRateLimiter.key(0x0a000001, 5000);
+
+  private final InetSocketAddress address = new InetSocketAddress("10.0.0.1", 5000);
+  private SourceRateLimiter open;
+  private SourceRateLimiter limited;
+  private SourceRateLimiter flooded;
+  private int next = 0;
+
+  @Setup
+  public void setup() {
+    open = new SourceRateLimiter(1000000000, 1000, 65536);
+    limited = new SourceRateLimiter(1, 1, 65536);
+    flooded = new SourceRateLimiter(100, 10, 65536);
+    for(int i=0; i<100; i++) {
+      open.tryAcquire(KEY);
+      limited.tryAcquire(KEY);
+    }
+  }
+
+  @Benchmark
+  public boolean tracked() {
+    return open.tryAcquire(KEY);
+  }
+
+  @Benchmark
+  public boolean dropped() {
+    return limited.tryAcquire(KEY);
+  }
+
+  @Benchmark
+  public boolean uniqueSources() {
+    return flooded.tryAcquire(SourceRateLimiter.key(0xc0a80000 + next++, 5000));
+  }
+
+  @Benchmark
+  public boolean socketAddress() {
+    return limited.tryAcquire(address);
+  }
+}
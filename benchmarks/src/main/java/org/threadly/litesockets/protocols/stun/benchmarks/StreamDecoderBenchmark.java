@@ -0,0 +1,80 @@
+package org.threadly.litesockets.protocols.stun.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.litesockets.protocols.stun.StunPacketDecoder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.StunStreamDecoder;
+import org.threadly.litesockets.protocols.stun.StunStreamDecoder.Framing;
+
+/**
+ * Splits a TCP stream of back to back Chrome checks with {@link StunStreamDecoder} and decodes each
+ * one, with reads of {@code readSize} bytes.  Large reads hand out nearly every message as a view
+ * of the read, small reads split most messages across reads so they are copied.  Run with
+ * {@code -prof gc} to see that neither allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamDecoderBenchmark {
+  private static final int MESSAGES = 1024;
+
+  @Param({"65536", "1400", "100"})
+  public int readSize;
+
+  private final StunPacketDecoder decoder = new StunPacketDecoder();
+  private ByteBuffer stream;
+  private ByteBuffer read;
+  private StunStreamDecoder streamDecoder;
+  private int valid;
+
+  @Setup
+  public void setup() throws StunProtocolException {
+    ByteBuffer check = IceCheckCorpus.Sample.CHROME_REQUEST.build().getBytes();
+    stream = ByteBuffer.allocateDirect(check.remaining() * MESSAGES);
+    for(int i=0; i<MESSAGES; i++) {
+      stream.put(check.duplicate());
+    }
+    stream.flip();
+    read = stream.duplicate();
+    streamDecoder = new StunStreamDecoder(Framing.STUN, (bb) -> {
+      if(decoder.wrap(bb)) {
+        valid++;
+      }
+    });
+  }
+
+  @TearDown
+  public void tearDown() {
+    streamDecoder.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public int feed() throws StunProtocolException {
+    int messages = 0;
+    int end = stream.limit();
+    for(int pos=0; pos<end; pos+=readSize) {
+      read.limit(Math.min(end, pos + readSize)).position(pos);
+      messages += streamDecoder.feed(read);
+    }
+    return messages + valid;
+  }
+}
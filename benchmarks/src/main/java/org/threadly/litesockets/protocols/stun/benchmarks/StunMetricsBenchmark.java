@@ -0,0 +1,121 @@
+package org.threadly.litesockets.protocols.stun.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.litesockets.protocols.stun.StunIntegrityEngine;
+import org.threadly.litesockets.protocols.stun.StunMetrics;
+import org.threadly.litesockets.protocols.stun.StunMetricsRecorder;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunPacketDecoder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.StunUtils;
+import org.threadly.litesockets.protocols.stun.StunValidationResult;
+
+/**
+ * What {@link StunMetrics} cost on the decode, verify and build paths of a Chrome check.
+ * <p>
+ * {@code off} is the default {@link StunMetrics#NO_OP}, which should be within noise of the same
+ * paths before they were instrumented.  {@code empty} installs metrics that do nothing, so it
+ * shows the clock reads and calls that {@code off} skips, and {@code recorder} is a
+ * {@link StunMetricsRecorder} with its counters and histograms.
+ * <p>
+ * The hook-free baseline for {@code off} is the four benchmark methods, without the
+ * {@code metrics} parameter, run against the tree before {@link StunMetrics} was added.  The
+ * differences are small next to the run to run noise, so compare the error columns (3 forks by
+ * default) rather than the scores alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+public class StunMetricsBenchmark {
+  @Param({"off", "empty", "recorder"})
+  public String metrics;
+
+  private final StunPacketDecoder decoder = new StunPacketDecoder();
+  private final StunIntegrityEngine engine = StunIntegrityEngine.getDefault();
+  private final ByteBuffer buffer = ByteBuffer.allocate(1500);
+  private ByteBuffer packet;
+  private StunPacketBuilder builder;
+  private byte[] key;
+
+  @Setup
+  public void setup() throws StunProtocolException {
+    key = IceCheckCorpus.Sample.CHROME_REQUEST.getKey();
+    packet = IceCheckCorpus.Sample.CHROME_REQUEST.build().getBytes();
+    builder = IceCheckCorpus.chromeCheckBuilder().setKey(key).enableFingerPrint();
+    decoder.wrap(packet);
+    if(metrics.equals("empty")) {
+      StunUtils.setMetrics(new EmptyMetrics());
+    } else if(metrics.equals("recorder")) {
+      StunUtils.setMetrics(new StunMetricsRecorder());
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    StunUtils.setMetrics(null);
+  }
+
+  @Benchmark
+  public boolean decode() {
+    return decoder.wrap(packet);
+  }
+
+  @Benchmark
+  public boolean verifyFingerPrint() {
+    return StunUtils.verifyFingerPrint(decoder);
+  }
+
+  @Benchmark
+  public boolean verifyIntegrity() {
+    return engine.verifyMessageIntegerity(decoder, key);
+  }
+
+  @Benchmark
+  public int build() throws StunProtocolException {
+    buffer.clear();
+    return builder.writeTo(buffer);
+  }
+
+  private static class EmptyMetrics implements StunMetrics {
+    @Override
+    public void packetParsed(int messageType, long nanos) {
+    }
+
+    @Override
+    public void attributeParsed(int attributeType) {
+    }
+
+    @Override
+    public void parseFailed(StunValidationResult reason, long nanos) {
+    }
+
+    @Override
+    public void packetBuilt(int messageType, long nanos) {
+    }
+
+    @Override
+    public void integrityVerified(boolean valid, long nanos) {
+    }
+
+    @Override
+    public void fingerprintVerified(boolean valid, long nanos) {
+    }
+  }
+}
@@ -0,0 +1,211 @@
+package org.threadly.litesockets.protocols.stun.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.litesockets.protocols.stun.StunAttribute;
+import org.threadly.litesockets.protocols.stun.StunMessageType;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.StunUtils;
+import org.threadly.litesockets.protocols.stun.TransactionID;
+import org.threadly.litesockets.protocols.stun.benchmarks.IceCheckCorpus.Sample;
+
+/**
+ * Parsing, accessors and verification of {@link StunPacket} over the {@link IceCheckCorpus}.
+ * Run with {@code -prof gc} (the default for the gradle {@code jmh} task) to see allocations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StunPacketBenchmark {
+  @State(Scope.Thread)
+  public static class Packets {
+    @Param({"CHROME_REQUEST", "CHROME_RESPONSE", "FIREFOX_REQUEST", "FIREFOX_RESPONSE"})
+    public Sample sample;
+
+    public ByteBuffer bytes;
+    public StunPacket packet;
+    public byte[] key;
+
+    @Setup
+    public void setup() throws StunProtocolException {
+      packet = sample.build();
+      bytes = packet.getBytes();
+      key = sample.getKey();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Requests {
+    @Param({"CHROME_REQUEST", "FIREFOX_REQUEST"})
+    public Sample request;
+
+    public StunPacket packet;
+
+    @Setup
+    public void setup() throws StunProtocolException {
+      packet = request.build();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Responses {
+    // chrome responds over IPv4, firefox over IPv6
+    @Param({"CHROME_RESPONSE", "FIREFOX_RESPONSE"})
+    public Sample response;
+
+    public StunPacket packet;
+
+    @Setup
+    public void setup() throws StunProtocolException {
+      packet = response.build();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Controlled {
+    public StunPacket packet;
+
+    @Setup
+    public void setup() throws StunProtocolException {
+      // only firefox checks as the controlled agent
+      packet = Sample.FIREFOX_REQUEST.build();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ErrorResponses {
+    public StunPacket packet;
+
+    @Setup
+    public void setup() throws StunProtocolException {
+      // browsers send neither errors nor SOFTWARE in checks, so this is a role conflict answered by
+      // an agent that names itself
+      packet = new StunPacketBuilder().setType(StunMessageType.FAILURE).setErrorCode(487, "Role Conflict")
+          .setAttribute(StunAttribute.SOFTWARE, ByteBuffer.wrap("litesockets".getBytes(StandardCharsets.US_ASCII)))
+          .setKey(Sample.CHROME_REQUEST.getKey()).enableFingerPrint().build();
+    }
+  }
+
+  @Benchmark
+  public StunPacket parse(Packets p) throws StunProtocolException {
+    return new StunPacket(p.bytes.duplicate());
+  }
+
+  @Benchmark
+  public StunMessageType getMessageType(Packets p) {
+    return p.packet.getMessageType();
+  }
+
+  @Benchmark
+  public TransactionID getTxID(Packets p) {
+    return p.packet.getTxID();
+  }
+
+  @Benchmark
+  public List<StunAttribute> getAttributes(Packets p) {
+    return p.packet.getAttributes();
+  }
+
+  @Benchmark
+  public ByteBuffer getBytes(Packets p) {
+    return p.packet.getBytes();
+  }
+
+  @Benchmark
+  public boolean hasAddress(Packets p) {
+    return p.packet.hasAddress();
+  }
+
+  @Benchmark
+  public boolean hasFingerPrint(Packets p) {
+    return p.packet.hasFingerPrint();
+  }
+
+  @Benchmark
+  public int getFingerPrint(Packets p) {
+    return p.packet.getFingerPrint();
+  }
+
+  @Benchmark
+  public boolean hasMessageIntegerity(Packets p) {
+    return p.packet.hasMessageIntegerity();
+  }
+
+  @Benchmark
+  public ByteBuffer getMessageIntegerity(Packets p) {
+    return p.packet.getMessageIntegerity();
+  }
+
+  @Benchmark
+  public StunPacketBuilder createBuilder(Packets p) {
+    return p.packet.createBuilder();
+  }
+
+  @Benchmark
+  public boolean verifyMessageIntegerity(Packets p) {
+    return StunUtils.verifyMessageIntegerity(p.packet, p.key);
+  }
+
+  @Benchmark
+  public boolean verifyFingerPrint(Packets p) {
+    return StunUtils.verifyFingerPrint(p.packet);
+  }
+
+  @Benchmark
+  public ByteBuffer getUsername(Requests r) {
+    return r.packet.getUsername();
+  }
+
+  @Benchmark
+  public ByteBuffer getPriority(Requests r) {
+    return r.packet.getPriority();
+  }
+
+  @Benchmark
+  public ByteBuffer getIceControlled(Controlled c) {
+    return c.packet.getIceControlled();
+  }
+
+  @Benchmark
+  public ByteBuffer getSoftware(ErrorResponses e) {
+    return e.packet.getSoftware();
+  }
+
+  @Benchmark
+  public int getErrorCode(ErrorResponses e) {
+    return e.packet.getErrorCode();
+  }
+
+  @Benchmark
+  public InetSocketAddress getAddress(Responses r) {
+    return r.packet.getAddress();
+  }
+
+  @Benchmark
+  public long getAddressPrimitives(Responses r) {
+    StunPacket sp = r.packet;
+    if(sp.getAddressFamily() == 1) {
+      return sp.getIPv4Address() ^ sp.getPort();
+    }
+    return sp.getIPv6AddressHigh() ^ sp.getIPv6AddressLow() ^ sp.getPort();
+  }
+}
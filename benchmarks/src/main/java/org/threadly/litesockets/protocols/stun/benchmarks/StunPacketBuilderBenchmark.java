@@ -0,0 +1,54 @@
+package org.threadly.litesockets.protocols.stun.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+
+/**
+ * {@link StunPacketBuilder#build()} for a Chrome style connectivity check, with and without
+ * MESSAGE-INTEGRITY and FINGERPRINT.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StunPacketBuilderBenchmark {
+  @Param({"false", "true"})
+  public boolean key;
+
+  @Param({"false", "true"})
+  public boolean fingerprint;
+
+  private StunPacketBuilder builder;
+
+  @Setup
+  public void setup() {
+    builder = IceCheckCorpus.chromeCheckBuilder();
+    if(key) {
+      builder.setKey(IceCheckCorpus.Sample.CHROME_REQUEST.getKey());
+    }
+    if(fingerprint) {
+      builder.enableFingerPrint();
+    }
+  }
+
+  @Benchmark
+  public StunPacket build() throws StunProtocolException {
+    return builder.build();
+  }
+}
@@ -0,0 +1,104 @@
+package org.threadly.litesockets.protocols.stun.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.StunServer;
+
+/**
+ * Loopback load test for {@link StunServer}.  Each benchmark thread is a client that keeps a
+ * window of binding requests in flight, one operation is one binding response received.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class StunServerBenchmark {
+  private static final int WINDOW = 32;
+
+  @State(Scope.Benchmark)
+  public static class Server {
+    @Param({"4"})
+    public int workers;
+
+    public StunServer server;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+      server = new StunServer(new InetSocketAddress("127.0.0.1", 0), workers);
+      server.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+      server.stop();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Client {
+    public DatagramChannel channel;
+    public ByteBuffer request;
+    // the socket adaptor honors SO_TIMEOUT, so lost packets can not hang the benchmark
+    public DatagramPacket response = new DatagramPacket(new byte[1500], 1500);
+    public long lost;
+
+    @Setup(Level.Trial)
+    public void open(Server server) throws IOException, StunProtocolException {
+      channel = DatagramChannel.open();
+      channel.bind(new InetSocketAddress("127.0.0.1", 0));
+      channel.connect(server.server.getLocalAddress());
+      channel.socket().setSoTimeout(1000);
+      StunPacketBuilder spb = IceCheckCorpus.chromeCheckBuilder().enableFingerPrint();
+      request = ByteBuffer.allocateDirect(spb.getEncodedSize());
+      spb.writeTo(request);
+      request.flip();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(WINDOW)
+  public long bindingRoundTrip(Client client) throws IOException {
+    for(int i=0; i<WINDOW; i++) {
+      client.request.rewind();
+      client.channel.write(client.request);
+    }
+    for(int i=0; i<WINDOW; i++) {
+      try {
+        client.channel.socket().receive(client.response);
+      } catch(SocketTimeoutException e) {
+        client.lost++;
+      }
+    }
+    return client.lost;
+  }
+}
@@ -0,0 +1,78 @@
+package org.threadly.litesockets.protocols.stun.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.StunUtils;
+import org.threadly.litesockets.protocols.stun.StunValidationResult;
+
+/**
+ * Cost of rejecting a malformed packet (an unknown comprehension-required attribute at the end of
+ * an otherwise valid Chrome check) compared to accepting a good one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StunValidationBenchmark {
+  @Param({"false", "true"})
+  public boolean stackless;
+
+  private ByteBuffer good;
+  private ByteBuffer bad;
+
+  @Setup
+  public void setup() throws StunProtocolException {
+    StunProtocolException.setStacklessValidationErrors(stackless);
+    good = IceCheckCorpus.Sample.CHROME_REQUEST.build().getBytes();
+    bad = ByteBuffer.allocate(good.remaining());
+    bad.put(good.duplicate()).flip();
+    // turn FINGERPRINT into an unknown comprehension-required attribute
+    bad.putShort(bad.limit() - 8, (short)0x7fff);
+  }
+
+  @TearDown
+  public void tearDown() {
+    StunProtocolException.setStacklessValidationErrors(false);
+  }
+
+  @Benchmark
+  public StunValidationResult validateGood() {
+    return StunUtils.validate(good);
+  }
+
+  @Benchmark
+  public StunValidationResult validateBad() {
+    return StunUtils.validate(bad);
+  }
+
+  @Benchmark
+  public Object parseGood() throws StunProtocolException {
+    return new StunPacket(good.duplicate());
+  }
+
+  @Benchmark
+  public Object parseBad() {
+    try {
+      return new StunPacket(bad.duplicate());
+    } catch(StunProtocolException e) {
+      return e;
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package org.threadly.litesockets.protocols.turn.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.threadly.litesockets.protocols.turn.TurnClient;
+import org.threadly.litesockets.protocols.turn.TurnServer;
+
+/**
+ * Loopback relay throughput of {@link TurnServer} over a bound channel.  The server relays on a
+ * single event loop thread, so the score is packets per second per core.  One operation is one
+ * payload that made it through the relay, lost packets are counted in the returned value.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class TurnRelayBenchmark {
+  private static final int WINDOW = 32;
+  private static final int CHANNEL = 0x4000;
+  private static final long RECEIVE_TIMEOUT_MILLIS = 1000;
+
+  @State(Scope.Thread)
+  public static class Relay {
+    @Param({"100", "1200"})
+    public int payloadSize;
+
+    public TurnServer server;
+    public TurnClient client;
+    public DatagramChannel peer;
+    public InetSocketAddress relayed;
+    public ByteBuffer payload;
+    public ByteBuffer received = ByteBuffer.allocateDirect(65536);
+    public Selector peerSelector;
+    public Selector clientSelector;
+    public long lost;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+      InetAddress localhost = InetAddress.getByName("127.0.0.1");
+      server = new TurnServer(new InetSocketAddress(localhost, 0), localhost, "bench",
+                              (user, realm) -> TurnServer.longTermKey(user, realm, "secret"));
+      server.start();
+      peer = DatagramChannel.open();
+      peer.configureBlocking(false);
+      peer.bind(new InetSocketAddress(localhost, 0));
+      client = new TurnClient(server.getLocalAddress(), "bench", "secret");
+      relayed = client.allocate(TurnServer.MAX_LIFETIME_SECONDS);
+      client.bindChannel(CHANNEL, (InetSocketAddress)peer.getLocalAddress());
+      peer.connect(relayed);
+      payload = ByteBuffer.allocateDirect(payloadSize);
+      peerSelector = Selector.open();
+      peer.register(peerSelector, SelectionKey.OP_READ);
+      clientSelector = Selector.open();
+      client.getChannel().register(clientSelector, SelectionKey.OP_READ);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+      client.close();
+      peer.close();
+      peerSelector.close();
+      clientSelector.close();
+      server.stop();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(WINDOW)
+  public long clientToPeer(Relay relay) throws IOException {
+    for(int i=0; i<WINDOW; i++) {
+      relay.client.sendChannelData(CHANNEL, relay.payload);
+    }
+    return receiveWindow(relay, relay.peer, relay.peerSelector);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(WINDOW)
+  public long peerToClient(Relay relay) throws IOException {
+    for(int i=0; i<WINDOW; i++) {
+      relay.payload.rewind();
+      relay.peer.write(relay.payload);
+    }
+    return receiveWindow(relay, relay.client.getChannel(), relay.clientSelector);
+  }
+
+  // both channels are non-blocking, waiting on a selector with a timeout means lost packets can not
+  // hang the benchmark, and the receiver does not spin against the servers thread
+  private static long receiveWindow(Relay relay, DatagramChannel channel, Selector selector) throws IOException {
+    int received = 0;
+    while(received < WINDOW) {
+      relay.received.clear();
+      if(channel.receive(relay.received) != null) {
+        received++;
+      } else if(selector.select(RECEIVE_TIMEOUT_MILLIS) == 0) {
+        break;
+      } else {
+        selector.selectedKeys().clear();
+      }
+    }
+    relay.lost += WINDOW - received;
+    return relay.lost;
+  }
+}
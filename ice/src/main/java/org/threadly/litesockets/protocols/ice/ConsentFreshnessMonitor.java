@@ -0,0 +1,554 @@
+package org.threadly.litesockets.protocols.ice;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.threadly.litesockets.protocols.stun.StunAttribute;
+import org.threadly.litesockets.protocols.stun.StunClientTransactionManager;
+import org.threadly.litesockets.protocols.stun.StunIntegrityEngine;
+import org.threadly.litesockets.protocols.stun.StunMessageType;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.TimingWheel;
+import org.threadly.litesockets.protocols.stun.TransactionID;
+
+/**
+ * Keeps consent to send (RFC 7675) for any number of sessions from a single {@link TimingWheel},
+ * instead of a timer per session.
+ * <p>
+ * Every session sends a Binding request on its selected pair at a random interval between 0.8 and
+ * 1.2 times {@code intervalMillis}, and loses consent once no authenticated response has arrived
+ * for {@code timeoutMillis}.  A session is one entry on the wheel, due at whichever of the two
+ * comes first, and the wheel is sized so every deadline falls within one rotation.  So a tick only
+ * touches the sessions that are due, and the work per second only grows with the number of
+ * sessions, not with how their timers are spread.
+ * <p>
+ * Each tick collects the due sessions first, then encodes their requests one after the other with
+ * a single {@link StunPacketBuilder} into a single direct buffer, hands each one to the
+ * {@link ConsentSender} and flushes it once at the end.
+ * <p>
+ * Every request gets a fresh transaction id from a {@link SecureRandom}, as RFC 7675 section 5.1
+ * requires, drawn in batches so a request does not allocate.  Each session keeps the ids of its
+ * requests that can still be answered before it times out, at most
+ * {@value #MAX_OUTSTANDING_REQUESTS}, in a small ring, and a primitive open addressing table maps
+ * those ids back to their session, so a response is matched without decoding anything from its id.
+ * <p>
+ * Sessions are added and removed under a lock, responses are handled without one.
+ */
+public class ConsentFreshnessMonitor {
+  public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+  public static final long DEFAULT_TIMEOUT_MILLIS = 30_000;
+  public static final long DEFAULT_TICK_MILLIS = 50;
+  private static final int MAX_USERNAME_LENGTH = 513;
+  // header, USERNAME, PRIORITY, ICE-CONTROLLING, MESSAGE-INTEGRITY and FINGERPRINT
+  private static final int MAX_REQUEST_SIZE = 20 + 4 + 516 + 8 + 12 + 24 + 8;
+  // a response to an older request says little about the path now
+  public static final int MAX_OUTSTANDING_REQUESTS = 8;
+  private static final int TXID_SIZE = 12;
+  private static final int TXID_BATCH = 64;
+  private static final int MIN_INDEX_SLOTS = 64;
+
+  private final int maxSessions;
+  private final ConsentSender sender;
+  private final Listener listener;
+  private final long intervalMillis;
+  private final long timeoutMillis;
+  private final int sequenceWindow;
+  private final TimingWheel wheel;
+  private final ScheduledFuture<?> ticker;
+  private final AtomicReferenceArray<Session> sessions;
+  private final int[] freeIds;
+  private final LongAdder requestsSent = new LongAdder();
+  private final StunIntegrityEngine engine = StunIntegrityEngine.getDefault();
+  private int freeCount;
+  private int sessionCount = 0;
+  private volatile long now;
+  // only used while ticking, guarded by the builder
+  private final StunPacketBuilder builder = new StunPacketBuilder();
+  private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_REQUEST_SIZE);
+  private Session[] due = new Session[64];
+  private int dueCount = 0;
+  private final SecureRandom txidRandom = new SecureRandom();
+  private final ByteBuffer txidBatch = ByteBuffer.allocate(TXID_SIZE * TXID_BATCH);
+  // transaction id to session, 2 longs per slot: the high 8 bytes, then the low 4 bytes above the
+  // session id + 1, which is 0 for a free slot.  Written under the builder lock, read without it.
+  private volatile long[] index = new long[MIN_INDEX_SLOTS * 2];
+  private int indexCount = 0;
+
+  /**
+   * Creates a monitor with the RFC 7675 interval and timeout.
+   *
+   * @param scheduler used to advance the wheel, or {@code null} to drive it with {@link #tick(long)}.
+   * @param maxSessions the most sessions this monitor holds at once.
+   * @param sender sends the consent requests.
+   * @param listener told about sessions that lost consent.
+   */
+  public ConsentFreshnessMonitor(ScheduledExecutorService scheduler, int maxSessions, ConsentSender sender,
+                                 Listener listener) {
+    this(scheduler, maxSessions, sender, listener, DEFAULT_INTERVAL_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Creates a monitor.  Time is read from {@link StunClientTransactionManager#currentTimeMillis()},
+   * which is also the clock {@link #tick(long)} expects.
+   *
+   * @param scheduler used to advance the wheel, or {@code null} to drive it with {@link #tick(long)}.
+   * @param maxSessions the most sessions this monitor holds at once.
+   * @param sender sends the consent requests.
+   * @param listener told about sessions that lost consent.
+   * @param intervalMillis the average time between requests of a session.
+   * @param timeoutMillis how long after the last response a session loses consent.
+   */
+  public ConsentFreshnessMonitor(ScheduledExecutorService scheduler, int maxSessions, ConsentSender sender,
+                                 Listener listener, long intervalMillis, long timeoutMillis) {
+    if(maxSessions < 1 || maxSessions > (1 << 28)) {
+      throw new IllegalArgumentException("maxSessions out of range: "+maxSessions);
+    }
+    if(sender == null || listener == null) {
+      throw new IllegalArgumentException("Sender and listener can not be null!");
+    }
+    if(intervalMillis < 10 || timeoutMillis < intervalMillis) {
+      throw new IllegalArgumentException("Bad interval or timeout: "+intervalMillis+"/"+timeoutMillis);
+    }
+    this.maxSessions = maxSessions;
+    this.sender = sender;
+    this.listener = listener;
+    this.intervalMillis = intervalMillis;
+    this.timeoutMillis = timeoutMillis;
+    // every request that can still be answered before the session times out, up to a limit
+    this.sequenceWindow = (int)Math.min(MAX_OUTSTANDING_REQUESTS, timeoutMillis / (intervalMillis * 8 / 10) + 1);
+    this.sessions = new AtomicReferenceArray<>(maxSessions);
+    this.freeIds = new int[maxSessions];
+    for(int i=0; i<maxSessions; i++) {
+      freeIds[i] = maxSessions - 1 - i;
+    }
+    this.freeCount = maxSessions;
+    long tickMillis = Math.min(DEFAULT_TICK_MILLIS, intervalMillis / 10);
+    this.now = StunClientTransactionManager.currentTimeMillis();
+    this.wheel = new TimingWheel(tickMillis, (int)(maxDelay() / tickMillis) + 2, now);
+    txidBatch.position(txidBatch.limit());
+    builder.setType(StunMessageType.REQUEST).enableFingerPrint();
+    if(scheduler != null) {
+      ticker = scheduler.scheduleAtFixedRate(() -> tick(StunClientTransactionManager.currentTimeMillis()),
+                                             tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    } else {
+      ticker = null;
+    }
+  }
+
+  private long maxDelay() {
+    return intervalMillis * 12 / 10;
+  }
+
+  private long nextDelay() {
+    return ThreadLocalRandom.current().nextLong(intervalMillis * 8 / 10, maxDelay() + 1);
+  }
+
+  public int getMaxSessions() {
+    return maxSessions;
+  }
+
+  public synchronized int getSessionCount() {
+    return sessionCount;
+  }
+
+  /**
+   * Starts keeping consent for a selected pair.  Consent is taken to be fresh right now, the first
+   * request goes out after one interval.
+   *
+   * @param remote the remote address of the pair, requests go there and responses must come from it.
+   * @param localCandidate identifies the local candidate, usually the socket, to send from.
+   * @param localUfrag the local username fragment.
+   * @param remoteUfrag the remote username fragment.
+   * @param remotePassword the remote password, requests are signed and responses verified with it.
+   * @param priority the PRIORITY to send, as for a connectivity check on the pair.
+   * @param controlling {@code true} if the local agent is controlling.
+   * @return the session id, used with the other methods.
+   * @throws IllegalStateException if the monitor already holds {@link #getMaxSessions()} sessions.
+   */
+  public synchronized int addSession(InetSocketAddress remote, int localCandidate, String localUfrag,
+                                     String remoteUfrag, String remotePassword, long priority, boolean controlling) {
+    if(remote == null || localUfrag == null || remoteUfrag == null || remotePassword == null) {
+      throw new IllegalArgumentException("Session fields can not be null!");
+    }
+    byte[] username = (remoteUfrag+":"+localUfrag).getBytes(StandardCharsets.UTF_8);
+    if(username.length > MAX_USERNAME_LENGTH) {
+      throw new IllegalArgumentException("Username too long: "+username.length);
+    }
+    if(freeCount == 0) {
+      throw new IllegalStateException("Too many sessions, max:"+maxSessions);
+    }
+    int id = freeIds[--freeCount];
+    Session session = new Session(id, remote, localCandidate, username,
+                                  remotePassword.getBytes(StandardCharsets.UTF_8), priority, controlling,
+                                  ThreadLocalRandom.current().nextLong(), sequenceWindow);
+    session.lastResponseMillis = now;
+    sessions.set(id, session);
+    sessionCount++;
+    wheel.schedule(session, nextDelay());
+    return id;
+  }
+
+  /**
+   * Stops keeping consent for a session, responses for it are ignored from now on and its id may
+   * be reused.
+   *
+   * @param sessionId the session to remove.
+   * @return {@code false} if there was no such session.
+   */
+  public boolean removeSession(int sessionId) {
+    Session session = sessionId < 0 || sessionId >= maxSessions ? null : sessions.get(sessionId);
+    if(session == null) {
+      return false;
+    }
+    synchronized(builder) {
+      return remove(session);
+    }
+  }
+
+  // the builder lock must be held, for the index
+  private synchronized boolean remove(Session session) {
+    if(sessions.get(session.id) != session) {
+      return false;
+    }
+    session.cancel();
+    for(int i=0; i<session.sentCount; i++) {
+      indexRemove(session.sentHigh[i], session.sentLow[i]);
+    }
+    sessions.set(session.id, null);
+    freeIds[freeCount++] = session.id;
+    sessionCount--;
+    return true;
+  }
+
+  /**
+   * Returns if the session has consent to send, that is it got a response to a consent request, or
+   * was added, within the timeout.
+   *
+   * @param sessionId the session.
+   * @return {@code true} if data may be sent on the session.
+   */
+  public boolean hasConsent(int sessionId) {
+    Session session = sessions.get(sessionId);
+    return session != null && now - session.lastResponseMillis < timeoutMillis;
+  }
+
+  /**
+   * Returns when consent was last refreshed, in the time of the last {@link #tick(long)}.
+   *
+   * @param sessionId the session.
+   * @return the time of the last response, or of when the session was added.
+   */
+  public long getLastResponseMillis(int sessionId) {
+    Session session = sessions.get(sessionId);
+    return session == null ? 0 : session.lastResponseMillis;
+  }
+
+  /**
+   * Refreshes consent for the session the response belongs to, if it is a success response to one
+   * of its recent requests, came from the remote address and carries a valid MESSAGE-INTEGRITY.
+   *
+   * @param response a received STUN response.
+   * @param from the address it came from.
+   * @return {@code true} if the response was to a consent request, whether or not it refreshed
+   *         consent.
+   */
+  public boolean handleResponse(StunPacket response, InetSocketAddress from) {
+    if(!response.getMessageType().isResponse()) {
+      return false;
+    }
+    TransactionID tid = response.getTxID();
+    long high = tid.getHigh();
+    int low = tid.getLow();
+    int id = indexFind(high, low);
+    Session session = id < 0 ? null : sessions.get(id);
+    // the index is read without a lock, so the session has the final say
+    if(session == null || !session.sent(high, low)) {
+      return false;
+    }
+    if(response.getMessageType() == StunMessageType.SUCCESS &&
+        session.remote.equals(from) && engine.verifyMessageIntegerity(response, session.key)) {
+      session.lastResponseMillis = now;
+    }
+    return true;
+  }
+
+  /**
+   * Sends the requests of every session that is due and expires the ones that timed out.  Must not
+   * be called from a {@link Listener}.
+   *
+   * @param nowMillis the current time.
+   */
+  public void tick(long nowMillis) {
+    synchronized(builder) {
+      now = nowMillis;
+      wheel.advance(nowMillis);
+      int expiredCount = 0;
+      int sentCount = 0;
+      for(int i=0; i<dueCount; i++) {
+        Session session = due[i];
+        due[i] = null;
+        if(sessions.get(session.id) != session) {
+          // removed after it was due
+          continue;
+        }
+        long silence = nowMillis - session.lastResponseMillis;
+        if(silence >= timeoutMillis) {
+          if(remove(session)) {
+            // i only moves ahead of expiredCount, so the front of the array is free
+            due[expiredCount++] = session;
+          }
+        } else {
+          send(session);
+          sentCount++;
+          wheel.schedule(session, Math.min(nextDelay(), timeoutMillis - silence));
+        }
+      }
+      dueCount = 0;
+      if(sentCount > 0) {
+        try {
+          sender.flush();
+        } catch(IOException | RuntimeException e) {
+          // lost requests are covered by the next ones, consent only lapses if none get through
+        }
+      }
+      for(int i=0; i<expiredCount; i++) {
+        Session session = due[i];
+        due[i] = null;
+        listener.consentExpired(session.id, session.remote);
+      }
+    }
+  }
+
+  private void send(Session session) {
+    if(!txidBatch.hasRemaining()) {
+      txidRandom.nextBytes(txidBatch.array());
+      txidBatch.clear();
+    }
+    long high = txidBatch.getLong();
+    int low = txidBatch.getInt();
+    int slot = session.nextSent;
+    if(slot < session.sentCount) {
+      // too old to be answered before the session times out
+      indexRemove(session.sentHigh[slot], session.sentLow[slot]);
+    } else {
+      session.sentCount = slot + 1;
+    }
+    session.sentHigh[slot] = high;
+    session.sentLow[slot] = low;
+    session.nextSent = (slot + 1) % sequenceWindow;
+    indexAdd(high, low, session.id);
+    builder.clearAllAttributes();
+    builder.setTxID(high, low);
+    builder.setUsername(session.username).setAttribute(StunAttribute.PRIORITY, session.priority);
+    builder.setAttribute(session.controlling ? StunAttribute.ICE_CONTROLLING : StunAttribute.ICE_CONTROLLED,
+                         session.tieBreaker);
+    builder.setKey(session.key);
+    sendBuffer.clear();
+    try {
+      builder.writeTo(sendBuffer);
+      sendBuffer.flip();
+      sender.send(sendBuffer, session.localCandidate, session.remote);
+      requestsSent.increment();
+    } catch(StunProtocolException | IOException | RuntimeException e) {
+      // same as a lost request
+    }
+  }
+
+  private static int indexHome(long high, int low, int mask) {
+    long h = (high ^ low) * 0x9E3779B97F4A7C15L;
+    return (int)(h >>> 32) & mask;
+  }
+
+  private int indexFind(long high, int low) {
+    long[] table = index;
+    int mask = table.length / 2 - 1;
+    for(int slot = indexHome(high, low, mask); ; slot = (slot + 1) & mask) {
+      long packed = table[slot * 2 + 1];
+      if(packed == 0) {
+        return -1;
+      }
+      if(table[slot * 2] == high && (int)(packed >>> 32) == low) {
+        return (int)packed - 1;
+      }
+    }
+  }
+
+  // called with the builder lock held
+  private void indexAdd(long high, int low, int sessionId) {
+    if((indexCount + 1) * 2 > index.length / 2) {
+      long[] old = index;
+      long[] table = new long[old.length * 2];
+      for(int i=0; i<old.length; i+=2) {
+        if(old[i + 1] != 0) {
+          indexPut(table, old[i], old[i + 1]);
+        }
+      }
+      index = table;
+    }
+    indexPut(index, high, ((long)low << 32) | ((sessionId + 1) & 0xffffffffL));
+    indexCount++;
+  }
+
+  private static void indexPut(long[] table, long high, long packed) {
+    int mask = table.length / 2 - 1;
+    int slot = indexHome(high, (int)(packed >>> 32), mask);
+    while(table[slot * 2 + 1] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    table[slot * 2] = high;
+    table[slot * 2 + 1] = packed;
+  }
+
+  // called with the builder lock held, shifts the entries after it back so no tombstones are left
+  private void indexRemove(long high, int low) {
+    long[] table = index;
+    int mask = table.length / 2 - 1;
+    int slot = indexHome(high, low, mask);
+    while(true) {
+      long packed = table[slot * 2 + 1];
+      if(packed == 0) {
+        return;
+      }
+      if(table[slot * 2] == high && (int)(packed >>> 32) == low) {
+        break;
+      }
+      slot = (slot + 1) & mask;
+    }
+    int hole = slot;
+    for(int next = (hole + 1) & mask; table[next * 2 + 1] != 0; next = (next + 1) & mask) {
+      int home = indexHome(table[next * 2], (int)(table[next * 2 + 1] >>> 32), mask);
+      // moves the entry unless its home lies cyclically after the hole, up to where it is
+      if(((next - home) & mask) >= ((next - hole) & mask)) {
+        table[hole * 2] = table[next * 2];
+        table[hole * 2 + 1] = table[next * 2 + 1];
+        hole = next;
+      }
+    }
+    table[hole * 2 + 1] = 0;
+    indexCount--;
+  }
+
+  /**
+   * Returns the number of sessions waiting for their next request or timeout.
+   *
+   * @return the number of scheduled sessions.
+   */
+  public int getScheduledCount() {
+    return wheel.size();
+  }
+
+  public long getRequestsSent() {
+    return requestsSent.sum();
+  }
+
+  /**
+   * Stops advancing the wheel, no more requests are sent and no more sessions expire.
+   */
+  public void shutdown() {
+    if(ticker != null) {
+      ticker.cancel(false);
+    }
+  }
+
+  private class Session extends TimingWheel.Task {
+    private final int id;
+    private final InetSocketAddress remote;
+    private final int localCandidate;
+    private final ByteBuffer username;
+    private final byte[] key;
+    private final ByteBuffer priority;
+    private final boolean controlling;
+    private final ByteBuffer tieBreaker;
+    // ids of the recent requests, written on the ticking thread and read by handleResponse
+    private final long[] sentHigh;
+    private final int[] sentLow;
+    private int sentCount = 0;
+    private int nextSent = 0;
+    private volatile long lastResponseMillis;
+
+    Session(int id, InetSocketAddress remote, int localCandidate, byte[] username, byte[] key,
+            long priority, boolean controlling, long tieBreaker, int window) {
+      this.id = id;
+      this.remote = remote;
+      this.localCandidate = localCandidate;
+      this.username = ByteBuffer.wrap(username).asReadOnlyBuffer();
+      this.key = key;
+      this.priority = ByteBuffer.allocate(4).putInt(0, (int)priority).asReadOnlyBuffer();
+      this.controlling = controlling;
+      this.tieBreaker = ByteBuffer.allocate(8).putLong(0, tieBreaker).asReadOnlyBuffer();
+      this.sentHigh = new long[window];
+      this.sentLow = new int[window];
+    }
+
+    boolean sent(long high, int low) {
+      for(int i=0; i<sentCount; i++) {
+        if(sentHigh[i] == high && sentLow[i] == low) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    protected void expired() {
+      // called from wheel.advance in tick, the builder lock is held
+      if(dueCount == due.length) {
+        due = Arrays.copyOf(due, dueCount * 2);
+      }
+      due[dueCount++] = this;
+    }
+  }
+
+  /**
+   * Sends consent requests for a {@link ConsentFreshnessMonitor}.
+   */
+  public interface ConsentSender {
+    /**
+     * Sends a request.  The buffer is reused for the next request once this returns, so it has to
+     * be sent or copied before then.  Failures are ignored, the session times out unless a later
+     * request gets through.
+     *
+     * @param packet the encoded request.
+     * @param localCandidate the local candidate the session was added with.
+     * @param destination the remote address of the session.
+     * @throws IOException if the packet could not be sent.
+     */
+    void send(ByteBuffer packet, int localCandidate, InetSocketAddress destination) throws IOException;
+
+    /**
+     * Called once after every tick that sent requests, for senders that queue them.
+     *
+     * @throws IOException if the queued packets could not be sent.
+     */
+    default void flush() throws IOException {
+      // nothing is queued by default
+    }
+  }
+
+  /**
+   * Told about sessions that lost consent, called on the thread calling {@link #tick(long)}.
+   */
+  public interface Listener {
+    /**
+     * Called once a session has gone {@code timeoutMillis} without a response.  The session is
+     * already removed, so its id may be handed out again by the next
+     * {@link ConsentFreshnessMonitor#addSession(InetSocketAddress, int, String, String, String, long, boolean)}.
+     *
+     * @param sessionId the id the session had.
+     * @param remote the remote address of the session.
+     */
+    void consentExpired(int sessionId, InetSocketAddress remote);
+  }
+}
@@ -0,0 +1,704 @@
+package org.threadly.litesockets.protocols.ice;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.threadly.litesockets.protocols.stun.StunAttribute;
+import org.threadly.litesockets.protocols.stun.StunClientTransactionManager;
+import org.threadly.litesockets.protocols.stun.StunIntegrityEngine;
+import org.threadly.litesockets.protocols.stun.StunMessageType;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.StunUtils;
+import org.threadly.litesockets.protocols.stun.TimingWheel;
+
+/**
+ * The connectivity check state of one ICE session (RFC 8445), a single check list covering all
+ * components of one media stream.
+ * <p>
+ * Local and remote candidates are paired as they are added, so candidates can be trickled at any
+ * time.  Once started the agent sends at most one check every Ta, taken from the triggered check
+ * queue first and then from the highest priority waiting pair, and unfreezes pairs by foundation as
+ * checks succeed.  The controlling agent uses regular nomination: once the best pair of a component
+ * that has not failed succeeds it is checked again with USE-CANDIDATE.  Role conflicts are resolved
+ * with the tie-breaker, in either direction.
+ * <p>
+ * The agent owns no threads.  Its pacing timer is an entry on a shared {@link IceCheckScheduler},
+ * and checks are handed to a {@link CheckSender}, which usually sends them through a
+ * {@link StunClientTransactionManager} so retransmissions are also on a shared wheel.  Incoming
+ * checks are passed to {@link #handleRequest(StunPacket, IceCandidate, InetSocketAddress)} by
+ * whoever owns the sockets.  All methods are thread safe, and {@link Listener}s are never called
+ * while the agent holds its lock.
+ */
+public class IceAgent {
+  public static final int MAX_PAIRS = 100;
+
+  /**
+   * The state of the agent's check list.
+   */
+  public enum State {
+    NEW, RUNNING, COMPLETED, FAILED
+  }
+
+  private final IceCheckScheduler scheduler;
+  private final CheckSender sender;
+  private final StunIntegrityEngine engine;
+  private final String localUfrag;
+  private final byte[] localKey;
+  private final long tieBreaker;
+  private final Pacer pacer = new Pacer();
+  private final List<IceCandidate> localCandidates = new ArrayList<>();
+  private final List<IceCandidate> remoteCandidates = new ArrayList<>();
+  // highest priority first
+  private final List<IceCandidatePair> checkList = new ArrayList<>();
+  private final ArrayDeque<IceCandidatePair> triggered = new ArrayDeque<>();
+  private final Map<Integer, IceCandidatePair> nominated = new HashMap<>();
+  private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+  private final List<IceCandidatePair> pendingNominations = new ArrayList<>();
+  private State pendingState = null;
+  private boolean controlling;
+  private String remoteUfrag = null;
+  private byte[] remoteKey = null;
+  private State state = State.NEW;
+  private long lastCheckMillis = Long.MIN_VALUE / 2;
+  private int peerReflexiveCount = 0;
+
+  /**
+   * Creates an agent using the default {@link StunIntegrityEngine}.
+   *
+   * @param scheduler the scheduler pacing this agent's checks, usually shared by every session.
+   * @param sender sends checks and reports their responses.
+   * @param controlling {@code true} if this agent starts in the controlling role.
+   * @param localUfrag the local username fragment.
+   * @param localPassword the local password, incoming checks are signed with it.
+   */
+  public IceAgent(IceCheckScheduler scheduler, CheckSender sender, boolean controlling,
+                  String localUfrag, String localPassword) {
+    this(scheduler, sender, controlling, localUfrag, localPassword, StunIntegrityEngine.getDefault());
+  }
+
+  /**
+   * Creates an agent.
+   *
+   * @param scheduler the scheduler pacing this agent's checks, usually shared by every session.
+   * @param sender sends checks and reports their responses.
+   * @param controlling {@code true} if this agent starts in the controlling role.
+   * @param localUfrag the local username fragment.
+   * @param localPassword the local password, incoming checks are signed with it.
+   * @param engine verifies MESSAGE-INTEGRITY on incoming checks and their responses.
+   */
+  public IceAgent(IceCheckScheduler scheduler, CheckSender sender, boolean controlling,
+                  String localUfrag, String localPassword, StunIntegrityEngine engine) {
+    this(scheduler, sender, controlling, localUfrag, localPassword, engine, ThreadLocalRandom.current().nextLong());
+  }
+
+  IceAgent(IceCheckScheduler scheduler, CheckSender sender, boolean controlling,
+           String localUfrag, String localPassword, long tieBreaker) {
+    this(scheduler, sender, controlling, localUfrag, localPassword, StunIntegrityEngine.getDefault(), tieBreaker);
+  }
+
+  IceAgent(IceCheckScheduler scheduler, CheckSender sender, boolean controlling,
+           String localUfrag, String localPassword, StunIntegrityEngine engine, long tieBreaker) {
+    if(scheduler == null || sender == null || localUfrag == null || localPassword == null || engine == null) {
+      throw new IllegalArgumentException("Agent fields can not be null!");
+    }
+    this.scheduler = scheduler;
+    this.sender = sender;
+    this.engine = engine;
+    this.controlling = controlling;
+    this.localUfrag = localUfrag;
+    this.localKey = localPassword.getBytes(StandardCharsets.UTF_8);
+    this.tieBreaker = tieBreaker;
+  }
+
+  /**
+   * Returns a {@link CheckSender} that sends every check through the transaction manager.  The
+   * manager is bound to a single socket, so this only fits agents with one local base.
+   *
+   * @param manager the transaction manager to send checks with.
+   * @return a {@link CheckSender}.
+   */
+  public static CheckSender checkSender(StunClientTransactionManager manager) {
+    return (local, remote, request) -> manager.sendRequest(request, remote);
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  public synchronized boolean isControlling() {
+    return controlling;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Returns a snapshot of the check list, highest priority first.
+   *
+   * @return the current candidate pairs.
+   */
+  public synchronized List<IceCandidatePair> getCheckList() {
+    return new ArrayList<>(checkList);
+  }
+
+  /**
+   * Returns the nominated pair of a component.
+   *
+   * @param componentId the component.
+   * @return the nominated pair or {@code null} if the component has none yet.
+   */
+  public synchronized IceCandidatePair getNominatedPair(int componentId) {
+    return nominated.get(componentId);
+  }
+
+  /**
+   * Sets the remote credentials signaled by the peer, these must be set before {@link #start()}.
+   *
+   * @param ufrag the remote username fragment.
+   * @param password the remote password, outgoing checks are signed with it.
+   */
+  public synchronized void setRemoteCredentials(String ufrag, String password) {
+    remoteUfrag = ufrag;
+    remoteKey = password.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Adds a local candidate and pairs it with every known remote candidate.  Server reflexive
+   * candidates are only signaled, checks are sent from their base, which must be added as a host
+   * candidate.
+   *
+   * @param candidate the local candidate.
+   */
+  public void addLocalCandidate(IceCandidate candidate) {
+    synchronized(this) {
+      localCandidates.add(candidate);
+      if(candidate.getType() != IceCandidateType.SERVER_REFLEXIVE) {
+        for(int i=0; i<remoteCandidates.size(); i++) {
+          addPair(candidate, remoteCandidates.get(i));
+        }
+      }
+      wake();
+    }
+    notifyListeners();
+  }
+
+  /**
+   * Adds a remote candidate and pairs it with every local candidate.
+   *
+   * @param candidate the remote candidate.
+   */
+  public void addRemoteCandidate(IceCandidate candidate) {
+    synchronized(this) {
+      remoteCandidates.add(candidate);
+      for(int i=0; i<localCandidates.size(); i++) {
+        if(localCandidates.get(i).getType() != IceCandidateType.SERVER_REFLEXIVE) {
+          addPair(localCandidates.get(i), candidate);
+        }
+      }
+      wake();
+    }
+    notifyListeners();
+  }
+
+  /**
+   * Sets the initial states of the check list and starts sending checks.
+   *
+   * @throws IllegalStateException if the agent was already started or has no remote credentials.
+   */
+  public synchronized void start() {
+    if(state != State.NEW) {
+      throw new IllegalStateException("Agent already started!");
+    }
+    if(remoteKey == null) {
+      throw new IllegalStateException("No remote credentials!");
+    }
+    state = State.RUNNING;
+    // for each foundation the pair with the lowest component, then highest priority, goes first
+    Map<String, IceCandidatePair> first = new HashMap<>();
+    for(int i=0; i<checkList.size(); i++) {
+      IceCandidatePair pair = checkList.get(i);
+      IceCandidatePair current = first.get(pair.getFoundation());
+      if(current == null || pair.getComponentId() < current.getComponentId()) {
+        first.put(pair.getFoundation(), pair);
+      }
+    }
+    for(IceCandidatePair pair : first.values()) {
+      pair.setState(IceCandidatePair.State.WAITING);
+    }
+    wake();
+  }
+
+  /**
+   * Stops sending checks, a running agent moves to {@link State#FAILED}.
+   */
+  public void close() {
+    synchronized(this) {
+      pacer.cancel();
+      triggered.clear();
+      if(state == State.NEW || state == State.RUNNING) {
+        setState(State.FAILED);
+      }
+    }
+    notifyListeners();
+  }
+
+  /**
+   * Answers an incoming Binding request.  The request is authenticated with the local credentials,
+   * role conflicts are resolved, unknown sources are learned as peer reflexive candidates and a
+   * triggered check is queued for the pair it arrived on.
+   *
+   * @param request the Binding request.
+   * @param local the local candidate whose base received the request.
+   * @param from the source address of the request.
+   * @return the response to send back to {@code from}.
+   * @throws StunProtocolException if the response could not be encoded.
+   */
+  public StunPacket handleRequest(StunPacket request, IceCandidate local, InetSocketAddress from)
+      throws StunProtocolException {
+    ByteBuffer priorityValue = request.getAttribute(StunAttribute.PRIORITY);
+    if(request.getMessageType() != StunMessageType.REQUEST || !request.hasMessageIntegerity() ||
+        !request.hasAttribute(StunAttribute.USERNAME) || priorityValue.remaining() != 4) {
+      return errorResponse(request, 400, "Bad Request", false);
+    }
+    String username = StandardCharsets.UTF_8.decode(request.getUsername()).toString();
+    if(!username.startsWith(localUfrag+":") || !engine.verifyMessageIntegerity(request, localKey)) {
+      return errorResponse(request, 401, "Unauthorized", false);
+    }
+    try {
+      synchronized(this) {
+        if(resolveRoleConflict(request)) {
+          return errorResponse(request, 487, "Role Conflict", true);
+        }
+        if(state != State.NEW && state != State.RUNNING && state != State.COMPLETED) {
+          return successResponse(request, from);
+        }
+        IceCandidate remote = findRemote(from);
+        if(remote == null) {
+          long priority = priorityValue.getInt(priorityValue.position()) & 0xffffffffL;
+          remote = new IceCandidate("prflx"+(++peerReflexiveCount), local.getComponentId(),
+                                    IceCandidateType.PEER_REFLEXIVE, priority, from);
+          remoteCandidates.add(remote);
+        }
+        IceCandidatePair pair = findPair(local, from);
+        if(pair == null) {
+          pair = addPair(local, remote);
+        }
+        if(pair != null) {
+          if(pair.getState() != IceCandidatePair.State.SUCCEEDED &&
+              pair.getState() != IceCandidatePair.State.IN_PROGRESS && !triggered.contains(pair)) {
+            pair.setState(IceCandidatePair.State.WAITING);
+            triggered.add(pair);
+          }
+          if(!controlling && request.hasAttribute(StunAttribute.USE_CANDIDATE)) {
+            if(pair.getState() == IceCandidatePair.State.SUCCEEDED) {
+              nominate(pair);
+            } else {
+              pair.nominateOnSuccess = true;
+            }
+          }
+          wake();
+        }
+        return successResponse(request, from);
+      }
+    } finally {
+      notifyListeners();
+    }
+  }
+
+  /**
+   * Checks the role attributes of an incoming request against our own role.
+   *
+   * @return {@code true} if the peer should switch roles and a 487 must be sent.
+   */
+  private boolean resolveRoleConflict(StunPacket request) {
+    if(controlling && request.hasAttribute(StunAttribute.ICE_CONTROLLING)) {
+      if(Long.compareUnsigned(tieBreaker, request.getAttribute(StunAttribute.ICE_CONTROLLING).getLong(0)) >= 0) {
+        return true;
+      }
+      switchRole();
+    } else if(!controlling && request.hasAttribute(StunAttribute.ICE_CONTROLLED)) {
+      if(Long.compareUnsigned(tieBreaker, request.getAttribute(StunAttribute.ICE_CONTROLLED).getLong(0)) < 0) {
+        return true;
+      }
+      switchRole();
+    }
+    return false;
+  }
+
+  private void switchRole() {
+    controlling = !controlling;
+    for(int i=0; i<checkList.size(); i++) {
+      checkList.get(i).updatePriority(controlling);
+    }
+    checkList.sort((a, b) -> Long.compareUnsigned(b.getPriority(), a.getPriority()));
+  }
+
+  private StunPacket successResponse(StunPacket request, InetSocketAddress from) throws StunProtocolException {
+    return new StunPacketBuilder().setType(StunMessageType.SUCCESS).setTxID(request.getTxID())
+                                  .setXorMappedAddress(from).setKey(localKey).enableFingerPrint().build();
+  }
+
+  private StunPacket errorResponse(StunPacket request, int code, String reason, boolean sign)
+      throws StunProtocolException {
+    StunPacketBuilder spb = new StunPacketBuilder().setType(StunMessageType.FAILURE).setTxID(request.getTxID())
+                                                   .setErrorCode(code, reason).enableFingerPrint();
+    if(sign) {
+      spb.setKey(localKey);
+    }
+    return spb.build();
+  }
+
+  private IceCandidate findRemote(InetSocketAddress address) {
+    for(int i=0; i<remoteCandidates.size(); i++) {
+      if(remoteCandidates.get(i).getAddress().equals(address)) {
+        return remoteCandidates.get(i);
+      }
+    }
+    return null;
+  }
+
+  private IceCandidatePair findPair(IceCandidate local, InetSocketAddress remote) {
+    for(int i=0; i<checkList.size(); i++) {
+      IceCandidatePair pair = checkList.get(i);
+      if(pair.getLocal().getBase().equals(local.getBase()) && pair.getRemote().getAddress().equals(remote)) {
+        return pair;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Pairs two candidates if they can talk to each other and the pair is not already on the list.
+   *
+   * @return the new pair, or {@code null} if none was added.
+   */
+  private IceCandidatePair addPair(IceCandidate local, IceCandidate remote) {
+    if(local.getComponentId() != remote.getComponentId() || local.isIPv4() != remote.isIPv4() ||
+        findPair(local, remote.getAddress()) != null) {
+      return null;
+    }
+    IceCandidatePair pair = new IceCandidatePair(local, remote, controlling);
+    int index = 0;
+    while(index < checkList.size() &&
+        Long.compareUnsigned(checkList.get(index).getPriority(), pair.getPriority()) >= 0) {
+      index++;
+    }
+    if(index == MAX_PAIRS) {
+      return null;
+    }
+    checkList.add(index, pair);
+    if(checkList.size() > MAX_PAIRS) {
+      triggered.remove(checkList.remove(MAX_PAIRS));
+    }
+    if(state == State.RUNNING && !isFoundationActive(pair.getFoundation(), pair)) {
+      pair.setState(IceCandidatePair.State.WAITING);
+    }
+    return pair;
+  }
+
+  private boolean isFoundationActive(String foundation, IceCandidatePair except) {
+    for(int i=0; i<checkList.size(); i++) {
+      IceCandidatePair pair = checkList.get(i);
+      if(pair != except && pair.getState() != IceCandidatePair.State.FROZEN &&
+          pair.getState() != IceCandidatePair.State.FAILED && pair.getFoundation().equals(foundation)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Makes sure the pacer is scheduled, only reschedules it if it is idle.
+   */
+  private void wake() {
+    if(state == State.RUNNING && !pacer.isScheduled()) {
+      long sinceLast = scheduler.getCurrentMillis() - lastCheckMillis;
+      scheduler.schedule(pacer, Math.max(0, scheduler.getTaMillis() - sinceLast));
+    }
+  }
+
+  /**
+   * Picks the next check, triggered checks first, then the best waiting pair, then a frozen pair
+   * whose foundation has nothing else going, and finally a nomination.
+   */
+  private Check nextCheck() {
+    IceCandidatePair pair = triggered.poll();
+    if(pair != null) {
+      return new Check(pair, false);
+    }
+    for(int i=0; i<checkList.size(); i++) {
+      if(checkList.get(i).getState() == IceCandidatePair.State.WAITING) {
+        return new Check(checkList.get(i), false);
+      }
+    }
+    for(int i=0; i<checkList.size(); i++) {
+      pair = checkList.get(i);
+      if(pair.getState() == IceCandidatePair.State.FROZEN && !isFoundationActive(pair.getFoundation(), pair)) {
+        return new Check(pair, false);
+      }
+    }
+    if(controlling) {
+      return nextNomination();
+    }
+    return null;
+  }
+
+  private Check nextNomination() {
+    for(int i=0; i<checkList.size(); i++) {
+      IceCandidatePair pair = checkList.get(i);
+      if(nominated.containsKey(pair.getComponentId()) || isNominating(pair.getComponentId()) ||
+          pair.getState() == IceCandidatePair.State.FAILED) {
+        continue;
+      }
+      // the best pair of the component that has not failed, nominate it once it has succeeded
+      if(pair.getState() == IceCandidatePair.State.SUCCEEDED && isFirstOfComponent(pair)) {
+        pair.nominating = true;
+        return new Check(pair, true);
+      }
+    }
+    return null;
+  }
+
+  private boolean isNominating(int componentId) {
+    for(int i=0; i<checkList.size(); i++) {
+      if(checkList.get(i).nominating && checkList.get(i).getComponentId() == componentId) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isFirstOfComponent(IceCandidatePair candidate) {
+    for(int i=0; i<checkList.size(); i++) {
+      IceCandidatePair pair = checkList.get(i);
+      if(pair == candidate) {
+        return true;
+      } else if(pair.getComponentId() == candidate.getComponentId() &&
+          pair.getState() != IceCandidatePair.State.FAILED) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Run by the pacer once per Ta, sends at most one check.
+   */
+  private void runCheck() {
+    Check check;
+    StunPacket request;
+    synchronized(this) {
+      if(state != State.RUNNING) {
+        return;
+      }
+      long now = scheduler.getCurrentMillis();
+      if(now - lastCheckMillis < scheduler.getTaMillis()) {
+        wake();
+        return;
+      }
+      check = nextCheck();
+      if(check == null) {
+        updateState();
+        return;
+      }
+      lastCheckMillis = now;
+      if(!check.useCandidate) {
+        check.pair.setState(IceCandidatePair.State.IN_PROGRESS);
+      }
+      try {
+        request = buildCheck(check);
+      } catch(StunProtocolException e) {
+        checkFailed(check);
+        request = null;
+      }
+      wake();
+    }
+    if(request != null) {
+      sender.sendCheck(check.pair.getLocal(), check.pair.getRemote().getAddress(), request)
+            .whenComplete((response, error) -> handleResult(check, response, error));
+    }
+    notifyListeners();
+  }
+
+  private StunPacket buildCheck(Check check) throws StunProtocolException {
+    IceCandidate local = check.pair.getLocal();
+    long priority = IceCandidate.computePriority(IceCandidateType.PEER_REFLEXIVE,
+                                                 local.getLocalPreference(), local.getComponentId());
+    StunPacketBuilder spb = new StunPacketBuilder().setType(StunMessageType.REQUEST);
+    spb.setUsername(ByteBuffer.wrap((remoteUfrag+":"+localUfrag).getBytes(StandardCharsets.UTF_8)));
+    spb.setAttribute(StunAttribute.PRIORITY, ByteBuffer.allocate(4).putInt(0, (int)priority));
+    spb.setAttribute(controlling ? StunAttribute.ICE_CONTROLLING : StunAttribute.ICE_CONTROLLED,
+                     ByteBuffer.allocate(8).putLong(0, tieBreaker));
+    if(check.useCandidate) {
+      spb.setAttribute(StunAttribute.USE_CANDIDATE, StunUtils.EMPTY_BB);
+    }
+    return spb.setKey(remoteKey).enableFingerPrint().build();
+  }
+
+  private void handleResult(Check check, StunPacket response, Throwable error) {
+    synchronized(this) {
+      if(state != State.RUNNING && state != State.COMPLETED) {
+        return;
+      }
+      if(error != null || response == null || !engine.verifyMessageIntegerity(response, remoteKey)) {
+        // an unsigned response, a forged 487 in particular, must not change anything but this check
+        checkFailed(check);
+      } else if(response.getMessageType() == StunMessageType.FAILURE && response.hasAttribute(StunAttribute.ERROR_CODE) &&
+          response.getErrorCode() == 487) {
+        // the peer won the role conflict, switch and try the pair again
+        check.pair.nominating = false;
+        switchRole();
+        check.pair.setState(IceCandidatePair.State.WAITING);
+        if(!triggered.contains(check.pair)) {
+          triggered.add(check.pair);
+        }
+      } else if(response.getMessageType() != StunMessageType.SUCCESS) {
+        checkFailed(check);
+      } else {
+        checkSucceeded(check);
+      }
+      updateState();
+      wake();
+    }
+    notifyListeners();
+  }
+
+  private void checkSucceeded(Check check) {
+    IceCandidatePair pair = check.pair;
+    pair.setState(IceCandidatePair.State.SUCCEEDED);
+    for(int i=0; i<checkList.size(); i++) {
+      IceCandidatePair other = checkList.get(i);
+      if(other.getState() == IceCandidatePair.State.FROZEN && other.getFoundation().equals(pair.getFoundation())) {
+        other.setState(IceCandidatePair.State.WAITING);
+      }
+    }
+    if(check.useCandidate || pair.nominateOnSuccess) {
+      pair.nominating = false;
+      nominate(pair);
+    }
+  }
+
+  private void checkFailed(Check check) {
+    check.pair.nominating = false;
+    check.pair.setState(IceCandidatePair.State.FAILED);
+  }
+
+  private void nominate(IceCandidatePair pair) {
+    if(nominated.containsKey(pair.getComponentId())) {
+      return;
+    }
+    pair.setNominated();
+    nominated.put(pair.getComponentId(), pair);
+    pendingNominations.add(pair);
+    updateState();
+  }
+
+  private void updateState() {
+    if(state != State.RUNNING || checkList.isEmpty()) {
+      return;
+    }
+    boolean allNominated = true;
+    boolean allFailed = triggered.isEmpty();
+    for(int i=0; i<checkList.size(); i++) {
+      IceCandidatePair pair = checkList.get(i);
+      allNominated &= nominated.containsKey(pair.getComponentId());
+      allFailed &= pair.getState() == IceCandidatePair.State.FAILED;
+    }
+    for(int i=0; i<localCandidates.size(); i++) {
+      allNominated &= nominated.containsKey(localCandidates.get(i).getComponentId());
+    }
+    if(allNominated) {
+      pacer.cancel();
+      triggered.clear();
+      setState(State.COMPLETED);
+    } else if(allFailed) {
+      pacer.cancel();
+      setState(State.FAILED);
+    }
+  }
+
+  private void setState(State newState) {
+    state = newState;
+    pendingState = newState;
+  }
+
+  private void notifyListeners() {
+    List<IceCandidatePair> nominations;
+    State newState;
+    synchronized(this) {
+      if(pendingNominations.isEmpty() && pendingState == null) {
+        return;
+      }
+      nominations = new ArrayList<>(pendingNominations);
+      pendingNominations.clear();
+      newState = pendingState;
+      pendingState = null;
+    }
+    for(Listener listener : listeners) {
+      for(int i=0; i<nominations.size(); i++) {
+        listener.pairNominated(this, nominations.get(i));
+      }
+      if(newState != null) {
+        listener.stateChanged(this, newState);
+      }
+    }
+  }
+
+  private static class Check {
+    private final IceCandidatePair pair;
+    private final boolean useCandidate;
+
+    private Check(IceCandidatePair pair, boolean useCandidate) {
+      this.pair = pair;
+      this.useCandidate = useCandidate;
+    }
+  }
+
+  private class Pacer extends TimingWheel.Task {
+    @Override
+    protected void expired() {
+      runCheck();
+    }
+  }
+
+  /**
+   * Sends connectivity checks for an {@link IceAgent}.
+   */
+  public interface CheckSender {
+    /**
+     * Sends the check and tracks it until a response arrives.  This is called without any agent
+     * locks held and must not block.
+     *
+     * @param local the local candidate to send from, the check goes out from its base.
+     * @param remote the address to send the check to.
+     * @param request the signed Binding request.
+     * @return a future completed with the response, or exceptionally if the check timed out.
+     */
+    CompletableFuture<StunPacket> sendCheck(IceCandidate local, InetSocketAddress remote, StunPacket request);
+  }
+
+  /**
+   * Receives updates from an {@link IceAgent}, never called while the agent holds its lock.
+   */
+  public interface Listener {
+    void pairNominated(IceAgent agent, IceCandidatePair pair);
+
+    void stateChanged(IceAgent agent, State state);
+  }
+}
@@ -0,0 +1,114 @@
+package org.threadly.litesockets.protocols.ice;
+
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+
+/**
+ * An immutable ICE candidate, either gathered locally or signaled by the remote agent.
+ */
+public class IceCandidate {
+  public static final int DEFAULT_LOCAL_PREFERENCE = 65535;
+
+  private final String foundation;
+  private final int componentId;
+  private final IceCandidateType type;
+  private final long priority;
+  private final InetSocketAddress address;
+  private final InetSocketAddress base;
+
+  /**
+   * Creates a candidate that is its own base, like host and remote candidates.
+   *
+   * @param foundation the foundation, candidates with the same type, base and server share one.
+   * @param componentId the component, 1 for RTP.
+   * @param type the candidate type.
+   * @param priority the candidate priority, see {@link #computePriority(IceCandidateType, int, int)}.
+   * @param address the transport address.
+   */
+  public IceCandidate(String foundation, int componentId, IceCandidateType type, long priority,
+                      InetSocketAddress address) {
+    this(foundation, componentId, type, priority, address, address);
+  }
+
+  /**
+   * Creates a candidate.
+   *
+   * @param foundation the foundation, candidates with the same type, base and server share one.
+   * @param componentId the component, 1 for RTP.
+   * @param type the candidate type.
+   * @param priority the candidate priority, see {@link #computePriority(IceCandidateType, int, int)}.
+   * @param address the transport address.
+   * @param base the address checks are sent from, the host address a server reflexive candidate
+   *        was discovered from.
+   */
+  public IceCandidate(String foundation, int componentId, IceCandidateType type, long priority,
+                      InetSocketAddress address, InetSocketAddress base) {
+    if(foundation == null || type == null || address == null || base == null) {
+      throw new IllegalArgumentException("Candidate fields can not be null!");
+    }
+    if(componentId < 1 || componentId > 256) {
+      throw new IllegalArgumentException("Bad component id:"+componentId);
+    }
+    if(priority < 1 || priority > 0xffffffffL) {
+      throw new IllegalArgumentException("Bad priority:"+priority);
+    }
+    this.foundation = foundation;
+    this.componentId = componentId;
+    this.type = type;
+    this.priority = priority;
+    this.address = address;
+    this.base = base;
+  }
+
+  /**
+   * Computes a candidate priority as in RFC 8445 section 5.1.2.1.
+   *
+   * @param type the candidate type.
+   * @param localPreference the preference of the interface, from 0 to 65535.
+   * @param componentId the component, from 1 to 256.
+   * @return the candidate priority.
+   */
+  public static long computePriority(IceCandidateType type, int localPreference, int componentId) {
+    if(localPreference < 0 || localPreference > 0xffff) {
+      throw new IllegalArgumentException("Bad local preference:"+localPreference);
+    }
+    return ((long)type.typePreference << 24) + (localPreference << 8) + (256 - componentId);
+  }
+
+  public String getFoundation() {
+    return foundation;
+  }
+
+  public int getComponentId() {
+    return componentId;
+  }
+
+  public IceCandidateType getType() {
+    return type;
+  }
+
+  public long getPriority() {
+    return priority;
+  }
+
+  public InetSocketAddress getAddress() {
+    return address;
+  }
+
+  public InetSocketAddress getBase() {
+    return base;
+  }
+
+  public int getLocalPreference() {
+    return (int)((priority >> 8) & 0xffff);
+  }
+
+  boolean isIPv4() {
+    return address.getAddress() instanceof Inet4Address;
+  }
+
+  @Override
+  public String toString() {
+    return "IceCandidate:"+foundation+":"+componentId+":"+type+":"+priority+":"+address;
+  }
+}
@@ -0,0 +1,92 @@
+package org.threadly.litesockets.protocols.ice;
+
+/**
+ * A pair of a local and a remote candidate on an {@link IceAgent}'s check list.  The state is only
+ * changed by the agent, while holding its lock.
+ */
+public class IceCandidatePair {
+  /**
+   * The check states from RFC 8445 section 6.1.2.6.
+   */
+  public enum State {
+    FROZEN, WAITING, IN_PROGRESS, SUCCEEDED, FAILED
+  }
+
+  private final IceCandidate local;
+  private final IceCandidate remote;
+  private volatile long priority;
+  private volatile State state = State.FROZEN;
+  private volatile boolean nominated = false;
+  // a nomination check is in flight for this pair
+  boolean nominating = false;
+  // the controlling agent nominated this pair before our own check on it succeeded
+  boolean nominateOnSuccess = false;
+
+  IceCandidatePair(IceCandidate local, IceCandidate remote, boolean controlling) {
+    this.local = local;
+    this.remote = remote;
+    updatePriority(controlling);
+  }
+
+  /**
+   * Computes a pair priority as in RFC 8445 section 6.1.2.3.
+   *
+   * @param controllingPriority the priority of the controlling agent's candidate.
+   * @param controlledPriority the priority of the controlled agent's candidate.
+   * @return the pair priority, to be compared unsigned.
+   */
+  public static long computePriority(long controllingPriority, long controlledPriority) {
+    long min = Math.min(controllingPriority, controlledPriority);
+    long max = Math.max(controllingPriority, controlledPriority);
+    return (min << 32) + (max << 1) + (controllingPriority > controlledPriority ? 1 : 0);
+  }
+
+  void updatePriority(boolean controlling) {
+    if(controlling) {
+      priority = computePriority(local.getPriority(), remote.getPriority());
+    } else {
+      priority = computePriority(remote.getPriority(), local.getPriority());
+    }
+  }
+
+  void setState(State state) {
+    this.state = state;
+  }
+
+  void setNominated() {
+    nominated = true;
+  }
+
+  public IceCandidate getLocal() {
+    return local;
+  }
+
+  public IceCandidate getRemote() {
+    return remote;
+  }
+
+  public int getComponentId() {
+    return local.getComponentId();
+  }
+
+  public long getPriority() {
+    return priority;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public boolean isNominated() {
+    return nominated;
+  }
+
+  String getFoundation() {
+    return local.getFoundation()+":"+remote.getFoundation();
+  }
+
+  @Override
+  public String toString() {
+    return "IceCandidatePair:"+local.getAddress()+"->"+remote.getAddress()+":"+state+(nominated ? ":nominated" : "");
+  }
+}
@@ -0,0 +1,16 @@
+package org.threadly.litesockets.protocols.ice;
+
+/**
+ * The ICE candidate types with the recommended type preferences from RFC 8445 section 5.1.2.2.
+ */
+public enum IceCandidateType {
+  HOST(126),
+  PEER_REFLEXIVE(110),
+  SERVER_REFLEXIVE(100),
+  RELAYED(0);
+
+  public final int typePreference;
+  private IceCandidateType(int typePreference) {
+    this.typePreference = typePreference;
+  }
+}
@@ -0,0 +1,97 @@
+package org.threadly.litesockets.protocols.ice;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.threadly.litesockets.protocols.stun.StunClientTransactionManager;
+import org.threadly.litesockets.protocols.stun.TimingWheel;
+
+/**
+ * Paces the connectivity checks of any number of {@link IceAgent}s from a single
+ * {@link TimingWheel}, instead of a timer thread per session.  Each running agent has at most one
+ * entry on the wheel, so scheduling stays O(1) with thousands of sessions, and agents with nothing
+ * to check are not on the wheel at all.
+ * <p>
+ * Agents run their checks on the thread that advances the wheel, either the provided
+ * {@link ScheduledExecutorService} or whoever calls {@link #tick(long)}.
+ */
+public class IceCheckScheduler {
+  public static final long DEFAULT_TA_MILLIS = 50;
+  public static final long DEFAULT_TICK_MILLIS = 5;
+  private static final int WHEEL_SIZE = 256;
+
+  private final TimingWheel wheel;
+  private final long taMillis;
+  private final ScheduledFuture<?> ticker;
+
+  /**
+   * Creates a scheduler with the default Ta of {@value #DEFAULT_TA_MILLIS}ms.
+   *
+   * @param scheduler used to advance the wheel, or {@code null} to drive it with {@link #tick(long)}.
+   */
+  public IceCheckScheduler(ScheduledExecutorService scheduler) {
+    this(scheduler, DEFAULT_TA_MILLIS);
+  }
+
+  /**
+   * Creates a scheduler.  Time is read from {@link StunClientTransactionManager#currentTimeMillis()},
+   * which is also the clock {@link #tick(long)} expects.
+   *
+   * @param scheduler used to advance the wheel, or {@code null} to drive it with {@link #tick(long)}.
+   * @param taMillis the minimum time between checks from one agent.
+   */
+  public IceCheckScheduler(ScheduledExecutorService scheduler, long taMillis) {
+    if(taMillis < 1) {
+      throw new IllegalArgumentException("Ta must be at least 1ms!");
+    }
+    this.taMillis = taMillis;
+    long tickMillis = Math.min(DEFAULT_TICK_MILLIS, taMillis);
+    this.wheel = new TimingWheel(tickMillis, WHEEL_SIZE, StunClientTransactionManager.currentTimeMillis());
+    if(scheduler != null) {
+      ticker = scheduler.scheduleAtFixedRate(() -> tick(StunClientTransactionManager.currentTimeMillis()),
+                                             tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    } else {
+      ticker = null;
+    }
+  }
+
+  public long getTaMillis() {
+    return taMillis;
+  }
+
+  /**
+   * Runs the checks of every agent whose pacing timer is due.
+   *
+   * @param nowMillis the current time.
+   */
+  public void tick(long nowMillis) {
+    wheel.advance(nowMillis);
+  }
+
+  long getCurrentMillis() {
+    return wheel.getCurrentMillis();
+  }
+
+  void schedule(TimingWheel.Task task, long delayMillis) {
+    wheel.schedule(task, delayMillis);
+  }
+
+  /**
+   * Returns the number of agents waiting for their next check.
+   *
+   * @return the number of scheduled agents.
+   */
+  public int getScheduledCount() {
+    return wheel.size();
+  }
+
+  /**
+   * Stops advancing the wheel, agents still on it will not run any more checks.
+   */
+  public void shutdown() {
+    if(ticker != null) {
+      ticker.cancel(false);
+    }
+  }
+}
@@ -0,0 +1,407 @@
+package org.threadly.litesockets.protocols.ice;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.threadly.litesockets.protocols.stun.StunAttribute;
+import org.threadly.litesockets.protocols.stun.StunClientTransactionManager;
+import org.threadly.litesockets.protocols.stun.StunIntegrityEngine;
+import org.threadly.litesockets.protocols.stun.StunMessageType;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+
+/**
+ * Answers connectivity checks for any number of ICE-lite sessions (RFC 8445 section 2.5).  A lite
+ * agent never sends checks and is always controlled, so all it needs per session is its
+ * credentials and the pair the controlling agent nominated.
+ * <p>
+ * Sessions are slots in shared tables instead of objects: the credentials are two small byte
+ * arrays and the nominated pair and the time of the last check are a handful of primitives, so a
+ * session costs in the order of a hundred bytes.  Requests are matched to their session by the
+ * local ufrag in USERNAME through an open addressed index, without decoding the username.
+ * <p>
+ * Sessions are added and removed under a lock, checks are answered without one.  The per session
+ * primitives are guarded by a small set of striped locks, only taken for the few writes a check
+ * makes.
+ */
+public class IceLiteResponder {
+  public static final int NO_SESSION = -1;
+  private static final int EMPTY = 0;
+  private static final int DELETED = -1;
+  private static final int LOCK_STRIPES = 64;
+  private static final int FAMILY_IPV4 = 1;
+  private static final int FAMILY_IPV6 = 2;
+
+  private final StunIntegrityEngine engine;
+  private final int maxSessions;
+  private final int seed = ThreadLocalRandom.current().nextInt();
+  private final Object[] locks = new Object[LOCK_STRIPES];
+  // by session id
+  private final AtomicReferenceArray<byte[]> ufrags;
+  private final AtomicReferenceArray<byte[]> keys;
+  private final long[] lastCheckMillis;
+  private final long[] nominatedPriority;
+  private final int[] nominatedLocal;
+  // family << 16 | port, 0 until a pair is nominated
+  private final int[] nominatedFamilyPort;
+  private final long[] nominatedHigh;
+  private final long[] nominatedLow;
+  private final int[] freeIds;
+  private int freeCount;
+  private int sessionCount = 0;
+  private int deletedCount = 0;
+  // ufrag hash -> session id + 1, rebuilt once deleted slots pile up
+  private volatile AtomicIntegerArray index;
+
+  /**
+   * Creates a responder using the default {@link StunIntegrityEngine}.
+   *
+   * @param maxSessions the most sessions this responder holds at once.
+   */
+  public IceLiteResponder(int maxSessions) {
+    this(maxSessions, StunIntegrityEngine.getDefault());
+  }
+
+  /**
+   * Creates a responder.  All tables are sized up front for {@code maxSessions}.
+   *
+   * @param maxSessions the most sessions this responder holds at once.
+   * @param engine verifies and signs MESSAGE-INTEGRITY.
+   */
+  public IceLiteResponder(int maxSessions, StunIntegrityEngine engine) {
+    if(maxSessions < 1 || maxSessions > (1 << 28)) {
+      throw new IllegalArgumentException("maxSessions out of range: "+maxSessions);
+    }
+    this.engine = engine;
+    this.maxSessions = maxSessions;
+    for(int i=0; i<LOCK_STRIPES; i++) {
+      locks[i] = new Object();
+    }
+    ufrags = new AtomicReferenceArray<>(maxSessions);
+    keys = new AtomicReferenceArray<>(maxSessions);
+    lastCheckMillis = new long[maxSessions];
+    nominatedPriority = new long[maxSessions];
+    nominatedLocal = new int[maxSessions];
+    nominatedFamilyPort = new int[maxSessions];
+    nominatedHigh = new long[maxSessions];
+    nominatedLow = new long[maxSessions];
+    freeIds = new int[maxSessions];
+    for(int i=0; i<maxSessions; i++) {
+      freeIds[i] = maxSessions - 1 - i;
+    }
+    freeCount = maxSessions;
+    index = new AtomicIntegerArray(indexCapacity(maxSessions));
+  }
+
+  private static int indexCapacity(int maxSessions) {
+    int capacity = 4;
+    while(capacity < maxSessions * 2) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  public int getMaxSessions() {
+    return maxSessions;
+  }
+
+  public synchronized int getSessionCount() {
+    return sessionCount;
+  }
+
+  /**
+   * Adds a session.
+   *
+   * @param localUfrag the local username fragment, checks for this session must use it.
+   * @param localPassword the local password, checks are signed with it.
+   * @return the session id, used with the other methods.
+   * @throws IllegalArgumentException if the ufrag is already in use.
+   * @throws IllegalStateException if the responder already holds {@link #getMaxSessions()} sessions.
+   */
+  public synchronized int addSession(String localUfrag, String localPassword) {
+    byte[] ufrag = localUfrag.getBytes(StandardCharsets.UTF_8);
+    if(ufrag.length == 0 || localUfrag.indexOf(':') >= 0) {
+      throw new IllegalArgumentException("Bad ufrag:"+localUfrag);
+    }
+    if(freeCount == 0) {
+      throw new IllegalStateException("Too many sessions, max:"+maxSessions);
+    }
+    if(find(index, ByteBuffer.wrap(ufrag), 0, ufrag.length) != NO_SESSION) {
+      throw new IllegalArgumentException("Ufrag already in use:"+localUfrag);
+    }
+    int id = freeIds[--freeCount];
+    synchronized(lockFor(id)) {
+      lastCheckMillis[id] = 0;
+      nominatedPriority[id] = 0;
+      nominatedLocal[id] = 0;
+      nominatedFamilyPort[id] = 0;
+      nominatedHigh[id] = 0;
+      nominatedLow[id] = 0;
+    }
+    if(sessionCount + 1 + deletedCount > index.length() / 4 * 3) {
+      rebuildIndex();
+    }
+    keys.set(id, localPassword.getBytes(StandardCharsets.UTF_8));
+    ufrags.set(id, ufrag);
+    AtomicIntegerArray idx = index;
+    int slot = hash(ByteBuffer.wrap(ufrag), 0, ufrag.length) & (idx.length() - 1);
+    while(idx.get(slot) > EMPTY) {
+      slot = (slot + 1) & (idx.length() - 1);
+    }
+    if(idx.get(slot) == DELETED) {
+      deletedCount--;
+    }
+    idx.set(slot, id + 1);
+    sessionCount++;
+    return id;
+  }
+
+  /**
+   * Removes a session, checks for it are rejected from now on and its id may be reused.
+   *
+   * @param sessionId the session to remove.
+   * @return {@code false} if there was no such session.
+   */
+  public synchronized boolean removeSession(int sessionId) {
+    byte[] ufrag = sessionId < 0 || sessionId >= maxSessions ? null : ufrags.get(sessionId);
+    if(ufrag == null) {
+      return false;
+    }
+    AtomicIntegerArray idx = index;
+    int slot = hash(ByteBuffer.wrap(ufrag), 0, ufrag.length) & (idx.length() - 1);
+    while(idx.get(slot) != sessionId + 1) {
+      slot = (slot + 1) & (idx.length() - 1);
+    }
+    idx.set(slot, DELETED);
+    deletedCount++;
+    ufrags.set(sessionId, null);
+    keys.set(sessionId, null);
+    synchronized(lockFor(sessionId)) {
+      nominatedFamilyPort[sessionId] = 0;
+    }
+    freeIds[freeCount++] = sessionId;
+    sessionCount--;
+    return true;
+  }
+
+  /**
+   * Rebuilds the index without deleted slots and publishes it, lookups still running against the
+   * old one finish there.
+   */
+  private void rebuildIndex() {
+    AtomicIntegerArray idx = new AtomicIntegerArray(index.length());
+    for(int id=0; id<maxSessions; id++) {
+      byte[] ufrag = ufrags.get(id);
+      if(ufrag != null) {
+        int slot = hash(ByteBuffer.wrap(ufrag), 0, ufrag.length) & (idx.length() - 1);
+        while(idx.get(slot) != EMPTY) {
+          slot = (slot + 1) & (idx.length() - 1);
+        }
+        idx.set(slot, id + 1);
+      }
+    }
+    deletedCount = 0;
+    index = idx;
+  }
+
+  private int hash(ByteBuffer bb, int offset, int length) {
+    int h = seed ^ 0x811c9dc5;
+    for(int i=0; i<length; i++) {
+      h = (h ^ (bb.get(offset + i) & 0xff)) * 0x01000193;
+    }
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Finds the session for the ufrag at {@code offset}, without taking any locks.
+   */
+  private int find(AtomicIntegerArray idx, ByteBuffer bb, int offset, int length) {
+    int mask = idx.length() - 1;
+    int slot = hash(bb, offset, length) & mask;
+    for(int probes = 0; probes <= mask; probes++) {
+      int v = idx.get(slot);
+      if(v == EMPTY) {
+        return NO_SESSION;
+      }
+      if(v > EMPTY) {
+        byte[] ufrag = ufrags.get(v - 1);
+        if(ufrag != null && ufrag.length == length && matches(ufrag, bb, offset)) {
+          return v - 1;
+        }
+      }
+      slot = (slot + 1) & mask;
+    }
+    return NO_SESSION;
+  }
+
+  private static boolean matches(byte[] ufrag, ByteBuffer bb, int offset) {
+    for(int i=0; i<ufrag.length; i++) {
+      if(ufrag[i] != bb.get(offset + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Finds the session a check is for from the local ufrag, the part of USERNAME before the colon.
+   *
+   * @param username the USERNAME attribute value.
+   * @return the session id or {@link #NO_SESSION}.
+   */
+  public int findSession(ByteBuffer username) {
+    int start = username.position();
+    int end = username.limit();
+    for(int i=start; i<end; i++) {
+      if(username.get(i) == ':') {
+        return find(index, username, start, i - start);
+      }
+    }
+    return NO_SESSION;
+  }
+
+  private Object lockFor(int sessionId) {
+    return locks[sessionId & (LOCK_STRIPES - 1)];
+  }
+
+  /**
+   * Answers a Binding request.  The request must carry USERNAME, PRIORITY and a MESSAGE-INTEGRITY
+   * signed with the session password.  A request with ICE-CONTROLLED gets a 487, a lite agent can
+   * not take the controlling role.  If it carries USE-CANDIDATE the pair it arrived on is
+   * nominated, unless a pair with a higher remote priority already was.
+   *
+   * @param request the Binding request.
+   * @param localCandidate identifies the local candidate, usually the socket, the request arrived on.
+   * @param from the source address of the request.
+   * @return the response to send back to {@code from}.
+   * @throws StunProtocolException if the response could not be encoded.
+   */
+  public StunPacket handleRequest(StunPacket request, int localCandidate, InetSocketAddress from)
+      throws StunProtocolException {
+    ByteBuffer priorityValue = request.getAttribute(StunAttribute.PRIORITY);
+    if(request.getMessageType() != StunMessageType.REQUEST || !request.hasMessageIntegerity() ||
+        !request.hasAttribute(StunAttribute.USERNAME) || priorityValue.remaining() != 4) {
+      return errorResponse(request, 400, "Bad Request", null);
+    }
+    int id = findSession(request.getAttribute(StunAttribute.USERNAME));
+    byte[] key = id == NO_SESSION ? null : keys.get(id);
+    if(key == null || !engine.verifyMessageIntegerity(request, key)) {
+      return errorResponse(request, 401, "Unauthorized", null);
+    }
+    if(request.hasAttribute(StunAttribute.ICE_CONTROLLED)) {
+      return errorResponse(request, 487, "Role Conflict", key);
+    }
+    long priority = priorityValue.getInt(priorityValue.position()) & 0xffffffffL;
+    boolean useCandidate = request.hasAttribute(StunAttribute.USE_CANDIDATE);
+    long now = StunClientTransactionManager.currentTimeMillis();
+    synchronized(lockFor(id)) {
+      // the session may have been removed and the id reused since the lookup
+      if(keys.get(id) == key) {
+        lastCheckMillis[id] = now;
+        if(useCandidate && (nominatedFamilyPort[id] == 0 || priority >= nominatedPriority[id])) {
+          nominate(id, localCandidate, from, priority);
+        }
+      }
+    }
+    return new StunPacketBuilder().setType(StunMessageType.SUCCESS).setTxID(request.getTxID())
+                                  .setXorMappedAddress(from).setKey(key).enableFingerPrint().build();
+  }
+
+  private void nominate(int id, int localCandidate, InetSocketAddress from, long priority) {
+    InetAddress address = from.getAddress();
+    byte[] ip = address.getAddress();
+    long high = 0;
+    long low = 0;
+    for(int i=0; i<ip.length; i++) {
+      if(i < ip.length - 8) {
+        high = (high << 8) | (ip[i] & 0xff);
+      } else {
+        low = (low << 8) | (ip[i] & 0xff);
+      }
+    }
+    int family = address instanceof Inet4Address ? FAMILY_IPV4 : FAMILY_IPV6;
+    nominatedHigh[id] = high;
+    nominatedLow[id] = low;
+    nominatedLocal[id] = localCandidate;
+    nominatedPriority[id] = priority;
+    nominatedFamilyPort[id] = (family << 16) | from.getPort();
+  }
+
+  private StunPacket errorResponse(StunPacket request, int code, String reason, byte[] key)
+      throws StunProtocolException {
+    StunPacketBuilder spb = new StunPacketBuilder().setType(StunMessageType.FAILURE).setTxID(request.getTxID())
+                                                   .setErrorCode(code, reason).enableFingerPrint();
+    return spb.setKey(key).build();
+  }
+
+  public boolean isNominated(int sessionId) {
+    synchronized(lockFor(sessionId)) {
+      return nominatedFamilyPort[sessionId] != 0;
+    }
+  }
+
+  /**
+   * Returns the remote address of the nominated pair.
+   *
+   * @param sessionId the session.
+   * @return the nominated remote address, or {@code null} if nothing was nominated yet.
+   */
+  public InetSocketAddress getNominatedAddress(int sessionId) {
+    int familyPort;
+    long high;
+    long low;
+    synchronized(lockFor(sessionId)) {
+      familyPort = nominatedFamilyPort[sessionId];
+      high = nominatedHigh[sessionId];
+      low = nominatedLow[sessionId];
+    }
+    if(familyPort == 0) {
+      return null;
+    }
+    byte[] ip;
+    if(familyPort >>> 16 == FAMILY_IPV4) {
+      ip = ByteBuffer.allocate(4).putInt((int)low).array();
+    } else {
+      ip = ByteBuffer.allocate(16).putLong(high).putLong(low).array();
+    }
+    try {
+      return new InetSocketAddress(InetAddress.getByAddress(ip), familyPort & 0xffff);
+    } catch(UnknownHostException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns the local candidate of the nominated pair, as passed to
+   * {@link #handleRequest(StunPacket, int, InetSocketAddress)}.
+   *
+   * @param sessionId the session.
+   * @return the local candidate, or {@link #NO_SESSION} if nothing was nominated yet.
+   */
+  public int getNominatedLocal(int sessionId) {
+    synchronized(lockFor(sessionId)) {
+      return nominatedFamilyPort[sessionId] == 0 ? NO_SESSION : nominatedLocal[sessionId];
+    }
+  }
+
+  /**
+   * Returns when the last valid check for the session arrived, from
+   * {@link StunClientTransactionManager#currentTimeMillis()}.
+   *
+   * @param sessionId the session.
+   * @return the time of the last check, or 0 if none arrived yet.
+   */
+  public long getLastCheckMillis(int sessionId) {
+    synchronized(lockFor(sessionId)) {
+      return lastCheckMillis[sessionId];
+    }
+  }
+}
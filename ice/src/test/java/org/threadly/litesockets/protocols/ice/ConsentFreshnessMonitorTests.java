@@ -0,0 +1,207 @@
+package org.threadly.litesockets.protocols.ice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.threadly.litesockets.protocols.stun.StunAttribute;
+import org.threadly.litesockets.protocols.stun.StunClientTransactionManager;
+import org.threadly.litesockets.protocols.stun.StunMessageType;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.StunUtils;
+
+public class ConsentFreshnessMonitorTests {
+  private static final InetSocketAddress LOCAL = new InetSocketAddress("10.0.0.1", 5000);
+  private static final InetSocketAddress REMOTE = new InetSocketAddress("10.0.0.2", 5000);
+  private static final long TICK = ConsentFreshnessMonitor.DEFAULT_TICK_MILLIS;
+
+  private final IceLiteResponder peer = new IceLiteResponder(16);
+  private final List<StunPacket> requests = new ArrayList<>();
+  private final List<Long> sendTimes = new ArrayList<>();
+  private final List<Integer> expired = new ArrayList<>();
+  private long now = StunClientTransactionManager.currentTimeMillis();
+  private int flushes = 0;
+  private boolean answer = true;
+  private ConsentFreshnessMonitor monitor;
+
+  private ConsentFreshnessMonitor newMonitor(int maxSessions) {
+    monitor = new ConsentFreshnessMonitor(null, maxSessions, new ConsentFreshnessMonitor.ConsentSender() {
+      @Override
+      public void send(ByteBuffer packet, int localCandidate, InetSocketAddress destination) throws IOException {
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet).flip();
+        try {
+          StunPacket request = new StunPacket(copy);
+          requests.add(request);
+          sendTimes.add(now);
+          if(answer) {
+            monitor.handleResponse(peer.handleRequest(request, localCandidate, LOCAL), destination);
+          }
+        } catch(StunProtocolException e) {
+          throw new IOException(e);
+        }
+      }
+
+      @Override
+      public void flush() {
+        flushes++;
+      }
+    }, (sessionId, remote) -> expired.add(sessionId));
+    return monitor;
+  }
+
+  private void advance(long millis) {
+    for(long end = now + millis; now < end; ) {
+      now += TICK;
+      monitor.tick(now);
+    }
+  }
+
+  @Test
+  public void keepsConsentWhileAnswered() {
+    peer.addSession("lite", "lite-password");
+    int session = newMonitor(16).addSession(REMOTE, 0, "full", "lite", "lite-password", 100, true);
+    assertTrue(monitor.hasConsent(session));
+    advance(60_000);
+    assertTrue(monitor.hasConsent(session));
+    assertTrue(expired.isEmpty());
+    assertTrue("sent "+requests.size(), requests.size() >= 10 && requests.size() <= 15);
+    assertEquals(requests.size(), monitor.getRequestsSent());
+    assertEquals(requests.size(), flushes);
+    for(int i=1; i<sendTimes.size(); i++) {
+      long gap = sendTimes.get(i) - sendTimes.get(i - 1);
+      assertTrue("gap "+gap, gap >= 4000 && gap <= 6000 + TICK);
+    }
+    StunPacket request = requests.get(0);
+    assertEquals(StunMessageType.REQUEST, request.getMessageType());
+    assertEquals(ByteBuffer.wrap("lite:full".getBytes(StandardCharsets.UTF_8)), request.getUsername());
+    assertTrue(request.hasAttribute(StunAttribute.ICE_CONTROLLING));
+    assertTrue(StunUtils.verifyMessageIntegerity(request, "lite-password".getBytes()));
+    assertTrue(StunUtils.verifyFingerPrint(request));
+    // every request has its own transaction id
+    assertFalse(request.getTxID().equals(requests.get(1).getTxID()));
+  }
+
+  @Test
+  public void expiresWithoutResponses() {
+    answer = false;
+    int session = newMonitor(16).addSession(REMOTE, 0, "full", "lite", "lite-password", 100, true);
+    long added = now;
+    advance(ConsentFreshnessMonitor.DEFAULT_TIMEOUT_MILLIS - TICK);
+    assertTrue(monitor.hasConsent(session));
+    assertTrue(expired.isEmpty());
+    advance(2 * TICK);
+    assertEquals(1, expired.size());
+    assertEquals(session, (int)expired.get(0));
+    assertFalse(monitor.hasConsent(session));
+    assertEquals(0, monitor.getSessionCount());
+    assertEquals(0, monitor.getScheduledCount());
+    assertTrue(sendTimes.get(sendTimes.size() - 1) - added < ConsentFreshnessMonitor.DEFAULT_TIMEOUT_MILLIS);
+    // nothing more happens
+    int sent = requests.size();
+    advance(20_000);
+    assertEquals(sent, requests.size());
+    assertEquals(1, expired.size());
+  }
+
+  @Test
+  public void ignoresUnauthenticatedResponses() throws Exception {
+    answer = false;
+    int session = newMonitor(16).addSession(REMOTE, 0, "full", "lite", "lite-password", 100, true);
+    advance(6000 + TICK);
+    StunPacket request = requests.get(requests.size() - 1);
+    StunPacketBuilder response = new StunPacketBuilder().setType(StunMessageType.SUCCESS).setTxID(request.getTxID())
+                                                        .setXorMappedAddress(REMOTE).enableFingerPrint();
+    long last = monitor.getLastResponseMillis(session);
+    // no integrity, wrong key, wrong source
+    assertTrue(monitor.handleResponse(response.build(), REMOTE));
+    assertTrue(monitor.handleResponse(response.setKey("wrong".getBytes()).build(), REMOTE));
+    response.setKey("lite-password".getBytes());
+    assertTrue(monitor.handleResponse(response.build(), new InetSocketAddress("10.0.0.3", 5000)));
+    assertEquals(last, monitor.getLastResponseMillis(session));
+    // not a consent request at all
+    assertFalse(monitor.handleResponse(response.setTxID(StunUtils.generateTxID()).build(), REMOTE));
+    // a valid response refreshes consent
+    assertTrue(monitor.handleResponse(response.setTxID(request.getTxID()).build(), REMOTE));
+    assertEquals(now, monitor.getLastResponseMillis(session));
+  }
+
+  @Test
+  public void onlyRecentRequestsAreMatched() throws Exception {
+    peer.addSession("lite", "lite-password");
+    int session = newMonitor(16).addSession(REMOTE, 0, "full", "lite", "lite-password", 100, true);
+    advance(60_000);
+    // more requests than can be answered before a timeout, so the first ones were forgotten
+    assertTrue(requests.size() > 10);
+    StunPacket first = requests.get(0);
+    StunPacket last = requests.get(requests.size() - 1);
+    assertFalse(monitor.handleResponse(peer.handleRequest(first, 0, LOCAL), REMOTE));
+    assertTrue(monitor.handleResponse(peer.handleRequest(last, 0, LOCAL), REMOTE));
+    // ids are random, not derived from the session
+    assertFalse(first.getTxID().getHigh() >>> 32 == last.getTxID().getHigh() >>> 32 &&
+                first.getTxID().getLow() == last.getTxID().getLow());
+    assertTrue(monitor.removeSession(session));
+    assertFalse(monitor.handleResponse(peer.handleRequest(last, 0, LOCAL), REMOTE));
+  }
+
+  @Test
+  public void manySessions() throws StunProtocolException {
+    answer = false;
+    newMonitor(10000);
+    for(int i=0; i<10000; i++) {
+      monitor.addSession(REMOTE, i, "full"+i, "lite"+i, "password", 100, false);
+    }
+    assertEquals(10000, monitor.getScheduledCount());
+    advance(10_000);
+    // every request still in its sessions window is found, the last ones as well as the first
+    for(int i=0; i<requests.size(); i++) {
+      StunPacket response = new StunPacketBuilder().setType(StunMessageType.SUCCESS)
+                                                   .setTxID(requests.get(i).getTxID()).build();
+      assertTrue(monitor.handleResponse(response, REMOTE));
+    }
+    advance(ConsentFreshnessMonitor.DEFAULT_TIMEOUT_MILLIS - 10_000 + TICK);
+    assertEquals(10000, expired.size());
+    assertEquals(0, monitor.getSessionCount());
+    // expired sessions take their requests out of the index
+    for(int i=requests.size() - 100; i<requests.size(); i++) {
+      StunPacket response = new StunPacketBuilder().setType(StunMessageType.SUCCESS)
+                                                   .setTxID(requests.get(i).getTxID()).build();
+      assertFalse(monitor.handleResponse(response, REMOTE));
+    }
+    // at most one request every 4 seconds per session, and at least one every 6
+    assertTrue("sent "+requests.size(), requests.size() >= 10000 * 4 && requests.size() <= 10000 * 7);
+    // the ids are free again
+    monitor.addSession(REMOTE, 0, "full", "lite", "password", 100, false);
+    assertEquals(1, monitor.getSessionCount());
+  }
+
+  @Test
+  public void removeSession() {
+    int session = newMonitor(4).addSession(REMOTE, 0, "full", "lite", "lite-password", 100, true);
+    assertTrue(monitor.removeSession(session));
+    assertFalse(monitor.removeSession(session));
+    assertEquals(0, monitor.getScheduledCount());
+    advance(10_000);
+    assertTrue(requests.isEmpty());
+    for(int i=0; i<4; i++) {
+      monitor.addSession(REMOTE, 0, "full"+i, "lite", "lite-password", 100, true);
+    }
+    try {
+      monitor.addSession(REMOTE, 0, "full", "lite", "lite-password", 100, true);
+      fail();
+    } catch(IllegalStateException e) {
+      // expected
+    }
+  }
+}
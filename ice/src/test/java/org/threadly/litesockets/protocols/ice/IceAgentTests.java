@@ -0,0 +1,285 @@
+package org.threadly.litesockets.protocols.ice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+import org.threadly.litesockets.protocols.stun.StunAttribute;
+import org.threadly.litesockets.protocols.stun.StunClientTransactionManager;
+import org.threadly.litesockets.protocols.stun.StunMessageType;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+
+public class IceAgentTests {
+  private final IceCheckScheduler scheduler = new IceCheckScheduler(null);
+  private long now = StunClientTransactionManager.currentTimeMillis();
+  // every candidate that can receive checks, and the agent it belongs to
+  private final Map<InetSocketAddress, IceAgent> agents = new HashMap<>();
+  private final Map<InetSocketAddress, IceCandidate> candidates = new HashMap<>();
+  private final Map<IceAgent, List<Long>> sendTimes = new HashMap<>();
+
+  private IceAgent newAgent(boolean controlling, String ufrag, long tieBreaker) {
+    IceAgent[] self = new IceAgent[1];
+    self[0] = new IceAgent(scheduler, (local, remote, request) -> {
+      sendTimes.get(self[0]).add(scheduler.getCurrentMillis());
+      IceAgent peer = agents.get(remote);
+      if(peer == null) {
+        CompletableFuture<StunPacket> lost = new CompletableFuture<>();
+        lost.completeExceptionally(new TimeoutException());
+        return lost;
+      }
+      try {
+        return CompletableFuture.completedFuture(peer.handleRequest(request, candidates.get(remote), local.getBase()));
+      } catch(StunProtocolException e) {
+        throw new RuntimeException(e);
+      }
+    }, controlling, ufrag, ufrag+"-password", tieBreaker);
+    sendTimes.put(self[0], new ArrayList<>());
+    return self[0];
+  }
+
+  private IceCandidate host(IceAgent agent, String foundation, int componentId, String ip, int port) {
+    IceCandidate candidate = new IceCandidate(foundation, componentId, IceCandidateType.HOST,
+        IceCandidate.computePriority(IceCandidateType.HOST, 65535, componentId), new InetSocketAddress(ip, port));
+    agents.put(candidate.getAddress(), agent);
+    candidates.put(candidate.getAddress(), candidate);
+    agent.addLocalCandidate(candidate);
+    return candidate;
+  }
+
+  private static void exchange(IceAgent a, String aUfrag, IceAgent b, String bUfrag) {
+    a.setRemoteCredentials(bUfrag, bUfrag+"-password");
+    b.setRemoteCredentials(aUfrag, aUfrag+"-password");
+  }
+
+  private void runUntil(BooleanSupplier condition) {
+    for(int i=0; i<100000; i++) {
+      if(condition.getAsBoolean()) {
+        return;
+      }
+      now += IceCheckScheduler.DEFAULT_TICK_MILLIS;
+      scheduler.tick(now);
+    }
+    fail("Timed out waiting for condition");
+  }
+
+  @Test
+  public void priorities() {
+    assertEquals(2130706431L, IceCandidate.computePriority(IceCandidateType.HOST, 65535, 1));
+    assertEquals(16777214L, IceCandidate.computePriority(IceCandidateType.RELAYED, 65535, 2));
+    assertEquals((1L << 32) + 4 + 1, IceCandidatePair.computePriority(2, 1));
+    assertEquals((1L << 32) + 4, IceCandidatePair.computePriority(1, 2));
+    // the highest candidate priorities produce a pair priority above Long.MAX_VALUE
+    assertTrue(IceCandidatePair.computePriority(0xffffffffL, 0xfffffffeL) < 0);
+  }
+
+  @Test
+  public void initialStates() throws Exception {
+    IceAgent a = newAgent(true, "a", 1);
+    host(a, "1", 1, "10.0.0.1", 5000);
+    host(a, "1", 2, "10.0.0.1", 5001);
+    a.addLocalCandidate(new IceCandidate("2", 1, IceCandidateType.RELAYED,
+        IceCandidate.computePriority(IceCandidateType.RELAYED, 65535, 1), new InetSocketAddress("10.0.0.9", 6000)));
+    a.addRemoteCandidate(new IceCandidate("1", 1, IceCandidateType.HOST,
+        IceCandidate.computePriority(IceCandidateType.HOST, 65535, 1), new InetSocketAddress("10.0.0.2", 5000)));
+    a.addRemoteCandidate(new IceCandidate("1", 2, IceCandidateType.HOST,
+        IceCandidate.computePriority(IceCandidateType.HOST, 65535, 2), new InetSocketAddress("10.0.0.2", 5001)));
+    // different address family, never paired
+    a.addRemoteCandidate(new IceCandidate("3", 1, IceCandidateType.HOST,
+        IceCandidate.computePriority(IceCandidateType.HOST, 65535, 1), new InetSocketAddress("::1", 5000)));
+    a.setRemoteCredentials("b", "b-password");
+
+    List<IceCandidatePair> pairs = a.getCheckList();
+    assertEquals(3, pairs.size());
+    for(int i=1; i<pairs.size(); i++) {
+      assertTrue(Long.compareUnsigned(pairs.get(i - 1).getPriority(), pairs.get(i).getPriority()) > 0);
+    }
+    a.start();
+    assertEquals(IceAgent.State.RUNNING, a.getState());
+    assertEquals(1, scheduler.getScheduledCount());
+    for(IceCandidatePair pair : pairs) {
+      if(pair.getLocal().getType() == IceCandidateType.RELAYED || pair.getComponentId() == 1) {
+        assertEquals(IceCandidatePair.State.WAITING, pair.getState());
+      } else {
+        assertEquals(IceCandidatePair.State.FROZEN, pair.getState());
+      }
+    }
+    a.close();
+    assertEquals(IceAgent.State.FAILED, a.getState());
+    assertEquals(0, scheduler.getScheduledCount());
+  }
+
+  @Test
+  public void checksAndNomination() throws Exception {
+    IceAgent a = newAgent(true, "a", 1);
+    IceAgent b = newAgent(false, "b", 2);
+    List<IceCandidatePair> nominated = new ArrayList<>();
+    List<IceAgent.State> states = new ArrayList<>();
+    a.addListener(new IceAgent.Listener() {
+      @Override
+      public void pairNominated(IceAgent agent, IceCandidatePair pair) {
+        nominated.add(pair);
+      }
+
+      @Override
+      public void stateChanged(IceAgent agent, IceAgent.State state) {
+        states.add(state);
+      }
+    });
+    exchange(a, "a", b, "b");
+    for(int component=1; component<=2; component++) {
+      b.addRemoteCandidate(host(a, "1", component, "10.0.0.1", 5000 + component));
+      a.addRemoteCandidate(host(b, "1", component, "10.0.0.2", 5000 + component));
+    }
+    a.start();
+    b.start();
+    runUntil(() -> a.getState() == IceAgent.State.COMPLETED && b.getState() == IceAgent.State.COMPLETED);
+
+    for(int component=1; component<=2; component++) {
+      IceCandidatePair pair = a.getNominatedPair(component);
+      assertNotNull(pair);
+      assertTrue(pair.isNominated());
+      assertEquals(new InetSocketAddress("10.0.0.2", 5000 + component), pair.getRemote().getAddress());
+      assertEquals(pair.getLocal().getAddress(), b.getNominatedPair(component).getRemote().getAddress());
+    }
+    assertEquals(2, nominated.size());
+    assertEquals(IceAgent.State.COMPLETED, states.get(states.size() - 1));
+    assertEquals(0, scheduler.getScheduledCount());
+    // no agent ever sends checks closer together than Ta
+    for(List<Long> times : sendTimes.values()) {
+      for(int i=1; i<times.size(); i++) {
+        assertTrue(times.get(i) - times.get(i - 1) >= scheduler.getTaMillis());
+      }
+    }
+  }
+
+  @Test
+  public void peerReflexiveAndTriggeredChecks() throws Exception {
+    IceAgent a = newAgent(true, "a", 1);
+    IceAgent b = newAgent(false, "b", 2);
+    exchange(a, "a", b, "b");
+    host(a, "1", 1, "10.0.0.1", 5000);
+    // b never hears about a's candidate, it learns it from a's checks
+    a.addRemoteCandidate(host(b, "1", 1, "10.0.0.2", 5000));
+    b.start();
+    a.start();
+    runUntil(() -> a.getState() == IceAgent.State.COMPLETED && b.getState() == IceAgent.State.COMPLETED);
+    IceCandidatePair pair = b.getNominatedPair(1);
+    assertEquals(IceCandidateType.PEER_REFLEXIVE, pair.getRemote().getType());
+    assertEquals(new InetSocketAddress("10.0.0.1", 5000), pair.getRemote().getAddress());
+  }
+
+  @Test
+  public void roleConflict() throws Exception {
+    IceAgent a = newAgent(true, "a", 10);
+    IceAgent b = newAgent(true, "b", 5);
+    exchange(a, "a", b, "b");
+    b.addRemoteCandidate(host(a, "1", 1, "10.0.0.1", 5000));
+    a.addRemoteCandidate(host(b, "1", 1, "10.0.0.2", 5000));
+    b.start();
+    a.start();
+    runUntil(() -> a.getState() == IceAgent.State.COMPLETED && b.getState() == IceAgent.State.COMPLETED);
+    assertTrue(a.isControlling());
+    assertFalse(b.isControlling());
+    assertEquals(a.getNominatedPair(1).getLocal().getAddress(), b.getNominatedPair(1).getRemote().getAddress());
+  }
+
+  @Test
+  public void unsignedRoleConflictIsIgnored() throws Exception {
+    // answers every check with a 487 that carries no MESSAGE-INTEGRITY
+    IceAgent a = new IceAgent(scheduler, (local, remote, request) -> {
+      try {
+        return CompletableFuture.completedFuture(new StunPacketBuilder().setType(StunMessageType.FAILURE)
+            .setTxID(request.getTxID()).setErrorCode(487, "Role Conflict").enableFingerPrint().build());
+      } catch(StunProtocolException e) {
+        throw new RuntimeException(e);
+      }
+    }, true, "a", "a-password", 1);
+    host(a, "1", 1, "10.0.0.1", 5000);
+    a.addRemoteCandidate(new IceCandidate("1", 1, IceCandidateType.HOST,
+        IceCandidate.computePriority(IceCandidateType.HOST, 65535, 1), new InetSocketAddress("10.0.0.3", 5000)));
+    a.setRemoteCredentials("b", "b-password");
+    a.start();
+    runUntil(() -> a.getState() == IceAgent.State.FAILED);
+    assertTrue(a.isControlling());
+  }
+
+  @Test
+  public void rejectsShortPriority() throws Exception {
+    IceAgent b = newAgent(false, "b", 2);
+    b.setRemoteCredentials("a", "a-password");
+    IceCandidate local = host(b, "1", 1, "10.0.0.2", 5000);
+    b.start();
+    for(int length : new int[] {0, 1, 3, 8}) {
+      StunPacket request = new StunPacketBuilder().setType(StunMessageType.REQUEST)
+          .setUsername(ByteBuffer.wrap("b:a".getBytes(StandardCharsets.UTF_8)))
+          .setAttribute(StunAttribute.PRIORITY, ByteBuffer.allocate(length))
+          .setAttribute(StunAttribute.ICE_CONTROLLING, ByteBuffer.allocate(8).putLong(0, 1))
+          .setKey("b-password".getBytes(StandardCharsets.UTF_8)).enableFingerPrint().build();
+      StunPacket response = b.handleRequest(request, local, new InetSocketAddress("10.0.0.1", 5000));
+      assertEquals(400, response.getErrorCode());
+    }
+    // no peer reflexive candidate was learned, so no pair was formed
+    assertTrue(b.getCheckList().isEmpty());
+  }
+
+  @Test
+  public void unreachablePairsFail() throws Exception {
+    IceAgent a = newAgent(true, "a", 1);
+    host(a, "1", 1, "10.0.0.1", 5000);
+    a.addRemoteCandidate(new IceCandidate("1", 1, IceCandidateType.HOST,
+        IceCandidate.computePriority(IceCandidateType.HOST, 65535, 1), new InetSocketAddress("10.0.0.3", 5000)));
+    a.addRemoteCandidate(new IceCandidate("2", 1, IceCandidateType.HOST,
+        IceCandidate.computePriority(IceCandidateType.HOST, 65534, 1), new InetSocketAddress("10.0.0.4", 5000)));
+    a.setRemoteCredentials("b", "b-password");
+    a.start();
+    runUntil(() -> a.getState() == IceAgent.State.FAILED);
+    for(IceCandidatePair pair : a.getCheckList()) {
+      assertEquals(IceCandidatePair.State.FAILED, pair.getState());
+    }
+    assertEquals(0, scheduler.getScheduledCount());
+  }
+
+  @Test
+  public void manySessionsShareOneScheduler() throws Exception {
+    int sessions = 1000;
+    List<IceAgent> all = new ArrayList<>();
+    for(int i=0; i<sessions; i++) {
+      IceAgent a = newAgent(true, "a"+i, 1);
+      IceAgent b = newAgent(false, "b"+i, 2);
+      exchange(a, "a"+i, b, "b"+i);
+      String ip = "10.1."+(i / 250)+"."+(i % 250 + 1);
+      b.addRemoteCandidate(host(a, "1", 1, ip, 5000));
+      a.addRemoteCandidate(host(b, "1", 1, ip, 6000));
+      a.start();
+      b.start();
+      all.add(a);
+      all.add(b);
+    }
+    assertEquals(sessions * 2, scheduler.getScheduledCount());
+    runUntil(() -> {
+      for(IceAgent agent : all) {
+        if(agent.getState() != IceAgent.State.COMPLETED) {
+          return false;
+        }
+      }
+      return true;
+    });
+    assertEquals(0, scheduler.getScheduledCount());
+  }
+}
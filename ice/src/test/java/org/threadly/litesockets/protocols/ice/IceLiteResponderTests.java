@@ -0,0 +1,163 @@
+package org.threadly.litesockets.protocols.ice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+import org.threadly.litesockets.protocols.stun.StunAttribute;
+import org.threadly.litesockets.protocols.stun.StunClientTransactionManager;
+import org.threadly.litesockets.protocols.stun.StunMessageType;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.StunUtils;
+
+public class IceLiteResponderTests {
+  private static final InetSocketAddress FROM = new InetSocketAddress("10.0.0.1", 5000);
+
+  private static StunPacketBuilder check(String username, long priority) {
+    return new StunPacketBuilder().setType(StunMessageType.REQUEST)
+        .setUsername(ByteBuffer.wrap(username.getBytes(StandardCharsets.UTF_8)))
+        .setAttribute(StunAttribute.PRIORITY, ByteBuffer.allocate(4).putInt(0, (int)priority))
+        .setAttribute(StunAttribute.ICE_CONTROLLING, ByteBuffer.allocate(8).putLong(0, 1))
+        .enableFingerPrint();
+  }
+
+  @Test
+  public void answersChecks() throws Exception {
+    IceLiteResponder responder = new IceLiteResponder(16);
+    int session = responder.addSession("lite", "lite-password");
+    responder.addSession("other", "other-password");
+    StunPacket request = check("lite:peer", 100).setKey("lite-password".getBytes()).build();
+    StunPacket response = responder.handleRequest(request, 0, FROM);
+    assertEquals(StunMessageType.SUCCESS, response.getMessageType());
+    assertEquals(request.getTxID(), response.getTxID());
+    assertEquals(FROM, response.getAddress(StunAttribute.XOR_MAPPED_ADDRESS));
+    assertTrue(StunUtils.verifyMessageIntegerity(response, "lite-password".getBytes()));
+    assertTrue(StunUtils.verifyFingerPrint(response));
+    assertFalse(responder.isNominated(session));
+    assertTrue(responder.getLastCheckMillis(session) > 0);
+  }
+
+  @Test
+  public void rejectsBadChecks() throws Exception {
+    IceLiteResponder responder = new IceLiteResponder(16);
+    responder.addSession("lite", "lite-password");
+    // wrong password
+    StunPacket response = responder.handleRequest(check("lite:peer", 100).setKey("wrong".getBytes()).build(), 0, FROM);
+    assertEquals(401, response.getErrorCode());
+    // unknown ufrag
+    response = responder.handleRequest(check("gone:peer", 100).setKey("lite-password".getBytes()).build(), 0, FROM);
+    assertEquals(401, response.getErrorCode());
+    // no MESSAGE-INTEGRITY
+    response = responder.handleRequest(check("lite:peer", 100).build(), 0, FROM);
+    assertEquals(400, response.getErrorCode());
+    // the peer also thinks it is controlled
+    response = responder.handleRequest(check("lite:peer", 100).removeAttribute(StunAttribute.ICE_CONTROLLING)
+        .setAttribute(StunAttribute.ICE_CONTROLLED, ByteBuffer.allocate(8)).setKey("lite-password".getBytes()).build(), 0, FROM);
+    assertEquals(487, response.getErrorCode());
+    assertTrue(StunUtils.verifyMessageIntegerity(response, "lite-password".getBytes()));
+    // PRIORITY must be exactly four bytes
+    for(int length : new int[] {0, 1, 3, 8}) {
+      response = responder.handleRequest(check("lite:peer", 100)
+          .removeAttribute(StunAttribute.PRIORITY).setAttribute(StunAttribute.PRIORITY, ByteBuffer.allocate(length))
+          .setKey("lite-password".getBytes()).build(), 0, FROM);
+      assertEquals(400, response.getErrorCode());
+    }
+  }
+
+  @Test
+  public void nominatesHighestPriority() throws Exception {
+    IceLiteResponder responder = new IceLiteResponder(16);
+    int session = responder.addSession("lite", "lite-password");
+    byte[] key = "lite-password".getBytes();
+    responder.handleRequest(check("lite:peer", 200).setAttribute(StunAttribute.USE_CANDIDATE, StunUtils.EMPTY_BB)
+        .setKey(key).build(), 3, FROM);
+    assertTrue(responder.isNominated(session));
+    assertEquals(FROM, responder.getNominatedAddress(session));
+    assertEquals(3, responder.getNominatedLocal(session));
+
+    InetSocketAddress lower = new InetSocketAddress("10.0.0.2", 5000);
+    responder.handleRequest(check("lite:peer", 100).setAttribute(StunAttribute.USE_CANDIDATE, StunUtils.EMPTY_BB)
+        .setKey(key).build(), 4, lower);
+    assertEquals(FROM, responder.getNominatedAddress(session));
+
+    InetSocketAddress higher = new InetSocketAddress("fd00::1", 6000);
+    responder.handleRequest(check("lite:peer", 300).setAttribute(StunAttribute.USE_CANDIDATE, StunUtils.EMPTY_BB)
+        .setKey(key).build(), 5, higher);
+    assertEquals(higher, responder.getNominatedAddress(session));
+    assertEquals(5, responder.getNominatedLocal(session));
+  }
+
+  @Test
+  public void sessionChurn() throws Exception {
+    IceLiteResponder responder = new IceLiteResponder(100);
+    int[] sessions = new int[100];
+    for(int round=0; round<20; round++) {
+      for(int i=0; i<sessions.length; i++) {
+        sessions[i] = responder.addSession("u"+round+"-"+i, "p"+i);
+      }
+      assertEquals(100, responder.getSessionCount());
+      try {
+        responder.addSession("one-too-many", "p");
+        fail();
+      } catch(IllegalStateException e) {
+        // expected
+      }
+      for(int i=0; i<sessions.length; i++) {
+        StunPacket request = check("u"+round+"-"+i+":peer", 1).setKey(("p"+i).getBytes()).build();
+        assertEquals(StunMessageType.SUCCESS, responder.handleRequest(request, 0, FROM).getMessageType());
+        assertEquals(sessions[i], responder.findSession(request.getUsername()));
+      }
+      for(int i=0; i<sessions.length; i++) {
+        assertTrue(responder.removeSession(sessions[i]));
+        assertFalse(responder.removeSession(sessions[i]));
+      }
+      assertEquals(0, responder.getSessionCount());
+    }
+    int session = responder.addSession("reused", "p");
+    assertNull(responder.getNominatedAddress(session));
+    try {
+      responder.addSession("reused", "p");
+      fail();
+    } catch(IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void fullAgentAgainstLite() throws Exception {
+    IceLiteResponder responder = new IceLiteResponder(16);
+    int session = responder.addSession("lite", "lite-password");
+    InetSocketAddress liteAddress = new InetSocketAddress("10.0.0.2", 3478);
+    IceCheckScheduler scheduler = new IceCheckScheduler(null);
+    IceAgent agent = new IceAgent(scheduler, (local, remote, request) -> {
+      try {
+        return CompletableFuture.completedFuture(responder.handleRequest(request, 0, local.getBase()));
+      } catch(StunProtocolException e) {
+        throw new RuntimeException(e);
+      }
+    }, true, "full", "full-password");
+    agent.setRemoteCredentials("lite", "lite-password");
+    agent.addLocalCandidate(new IceCandidate("1", 1, IceCandidateType.HOST,
+        IceCandidate.computePriority(IceCandidateType.HOST, 65535, 1), FROM));
+    agent.addRemoteCandidate(new IceCandidate("1", 1, IceCandidateType.HOST,
+        IceCandidate.computePriority(IceCandidateType.HOST, 65535, 1), liteAddress));
+    agent.start();
+    long now = StunClientTransactionManager.currentTimeMillis();
+    for(int i=0; i<1000 && agent.getState() != IceAgent.State.COMPLETED; i++) {
+      now += IceCheckScheduler.DEFAULT_TICK_MILLIS;
+      scheduler.tick(now);
+    }
+    assertEquals(IceAgent.State.COMPLETED, agent.getState());
+    assertEquals(FROM, responder.getNominatedAddress(session));
+  }
+}
@@ -0,0 +1,69 @@
+package org.threadly.litesockets.protocols.rtp;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.threadly.litesockets.protocols.sdp.SDP;
+import org.threadly.litesockets.protocols.sdp.SDPProtocol;
+
+/**
+ * Holds parsing and printing of SDPs to the bytes they allocate per call, so a change that
+ * allocates much more fails here.  Parsing budgets are about 1.5 times what it allocates today on
+ * a 64 bit JVM with compressed oops, {@link SDP#toString()} is cached and allocates nothing.
+ */
+public class SDPAllocationTest {
+  private static final int WARMUP_CALLS = 5000;
+  private static final int MEASURED_CALLS = 1000;
+  private static final int ROUNDS = 5;
+
+  @BeforeClass
+  public static void load() {
+    SDPTest.load();
+  }
+
+  @Test
+  public void parse() throws Exception {
+    assertWithin("SDPFromString simple", 20000, () -> SDPProtocol.SDPFromString(SDPTest.exp1));
+    assertWithin("SDPFromString complex", 300000, () -> SDPProtocol.SDPFromString(SDPTest.COMPLEX_SDP1));
+  }
+
+  @Test
+  public void print() throws Exception {
+    SDP sdp = SDPProtocol.SDPFromString(SDPTest.exp1);
+    assertWithin("SDP.toString", 0, () -> sdp.toString());
+  }
+
+  private interface Operation {
+    void run() throws Exception;
+  }
+
+  private static long bytesPerCall(Operation op) throws Exception {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+    assumeTrue(sunBean.isThreadAllocatedMemorySupported());
+    sunBean.setThreadAllocatedMemoryEnabled(true);
+    long threadId = Thread.currentThread().getId();
+    for(int i=0; i<WARMUP_CALLS; i++) {
+      op.run();
+    }
+    long best = Long.MAX_VALUE;
+    for(int r=0; r<ROUNDS; r++) {
+      long start = sunBean.getThreadAllocatedBytes(threadId);
+      for(int i=0; i<MEASURED_CALLS; i++) {
+        op.run();
+      }
+      best = Math.min(best, (sunBean.getThreadAllocatedBytes(threadId) - start) / MEASURED_CALLS);
+    }
+    return best;
+  }
+
+  private static void assertWithin(String name, long budget, Operation op) throws Exception {
+    long bytes = bytesPerCall(op);
+    assertTrue(name+" allocated "+bytes+" bytes per call, budget is "+budget, bytes <= budget);
+  }
+}
@@ -0,0 +1,170 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a received binding request into its success response in the same buffer.
+ * <p>
+ * A binding response only differs from its request by the message type, the attributes and the
+ * signatures, the magic cookie and transaction id stay where they are.  So instead of parsing the
+ * request into a {@link StunPacket} and building a new one, the type and length in the header are
+ * overwritten, XOR-MAPPED-ADDRESS is written over the old attributes, and MESSAGE-INTEGRITY and
+ * FINGERPRINT are computed in place.  The buffer is left ready to send, with nothing allocated
+ * once the key is cached by the {@link StunIntegrityEngine}.
+ * <p>
+ * The caller has to have checked the request, the writer only requires a STUN header in the
+ * buffer.  A writer holds no state of its own and can be shared by any number of threads.
+ */
+public class BindingResponseWriter {
+  private static final int IPV4_FAMILY = 1;
+  private static final int IPV6_FAMILY = 2;
+
+  private final StunIntegrityEngine integrity;
+
+  public BindingResponseWriter() {
+    this(StunIntegrityEngine.getDefault());
+  }
+
+  /**
+   * Creates a writer signing with the provided engine.
+   *
+   * @param integrity the engine to compute MESSAGE-INTEGRITY with.
+   */
+  public BindingResponseWriter(StunIntegrityEngine integrity) {
+    this.integrity = integrity;
+  }
+
+  /**
+   * Returns the size of a binding response, which is the space the buffer must have after the
+   * start of the request.
+   *
+   * @param ipv6 {@code true} if the mapped address is IPv6.
+   * @param integrity {@code true} if the response is signed.
+   * @param fingerprint {@code true} if the response has a FINGERPRINT.
+   * @return the encoded size of the response.
+   */
+  public static int getResponseSize(boolean ipv6, boolean integrity, boolean fingerprint) {
+    return 20 + (ipv6 ? 24 : 12) + (integrity ? 24 : 0) + (fingerprint ? 8 : 0);
+  }
+
+  /**
+   * Rewrites the request the decoder is wrapped over into its response, mapping the address it
+   * came from.  IPv4 addresses are read without allocating.  The decoder has to be wrapped again
+   * before it is read from.
+   *
+   * @param request a decoder wrapped over a valid binding request.
+   * @param mapped the address the request came from.
+   * @param key the key to sign with, or {@code null} for an unsigned response.
+   * @param fingerprint {@code true} to add a FINGERPRINT.
+   * @return the size of the response.
+   * @throws StunProtocolException if the MESSAGE-INTEGRITY could not be computed.
+   */
+  public int rewrite(StunPacketDecoder request, InetSocketAddress mapped, byte[] key,
+                     boolean fingerprint) throws StunProtocolException {
+    if(!request.isValid()) {
+      throw new IllegalArgumentException("Decoder is not wrapped over a valid packet!");
+    }
+    InetAddress ip = mapped.getAddress();
+    if(ip == null) {
+      throw new IllegalArgumentException("Address is not resolved: "+mapped);
+    }
+    if(ip instanceof Inet4Address) {
+      return rewriteIPv4(request.getBuffer(), request.getOffset(), StunUtils.getInt((Inet4Address)ip),
+                         mapped.getPort(), key, fingerprint);
+    }
+    ByteBuffer bb = ByteBuffer.wrap(ip.getAddress());
+    return rewriteIPv6(request.getBuffer(), request.getOffset(), bb.getLong(0), bb.getLong(8),
+                       mapped.getPort(), key, fingerprint);
+  }
+
+  /**
+   * Rewrites the request starting at {@code start} into its response with an IPv4 mapped address.
+   * On return the buffers position is {@code start} and its limit is the end of the response.
+   *
+   * @param buf the buffer holding the request.
+   * @param start the absolute index where the request starts.
+   * @param address the mapped address.
+   * @param port the mapped port.
+   * @param key the key to sign with, or {@code null} for an unsigned response.
+   * @param fingerprint {@code true} to add a FINGERPRINT.
+   * @return the size of the response.
+   * @throws StunProtocolException if the MESSAGE-INTEGRITY could not be computed.
+   */
+  public int rewriteIPv4(ByteBuffer buf, int start, int address, int port, byte[] key,
+                         boolean fingerprint) throws StunProtocolException {
+    return rewrite(buf, start, IPV4_FAMILY, 0, address, port, key, fingerprint);
+  }
+
+  /**
+   * Rewrites the request starting at {@code start} into its response with an IPv6 mapped address.
+   * On return the buffers position is {@code start} and its limit is the end of the response.
+   *
+   * @param buf the buffer holding the request.
+   * @param start the absolute index where the request starts.
+   * @param high the first 8 bytes of the mapped address.
+   * @param low the last 8 bytes of the mapped address.
+   * @param port the mapped port.
+   * @param key the key to sign with, or {@code null} for an unsigned response.
+   * @param fingerprint {@code true} to add a FINGERPRINT.
+   * @return the size of the response.
+   * @throws StunProtocolException if the MESSAGE-INTEGRITY could not be computed.
+   */
+  public int rewriteIPv6(ByteBuffer buf, int start, long high, long low, int port, byte[] key,
+                         boolean fingerprint) throws StunProtocolException {
+    return rewrite(buf, start, IPV6_FAMILY, high, low, port, key, fingerprint);
+  }
+
+  private int rewrite(ByteBuffer buf, int start, int family, long high, long low, int port,
+                      byte[] key, boolean fingerprint) throws StunProtocolException {
+    StunMetrics metrics = StunUtils.metrics;
+    if(metrics == StunMetrics.NO_OP) {
+      return writeResponse(buf, start, family, high, low, port, key, fingerprint);
+    }
+    long startNanos = System.nanoTime();
+    int size = writeResponse(buf, start, family, high, low, port, key, fingerprint);
+    metrics.packetBuilt(StunMessageType.SUCCESS.bits, System.nanoTime() - startNanos);
+    return size;
+  }
+
+  private int writeResponse(ByteBuffer buf, int start, int family, long high, long low, int port,
+                            byte[] key, boolean fingerprint) throws StunProtocolException {
+    int size = getResponseSize(family == IPV6_FAMILY, key != null, fingerprint);
+    if(buf.capacity() - start < size) {
+      throw new IllegalArgumentException("Not enough space in buffer, need:"+size+" have:"+(buf.capacity() - start));
+    }
+    if(buf.getInt(start + 4) != StunUtils.STUN_MAGIC) {
+      throw new IllegalArgumentException("Buffer does not hold a STUN packet at:"+start);
+    }
+    int unsignedSize = fingerprint ? size - 8 : size;
+    buf.limit(buf.capacity());
+    buf.putShort(start, (short)StunMessageType.SUCCESS.bits);
+    buf.putShort(start + 2, (short)(unsignedSize - 20));
+    // the magic cookie and transaction id are already in place
+    buf.position(start + 20);
+    buf.putShort((short)StunAttribute.XOR_MAPPED_ADDRESS.bits);
+    buf.putShort((short)(family == IPV4_FAMILY ? 8 : 20));
+    buf.put((byte)0); // reserved
+    buf.put((byte)family);
+    buf.putShort((short)(port ^ StunUtils.STUN_SHORT_MAGIC));
+    if(family == IPV4_FAMILY) {
+      buf.putInt((int)low ^ StunUtils.STUN_MAGIC);
+    } else {
+      // xor with the magic cookie and transaction id, as they sit in the header
+      buf.putLong(high ^ buf.getLong(start + 4));
+      buf.putLong(low ^ buf.getLong(start + 12));
+    }
+    if(key != null) {
+      integrity.writeMessageIntegerity(buf, start, key);
+    }
+    if(fingerprint) {
+      buf.putShort(start + 2, (short)(size - 20));
+      StunUtils.writeFingerPrint(buf, start);
+    }
+    buf.limit(start + size);
+    buf.position(start);
+    return size;
+  }
+}
@@ -0,0 +1,236 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link StunBufferPool} of recycled direct buffers, so packets can be encoded straight into
+ * memory the socket can send from.
+ * <p>
+ * Buffers come in power of 2 size classes from {@value #MIN_BUFFER_SIZE} bytes up to
+ * {@code maxBufferSize}, larger requests get a fresh unpooled buffer.  Each thread keeps a small
+ * stack of buffers per size class, so acquiring and releasing on the same thread takes no locks.
+ * When a thread runs out, or has too many, half its stack is moved to or from a shared overflow
+ * stack for that size class, which is bounded, extra buffers are left to the garbage collector.
+ * <p>
+ * With leak tracking on, every outstanding buffer is remembered with the stack trace of where it
+ * was acquired, releasing a buffer twice or one the pool does not own fails, and
+ * {@link #checkLeaks()} reports buffers that were never released.  Tracking takes a lock and
+ * allocates on every call, it is meant for tests.
+ */
+public class DirectBufferPool implements StunBufferPool {
+  public static final int MIN_BUFFER_SIZE = 64;
+  public static final int DEFAULT_MAX_BUFFER_SIZE = 65536;
+  public static final int DEFAULT_BUFFERS_PER_THREAD = 32;
+  private static final DirectBufferPool DEFAULT_POOL = new DirectBufferPool();
+
+  private final int maxBufferSize;
+  private final int buffersPerThread;
+  private final SharedStack[] shared;
+  private final ThreadLocal<ThreadCache> caches;
+  private final LongAdder allocated = new LongAdder();
+  private final LongAdder outstanding = new LongAdder();
+  // acquired buffer to where it was acquired, null unless tracking leaks
+  private final Map<ByteBuffer, Throwable> tracked;
+
+  public DirectBufferPool() {
+    this(DEFAULT_MAX_BUFFER_SIZE, DEFAULT_BUFFERS_PER_THREAD, false);
+  }
+
+  /**
+   * Creates a pool.
+   *
+   * @param maxBufferSize the largest pooled buffer, rounded up to a power of 2.
+   * @param buffersPerThread the most buffers of each size class cached on a thread.
+   * @param trackLeaks {@code true} to track every outstanding buffer, see {@link #checkLeaks()}.
+   */
+  public DirectBufferPool(int maxBufferSize, int buffersPerThread, boolean trackLeaks) {
+    if(maxBufferSize < MIN_BUFFER_SIZE || maxBufferSize > (1 << 30)) {
+      throw new IllegalArgumentException("maxBufferSize out of range: "+maxBufferSize);
+    }
+    if(buffersPerThread < 2) {
+      throw new IllegalArgumentException("buffersPerThread must be at least 2!");
+    }
+    int classes = sizeClass(maxBufferSize) + 1;
+    this.maxBufferSize = MIN_BUFFER_SIZE << (classes - 1);
+    this.buffersPerThread = buffersPerThread;
+    this.shared = new SharedStack[classes];
+    for(int i=0; i<classes; i++) {
+      shared[i] = new SharedStack(buffersPerThread * 4);
+    }
+    this.caches = ThreadLocal.withInitial(() -> new ThreadCache(classes, buffersPerThread));
+    this.tracked = trackLeaks ? new IdentityHashMap<>() : null;
+  }
+
+  /**
+   * Returns the shared pool used when no pool is provided.
+   *
+   * @return the default {@link DirectBufferPool}.
+   */
+  public static DirectBufferPool getDefault() {
+    return DEFAULT_POOL;
+  }
+
+  private static int sizeClass(int size) {
+    if(size <= MIN_BUFFER_SIZE) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+  }
+
+  @Override
+  public ByteBuffer acquire(int size) {
+    if(size < 0) {
+      throw new IllegalArgumentException("Bad size:"+size);
+    }
+    ByteBuffer bb;
+    if(size > maxBufferSize) {
+      bb = ByteBuffer.allocateDirect(size);
+      allocated.increment();
+    } else {
+      bb = take(sizeClass(size));
+    }
+    bb.clear().limit(size);
+    outstanding.increment();
+    if(tracked != null) {
+      synchronized(tracked) {
+        tracked.put(bb, new Throwable("Buffer acquired here"));
+      }
+    }
+    return bb;
+  }
+
+  @Override
+  public void release(ByteBuffer buffer) {
+    if(tracked != null) {
+      synchronized(tracked) {
+        if(tracked.remove(buffer) == null) {
+          throw new IllegalStateException("Buffer was released twice or not acquired from this pool");
+        }
+      }
+    }
+    outstanding.decrement();
+    int capacity = buffer.capacity();
+    if(!buffer.isDirect() || capacity > maxBufferSize || Integer.bitCount(capacity) != 1 ||
+        capacity < MIN_BUFFER_SIZE) {
+      // unpooled, or not one of ours
+      return;
+    }
+    put(sizeClass(capacity), buffer);
+  }
+
+  private ByteBuffer take(int sizeClass) {
+    ThreadCache tc = caches.get();
+    ByteBuffer[] cache = tc.buffers[sizeClass];
+    if(tc.sizes[sizeClass] == 0) {
+      tc.sizes[sizeClass] = shared[sizeClass].popInto(cache, buffersPerThread / 2);
+      if(tc.sizes[sizeClass] == 0) {
+        allocated.increment();
+        return ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << sizeClass);
+      }
+    }
+    int idx = --tc.sizes[sizeClass];
+    ByteBuffer bb = cache[idx];
+    cache[idx] = null;
+    return bb;
+  }
+
+  private void put(int sizeClass, ByteBuffer buffer) {
+    ThreadCache tc = caches.get();
+    ByteBuffer[] cache = tc.buffers[sizeClass];
+    if(tc.sizes[sizeClass] == buffersPerThread) {
+      // keep the most recently used half, they are the most likely to be in cache
+      int moved = buffersPerThread / 2;
+      shared[sizeClass].pushFrom(cache, moved);
+      System.arraycopy(cache, moved, cache, 0, buffersPerThread - moved);
+      Arrays.fill(cache, buffersPerThread - moved, buffersPerThread, null);
+      tc.sizes[sizeClass] -= moved;
+    }
+    cache[tc.sizes[sizeClass]++] = buffer;
+  }
+
+  /**
+   * Returns the number of buffers acquired and not released yet.
+   *
+   * @return the outstanding buffer count.
+   */
+  public long getOutstandingCount() {
+    return outstanding.sum();
+  }
+
+  /**
+   * Returns the number of direct buffers this pool has had to allocate, a count that keeps
+   * climbing under a steady load means buffers are being dropped or leaked.
+   *
+   * @return the allocation count.
+   */
+  public long getAllocatedCount() {
+    return allocated.sum();
+  }
+
+  public int getMaxBufferSize() {
+    return maxBufferSize;
+  }
+
+  /**
+   * Fails if any buffer acquired from this pool has not been released.  Requires leak tracking.
+   *
+   * @throws IllegalStateException with the stack trace of where a leaked buffer was acquired as
+   *         the cause.
+   */
+  public void checkLeaks() {
+    if(tracked == null) {
+      throw new IllegalStateException("Leak tracking is not enabled");
+    }
+    synchronized(tracked) {
+      if(!tracked.isEmpty()) {
+        throw new IllegalStateException(tracked.size()+" buffers were never released",
+                                        tracked.values().iterator().next());
+      }
+    }
+  }
+
+  /**
+   * The per thread stacks, one per size class.
+   */
+  private static class ThreadCache {
+    private final ByteBuffer[][] buffers;
+    private final int[] sizes;
+
+    ThreadCache(int classes, int buffersPerThread) {
+      buffers = new ByteBuffer[classes][buffersPerThread];
+      sizes = new int[classes];
+    }
+  }
+
+  /**
+   * A bounded stack shared by all threads for one size class, buffers only move through it in
+   * batches.
+   */
+  private static class SharedStack {
+    private final ByteBuffer[] buffers;
+    private int size = 0;
+
+    SharedStack(int capacity) {
+      buffers = new ByteBuffer[capacity];
+    }
+
+    synchronized int popInto(ByteBuffer[] dst, int max) {
+      int count = Math.min(max, size);
+      for(int i=0; i<count; i++) {
+        dst[i] = buffers[--size];
+        buffers[size] = null;
+      }
+      return count;
+    }
+
+    synchronized void pushFrom(ByteBuffer[] src, int count) {
+      for(int i=0; i<count && size < buffers.length; i++) {
+        buffers[size++] = src[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * HMAC-SHA1 on top of a single SHA-1 {@link MessageDigest}, for the allocation free signing and
+ * verifying paths.  {@link javax.crypto.Mac#doFinal(byte[], int)} allocates the result and an
+ * intermediate digest on every call, this writes both into caller provided arrays instead.
+ * <p>
+ * A key is turned into its padded inner and outer blocks once with {@link #computePads(byte[])},
+ * and {@link #init(byte[])} switches to a key by reference, so callers can cache the pads per key
+ * and share one instance.  Instances are not thread safe.
+ */
+final class HmacSha1 {
+  static final int MAC_LENGTH = 20;
+  private static final int BLOCK_SIZE = 64;
+
+  private final MessageDigest sha1;
+  private byte[] pads;
+
+  HmacSha1() throws GeneralSecurityException {
+    sha1 = MessageDigest.getInstance("SHA-1");
+  }
+
+  /**
+   * Returns the inner pad block followed by the outer pad block for the key.
+   *
+   * @param key the HMAC key.
+   * @return the {@code 2 * 64} byte pad blocks.
+   */
+  byte[] computePads(byte[] key) {
+    if(key.length > BLOCK_SIZE) {
+      key = sha1.digest(key);
+    }
+    byte[] result = new byte[BLOCK_SIZE * 2];
+    for(int i=0; i<BLOCK_SIZE; i++) {
+      byte k = i < key.length ? key[i] : 0;
+      result[i] = (byte)(k ^ 0x36);
+      result[BLOCK_SIZE + i] = (byte)(k ^ 0x5c);
+    }
+    return result;
+  }
+
+  /**
+   * Starts a new HMAC with the key the pads were computed from.
+   *
+   * @param keyPads pads from {@link #computePads(byte[])}.
+   */
+  void init(byte[] keyPads) {
+    this.pads = keyPads;
+    sha1.reset();
+    sha1.update(pads, 0, BLOCK_SIZE);
+  }
+
+  int getMacLength() {
+    return MAC_LENGTH;
+  }
+
+  void update(byte b) {
+    sha1.update(b);
+  }
+
+  void update(byte[] ba, int offset, int length) {
+    sha1.update(ba, offset, length);
+  }
+
+  /**
+   * Finishes the HMAC into {@code out}.  {@link #init(byte[])} has to be called again before the
+   * next HMAC.
+   *
+   * @param out the array to write the {@value #MAC_LENGTH} byte result to.
+   * @param offset where in {@code out} to write it.
+   * @throws GeneralSecurityException if {@code out} is too short.
+   */
+  void doFinal(byte[] out, int offset) throws GeneralSecurityException {
+    sha1.digest(out, offset, MAC_LENGTH);
+    sha1.update(pads, BLOCK_SIZE, BLOCK_SIZE);
+    sha1.update(out, offset, MAC_LENGTH);
+    sha1.digest(out, offset, MAC_LENGTH);
+  }
+}
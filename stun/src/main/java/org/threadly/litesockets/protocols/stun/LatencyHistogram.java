@@ -0,0 +1,180 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds with log scaled buckets, for recording latencies from
+ * many threads at once.
+ * <p>
+ * Every power of 2 is split into {@value #SUB_BUCKETS} buckets, so a recorded value is placed
+ * within 25% of its real value across the whole range of a long, with a fixed
+ * {@value #BUCKET_COUNT} buckets.  Each bucket is a {@link LongAdder}, so recording never
+ * contends and is a few nanoseconds.  {@link #snapshot()} copies the counts for reading
+ * percentiles.
+ */
+public class LatencyHistogram {
+  public static final int SUB_BUCKETS = 4;
+  public static final int BUCKET_COUNT = 62 * SUB_BUCKETS;
+
+  private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+  private final LongAdder sum = new LongAdder();
+
+  public LatencyHistogram() {
+    for(int i=0; i<BUCKET_COUNT; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Returns the bucket a value is counted in.
+   *
+   * @param nanos the value, negative values are counted as 0.
+   * @return the bucket index.
+   */
+  static int bucketFor(long nanos) {
+    if(nanos < SUB_BUCKETS) {
+      return nanos < 0 ? 0 : (int)nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    int sub = (int)(nanos >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+    return (exponent - 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * Returns the smallest value counted in a bucket.
+   *
+   * @param bucket the bucket index.
+   * @return the lower bound of the bucket.
+   */
+  static long lowerBound(int bucket) {
+    if(bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + 1;
+    return (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 2);
+  }
+
+  /**
+   * Returns the largest value counted in a bucket.
+   *
+   * @param bucket the bucket index.
+   * @return the upper bound of the bucket.
+   */
+  static long upperBound(int bucket) {
+    if(bucket == BUCKET_COUNT - 1) {
+      return Long.MAX_VALUE;
+    }
+    return lowerBound(bucket + 1) - 1;
+  }
+
+  /**
+   * Counts one duration.
+   *
+   * @param nanos the duration.
+   */
+  public void record(long nanos) {
+    buckets[bucketFor(nanos)].increment();
+    sum.add(nanos);
+  }
+
+  /**
+   * Copies the current counts.  Values recorded while the copy is made may or may not be in it.
+   *
+   * @return a snapshot of the histogram.
+   */
+  public Snapshot snapshot() {
+    long[] counts = new long[BUCKET_COUNT];
+    long total = 0;
+    for(int i=0; i<BUCKET_COUNT; i++) {
+      counts[i] = buckets[i].sum();
+      total += counts[i];
+    }
+    return new Snapshot(counts, total, sum.sum());
+  }
+
+  /**
+   * The counts of a {@link LatencyHistogram} at one point in time.
+   */
+  public static class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+
+    Snapshot(long[] counts, long count, long sum) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Returns the exact mean of the recorded values.
+     *
+     * @return the mean in nanoseconds, or 0 if nothing was recorded.
+     */
+    public double getMean() {
+      return count == 0 ? 0 : (double)sum / count;
+    }
+
+    /**
+     * Returns an upper bound for the value at the percentile, at most 25% above the real value.
+     *
+     * @param percentile from 0 to 100.
+     * @return the percentile in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+      if(percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException("Bad percentile: "+percentile);
+      }
+      if(count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long)Math.ceil(count * percentile / 100));
+      long seen = 0;
+      for(int i=0; i<counts.length; i++) {
+        seen += counts[i];
+        if(seen >= rank) {
+          return upperBound(i);
+        }
+      }
+      return upperBound(counts.length - 1);
+    }
+
+    /**
+     * Returns an upper bound for the largest recorded value.
+     *
+     * @return the max in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getMax() {
+      for(int i=counts.length - 1; i>=0; i--) {
+        if(counts[i] != 0) {
+          return upperBound(i);
+        }
+      }
+      return 0;
+    }
+
+    /**
+     * Returns how many values were counted in a bucket, for exporting the full distribution.
+     *
+     * @param bucket the bucket index, below {@link LatencyHistogram#BUCKET_COUNT}.
+     * @return the count of the bucket.
+     */
+    public long getBucketCount(int bucket) {
+      return counts[bucket];
+    }
+
+    /**
+     * Returns the largest value counted in a bucket.
+     *
+     * @param bucket the bucket index, below {@link LatencyHistogram#BUCKET_COUNT}.
+     * @return the upper bound of the bucket in nanoseconds.
+     */
+    public long getBucketUpperBound(int bucket) {
+      return upperBound(bucket);
+    }
+  }
+}
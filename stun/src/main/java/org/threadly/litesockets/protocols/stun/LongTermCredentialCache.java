@@ -0,0 +1,363 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches long-term credential keys, MD5(username ":" realm ":" password), by username and realm
+ * in front of a slower {@link KeySource}.
+ * <p>
+ * Lookups straight from the USERNAME and REALM attribute values take no locks and allocate
+ * nothing on a hit: the bytes are hashed in place to a set of {@value #WAYS} entries, which are
+ * compared against the buffers.  Misses decode the strings, ask the source without holding any
+ * lock, and then insert under a lock.  When the set is full the victim is picked with CLOCK: a
+ * hand sweeps the set, skipping (and clearing the mark of) entries read since it last passed.
+ * <p>
+ * Entries expire {@code ttlMillis} after they were loaded, so changed passwords are picked up
+ * without restarting, {@link #invalidate(String, String)} drops one right away.
+ * <p>
+ * Unknown users are remembered for a shorter {@code negativeTtlMillis} in a separate, smaller
+ * table with one entry per slot, so a client retrying with a made up username only reaches the
+ * source once per TTL, and a flood of them can not push out real users.  A user added to the
+ * source is found once that TTL passes, or right away after {@link #invalidate(String, String)}.
+ */
+public class LongTermCredentialCache {
+  public static final int WAYS = 8;
+  public static final int DEFAULT_MAX_ENTRIES = 4096;
+  public static final long DEFAULT_TTL_MILLIS = 5 * 60_000;
+  public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 10_000;
+
+  private final KeySource source;
+  private final long ttlMillis;
+  private final long negativeTtlMillis;
+  private final LongSupplier clock;
+  private final int setMask;
+  private final AtomicReferenceArray<Entry> entries;
+  // CLOCK hand of each set, guarded by the entries lock
+  private final byte[] hands;
+  // users the source did not know, indexed by hash
+  private final AtomicReferenceArray<Entry> unknown;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  // bumped by every invalidation, so loads that raced with one are not cached
+  private volatile int generation = 0;
+
+  public LongTermCredentialCache(KeySource source) {
+    this(source, DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+  }
+
+  /**
+   * Creates a cache.
+   *
+   * @param source where keys are loaded from on a miss.
+   * @param maxEntries the most keys cached, rounded up to a power of 2.
+   * @param ttlMillis how long a loaded key is used before it is loaded again.
+   */
+  public LongTermCredentialCache(KeySource source, int maxEntries, long ttlMillis) {
+    this(source, maxEntries, ttlMillis, StunClientTransactionManager::currentTimeMillis);
+  }
+
+  /**
+   * Creates a cache that measures entry ages with the provided clock.
+   *
+   * @param source where keys are loaded from on a miss.
+   * @param maxEntries the most keys cached, rounded up to a power of 2.
+   * @param ttlMillis how long a loaded key is used before it is loaded again.
+   * @param clock the current time in milliseconds.
+   */
+  public LongTermCredentialCache(KeySource source, int maxEntries, long ttlMillis, LongSupplier clock) {
+    this(source, maxEntries, ttlMillis, DEFAULT_NEGATIVE_TTL_MILLIS, clock);
+  }
+
+  /**
+   * Creates a cache that measures entry ages with the provided clock.
+   *
+   * @param source where keys are loaded from on a miss.
+   * @param maxEntries the most keys cached, rounded up to a power of 2.
+   * @param ttlMillis how long a loaded key is used before it is loaded again.
+   * @param negativeTtlMillis how long a user the source did not know is not asked about again,
+   *        or 0 to always ask.
+   * @param clock the current time in milliseconds.
+   */
+  public LongTermCredentialCache(KeySource source, int maxEntries, long ttlMillis, long negativeTtlMillis,
+                                 LongSupplier clock) {
+    if(source == null) {
+      throw new IllegalArgumentException("Source can not be null!");
+    }
+    if(maxEntries < WAYS || maxEntries > (1 << 28)) {
+      throw new IllegalArgumentException("maxEntries out of range: "+maxEntries);
+    }
+    if(ttlMillis <= 0) {
+      throw new IllegalArgumentException("ttlMillis must be positive!");
+    }
+    if(negativeTtlMillis < 0) {
+      throw new IllegalArgumentException("negativeTtlMillis can not be negative!");
+    }
+    int sets = 1;
+    while(sets * WAYS < maxEntries) {
+      sets <<= 1;
+    }
+    this.source = source;
+    this.ttlMillis = ttlMillis;
+    this.negativeTtlMillis = negativeTtlMillis;
+    this.clock = clock;
+    this.setMask = sets - 1;
+    this.entries = new AtomicReferenceArray<>(sets * WAYS);
+    this.hands = new byte[sets];
+    this.unknown = new AtomicReferenceArray<>(sets * WAYS / 4);
+  }
+
+  /**
+   * Returns a {@link KeySource} deriving keys from plain text passwords.
+   *
+   * @param passwords the password lookup.
+   * @return a source computing MD5(username ":" realm ":" password).
+   */
+  public static KeySource fromPasswords(PasswordSource passwords) {
+    return (username, realm) -> {
+      String password = passwords.getPassword(username, realm);
+      return password == null ? null : StunUtils.MD5(username+":"+realm+":"+password);
+    };
+  }
+
+  /**
+   * Returns the key for the user, loading it on a miss.
+   *
+   * @param username the username.
+   * @param realm the realm.
+   * @return the key, which must not be modified, or {@code null} if the user is not known.
+   */
+  public byte[] getKey(String username, String realm) {
+    return getKey(ByteBuffer.wrap(username.getBytes(StandardCharsets.UTF_8)),
+                  ByteBuffer.wrap(realm.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * Returns the key for the user, loading it on a miss.  Neither buffer is modified.
+   *
+   * @param username the USERNAME attribute value.
+   * @param realm the REALM attribute value.
+   * @return the key, which must not be modified, or {@code null} if the user is not known.
+   */
+  public byte[] getKey(ByteBuffer username, ByteBuffer realm) {
+    int hash = hash(username, realm);
+    int base = (hash & setMask) * WAYS;
+    long now = clock.getAsLong();
+    for(int way=0; way<WAYS; way++) {
+      Entry e = entries.get(base + way);
+      if(e != null && e.hash == hash && e.matches(username, realm)) {
+        if(now - e.loadedMillis < ttlMillis) {
+          if(!e.referenced) {
+            e.referenced = true;
+          }
+          hits.increment();
+          return e.key;
+        }
+        break;
+      }
+    }
+    int unknownSlot = hash & (unknown.length() - 1);
+    Entry e = unknown.get(unknownSlot);
+    if(e != null && e.hash == hash && now - e.loadedMillis < negativeTtlMillis && e.matches(username, realm)) {
+      hits.increment();
+      return null;
+    }
+    misses.increment();
+    int loadGeneration = generation;
+    byte[] key = source.getKey(StandardCharsets.UTF_8.decode(username.duplicate()).toString(),
+                               StandardCharsets.UTF_8.decode(realm.duplicate()).toString());
+    if(key != null) {
+      key = key.clone();
+      insert(base, new Entry(hash, toArray(username), toArray(realm), key, now), loadGeneration);
+    } else if(negativeTtlMillis > 0) {
+      Entry entry = new Entry(hash, toArray(username), toArray(realm), null, now);
+      synchronized(entries) {
+        if(generation == loadGeneration) {
+          unknown.set(unknownSlot, entry);
+        }
+      }
+    }
+    return key;
+  }
+
+  private void insert(int base, Entry entry, int loadGeneration) {
+    synchronized(entries) {
+      if(generation != loadGeneration) {
+        // invalidated while loading, the key may be the old one
+        return;
+      }
+      int victim = -1;
+      for(int way=0; way<WAYS; way++) {
+        Entry e = entries.get(base + way);
+        if(e == null || (e.hash == entry.hash && e.sameUser(entry))) {
+          victim = base + way;
+          break;
+        }
+      }
+      if(victim < 0) {
+        int set = base / WAYS;
+        while(true) {
+          int slot = base + hands[set];
+          hands[set] = (byte)((hands[set] + 1) % WAYS);
+          Entry e = entries.get(slot);
+          if(!e.referenced || entry.loadedMillis - e.loadedMillis >= ttlMillis) {
+            victim = slot;
+            break;
+          }
+          e.referenced = false;
+        }
+      }
+      entries.set(victim, entry);
+    }
+  }
+
+  /**
+   * Drops the cached key for a user, the next lookup loads it again.
+   *
+   * @param username the username.
+   * @param realm the realm.
+   */
+  public void invalidate(String username, String realm) {
+    ByteBuffer user = ByteBuffer.wrap(username.getBytes(StandardCharsets.UTF_8));
+    ByteBuffer userRealm = ByteBuffer.wrap(realm.getBytes(StandardCharsets.UTF_8));
+    int hash = hash(user, userRealm);
+    int base = (hash & setMask) * WAYS;
+    synchronized(entries) {
+      generation++;
+      for(int way=0; way<WAYS; way++) {
+        Entry e = entries.get(base + way);
+        if(e != null && e.hash == hash && e.matches(user, userRealm)) {
+          entries.set(base + way, null);
+        }
+      }
+      unknown.set(hash & (unknown.length() - 1), null);
+    }
+  }
+
+  public void invalidateAll() {
+    synchronized(entries) {
+      generation++;
+      for(int i=0; i<entries.length(); i++) {
+        entries.set(i, null);
+      }
+      for(int i=0; i<unknown.length(); i++) {
+        unknown.set(i, null);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of cached keys, including expired ones that were not replaced yet.  Unknown
+   * users are not counted.
+   *
+   * @return the cached key count.
+   */
+  public int size() {
+    int count = 0;
+    for(int i=0; i<entries.length(); i++) {
+      if(entries.get(i) != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  private static int hash(ByteBuffer username, ByteBuffer realm) {
+    int h = 0x811c9dc5;
+    for(int i=username.position(); i<username.limit(); i++) {
+      h = (h ^ username.get(i)) * 0x01000193;
+    }
+    // keeps "a" + "bc" apart from "ab" + "c"
+    h = (h ^ ':') * 0x01000193;
+    for(int i=realm.position(); i<realm.limit(); i++) {
+      h = (h ^ realm.get(i)) * 0x01000193;
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static byte[] toArray(ByteBuffer bb) {
+    byte[] ba = new byte[bb.remaining()];
+    bb.duplicate().get(ba);
+    return ba;
+  }
+
+  private static boolean equals(byte[] ba, ByteBuffer bb) {
+    if(ba.length != bb.remaining()) {
+      return false;
+    }
+    int pos = bb.position();
+    for(int i=0; i<ba.length; i++) {
+      if(ba[i] != bb.get(pos + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static class Entry {
+    private final int hash;
+    private final byte[] username;
+    private final byte[] realm;
+    private final byte[] key;
+    private final long loadedMillis;
+    // set by readers without synchronization, a lost update only costs CLOCK some accuracy
+    private boolean referenced = false;
+
+    Entry(int hash, byte[] username, byte[] realm, byte[] key, long loadedMillis) {
+      this.hash = hash;
+      this.username = username;
+      this.realm = realm;
+      this.key = key;
+      this.loadedMillis = loadedMillis;
+    }
+
+    boolean matches(ByteBuffer username, ByteBuffer realm) {
+      return LongTermCredentialCache.equals(this.username, username) &&
+          LongTermCredentialCache.equals(this.realm, realm);
+    }
+
+    boolean sameUser(Entry other) {
+      return Arrays.equals(username, other.username) && Arrays.equals(realm, other.realm);
+    }
+  }
+
+  /**
+   * Loads long-term credential keys.
+   */
+  public interface KeySource {
+    /**
+     * Returns the key for the user.
+     *
+     * @param username the username.
+     * @param realm the realm.
+     * @return MD5(username ":" realm ":" password), or {@code null} if the user is not known.
+     */
+    byte[] getKey(String username, String realm);
+  }
+
+  /**
+   * Looks up plain text passwords, see {@link LongTermCredentialCache#fromPasswords(PasswordSource)}.
+   */
+  public interface PasswordSource {
+    /**
+     * Returns the password for the user.
+     *
+     * @param username the username.
+     * @param realm the realm.
+     * @return the password, or {@code null} if the user is not known.
+     */
+    String getPassword(String username, String realm);
+  }
+}
@@ -0,0 +1,186 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Stateless NONCE values for long-term credential authentication.
+ * <p>
+ * A nonce is the time it was issued and a truncated HMAC-SHA1, under a secret only this generator
+ * knows, of that time and the client address it was issued to.  So nothing has to be stored per
+ * client or rotated on a timer: a nonce is valid if its HMAC checks out for the address the request
+ * came from and it is younger than the lifetime.  Validating reads straight from the NONCE
+ * attribute value and allocates nothing.
+ * <p>
+ * Nonces are {@value #NONCE_LENGTH} lowercase hex characters.  A generator can be shared by any
+ * number of threads.  Nonces from one generator are not valid on another, servers sharing clients
+ * should share a generator or its secret.
+ */
+public class NonceGenerator {
+  public static final int NONCE_LENGTH = 32;
+  public static final long DEFAULT_LIFETIME_MILLIS = 10 * 60_000;
+  private static final int SECRET_LENGTH = 20;
+  private static final int TIME_LENGTH = 8;
+  private static final int MAC_LENGTH = 12;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final long lifetimeMillis;
+  private final byte[] pads;
+  private final ThreadLocal<HmacSha1> macs;
+  private final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[StunUtils.MAC_SCRATCH_SIZE]);
+
+  public NonceGenerator() {
+    this(DEFAULT_LIFETIME_MILLIS);
+  }
+
+  /**
+   * Creates a generator with a random secret.
+   *
+   * @param lifetimeMillis how long a nonce is accepted after it was issued.
+   */
+  public NonceGenerator(long lifetimeMillis) {
+    this(lifetimeMillis, randomSecret());
+  }
+
+  /**
+   * Creates a generator with the provided secret, so several servers can accept each others
+   * nonces.
+   *
+   * @param lifetimeMillis how long a nonce is accepted after it was issued.
+   * @param secret the secret to sign nonces with.
+   */
+  public NonceGenerator(long lifetimeMillis, byte[] secret) {
+    if(lifetimeMillis < 1000) {
+      throw new IllegalArgumentException("lifetimeMillis must be at least a second!");
+    }
+    if(secret == null || secret.length < 16) {
+      throw new IllegalArgumentException("secret must be at least 16 bytes!");
+    }
+    this.lifetimeMillis = lifetimeMillis;
+    this.macs = ThreadLocal.withInitial(() -> {
+      try {
+        return new HmacSha1();
+      } catch(GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    this.pads = macs.get().computePads(secret);
+  }
+
+  private static byte[] randomSecret() {
+    byte[] secret = new byte[SECRET_LENGTH];
+    RANDOM.nextBytes(secret);
+    return secret;
+  }
+
+  /**
+   * Issues a nonce to a client.
+   *
+   * @param client the address the nonce is sent to.
+   * @param nowMillis the current time.
+   * @return the nonce.
+   */
+  public String generate(InetSocketAddress client, long nowMillis) {
+    int issued = (int)(nowMillis / 1000);
+    byte[] mac = sign(issued, SourceRateLimiter.key(client));
+    char[] nonce = new char[NONCE_LENGTH];
+    for(int i=0; i<TIME_LENGTH; i++) {
+      nonce[i] = HEX[(issued >>> (28 - i * 4)) & 0xf];
+    }
+    for(int i=0; i<MAC_LENGTH; i++) {
+      nonce[TIME_LENGTH + i * 2] = HEX[(mac[i] >> 4) & 0xf];
+      nonce[TIME_LENGTH + i * 2 + 1] = HEX[mac[i] & 0xf];
+    }
+    return new String(nonce);
+  }
+
+  /**
+   * Checks a nonce sent by a client.
+   *
+   * @param nonce the NONCE attribute value, it is not modified.
+   * @param client the address the request came from.
+   * @param nowMillis the current time.
+   * @return {@code true} if this generator issued the nonce to the client and it has not expired.
+   */
+  public boolean isValid(ByteBuffer nonce, InetSocketAddress client, long nowMillis) {
+    if(nonce.remaining() != NONCE_LENGTH) {
+      return false;
+    }
+    int pos = nonce.position();
+    int issued = 0;
+    for(int i=0; i<TIME_LENGTH; i++) {
+      int digit = hexValue(nonce.get(pos + i));
+      if(digit < 0) {
+        return false;
+      }
+      issued = (issued << 4) | digit;
+    }
+    long age = (nowMillis / 1000) - (issued & 0xffffffffL);
+    if(age < 0 || age * 1000 > lifetimeMillis) {
+      return false;
+    }
+    byte[] mac = sign(issued, SourceRateLimiter.key(client));
+    int diff = 0;
+    for(int i=0; i<MAC_LENGTH; i++) {
+      int high = hexValue(nonce.get(pos + TIME_LENGTH + i * 2));
+      int low = hexValue(nonce.get(pos + TIME_LENGTH + i * 2 + 1));
+      // a bad digit makes diff non zero, without cutting the compare short
+      diff |= (high | low) & 0x100;
+      diff |= ((high << 4) | (low & 0xf)) ^ (mac[i] & 0xff);
+    }
+    return diff == 0;
+  }
+
+  /**
+   * Same as {@link #isValid(ByteBuffer, InetSocketAddress, long)}.
+   *
+   * @param nonce the nonce.
+   * @param client the address the request came from.
+   * @param nowMillis the current time.
+   * @return {@code true} if this generator issued the nonce to the client and it has not expired.
+   */
+  public boolean isValid(String nonce, InetSocketAddress client, long nowMillis) {
+    return isValid(ByteBuffer.wrap(nonce.getBytes(StandardCharsets.US_ASCII)), client, nowMillis);
+  }
+
+  public long getLifetimeMillis() {
+    return lifetimeMillis;
+  }
+
+  private static int hexValue(byte b) {
+    if(b >= '0' && b <= '9') {
+      return b - '0';
+    } else if(b >= 'a' && b <= 'f') {
+      return b - 'a' + 10;
+    }
+    // has the 0x100 bit set
+    return -1;
+  }
+
+  /**
+   * Returns the thread's scratch array with the HMAC of the issue time and source key in its first
+   * {@value #MAC_LENGTH} bytes.
+   */
+  private byte[] sign(int issued, long sourceKey) {
+    byte[] work = scratch.get();
+    for(int i=0; i<4; i++) {
+      work[i] = (byte)(issued >>> (24 - i * 8));
+    }
+    for(int i=0; i<8; i++) {
+      work[4 + i] = (byte)(sourceKey >>> (56 - i * 8));
+    }
+    HmacSha1 mac = macs.get();
+    mac.init(pads);
+    mac.update(work, 0, 12);
+    try {
+      mac.doFinal(work, 0);
+    } catch(GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+    return work;
+  }
+}
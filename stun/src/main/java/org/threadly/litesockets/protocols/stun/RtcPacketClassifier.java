@@ -0,0 +1,75 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Classifies packets received on a shared WebRTC socket using the first byte ranges from RFC 7983
+ * (with the RTP/RTCP split from RFC 5761).  Classification is a table lookup on the first byte,
+ * a single range check on the second byte for RTP, and a minimum size check.  Nothing is
+ * allocated and the buffers are never modified.
+ */
+public class RtcPacketClassifier {
+  private static final RtcPacketType[] FIRST_BYTE = new RtcPacketType[256];
+
+  static {
+    for(int i=0; i<FIRST_BYTE.length; i++) {
+      if(i <= 3) {
+        FIRST_BYTE[i] = RtcPacketType.STUN;
+      } else if(i >= 16 && i <= 19) {
+        FIRST_BYTE[i] = RtcPacketType.ZRTP;
+      } else if(i >= 20 && i <= 63) {
+        FIRST_BYTE[i] = RtcPacketType.DTLS;
+      } else if(i >= 64 && i <= 79) {
+        FIRST_BYTE[i] = RtcPacketType.TURN_CHANNEL_DATA;
+      } else if(i >= 128 && i <= 191) {
+        FIRST_BYTE[i] = RtcPacketType.RTP;
+      } else {
+        FIRST_BYTE[i] = RtcPacketType.UNKNOWN;
+      }
+    }
+  }
+
+  private RtcPacketClassifier() {}
+
+  /**
+   * Classifies the packet between the buffers position and limit.
+   *
+   * @param bb the received packet.
+   * @return the {@link RtcPacketType} of the packet, {@link RtcPacketType#UNKNOWN} if it should be
+   * dropped.
+   */
+  public static RtcPacketType classify(ByteBuffer bb) {
+    int pos = bb.position();
+    int length = bb.limit() - pos;
+    if(length < 2) {
+      return RtcPacketType.UNKNOWN;
+    }
+    RtcPacketType type = FIRST_BYTE[bb.get(pos) & 0xff];
+    if(type == RtcPacketType.RTP) {
+      // RTCP packet types 192-223 sit where the RTP marker bit and payload type would be
+      int pt = bb.get(pos + 1) & 0xff;
+      if(pt >= 192 && pt <= 223) {
+        type = RtcPacketType.RTCP;
+      }
+    }
+    if(length < type.minimumSize) {
+      return RtcPacketType.UNKNOWN;
+    }
+    return type;
+  }
+
+  /**
+   * Classifies a batch of received packets.
+   *
+   * @param packets the received packets.
+   * @param offset the index of the first packet to classify.
+   * @param count the number of packets to classify.
+   * @param types where to store the result for each packet, at the same index as the packet.
+   */
+  public static void classify(ByteBuffer[] packets, int offset, int count, RtcPacketType[] types) {
+    int end = offset + count;
+    for(int i=offset; i<end; i++) {
+      types[i] = classify(packets[i]);
+    }
+  }
+}
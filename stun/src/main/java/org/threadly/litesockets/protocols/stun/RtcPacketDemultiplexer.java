@@ -0,0 +1,88 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Dispatches packets received on a shared WebRTC socket to the handler for their protocol, using
+ * {@link RtcPacketClassifier}.
+ */
+public class RtcPacketDemultiplexer {
+  private final Handler handler;
+
+  public RtcPacketDemultiplexer(Handler handler) {
+    if(handler == null) {
+      throw new IllegalArgumentException("Handler can not be null!");
+    }
+    this.handler = handler;
+  }
+
+  /**
+   * Classifies and dispatches a single packet.
+   *
+   * @param bb the received packet.
+   * @return the {@link RtcPacketType} the packet was dispatched as.
+   */
+  public RtcPacketType dispatch(ByteBuffer bb) {
+    RtcPacketType type = RtcPacketClassifier.classify(bb);
+    switch(type) {
+    case STUN:
+      handler.onStun(bb);
+      break;
+    case DTLS:
+      handler.onDtls(bb);
+      break;
+    case TURN_CHANNEL_DATA:
+      handler.onChannelData(bb);
+      break;
+    case RTP:
+      handler.onRtp(bb);
+      break;
+    case RTCP:
+      handler.onRtcp(bb);
+      break;
+    default:
+      handler.onOther(type, bb);
+    }
+    return type;
+  }
+
+  /**
+   * Classifies and dispatches a batch of received packets, in order.
+   *
+   * @param packets the received packets.
+   * @param offset the index of the first packet.
+   * @param count the number of packets to dispatch.
+   */
+  public void dispatch(ByteBuffer[] packets, int offset, int count) {
+    int end = offset + count;
+    for(int i=offset; i<end; i++) {
+      dispatch(packets[i]);
+    }
+  }
+
+  /**
+   * Receives the packets for each protocol.  The buffers are only valid for the duration of the
+   * call unless the caller of the demultiplexer says otherwise.
+   */
+  public interface Handler {
+    void onStun(ByteBuffer bb);
+
+    void onDtls(ByteBuffer bb);
+
+    void onChannelData(ByteBuffer bb);
+
+    void onRtp(ByteBuffer bb);
+
+    void onRtcp(ByteBuffer bb);
+
+    /**
+     * Called for ZRTP and {@link RtcPacketType#UNKNOWN} packets, by default these are dropped.
+     *
+     * @param type the type the packet was classified as.
+     * @param bb the packet.
+     */
+    default void onOther(RtcPacketType type, ByteBuffer bb) {
+      // dropped
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package org.threadly.litesockets.protocols.stun;
+
+/**
+ * The protocols that can share a single WebRTC 5-tuple, as defined by RFC 7983.
+ */
+public enum RtcPacketType {
+  STUN(20),
+  ZRTP(12),
+  DTLS(13),
+  TURN_CHANNEL_DATA(4),
+  RTP(12),
+  RTCP(8),
+  UNKNOWN(0);
+
+  /**
+   * The smallest packet size that can be valid for this type.
+   */
+  public final int minimumSize;
+  private RtcPacketType(int minimumSize) {
+    this.minimumSize = minimumSize;
+  }
+}
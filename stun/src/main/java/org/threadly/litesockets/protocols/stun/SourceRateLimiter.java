@@ -0,0 +1,282 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per source token bucket rate limiting, cheap enough to run on every datagram before it is
+ * parsed, to keep STUN responders from being used as reflectors.
+ * <p>
+ * Sources are identified by a packed {@code long} key, see {@link #key(int, int)}.  Each bucket is
+ * a single {@code long} holding its theoretical arrival time (the GCRA form of a token bucket): a
+ * packet is let through if the bucket would not run more than {@code burst} packets ahead of the
+ * clock, which is refilled lazily from {@link System#nanoTime()} on the next packet rather than by
+ * a timer.  Taking a token is one CAS, no locks are ever taken.
+ * <p>
+ * Memory is bounded.  Buckets live in a set associative table of {@code maxSources} entries, each
+ * key hashes to one set of {@value #WAYS} buckets and a new source takes over the bucket of its
+ * set that has been idle the longest.  To keep floods of one-off (often spoofed) sources from flushing out
+ * the sources that are actually being limited, a source only gets a bucket once a count-min sketch
+ * estimates it sent more than {@code burst} packets recently, below that it is let through
+ * untracked.  The sketch does not know when those packets were sent, so a new bucket starts full,
+ * and a source can get up to twice {@code burst} packets through before it is first held back.
+ * <p>
+ * So old traffic fades out, every counter in the sketch is halved about once every
+ * {@link #SKETCH_AGING_FACTOR} times its width in packets.  This is done a slice at a time from a
+ * random one in {@value #SKETCH_SAMPLE} untracked packets, so packet threads do not all update a
+ * shared counter and no single packet pays for aging the whole sketch.
+ * <p>
+ * Under contention, or when two keys collide, the limiter errs on the side of letting packets
+ * through, it never holds back a source for longer than its rate allows.
+ */
+public class SourceRateLimiter {
+  public static final int WAYS = 8;
+  public static final int SKETCH_AGING_FACTOR = 2;
+  public static final int SKETCH_SAMPLE = 64;
+  private static final int SKETCH_DEPTH = 4;
+  private static final long EMPTY = 0;
+
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final int burst;
+  private final int setMask;
+  private final long seed = ThreadLocalRandom.current().nextLong() | 1;
+  // by set * WAYS + way
+  private final AtomicLongArray keys;
+  private final AtomicLongArray arrivals;
+  private final int sketchMask;
+  private final AtomicIntegerArray sketch;
+  private final AtomicLong sketchSlices = new AtomicLong();
+  // counters halved per aging slice, a power of 2 that divides the sketch
+  private final int sketchSliceSize;
+
+  /**
+   * Creates a limiter.
+   *
+   * @param packetsPerSecond the sustained rate each source is allowed.
+   * @param burst the number of packets a source can send back to back after being idle.
+   * @param maxSources the most sources tracked at once, rounded up to a power of 2.
+   */
+  public SourceRateLimiter(double packetsPerSecond, int burst, int maxSources) {
+    if(packetsPerSecond <= 0 || packetsPerSecond > 1000000000) {
+      throw new IllegalArgumentException("Bad rate:"+packetsPerSecond);
+    }
+    if(burst < 1) {
+      throw new IllegalArgumentException("burst must be positive!");
+    }
+    if(maxSources < WAYS || maxSources > (1 << 28)) {
+      throw new IllegalArgumentException("maxSources out of range: "+maxSources);
+    }
+    this.intervalNanos = Math.max(1, (long)(1000000000 / packetsPerSecond));
+    this.burstNanos = intervalNanos * burst;
+    this.burst = burst;
+    int sets = 1;
+    while(sets * WAYS < maxSources) {
+      sets <<= 1;
+    }
+    this.setMask = sets - 1;
+    this.keys = new AtomicLongArray(sets * WAYS);
+    this.arrivals = new AtomicLongArray(sets * WAYS);
+    // wide enough that a flood of one-off sources keeps the counters near zero
+    int width = 16;
+    while(width < sets * WAYS * 4) {
+      width <<= 1;
+    }
+    this.sketchMask = width - 1;
+    this.sketch = new AtomicIntegerArray(width * SKETCH_DEPTH);
+    this.sketchSliceSize = (int)Math.min(sketch.length(),
+                                         (long)sketch.length() * SKETCH_SAMPLE / (width * SKETCH_AGING_FACTOR));
+  }
+
+  /**
+   * Packs an IPv4 address and port into a key.  Pass port 0 to limit by address alone.
+   *
+   * @param ipv4 the address, as from {@link StunPacketDecoder#getIPv4Address()}.
+   * @param port the port.
+   * @return the key.
+   */
+  public static long key(int ipv4, int port) {
+    // never EMPTY, the address family is in bit 48
+    return (1L << 48) | ((ipv4 & 0xffffffffL) << 16) | (port & 0xffff);
+  }
+
+  /**
+   * Folds an IPv6 address and port into a key.  Distinct addresses may share a key, which only
+   * makes the limiter count them together.
+   *
+   * @param high the first 8 bytes of the address.
+   * @param low the last 8 bytes of the address.
+   * @param port the port.
+   * @return the key.
+   */
+  public static long key(long high, long low, int port) {
+    long h = (high * 0x9E3779B97F4A7C15L) ^ Long.rotateLeft(low * 0xC2B2AE3D27D4EB4FL, 31);
+    // the top bit keeps these apart from IPv4 keys
+    return Long.MIN_VALUE | (h << 16) | (port & 0xffff);
+  }
+
+  /**
+   * Packs a socket address into a key, IPv4 addresses are read without allocating.
+   *
+   * @param address the source address.
+   * @return the key.
+   */
+  public static long key(InetSocketAddress address) {
+    InetAddress ip = address.getAddress();
+    if(ip instanceof Inet4Address) {
+      return key(StunUtils.getInt((Inet4Address)ip), address.getPort());
+    }
+    ByteBuffer bb = ByteBuffer.wrap(ip.getAddress());
+    return key(bb.getLong(0), bb.getLong(8), address.getPort());
+  }
+
+  /**
+   * Takes a token for the source address if it has one.
+   *
+   * @param source the address the packet came from.
+   * @return {@code true} if the packet should be processed, {@code false} if it should be dropped.
+   */
+  public boolean tryAcquire(InetSocketAddress source) {
+    return tryAcquire(key(source), System.nanoTime());
+  }
+
+  /**
+   * Takes a token for the source if it has one.
+   *
+   * @param key the source key.
+   * @return {@code true} if the packet should be processed, {@code false} if it should be dropped.
+   */
+  public boolean tryAcquire(long key) {
+    return tryAcquire(key, System.nanoTime());
+  }
+
+  /**
+   * Takes a token for the source if it has one.
+   *
+   * @param key the source key.
+   * @param nowNanos the current time from {@link System#nanoTime()}.
+   * @return {@code true} if the packet should be processed, {@code false} if it should be dropped.
+   */
+  public boolean tryAcquire(long key, long nowNanos) {
+    if(key == EMPTY) {
+      key = 1;
+    }
+    long hash = mix(key);
+    int base = ((int)hash & setMask) * WAYS;
+    for(int way=0; way<WAYS; way++) {
+      if(keys.get(base + way) == key) {
+        return take(base + way, nowNanos);
+      }
+    }
+    int estimate = addToSketch(hash);
+    if(estimate <= burst) {
+      return true;
+    }
+    // a heavy source without a bucket
+    int victim = base;
+    long victimArrival = arrivals.get(base);
+    for(int way=0; way<WAYS; way++) {
+      if(keys.get(base + way) == EMPTY) {
+        victim = base + way;
+        break;
+      }
+      long arrival = arrivals.get(base + way);
+      if(arrival - victimArrival < 0) {
+        victim = base + way;
+        victimArrival = arrival;
+      }
+    }
+    long victimKey = keys.get(victim);
+    long victimArrivalNow = arrivals.get(victim);
+    // the packets the sketch counted may be long ago, so the new bucket starts full
+    if(!keys.compareAndSet(victim, victimKey, key) ||
+        !arrivals.compareAndSet(victim, victimArrivalNow, nowNanos)) {
+      return true;
+    }
+    return take(victim, nowNanos);
+  }
+
+  private boolean take(int slot, long nowNanos) {
+    while(true) {
+      long arrival = arrivals.get(slot);
+      long next = (arrival - nowNanos < 0 ? nowNanos : arrival) + intervalNanos;
+      if(next - nowNanos > burstNanos) {
+        return false;
+      }
+      if(arrivals.compareAndSet(slot, arrival, next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Counts a packet in the sketch, and now and then ages the next slice of it.
+   *
+   * @return the estimated number of recent packets from the source, including this one.
+   */
+  private int addToSketch(long hash) {
+    int h1 = (int)hash;
+    int h2 = (int)(hash >>> 32) | 1;
+    int min = Integer.MAX_VALUE;
+    for(int row=0; row<SKETCH_DEPTH; row++) {
+      int count = sketch.get(sketchIndex(row, h1, h2));
+      if(count < min) {
+        min = count;
+      }
+    }
+    // conservative update, only the smallest counters move
+    for(int row=0; row<SKETCH_DEPTH; row++) {
+      int idx = sketchIndex(row, h1, h2);
+      int count = sketch.get(idx);
+      if(count == min && count < Integer.MAX_VALUE) {
+        sketch.compareAndSet(idx, count, count + 1);
+      }
+    }
+    if((ThreadLocalRandom.current().nextInt() & (SKETCH_SAMPLE - 1)) == 0) {
+      ageSketch();
+    }
+    return min + 1;
+  }
+
+  private void ageSketch() {
+    int start = (int)(sketchSlices.getAndIncrement() * sketchSliceSize) & (sketch.length() - 1);
+    for(int i=start; i<start + sketchSliceSize; i++) {
+      // racing increments may be lost, which only lets a source through sooner
+      sketch.set(i, sketch.get(i) >>> 1);
+    }
+  }
+
+  private int sketchIndex(int row, int h1, int h2) {
+    return row * (sketchMask + 1) + ((h1 + row * h2) >>> 4 & sketchMask);
+  }
+
+  private long mix(long key) {
+    long h = key * seed;
+    return h ^ (h >>> 29) ^ (h >>> 47);
+  }
+
+  /**
+   * Returns the number of sources that currently have a bucket.
+   *
+   * @return the tracked source count.
+   */
+  public int getTrackedSources() {
+    int count = 0;
+    for(int i=0; i<keys.length(); i++) {
+      if(keys.get(i) != EMPTY) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public int getMaxSources() {
+    return keys.length();
+  }
+}
@@ -21,7 +21,15 @@ public enum StunAttribute {
   FINGERPRINT(0x8028),
   USE_CANDIDATE(0x0025),
   ICE_CONTROLLED(0x8029),
-  ICE_CONTROLLING(0x802A);
+  ICE_CONTROLLING(0x802A),
+  // TURN, RFC 5766
+  CHANNEL_NUMBER(0x000C),
+  LIFETIME(0x000D),
+  XOR_PEER_ADDRESS(0x0012),
+  DATA(0x0013),
+  XOR_RELAYED_ADDRESS(0x0016),
+  REQUESTED_TRANSPORT(0x0019),
+  DONT_FRAGMENT(0x001A);
 
   public final int bits;
   private StunAttribute(int bits) {
@@ -32,7 +40,30 @@ public enum StunAttribute {
     return (bits & 0x8000) != 0;
   }
 
+  /**
+   * Returns {@code true} for the address attributes that are masked with the magic cookie and
+   * transaction id.
+   */
+  boolean isXorAddress() {
+    return this == XOR_MAPPED_ADDRESS || this == XOR_PEER_ADDRESS || this == XOR_RELAYED_ADDRESS;
+  }
+
   public static StunAttribute fromValue(int val) {
+    StunAttribute sa = fromValueOrNull(val);
+    if(sa == null) {
+      throw new IllegalStateException("Bad Attribute in data!");
+    }
+    return sa;
+  }
+
+  /**
+   * Same as {@link #fromValue(int)} but returns {@code null} instead of throwing for an unknown
+   * comprehension-required attribute.
+   * 
+   * @param val the attribute type from the packet.
+   * @return the matching {@link StunAttribute} or {@code null}.
+   */
+  static StunAttribute fromValueOrNull(int val) {
     switch(val) {
     case 0x0001:
       return StunAttribute.MAPPED_ADDRESS;
@@ -76,9 +107,23 @@ public enum StunAttribute {
       return StunAttribute.ICE_CONTROLLED;
     case 0x802A:
       return StunAttribute.ICE_CONTROLLING;
+    case 0x000C:
+      return StunAttribute.CHANNEL_NUMBER;
+    case 0x000D:
+      return StunAttribute.LIFETIME;
+    case 0x0012:
+      return StunAttribute.XOR_PEER_ADDRESS;
+    case 0x0013:
+      return StunAttribute.DATA;
+    case 0x0016:
+      return StunAttribute.XOR_RELAYED_ADDRESS;
+    case 0x0019:
+      return StunAttribute.REQUESTED_TRANSPORT;
+    case 0x001A:
+      return StunAttribute.DONT_FRAGMENT;
     default:
       if((val & 0x8000) == 0) {
-        throw new IllegalStateException("Bad Attribute in data!");
+        return null;
       }
     }
     return UNKNOWN_ATTRIBUTES;
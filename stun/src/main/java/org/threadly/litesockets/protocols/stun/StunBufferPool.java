@@ -0,0 +1,28 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hands out and takes back buffers for encoding packets, see
+ * {@link StunPacketBuilder#encode(StunBufferPool)}.
+ * <p>
+ * A buffer must be released exactly once, by any thread, and must not be used after it is
+ * released.  Implementations have to be thread safe.
+ */
+public interface StunBufferPool {
+  /**
+   * Returns a buffer with its position at 0 and its limit at {@code size}.  Its contents are
+   * undefined.
+   *
+   * @param size the number of bytes needed.
+   * @return a buffer at least {@code size} bytes long.
+   */
+  ByteBuffer acquire(int size);
+
+  /**
+   * Returns a buffer from {@link #acquire(int)} to the pool.
+   *
+   * @param buffer the buffer to give back.
+   */
+  void release(ByteBuffer buffer);
+}
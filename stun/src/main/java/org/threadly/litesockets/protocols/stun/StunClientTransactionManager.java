@@ -0,0 +1,275 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Client side STUN transactions over an unreliable transport (RFC 5389 section 7.2.1).
+ * <p>
+ * Requests are sent through a {@link PacketSender} and retransmitted with exponential backoff,
+ * starting at the RTO and doubling, until {@code Rc} transmissions have been sent.  After the last
+ * transmission the client waits {@code Rm} times the RTO before failing the transaction with a
+ * {@link TimeoutException}.  Responses passed to {@link #handleResponse(StunPacket)} are matched to
+ * their request by {@link TransactionID} and complete the request's future.
+ * <p>
+ * All retransmission timers live on one {@link TimingWheel}, driven by a single periodic task on
+ * the supplied scheduler (or by calling {@link #tick(long)} directly), so outstanding transactions
+ * cost nothing per tick unless they are due.  Outstanding transactions are kept in a
+ * {@link TransactionTable}, once it is full the oldest transactions are failed with an
+ * {@link IllegalStateException} to make room.
+ */
+public class StunClientTransactionManager {
+  public static final long DEFAULT_RTO_MILLIS = 500;
+  public static final int DEFAULT_MAX_TRANSMISSIONS = 7;
+  public static final int DEFAULT_FINAL_WAIT_MULTIPLIER = 16;
+  public static final long DEFAULT_TICK_MILLIS = 10;
+  public static final int DEFAULT_MAX_OUTSTANDING = 65536;
+  private static final int WHEEL_SIZE = 512;
+
+  private final TransactionTable<Transaction> transactions;
+  private final PacketSender sender;
+  private final TimingWheel wheel;
+  private final long rtoMillis;
+  private final int maxTransmissions;
+  private final int finalWaitMultiplier;
+  private final ScheduledFuture<?> ticker;
+
+  /**
+   * Creates a manager with the RFC 5389 defaults, ticking on the given scheduler.
+   *
+   * @param sender used to send and retransmit requests.
+   * @param scheduler used to advance the retransmission timers.
+   */
+  public StunClientTransactionManager(PacketSender sender, ScheduledExecutorService scheduler) {
+    this(sender, scheduler, DEFAULT_RTO_MILLIS, DEFAULT_MAX_TRANSMISSIONS, DEFAULT_FINAL_WAIT_MULTIPLIER);
+  }
+
+  /**
+   * Creates a manager with the given retransmission parameters.  If {@code scheduler} is
+   * {@code null} the caller must call {@link #tick(long)} periodically with
+   * {@link #currentTimeMillis()}.
+   *
+   * @param sender used to send and retransmit requests.
+   * @param scheduler used to advance the retransmission timers, or {@code null}.
+   * @param rtoMillis the initial retransmission timeout.
+   * @param maxTransmissions the total number of times a request is sent (Rc).
+   * @param finalWaitMultiplier how many RTOs to wait after the last transmission (Rm).
+   */
+  public StunClientTransactionManager(PacketSender sender, ScheduledExecutorService scheduler,
+                                      long rtoMillis, int maxTransmissions, int finalWaitMultiplier) {
+    this(sender, scheduler, rtoMillis, maxTransmissions, finalWaitMultiplier, DEFAULT_MAX_OUTSTANDING);
+  }
+
+  /**
+   * Creates a manager with the given retransmission parameters and limit on outstanding
+   * transactions.
+   *
+   * @param sender used to send and retransmit requests.
+   * @param scheduler used to advance the retransmission timers, or {@code null}.
+   * @param rtoMillis the initial retransmission timeout.
+   * @param maxTransmissions the total number of times a request is sent (Rc).
+   * @param finalWaitMultiplier how many RTOs to wait after the last transmission (Rm).
+   * @param maxOutstanding the most transactions to track at once.
+   */
+  public StunClientTransactionManager(PacketSender sender, ScheduledExecutorService scheduler,
+                                      long rtoMillis, int maxTransmissions, int finalWaitMultiplier,
+                                      int maxOutstanding) {
+    if(sender == null) {
+      throw new IllegalArgumentException("Sender can not be null!");
+    }
+    if(rtoMillis < 1 || maxTransmissions < 1 || finalWaitMultiplier < 1) {
+      throw new IllegalArgumentException("Retransmission parameters must be positive!");
+    }
+    this.sender = sender;
+    this.transactions = new TransactionTable<>(maxOutstanding,
+        (t) -> t.fail(new IllegalStateException("Too many outstanding transactions")));
+    this.rtoMillis = rtoMillis;
+    this.maxTransmissions = maxTransmissions;
+    this.finalWaitMultiplier = finalWaitMultiplier;
+    long tickMillis = Math.min(DEFAULT_TICK_MILLIS, rtoMillis);
+    this.wheel = new TimingWheel(tickMillis, WHEEL_SIZE, currentTimeMillis());
+    if(scheduler != null) {
+      ticker = scheduler.scheduleAtFixedRate(() -> tick(currentTimeMillis()),
+                                             tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    } else {
+      ticker = null;
+    }
+  }
+
+  /**
+   * The monotonic clock used by this manager.
+   *
+   * @return the current time in milliseconds.
+   */
+  public static long currentTimeMillis() {
+    return System.nanoTime() / 1000000;
+  }
+
+  /**
+   * Runs any retransmissions or timeouts that are due.  Only needs to be called when the manager
+   * was created without a scheduler.
+   *
+   * @param nowMillis the current time from {@link #currentTimeMillis()}.
+   */
+  public void tick(long nowMillis) {
+    wheel.advance(nowMillis);
+  }
+
+  /**
+   * Sends a request and tracks it until a response arrives or it times out.  The returned future
+   * can be cancelled to stop retransmitting.
+   *
+   * @param request the request to send.
+   * @param destination where to send the request.
+   * @return a future completed with the response, or with a {@link TimeoutException}.
+   */
+  public CompletableFuture<StunPacket> sendRequest(StunPacket request, InetSocketAddress destination) {
+    Transaction t = new Transaction(request, destination);
+    if(transactions.putIfAbsent(t.tid, t) != null) {
+      throw new IllegalStateException("Transaction already in progress!");
+    }
+    synchronized(t) {
+      t.transmit();
+    }
+    return t.future;
+  }
+
+  /**
+   * Completes the transaction the response belongs to, if there is one.  Both success and error
+   * responses complete the future normally.
+   *
+   * @param response the received response.
+   * @return {@code true} if the response matched an outstanding transaction.
+   */
+  public boolean handleResponse(StunPacket response) {
+    if(!response.getMessageType().isResponse()) {
+      return false;
+    }
+    return complete(transactions.remove(response), response);
+  }
+
+  /**
+   * Completes the transaction the packet wrapped by the decoder belongs to, if there is one.  A
+   * {@link StunPacket} is only created when the packet matches an outstanding transaction.
+   *
+   * @param spd a decoder wrapped over a received packet.
+   * @return {@code true} if the packet was a response to an outstanding transaction.
+   * @throws StunProtocolException if the matched response could not be parsed.
+   */
+  public boolean handleResponse(StunPacketDecoder spd) throws StunProtocolException {
+    if(!spd.isValid()) {
+      return false;
+    }
+    StunMessageType type = StunMessageType.fromValueOrNull(spd.getMessageType());
+    if(type == null || !type.isResponse()) {
+      return false;
+    }
+    Transaction t = transactions.remove(spd);
+    if(t == null) {
+      return false;
+    }
+    StunPacket response;
+    try {
+      response = spd.toStunPacket();
+    } catch(StunProtocolException e) {
+      t.fail(e);
+      throw e;
+    }
+    return complete(t, response);
+  }
+
+  private static boolean complete(Transaction t, StunPacket response) {
+    if(t == null) {
+      return false;
+    }
+    boolean completed = t.future.complete(response);
+    t.cancel();
+    return completed;
+  }
+
+  public int getOutstandingCount() {
+    return transactions.size();
+  }
+
+  /**
+   * Stops the timer and cancels every outstanding transaction.
+   */
+  public void shutdown() {
+    if(ticker != null) {
+      ticker.cancel(false);
+    }
+    transactions.forEach((t) -> t.fail(new CancellationException("Transaction manager shutdown")));
+  }
+
+  private class Transaction extends TimingWheel.Task {
+    private final CompletableFuture<StunPacket> future = new CompletableFuture<>();
+    private final TransactionID tid;
+    private final ByteBuffer bytes;
+    private final InetSocketAddress destination;
+    private long nextRto = rtoMillis;
+    private int transmissions = 0;
+
+    Transaction(StunPacket request, InetSocketAddress destination) {
+      this.tid = request.getTxID();
+      this.bytes = request.getBytes();
+      this.destination = destination;
+    }
+
+    // callers hold the lock on this transaction
+    private void transmit() {
+      if(future.isDone()) {
+        transactions.remove(tid, this);
+        return;
+      }
+      try {
+        sender.send(bytes.duplicate(), destination);
+      } catch(IOException | RuntimeException e) {
+        fail(e);
+        return;
+      }
+      transmissions++;
+      if(transmissions < maxTransmissions) {
+        wheel.schedule(this, nextRto);
+        nextRto *= 2;
+      } else {
+        wheel.schedule(this, rtoMillis * finalWaitMultiplier);
+      }
+    }
+
+    private void fail(Throwable cause) {
+      cancel();
+      transactions.remove(tid, this);
+      future.completeExceptionally(cause);
+    }
+
+    @Override
+    protected synchronized void expired() {
+      if(transmissions >= maxTransmissions) {
+        fail(new TimeoutException("No response after "+transmissions+" transmissions"));
+      } else {
+        transmit();
+      }
+    }
+  }
+
+  /**
+   * Sends STUN requests on behalf of a {@link StunClientTransactionManager}.
+   */
+  public interface PacketSender {
+    /**
+     * Sends the packet, this is called for the first transmission and every retransmission.
+     *
+     * @param packet the encoded request.
+     * @param destination where to send it.
+     * @throws IOException if the packet could not be sent, which fails the transaction.
+     */
+    void send(ByteBuffer packet, InetSocketAddress destination) throws IOException;
+  }
+}
@@ -0,0 +1,210 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Computes and verifies MESSAGE-INTEGRITY with cached HMAC-SHA1 state.
+ * <p>
+ * {@link StunUtils#addMessageIntegerity(StunPacket, byte[])} and
+ * {@link StunUtils#verifyMessageIntegerity(StunPacket, byte[])} look up the HmacSHA1 provider and
+ * run the key schedule for every packet.  This engine instead keeps a small direct-mapped cache of
+ * prepared key state per thread, keyed by the credential, so repeated checks for the same ICE
+ * session only pay for the HMAC itself.  Signing and verifying in a buffer run the HMAC straight
+ * over SHA-1 into per thread scratch space, so they allocate nothing once the key is cached.
+ * <p>
+ * A single engine can be shared by any number of threads.
+ */
+public class StunIntegrityEngine {
+  public static final int DEFAULT_KEYS_PER_THREAD = 256;
+  private static final StunIntegrityEngine DEFAULT_ENGINE = new StunIntegrityEngine();
+
+  private final int keysPerThread;
+  private final ThreadLocal<KeyCache> caches;
+
+  public StunIntegrityEngine() {
+    this(DEFAULT_KEYS_PER_THREAD);
+  }
+
+  /**
+   * Creates an engine caching up to {@code keysPerThread} initialized keys on each thread.  The
+   * value is rounded up to a power of 2.
+   *
+   * @param keysPerThread the number of cached keys per thread.
+   */
+  public StunIntegrityEngine(int keysPerThread) {
+    if(keysPerThread < 1) {
+      throw new IllegalArgumentException("keysPerThread must be positive!");
+    }
+    int size = 1;
+    while(size < keysPerThread) {
+      size <<= 1;
+    }
+    this.keysPerThread = size;
+    this.caches = ThreadLocal.withInitial(() -> new KeyCache(this.keysPerThread));
+  }
+
+  /**
+   * Returns the shared engine used by {@link StunPacketBuilder}.
+   *
+   * @return the default {@link StunIntegrityEngine}.
+   */
+  public static StunIntegrityEngine getDefault() {
+    return DEFAULT_ENGINE;
+  }
+
+  /**
+   * Returns an HmacSHA1 {@link Mac} initialized with the provided key.  The returned instance is
+   * owned by the calling thread and is only valid until the next call on this engine from the
+   * same thread, it must not be handed to other threads.
+   *
+   * @param key the key to sign with.
+   * @return an initialized {@link Mac} ready for use.
+   * @throws StunProtocolException if HmacSHA1 is unavailable or the key is not usable.
+   */
+  public Mac getMac(byte[] key) throws StunProtocolException {
+    try {
+      return caches.get().getMac(key);
+    } catch(GeneralSecurityException e) {
+      throw new StunProtocolException(e);
+    }
+  }
+
+  /**
+   * Same as {@link StunUtils#addMessageIntegerity(StunPacket, byte[])} using the cached key state.
+   *
+   * @param sp the packet to sign.
+   * @param key the key to sign with.
+   * @return a new {@link StunPacket} with the MESSAGE-INTEGRITY attribute added.
+   * @throws StunProtocolException if the packet could not be signed.
+   */
+  public StunPacket addMessageIntegerity(final StunPacket sp, byte[] key) throws StunProtocolException {
+    return StunUtils.addMessageIntegerity(sp, getMac(key));
+  }
+
+  /**
+   * Same as {@link StunUtils#verifyMessageIntegerity(StunPacket, byte[])} using the cached key
+   * state.
+   *
+   * @param sp the packet to verify.
+   * @param key the key the packet should be signed with.
+   * @return {@code true} if the packet has a valid MESSAGE-INTEGRITY for the key.
+   */
+  public boolean verifyMessageIntegerity(final StunPacket sp, byte[] key) {
+    int offset = sp.getAttributeOffset(StunAttribute.MESSAGE_INTEGRITY);
+    if(offset < 0) {
+      return false;
+    }
+    return verify(sp.getBuffer(), 0, offset, key);
+  }
+
+  /**
+   * Verifies the MESSAGE-INTEGRITY of the packet the decoder is currently wrapped over, reading
+   * straight from the received buffer.  Nothing is allocated once the key is cached.
+   *
+   * @param spd a decoder wrapped over a valid packet.
+   * @param key the key the packet should be signed with.
+   * @return {@code true} if the packet has a valid MESSAGE-INTEGRITY for the key.
+   */
+  public boolean verifyMessageIntegerity(final StunPacketDecoder spd, byte[] key) {
+    int offset = spd.getAttributeOffset(StunAttribute.MESSAGE_INTEGRITY);
+    if(!spd.isValid() || offset == StunPacketDecoder.NOT_FOUND) {
+      return false;
+    }
+    return verify(spd.getBuffer(), spd.getOffset(), offset, key);
+  }
+
+  /**
+   * Signs the packet that starts at {@code start} and ends at the buffers current position, then
+   * writes the MESSAGE-INTEGRITY attribute at the current position.  The length in the header must
+   * already include the MESSAGE-INTEGRITY attribute.  Nothing is allocated once the key is cached.
+   *
+   * @param dst the buffer holding the packet, heap or direct.
+   * @param start the absolute index where the packet starts.
+   * @param key the key to sign with.
+   * @throws StunProtocolException if HmacSHA1 is unavailable or the key is not usable.
+   */
+  public void writeMessageIntegerity(ByteBuffer dst, int start, byte[] key) throws StunProtocolException {
+    KeyCache kc = caches.get();
+    try {
+      StunUtils.writeMessageIntegerity(dst, start, kc.getHmac(key), kc.scratch);
+    } catch(GeneralSecurityException e) {
+      throw new StunProtocolException(e);
+    }
+  }
+
+  private boolean verify(ByteBuffer buf, int start, int miOffset, byte[] key) {
+    KeyCache kc = caches.get();
+    try {
+      return StunUtils.verifyMessageIntegerity(buf, start, miOffset, kc.getHmac(key), kc.scratch);
+    } catch(GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Direct-mapped cache of key state.  The signing and verifying paths only need the padded key
+   * blocks for {@link HmacSha1}, an initialized {@link Mac} is only made for {@link #getMac(byte[])}.
+   * A colliding key simply replaces the state in that slot.
+   */
+  private static class KeyCache {
+    private final int mask;
+    private final byte[][] keys;
+    private final int[] hashes;
+    private final byte[][] pads;
+    private final Mac[] macs;
+    private final HmacSha1 hmac;
+    private final byte[] scratch = new byte[StunUtils.MAC_SCRATCH_SIZE];
+
+    KeyCache(int size) {
+      mask = size - 1;
+      keys = new byte[size][];
+      hashes = new int[size];
+      pads = new byte[size][];
+      macs = new Mac[size];
+      try {
+        hmac = new HmacSha1();
+      } catch(GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private int lookup(byte[] key) throws GeneralSecurityException {
+      int hash = Arrays.hashCode(key);
+      int slot = (hash ^ (hash >>> 16)) & mask;
+      if(keys[slot] != null && hashes[slot] == hash && Arrays.equals(keys[slot], key)) {
+        return slot;
+      }
+      // clear out the old key first so a failed init can not leave a stale entry
+      keys[slot] = null;
+      pads[slot] = hmac.computePads(key);
+      if(macs[slot] != null) {
+        macs[slot].init(new SecretKeySpec(key, "HmacSHA1"));
+      }
+      keys[slot] = key.clone();
+      hashes[slot] = hash;
+      return slot;
+    }
+
+    HmacSha1 getHmac(byte[] key) throws GeneralSecurityException {
+      hmac.init(pads[lookup(key)]);
+      return hmac;
+    }
+
+    Mac getMac(byte[] key) throws GeneralSecurityException {
+      int slot = lookup(key);
+      Mac mac = macs[slot];
+      if(mac == null) {
+        mac = StunUtils.newIntegrityMac(key);
+        macs[slot] = mac;
+      } else {
+        mac.reset();
+      }
+      return mac;
+    }
+  }
+}
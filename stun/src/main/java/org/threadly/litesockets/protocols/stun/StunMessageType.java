@@ -1,22 +1,93 @@
 package org.threadly.litesockets.protocols.stun;
 
 public enum StunMessageType {
-    REQUEST(0x0001), 
-    SUCCESS(0x0101), 
-    FAILURE(0x0111), 
-    INDICATION(0x0011);
+    REQUEST(0x0001),
+    SUCCESS(0x0101),
+    FAILURE(0x0111),
+    INDICATION(0x0011),
+    // TURN, RFC 5766
+    ALLOCATE_REQUEST(0x0003),
+    ALLOCATE_SUCCESS(0x0103),
+    ALLOCATE_FAILURE(0x0113),
+    REFRESH_REQUEST(0x0004),
+    REFRESH_SUCCESS(0x0104),
+    REFRESH_FAILURE(0x0114),
+    SEND_INDICATION(0x0016),
+    DATA_INDICATION(0x0017),
+    CREATE_PERMISSION_REQUEST(0x0008),
+    CREATE_PERMISSION_SUCCESS(0x0108),
+    CREATE_PERMISSION_FAILURE(0x0118),
+    CHANNEL_BIND_REQUEST(0x0009),
+    CHANNEL_BIND_SUCCESS(0x0109),
+    CHANNEL_BIND_FAILURE(0x0119);
+
+    private static final int CLASS_MASK = 0x0110;
+    private static final StunMessageType[] VALUES = values();
 
     public final int bits;
     private StunMessageType(int bits) {
         this.bits = bits;
     }
 
+    public boolean isRequest() {
+        return (bits & CLASS_MASK) == 0;
+    }
+
+    public boolean isIndication() {
+        return (bits & CLASS_MASK) == 0x0010;
+    }
+
+    /**
+     * Returns {@code true} for both success and error responses.
+     *
+     * @return {@code true} if this is a response class message type.
+     */
+    public boolean isResponse() {
+        return (bits & 0x0100) != 0;
+    }
+
+    public boolean isError() {
+        return (bits & CLASS_MASK) == CLASS_MASK;
+    }
+
+    /**
+     * Returns the success response type for this types method, for example
+     * {@link #ALLOCATE_SUCCESS} for {@link #ALLOCATE_REQUEST}.
+     *
+     * @return the success response type.
+     */
+    public StunMessageType getSuccessType() {
+        return fromValue((bits & ~CLASS_MASK) | 0x0100);
+    }
+
+    /**
+     * Returns the error response type for this types method, for example
+     * {@link #ALLOCATE_FAILURE} for {@link #ALLOCATE_REQUEST}.
+     *
+     * @return the error response type.
+     */
+    public StunMessageType getErrorType() {
+        return fromValue(bits | CLASS_MASK);
+    }
+
     public static boolean isValidType(int bits) {
-        for(StunMessageType ty: StunMessageType.values()) {
+        return fromValueOrNull(bits) != null;
+    }
+
+    public static StunMessageType fromValue(int bits) {
+        StunMessageType type = fromValueOrNull(bits);
+        if(type == null) {
+            throw new IllegalStateException("stun parse error");
+        }
+        return type;
+    }
+
+    static StunMessageType fromValueOrNull(int bits) {
+        for(StunMessageType ty: VALUES) {
             if(ty.bits == bits) {
-                return true;
+                return ty;
             }
         }
-        return false;
+        return null;
     }
-}
\ No newline at end of file
+}
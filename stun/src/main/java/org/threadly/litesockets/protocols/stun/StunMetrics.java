@@ -0,0 +1,99 @@
+package org.threadly.litesockets.protocols.stun;
+
+/**
+ * Receives what the parsing, building and verifying paths of this package did and how long it
+ * took, installed with {@link StunUtils#setMetrics(StunMetrics)}.
+ * <p>
+ * The default is {@link #NO_OP}.  Every instrumented path first compares the installed metrics
+ * against it, and only reads the clock and calls out when something else is installed, so with
+ * metrics off the cost is one field read and a compare.  {@link StunMetricsRecorder} is a ready
+ * made implementation.
+ * <p>
+ * Methods are called on the thread doing the work, in the middle of packet handling, so they must
+ * be thread safe and cheap, and must never throw.  Durations are in nanoseconds.
+ */
+public interface StunMetrics {
+  /**
+   * Drops everything, installed when no metrics are wanted.
+   */
+  StunMetrics NO_OP = new StunMetrics() {
+    @Override
+    public void packetParsed(int messageType, long nanos) {
+      // metrics are off
+    }
+
+    @Override
+    public void attributeParsed(int attributeType) {
+      // metrics are off
+    }
+
+    @Override
+    public void parseFailed(StunValidationResult reason, long nanos) {
+      // metrics are off
+    }
+
+    @Override
+    public void packetBuilt(int messageType, long nanos) {
+      // metrics are off
+    }
+
+    @Override
+    public void integrityVerified(boolean valid, long nanos) {
+      // metrics are off
+    }
+
+    @Override
+    public void fingerprintVerified(boolean valid, long nanos) {
+      // metrics are off
+    }
+  };
+
+  /**
+   * Called once a {@link StunPacket} or {@link StunPacketDecoder} has validated and indexed a
+   * packet, followed by {@link #attributeParsed(int)} for each of its attributes.
+   *
+   * @param messageType the message type bits from the header, see {@link StunMessageType#bits}.
+   * @param nanos how long parsing took.
+   */
+  void packetParsed(int messageType, long nanos);
+
+  /**
+   * Called for every attribute of a parsed packet.
+   *
+   * @param attributeType the attribute type, see {@link StunAttribute#bits}.
+   */
+  void attributeParsed(int attributeType);
+
+  /**
+   * Called when a buffer failed to parse as a STUN packet.
+   *
+   * @param reason why it is not a valid packet.
+   * @param nanos how long it took to find out.
+   */
+  void parseFailed(StunValidationResult reason, long nanos);
+
+  /**
+   * Called once a packet has been encoded by a {@link StunPacketBuilder} or rewritten by a
+   * {@link BindingResponseWriter}.
+   *
+   * @param messageType the message type bits of the encoded packet.
+   * @param nanos how long encoding took, including signing it.
+   */
+  void packetBuilt(int messageType, long nanos);
+
+  /**
+   * Called for every MESSAGE-INTEGRITY that is checked against a key.
+   *
+   * @param valid {@code true} if the signature matched.
+   * @param nanos how long the check took.
+   */
+  void integrityVerified(boolean valid, long nanos);
+
+  /**
+   * Called for every FINGERPRINT that is checked.
+   *
+   * @param valid {@code true} if the fingerprint matched.
+   * @param nanos how long the check took.
+   */
+  void fingerprintVerified(boolean valid, long nanos);
+}
@@ -0,0 +1,107 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link StunMetrics} kept in striped {@link LongAdder} counters, per message type, attribute type
+ * and parse failure reason, and {@link LatencyHistogram}s for parsing, building and verifying.
+ * Recording never takes a lock or allocates, {@link #snapshot()} reads everything out.
+ * <pre>{@code
+ * StunMetricsRecorder recorder = new StunMetricsRecorder();
+ * StunUtils.setMetrics(recorder);
+ * ...
+ * recorder.snapshot().toMap().forEach(exporter::gauge);
+ * }</pre>
+ */
+public class StunMetricsRecorder implements StunMetrics {
+  private static final StunMessageType[] MESSAGE_TYPES = StunMessageType.values();
+  private static final StunAttribute[] ATTRIBUTES = StunAttribute.values();
+  private static final StunValidationResult[] RESULTS = StunValidationResult.values();
+
+  // by ordinal, with one more for types this package does not know
+  private final LongAdder[] parsed = newAdders(MESSAGE_TYPES.length + 1);
+  private final LongAdder[] built = newAdders(MESSAGE_TYPES.length + 1);
+  private final LongAdder[] attributes = newAdders(ATTRIBUTES.length);
+  private final LongAdder[] parseFailures = newAdders(RESULTS.length);
+  private final LongAdder integrityValid = new LongAdder();
+  private final LongAdder integrityInvalid = new LongAdder();
+  private final LongAdder fingerprintValid = new LongAdder();
+  private final LongAdder fingerprintInvalid = new LongAdder();
+  private final LatencyHistogram parseLatency = new LatencyHistogram();
+  private final LatencyHistogram buildLatency = new LatencyHistogram();
+  private final LatencyHistogram integrityLatency = new LatencyHistogram();
+  private final LatencyHistogram fingerprintLatency = new LatencyHistogram();
+
+  private static LongAdder[] newAdders(int count) {
+    LongAdder[] adders = new LongAdder[count];
+    for(int i=0; i<count; i++) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+
+  private static int typeIndex(int messageType) {
+    StunMessageType type = StunMessageType.fromValueOrNull(messageType);
+    return type == null ? MESSAGE_TYPES.length : type.ordinal();
+  }
+
+  @Override
+  public void packetParsed(int messageType, long nanos) {
+    parsed[typeIndex(messageType)].increment();
+    parseLatency.record(nanos);
+  }
+
+  @Override
+  public void attributeParsed(int attributeType) {
+    StunAttribute attribute = StunAttribute.fromValueOrNull(attributeType);
+    if(attribute != null) {
+      attributes[attribute.ordinal()].increment();
+    }
+  }
+
+  @Override
+  public void parseFailed(StunValidationResult reason, long nanos) {
+    parseFailures[reason.ordinal()].increment();
+    parseLatency.record(nanos);
+  }
+
+  @Override
+  public void packetBuilt(int messageType, long nanos) {
+    built[typeIndex(messageType)].increment();
+    buildLatency.record(nanos);
+  }
+
+  @Override
+  public void integrityVerified(boolean valid, long nanos) {
+    (valid ? integrityValid : integrityInvalid).increment();
+    integrityLatency.record(nanos);
+  }
+
+  @Override
+  public void fingerprintVerified(boolean valid, long nanos) {
+    (valid ? fingerprintValid : fingerprintInvalid).increment();
+    fingerprintLatency.record(nanos);
+  }
+
+  /**
+   * Reads out every counter and histogram.  Counters are read one by one while recording carries
+   * on, so the snapshot is not one exact point in time.
+   *
+   * @return the current values.
+   */
+  public StunMetricsSnapshot snapshot() {
+    return new StunMetricsSnapshot(sums(parsed), sums(built), sums(attributes), sums(parseFailures),
+                                   integrityValid.sum(), integrityInvalid.sum(),
+                                   fingerprintValid.sum(), fingerprintInvalid.sum(),
+                                   parseLatency.snapshot(), buildLatency.snapshot(),
+                                   integrityLatency.snapshot(), fingerprintLatency.snapshot());
+  }
+
+  private static long[] sums(LongAdder[] adders) {
+    long[] sums = new long[adders.length];
+    for(int i=0; i<adders.length; i++) {
+      sums[i] = adders[i].sum();
+    }
+    return sums;
+  }
+}
@@ -0,0 +1,168 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The values of a {@link StunMetricsRecorder} at one point in time, see
+ * {@link StunMetricsRecorder#snapshot()}.
+ */
+public class StunMetricsSnapshot {
+  private static final StunMessageType[] MESSAGE_TYPES = StunMessageType.values();
+  private static final StunAttribute[] ATTRIBUTES = StunAttribute.values();
+  private static final StunValidationResult[] RESULTS = StunValidationResult.values();
+
+  private final long[] parsed;
+  private final long[] built;
+  private final long[] attributes;
+  private final long[] parseFailures;
+  private final long integrityValid;
+  private final long integrityInvalid;
+  private final long fingerprintValid;
+  private final long fingerprintInvalid;
+  private final LatencyHistogram.Snapshot parseLatency;
+  private final LatencyHistogram.Snapshot buildLatency;
+  private final LatencyHistogram.Snapshot integrityLatency;
+  private final LatencyHistogram.Snapshot fingerprintLatency;
+
+  StunMetricsSnapshot(long[] parsed, long[] built, long[] attributes, long[] parseFailures,
+                      long integrityValid, long integrityInvalid, long fingerprintValid, long fingerprintInvalid,
+                      LatencyHistogram.Snapshot parseLatency, LatencyHistogram.Snapshot buildLatency,
+                      LatencyHistogram.Snapshot integrityLatency, LatencyHistogram.Snapshot fingerprintLatency) {
+    this.parsed = parsed;
+    this.built = built;
+    this.attributes = attributes;
+    this.parseFailures = parseFailures;
+    this.integrityValid = integrityValid;
+    this.integrityInvalid = integrityInvalid;
+    this.fingerprintValid = fingerprintValid;
+    this.fingerprintInvalid = fingerprintInvalid;
+    this.parseLatency = parseLatency;
+    this.buildLatency = buildLatency;
+    this.integrityLatency = integrityLatency;
+    this.fingerprintLatency = fingerprintLatency;
+  }
+
+  public long getParsedCount(StunMessageType type) {
+    return parsed[type.ordinal()];
+  }
+
+  /**
+   * Returns the number of valid packets parsed with a message type this package does not know.
+   *
+   * @return the count of unknown message types.
+   */
+  public long getUnknownTypeParsedCount() {
+    return parsed[MESSAGE_TYPES.length];
+  }
+
+  public long getBuiltCount(StunMessageType type) {
+    return built[type.ordinal()];
+  }
+
+  public long getAttributeCount(StunAttribute attribute) {
+    return attributes[attribute.ordinal()];
+  }
+
+  /**
+   * Returns how many buffers failed to parse for the reason.
+   *
+   * @param reason the reason, {@link StunValidationResult#VALID} is always 0.
+   * @return the count of failures.
+   */
+  public long getParseFailureCount(StunValidationResult reason) {
+    return parseFailures[reason.ordinal()];
+  }
+
+  public long getIntegrityValidCount() {
+    return integrityValid;
+  }
+
+  public long getIntegrityInvalidCount() {
+    return integrityInvalid;
+  }
+
+  public long getFingerprintValidCount() {
+    return fingerprintValid;
+  }
+
+  public long getFingerprintInvalidCount() {
+    return fingerprintInvalid;
+  }
+
+  /**
+   * Returns the parse latency, of both packets that parsed and ones that failed.
+   *
+   * @return the parse latency histogram.
+   */
+  public LatencyHistogram.Snapshot getParseLatency() {
+    return parseLatency;
+  }
+
+  public LatencyHistogram.Snapshot getBuildLatency() {
+    return buildLatency;
+  }
+
+  public LatencyHistogram.Snapshot getIntegrityLatency() {
+    return integrityLatency;
+  }
+
+  public LatencyHistogram.Snapshot getFingerprintLatency() {
+    return fingerprintLatency;
+  }
+
+  /**
+   * Flattens the snapshot into named values for exporting, for example {@code stun.parsed.REQUEST}
+   * or {@code stun.latency.parse.p99}.  Counters that are 0 are left out, latencies are in
+   * nanoseconds.
+   *
+   * @return the values by name, in a stable order.
+   */
+  public Map<String, Long> toMap() {
+    Map<String, Long> map = new LinkedHashMap<>();
+    for(StunMessageType type : MESSAGE_TYPES) {
+      putCount(map, "stun.parsed."+type.name(), parsed[type.ordinal()]);
+    }
+    putCount(map, "stun.parsed.UNKNOWN", parsed[MESSAGE_TYPES.length]);
+    for(StunMessageType type : MESSAGE_TYPES) {
+      putCount(map, "stun.built."+type.name(), built[type.ordinal()]);
+    }
+    putCount(map, "stun.built.UNKNOWN", built[MESSAGE_TYPES.length]);
+    for(StunAttribute attribute : ATTRIBUTES) {
+      putCount(map, "stun.attributes."+attribute.name(), attributes[attribute.ordinal()]);
+    }
+    for(StunValidationResult result : RESULTS) {
+      putCount(map, "stun.parse_failures."+result.name(), parseFailures[result.ordinal()]);
+    }
+    putCount(map, "stun.integrity.valid", integrityValid);
+    putCount(map, "stun.integrity.invalid", integrityInvalid);
+    putCount(map, "stun.fingerprint.valid", fingerprintValid);
+    putCount(map, "stun.fingerprint.invalid", fingerprintInvalid);
+    putLatency(map, "parse", parseLatency);
+    putLatency(map, "build", buildLatency);
+    putLatency(map, "integrity", integrityLatency);
+    putLatency(map, "fingerprint", fingerprintLatency);
+    return map;
+  }
+
+  private static void putCount(Map<String, Long> map, String name, long count) {
+    if(count != 0) {
+      map.put(name, count);
+    }
+  }
+
+  private static void putLatency(Map<String, Long> map, String name, LatencyHistogram.Snapshot latency) {
+    String prefix = "stun.latency."+name+".";
+    map.put(prefix+"count", latency.getCount());
+    map.put(prefix+"mean", Math.round(latency.getMean()));
+    map.put(prefix+"p50", latency.getPercentile(50));
+    map.put(prefix+"p99", latency.getPercentile(99));
+    map.put(prefix+"p999", latency.getPercentile(99.9));
+    map.put(prefix+"max", latency.getMax());
+  }
+
+  @Override
+  public String toString() {
+    return "StunMetricsSnapshot"+toMap();
+  }
+}
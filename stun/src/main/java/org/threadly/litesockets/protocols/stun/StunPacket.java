@@ -5,53 +5,145 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class StunPacket {
+  private static final int ATTRIBUTE_TYPES = StunAttribute.values().length;
+  private static final int INDEX_STRIDE = 3;
+  private static final int INITIAL_INDEX_SIZE = 8;
+
   private final ByteBuffer buf;
+  // per attribute, in packet order: type, value offset, value length
+  private int[] attrIndex;
+  private final int attrCount;
+  // first occurrence of each StunAttribute (by ordinal) as index+1 into attrIndex, 0 when not present
+  private final int[] attrLookup = new int[ATTRIBUTE_TYPES];
 
   public StunPacket(final ByteBuffer buf) throws StunProtocolException{
-    this.buf = buf.slice().asReadOnlyBuffer();
-    if(buf.getInt(4) != 0x2112a442) {
-      throw new StunProtocolException("Not a valid stun packet!");
+    // kept writable so heap packets can be read through their backing array, only read-only views are handed out
+    StunMetrics metrics = StunUtils.metrics;
+    long startNanos = metrics == StunMetrics.NO_OP ? 0 : System.nanoTime();
+    this.buf = buf.slice();
+    StunValidationResult result = StunUtils.validate(this.buf, 0, this.buf.remaining());
+    if(!result.isValid()) {
+      if(metrics != StunMetrics.NO_OP) {
+        metrics.parseFailed(result, System.nanoTime() - startNanos);
+      }
+      throw StunProtocolException.forResult(result);
     }
-    int size = buf.getShort(2)&0xffff;
-    if(buf.remaining() != size+20) {
-      throw new StunProtocolException("Not a valid stun packet or bad size!");
+    attrIndex = new int[Math.min((this.buf.remaining() - 20) / 4, INITIAL_INDEX_SIZE) * INDEX_STRIDE];
+    attrCount = indexAttributes();
+    if(metrics != StunMetrics.NO_OP) {
+      StunUtils.reportParsed(metrics, this.buf.getShort(0) & 0xffff, attrIndex, attrCount,
+                             System.nanoTime() - startNanos);
     }
-    checkAttributes(); 
   }
 
-  private void checkAttributes() throws StunProtocolException {
-    try {
-      ByteBuffer tmpbb = buf.duplicate();
-      tmpbb.position(20);
-      while(tmpbb.hasRemaining()) {
-        int type = tmpbb.getShort() & 0xffff;
-        int size = tmpbb.getShort() & 0xffff;
-        tmpbb.position((tmpbb.position() + size + 3) & ~3);
-        StunAttribute.fromValue(type);
+  /**
+   * Used to extend an already validated packet with one more attribute without walking the
+   * attributes again.  {@code nbb} must be this packet with the attribute appended at the end.
+   */
+  private StunPacket(StunPacket sp, ByteBuffer nbb, StunAttribute appended) {
+    this.buf = nbb.slice();
+    this.attrCount = sp.attrCount + 1;
+    this.attrIndex = Arrays.copyOf(sp.attrIndex, attrCount * INDEX_STRIDE);
+    System.arraycopy(sp.attrLookup, 0, attrLookup, 0, ATTRIBUTE_TYPES);
+    int pos = sp.buf.limit();
+    int idx = sp.attrCount * INDEX_STRIDE;
+    attrIndex[idx] = appended.bits;
+    attrIndex[idx + 1] = pos + 4;
+    attrIndex[idx + 2] = buf.getShort(pos + 2) & 0xffff;
+    if(attrLookup[appended.ordinal()] == 0) {
+      attrLookup[appended.ordinal()] = attrCount;
+    }
+  }
+
+  StunPacket withAppendedAttribute(ByteBuffer nbb, StunAttribute appended) {
+    return new StunPacket(this, nbb, appended);
+  }
+
+  // only called once the packet has been validated
+  private int indexAttributes() {
+    int count = 0;
+    int pos = 20;
+    int end = buf.limit();
+    while(pos < end) {
+      int type = buf.getShort(pos) & 0xffff;
+      int size = buf.getShort(pos + 2) & 0xffff;
+      int idx = count * INDEX_STRIDE;
+      if(idx == attrIndex.length) {
+        attrIndex = Arrays.copyOf(attrIndex, Math.max(INDEX_STRIDE, attrIndex.length * 2));
       }
-    } catch(Exception e) {
-      throw new StunProtocolException(e);
-    }
-  }
-
-  private ByteBuffer getAttribute(StunAttribute attr) {
-    ByteBuffer tmpbb = buf.duplicate();
-    tmpbb.position(20);
-    while(tmpbb.hasRemaining()) {
-      int type = tmpbb.getShort() & 0xffff;
-      int size = tmpbb.getShort() & 0xffff;
-      StunAttribute fa = StunAttribute.fromValue(type);
-      if(fa == attr) {
-        ByteBuffer bb = tmpbb.slice();
-        bb.limit(size);
-        return bb;
+      attrIndex[idx] = type;
+      attrIndex[idx + 1] = pos + 4;
+      attrIndex[idx + 2] = size;
+      count++;
+      int ordinal = StunAttribute.fromValueOrNull(type).ordinal();
+      if(attrLookup[ordinal] == 0) {
+        attrLookup[ordinal] = count;
       }
-      tmpbb.position((tmpbb.position() + size + 3) & ~3);
+      pos = (pos + 4 + size + 3) & ~3;
+    }
+    return count;
+  }
+
+  private ByteBuffer getAttributeValue(int attrNumber) {
+    int idx = attrNumber * INDEX_STRIDE;
+    ByteBuffer bb = buf.asReadOnlyBuffer();
+    bb.limit(attrIndex[idx + 1] + attrIndex[idx + 2]);
+    bb.position(attrIndex[idx + 1]);
+    return bb.slice();
+  }
+
+  private boolean hasAttributeValue(StunAttribute attr) {
+    int attrNumber = attrLookup[attr.ordinal()];
+    return attrNumber != 0 && attrIndex[(attrNumber - 1) * INDEX_STRIDE + 2] > 0;
+  }
+
+  /**
+   * Checks if the packet has an attribute of the given type, including attributes like
+   * USE-CANDIDATE that have no value.
+   *
+   * @param attr the attribute to look for.
+   * @return {@code true} if the attribute is present.
+   */
+  public boolean hasAttribute(StunAttribute attr) {
+    return attrLookup[attr.ordinal()] != 0;
+  }
+
+  /**
+   * Returns the internal buffer of the packet, starting at index 0.  This must never be modified
+   * or handed out, it is only for zero copy reads within this package.
+   */
+  ByteBuffer getBuffer() {
+    return buf;
+  }
+
+  /**
+   * Returns the offset of the value of the first attribute of the given type in
+   * {@link #getBuffer()}, or {@code -1} if the packet does not have that attribute.
+   */
+  int getAttributeOffset(StunAttribute attr) {
+    int attrNumber = attrLookup[attr.ordinal()];
+    if(attrNumber == 0) {
+      return -1;
     }
-    return StunUtils.EMPTY_BB;
+    return attrIndex[(attrNumber - 1) * INDEX_STRIDE + 1];
+  }
+
+  /**
+   * Returns a read-only view of the value of the first attribute of the given type.
+   *
+   * @param attr the attribute to look for.
+   * @return the value, or an empty buffer if the packet does not have the attribute.
+   */
+  public ByteBuffer getAttribute(StunAttribute attr) {
+    int attrNumber = attrLookup[attr.ordinal()];
+    if(attrNumber == 0) {
+      return StunUtils.EMPTY_BB;
+    }
+    return getAttributeValue(attrNumber - 1);
   }
 
   public ByteBuffer getBytes() {
@@ -59,15 +151,9 @@ public class StunPacket {
   }
   
   public List<StunAttribute> getAttributes() {
-    List<StunAttribute> sal = new ArrayList<>();
-    ByteBuffer tmpbb = buf.duplicate();
-    tmpbb.position(20);
-    while(tmpbb.hasRemaining()) {
-      int type = tmpbb.getShort() & 0xffff;
-      int size = tmpbb.getShort() & 0xffff;
-      StunAttribute fa = StunAttribute.fromValue(type);
-      sal.add(fa);
-      tmpbb.position((tmpbb.position() + size + 3) & ~3);
+    List<StunAttribute> sal = new ArrayList<>(attrCount);
+    for(int i=0; i<attrCount; i++) {
+      sal.add(StunAttribute.fromValue(attrIndex[i * INDEX_STRIDE]));
     }
     return sal;
   }
@@ -75,87 +161,183 @@ public class StunPacket {
   public StunPacketBuilder createBuilder() {
     StunPacketBuilder builder = new StunPacketBuilder();
     builder.setTxID(getTxID());
-    ByteBuffer tmpbb = buf.duplicate();
-    tmpbb.position(20);
-    while(tmpbb.hasRemaining()) {
-      int type = tmpbb.getShort() & 0xffff;
-      int size = tmpbb.getShort() & 0xffff;
-      StunAttribute fa = StunAttribute.fromValue(type);
-      ByteBuffer bb = tmpbb.slice();
-      bb.limit(size);
-      builder.setAttribute(fa, bb);
-      tmpbb.position((tmpbb.position() + size + 3) & ~3);
+    for(int i=0; i<attrCount; i++) {
+      builder.setAttribute(StunAttribute.fromValue(attrIndex[i * INDEX_STRIDE]), getAttributeValue(i));
     }
     return builder;
   }
 
   public StunMessageType getMessageType() {
-    switch(buf.getShort(0)) {
-    case 0x0001:
-      return StunMessageType.REQUEST;
-    case 0x0101:
-      return StunMessageType.SUCCESS;
-    case 0x0111:
-      return StunMessageType.FAILURE;
-    case 0x0011:
-      return StunMessageType.INDICATION;
-    default:
-      throw new IllegalStateException("stun parse error");
-    }
+    return StunMessageType.fromValue(buf.getShort(0) & 0xffff);
   }
 
   public TransactionID getTxID() {
-    byte[] ba = new byte[12];
-    ByteBuffer bb = buf.duplicate();
-    bb.position(8);
-    bb.get(ba);
-    return new TransactionID(ba);
+    return TransactionID.read(buf, 8);
   }
 
   public boolean hasAddress() {
-    return getAttribute(StunAttribute.MAPPED_ADDRESS).hasRemaining() || getAttribute(StunAttribute.XOR_MAPPED_ADDRESS).hasRemaining();
+    return hasAttributeValue(StunAttribute.MAPPED_ADDRESS) || hasAttributeValue(StunAttribute.XOR_MAPPED_ADDRESS);
   }
 
   public InetSocketAddress getAddress() {
-    boolean xor = false;
-    ByteBuffer bb = getAttribute(StunAttribute.MAPPED_ADDRESS);
-    byte family;
-    int port;
-    if(!bb.hasRemaining()) {
-      bb = getAttribute(StunAttribute.XOR_MAPPED_ADDRESS);
-      if(!bb.hasRemaining()) {
-        throw new IllegalStateException("No Mapped Address found!");
-      }
-      xor = true;
-      bb.get();
-      family = bb.get();
-      port = (bb.getShort() ^ StunUtils.STUN_SHORT_MAGIC) & 0xffff;
-    } else {
-      bb.get();
-      family = bb.get();
-      port = bb.getShort()&0xffff;
-    }
-
+    int family = getAddressFamily();
     byte[] addr;
     if(family == 1) {
       addr = new byte[4];
+      putBytes(addr, 0, getIPv4Address(), 4);
     } else if(family == 2) {
       addr = new byte[16];
+      putBytes(addr, 0, getIPv6AddressHigh(), 8);
+      putBytes(addr, 8, getIPv6AddressLow(), 8);
     } else {
       throw new IllegalArgumentException("Bad ip family!:"+family);
     }
-    bb.get(addr);
     try {
-      if(xor) {
-        return new InetSocketAddress(InetAddress.getByAddress(getTxID().unmaskAddress(addr)), port);
-      } else {
-        return new InetSocketAddress( InetAddress.getByAddress(addr), port);
-      }
+      return new InetSocketAddress(InetAddress.getByAddress(addr), getPort());
+    } catch(UnknownHostException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Decodes any of the address attributes, unmasking XOR-MAPPED-ADDRESS, XOR-PEER-ADDRESS and
+   * XOR-RELAYED-ADDRESS with this packet's transaction id.
+   *
+   * @param attr the address attribute to decode.
+   * @return the address.
+   * @throws IllegalStateException if the packet does not have a well formed attribute of that type.
+   */
+  public InetSocketAddress getAddress(StunAttribute attr) {
+    int attrNumber = attrLookup[attr.ordinal()];
+    if(attrNumber == 0) {
+      throw new IllegalStateException("No "+attr+" found!");
+    }
+    int idx = (attrNumber - 1) * INDEX_STRIDE;
+    int offset = attrIndex[idx + 1];
+    int family = attrIndex[idx + 2] < 4 ? 0 : buf.get(offset + 1);
+    int size = family == 1 ? 4 : 16;
+    if((family != 1 && family != 2) || attrIndex[idx + 2] < size + 4) {
+      throw new IllegalStateException("Bad "+attr+" found!");
+    }
+    byte[] addr = new byte[size];
+    for(int i=0; i<size; i++) {
+      addr[i] = buf.get(offset + 4 + i);
+    }
+    int port = buf.getShort(offset + 2) & 0xffff;
+    if(attr.isXorAddress()) {
+      port ^= StunUtils.STUN_SHORT_MAGIC;
+      addr = StunUtils.unmaskAddress(getTxID(), addr);
+    }
+    try {
+      return new InetSocketAddress(InetAddress.getByAddress(addr), port);
     } catch(UnknownHostException e) {
       throw new IllegalArgumentException(e);
     }
   }
 
+  private static void putBytes(byte[] ba, int offset, long value, int length) {
+    for(int i=length-1; i>=0; i--) {
+      ba[offset + i] = (byte)value;
+      value >>>= 8;
+    }
+  }
+
+  /**
+   * Returns the index into attrIndex of the mapped address, MAPPED-ADDRESS is preferred over
+   * XOR-MAPPED-ADDRESS.
+   */
+  private int findAddress() {
+    int attrNumber = attrLookup[StunAttribute.MAPPED_ADDRESS.ordinal()];
+    if(attrNumber == 0 || attrIndex[(attrNumber - 1) * INDEX_STRIDE + 2] == 0) {
+      attrNumber = attrLookup[StunAttribute.XOR_MAPPED_ADDRESS.ordinal()];
+    }
+    if(attrNumber == 0 || attrIndex[(attrNumber - 1) * INDEX_STRIDE + 2] < 8) {
+      throw new IllegalStateException("No Mapped Address found!");
+    }
+    return (attrNumber - 1) * INDEX_STRIDE;
+  }
+
+  private int findAddress(int family) {
+    int idx = findAddress();
+    int offset = attrIndex[idx + 1];
+    if(buf.get(offset + 1) != family || attrIndex[idx + 2] < (family == 1 ? 8 : 20)) {
+      throw new IllegalStateException("Mapped Address is not "+(family == 1 ? "IPv4" : "IPv6")+"!");
+    }
+    return idx;
+  }
+
+  /**
+   * Returns the address family of the mapped address, MAPPED-ADDRESS is preferred over
+   * XOR-MAPPED-ADDRESS, same as {@link #getAddress()}.
+   *
+   * @return {@code 1} for IPv4 or {@code 2} for IPv6.
+   */
+  public int getAddressFamily() {
+    return buf.get(attrIndex[findAddress() + 1] + 1);
+  }
+
+  /**
+   * Returns the port of the mapped address, unmasked if it came from XOR-MAPPED-ADDRESS.
+   *
+   * @return the port.
+   */
+  public int getPort() {
+    int idx = findAddress();
+    int port = buf.getShort(attrIndex[idx + 1] + 2) & 0xffff;
+    if(attrIndex[idx] == StunAttribute.XOR_MAPPED_ADDRESS.bits) {
+      port ^= StunUtils.STUN_SHORT_MAGIC;
+    }
+    return port;
+  }
+
+  /**
+   * Returns the IPv4 mapped address as a big endian int, unmasked if it came from
+   * XOR-MAPPED-ADDRESS.
+   *
+   * @return the address.
+   * @throws IllegalStateException if there is no IPv4 mapped address.
+   */
+  public int getIPv4Address() {
+    int idx = findAddress(1);
+    int addr = buf.getInt(attrIndex[idx + 1] + 4);
+    if(attrIndex[idx] == StunAttribute.XOR_MAPPED_ADDRESS.bits) {
+      addr ^= StunUtils.STUN_MAGIC;
+    }
+    return addr;
+  }
+
+  /**
+   * Returns the first 8 bytes of the IPv6 mapped address, unmasked if it came from
+   * XOR-MAPPED-ADDRESS.
+   *
+   * @return bytes 0-7 of the address.
+   * @throws IllegalStateException if there is no IPv6 mapped address.
+   */
+  public long getIPv6AddressHigh() {
+    int idx = findAddress(2);
+    long addr = buf.getLong(attrIndex[idx + 1] + 4);
+    if(attrIndex[idx] == StunAttribute.XOR_MAPPED_ADDRESS.bits) {
+      addr ^= ((long)StunUtils.STUN_MAGIC << 32) | (buf.getInt(8) & 0xffffffffL);
+    }
+    return addr;
+  }
+
+  /**
+   * Returns the last 8 bytes of the IPv6 mapped address, unmasked if it came from
+   * XOR-MAPPED-ADDRESS.
+   *
+   * @return bytes 8-15 of the address.
+   * @throws IllegalStateException if there is no IPv6 mapped address.
+   */
+  public long getIPv6AddressLow() {
+    int idx = findAddress(2);
+    long addr = buf.getLong(attrIndex[idx + 1] + 12);
+    if(attrIndex[idx] == StunAttribute.XOR_MAPPED_ADDRESS.bits) {
+      addr ^= buf.getLong(12);
+    }
+    return addr;
+  }
+
   public ByteBuffer getUsername() {
     ByteBuffer bb = getAttribute(StunAttribute.USERNAME);
     if(!bb.hasRemaining()) {
@@ -180,12 +362,22 @@ public class StunPacket {
     return bb;
   }
 
-  public boolean hasFingerPrint() {
-    ByteBuffer bb = getAttribute(StunAttribute.FINGERPRINT);
-    if(!bb.hasRemaining()) {
-      return false;
+  /**
+   * Returns the error code of an error response, for example {@code 401}.
+   *
+   * @return the error code.
+   * @throws IllegalStateException if there is no ERROR-CODE attribute.
+   */
+  public int getErrorCode() {
+    ByteBuffer bb = getAttribute(StunAttribute.ERROR_CODE);
+    if(bb.remaining() < 4) {
+      throw new IllegalStateException("No Error Code found!");
     }
-    return true;
+    return (bb.get(2) & 0x7) * 100 + (bb.get(3) & 0xff);
+  }
+
+  public boolean hasFingerPrint() {
+    return hasAttributeValue(StunAttribute.FINGERPRINT);
   }
 
   public int getFingerPrint() {
@@ -197,11 +389,7 @@ public class StunPacket {
   }
 
   public boolean hasMessageIntegerity() {
-    ByteBuffer bb = getAttribute(StunAttribute.MESSAGE_INTEGRITY);
-    if(!bb.hasRemaining()) {
-      return false;
-    }
-    return true;
+    return hasAttributeValue(StunAttribute.MESSAGE_INTEGRITY);
   }
 
   public ByteBuffer getMessageIntegerity() {
@@ -2,21 +2,29 @@ package org.threadly.litesockets.protocols.stun;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 public class StunPacketBuilder {
+  // marks the address attributes, which are kept as primitives and only encoded in writeTo
+  private static final ByteBuffer ADDRESS_VALUE = ByteBuffer.allocate(0);
+
   private StunMessageType type;
-  private TransactionID tid;
+  // the transaction id, kept as primitives so setting one does not allocate
+  private long tidHigh;
+  private int tidLow;
   private List<StunAttribute> attribs = new ArrayList<>();
   private List<ByteBuffer> attribBuffers = new ArrayList<>();
   private byte padding = 0x0;
   private boolean fingerprint = false;
   private byte[] key = null;
+  // by StunAttribute ordinal, created the first time an address attribute of that type is set
+  private final AddressValue[] addressValues = new AddressValue[StunAttribute.values().length];
 
   public StunPacketBuilder() {
     this.type = StunMessageType.REQUEST;
-    this.tid = StunUtils.generateTxID();
+    setTxID(StunUtils.generateTxID());
   }
 
   public StunPacketBuilder setType(final StunMessageType t) {
@@ -25,7 +33,19 @@ public class StunPacketBuilder {
   }
 
   public StunPacketBuilder setTxID(TransactionID txID) {
-    this.tid = txID;
+    return setTxID(txID.getHigh(), txID.getLow());
+  }
+
+  /**
+   * Sets the transaction id from its parts, without a {@link TransactionID}.
+   *
+   * @param high bytes 0-7 of the transaction id, big endian.
+   * @param low bytes 8-11 of the transaction id, big endian.
+   * @return this builder.
+   */
+  public StunPacketBuilder setTxID(long high, int low) {
+    this.tidHigh = high;
+    this.tidLow = low;
     return this;
   }
 
@@ -41,16 +61,6 @@ public class StunPacketBuilder {
     return this;
   }
 
-  private ByteBuffer makeHeader(int len) {
-    ByteBuffer header = ByteBuffer.allocate(20);
-    header.putShort((short)type.bits);
-    header.putShort((short)len); // length, to be filled in later
-    header.putInt(StunUtils.STUN_MAGIC);
-    header.put(tid.getByteBuffer());
-    header.position(0);
-    return header;
-  }
-
   public StunPacketBuilder clearAllAttributes() {
     attribs.clear();
     attribBuffers.clear();
@@ -81,70 +91,138 @@ public class StunPacketBuilder {
   }
 
   public StunPacketBuilder setMappedAddress(byte[] ip, int port) {
-    if(port > Short.MAX_VALUE*2) {
-      throw new IllegalArgumentException("BadPort number!");
-    }
-    int pos = -1;
-    for(int i=0; i<attribs.size(); i++) {
-      if(attribs.get(i).equals(StunAttribute.MAPPED_ADDRESS)) {
-        pos = i;
-        break;
-      }
-    }
-    if(pos >= 0) {
-      attribs.remove(pos);
-      attribBuffers.remove(pos);
-    }
+    return setAddress(StunAttribute.MAPPED_ADDRESS, ip, port);
+  }
 
-    ByteBuffer bb = ByteBuffer.allocate(8);
-    bb.put((byte)0); // reserved
-    if(ip.length == 16) {
-      bb.put((byte)2); // ipv6
-    } else {
-      bb.put((byte)1); // ipv4
-    }
-    bb.putShort((short)(port));
-    bb.put(ip);
-    bb.position(0);
-    setAttribute(StunAttribute.MAPPED_ADDRESS, bb);
-    return this;
+  /**
+   * Sets an IPv4 MAPPED-ADDRESS.
+   *
+   * @param ipv4 the address as a big endian int.
+   * @param port the port.
+   * @return this builder.
+   */
+  public StunPacketBuilder setMappedAddress(int ipv4, int port) {
+    return setAddress(StunAttribute.MAPPED_ADDRESS, 1, 0, ipv4, port);
+  }
+
+  /**
+   * Sets an IPv6 MAPPED-ADDRESS.
+   *
+   * @param ipv6High bytes 0-7 of the address.
+   * @param ipv6Low bytes 8-15 of the address.
+   * @param port the port.
+   * @return this builder.
+   */
+  public StunPacketBuilder setMappedAddress(long ipv6High, long ipv6Low, int port) {
+    return setAddress(StunAttribute.MAPPED_ADDRESS, 2, ipv6High, ipv6Low, port);
   }
 
   public StunPacketBuilder setXorMappedAddress(InetSocketAddress isa) {
+    return setXorAddress(StunAttribute.XOR_MAPPED_ADDRESS, isa);
+  }
+
+  public StunPacketBuilder setXorMappedAddress(byte[] ip, int port) {
+    return setAddress(StunAttribute.XOR_MAPPED_ADDRESS, ip, port);
+  }
+
+  /**
+   * Sets an IPv4 XOR-MAPPED-ADDRESS.  The address is masked when the packet is written, with the
+   * transaction id the builder has at that point.
+   *
+   * @param ipv4 the address as a big endian int.
+   * @param port the port.
+   * @return this builder.
+   */
+  public StunPacketBuilder setXorMappedAddress(int ipv4, int port) {
+    return setAddress(StunAttribute.XOR_MAPPED_ADDRESS, 1, 0, ipv4, port);
+  }
+
+  /**
+   * Sets an IPv6 XOR-MAPPED-ADDRESS.  The address is masked when the packet is written, with the
+   * transaction id the builder has at that point.
+   *
+   * @param ipv6High bytes 0-7 of the address.
+   * @param ipv6Low bytes 8-15 of the address.
+   * @param port the port.
+   * @return this builder.
+   */
+  public StunPacketBuilder setXorMappedAddress(long ipv6High, long ipv6Low, int port) {
+    return setAddress(StunAttribute.XOR_MAPPED_ADDRESS, 2, ipv6High, ipv6Low, port);
+  }
+
+  /**
+   * Sets one of the XOR masked address attributes, XOR-MAPPED-ADDRESS, XOR-PEER-ADDRESS or
+   * XOR-RELAYED-ADDRESS.  The address is masked when the packet is written, with the transaction
+   * id the builder has at that point.
+   *
+   * @param attr the address attribute to set.
+   * @param isa the address.
+   * @return this builder.
+   */
+  public StunPacketBuilder setXorAddress(StunAttribute attr, InetSocketAddress isa) {
+    if(!attr.isXorAddress()) {
+      throw new IllegalArgumentException(attr+" is not an XOR address attribute!");
+    }
     if(isa == null || isa.getAddress() == null) {
       throw new IllegalArgumentException("Address can not be null!");
     }
-    return setXorMappedAddress(isa.getAddress().getAddress(), isa.getPort());
+    return setAddress(attr, isa.getAddress().getAddress(), isa.getPort());
   }
 
-  public StunPacketBuilder setXorMappedAddress(byte[] ip, int port) {
-    if(port > Short.MAX_VALUE*2) {
+  private StunPacketBuilder setAddress(StunAttribute attr, byte[] ip, int port) {
+    ByteBuffer bb = ByteBuffer.wrap(ip);
+    if(ip.length == 4) {
+      return setAddress(attr, 1, 0, bb.getInt(0), port);
+    } else if(ip.length == 16) {
+      return setAddress(attr, 2, bb.getLong(0), bb.getLong(8), port);
+    }
+    throw new IllegalArgumentException("Bad ip address length:"+ip.length);
+  }
+
+  private StunPacketBuilder setAddress(StunAttribute attr, int family, long high, long low, int port) {
+    if(port < 0 || port > 0xffff) {
       throw new IllegalArgumentException("BadPort number!");
     }
-    int pos = -1;
+    AddressValue av = addressValues[attr.ordinal()];
+    if(av == null) {
+      av = new AddressValue();
+      addressValues[attr.ordinal()] = av;
+    }
     for(int i=0; i<attribs.size(); i++) {
-      if(attribs.get(i).equals(StunAttribute.XOR_MAPPED_ADDRESS)) {
-        pos = i;
+      if(attribs.get(i) == attr) {
+        attribs.remove(i);
+        attribBuffers.remove(i);
         break;
       }
     }
-    if(pos >= 0) {
-      attribs.remove(pos);
-      attribBuffers.remove(pos);
-    }
+    av.family = family;
+    av.high = high;
+    av.low = low;
+    av.port = port;
+    attribs.add(attr);
+    attribBuffers.add(ADDRESS_VALUE);
+    return this;
+  }
 
-    ByteBuffer bb = ByteBuffer.allocate(2+ip.length+2);
-    bb.put((byte)0); // reserved
-    if(ip.length == 16) {
-      bb.put((byte)2); // ipv6
-    } else {
-      bb.put((byte)1); // ipv4
+  /**
+   * Adds an ERROR-CODE attribute, for use with the error response message types.
+   *
+   * @param code the error code, from 300 to 699.
+   * @param reason the reason phrase.
+   * @return this builder.
+   */
+  public StunPacketBuilder setErrorCode(int code, String reason) {
+    if(code < 300 || code > 699) {
+      throw new IllegalArgumentException("Bad error code:"+code);
     }
-    bb.putShort((short)(port ^ StunUtils.STUN_SHORT_MAGIC));
-    bb.put(StunUtils.unmaskAddress(this.tid, ip));
-    bb.position(0);
-    setAttribute(StunAttribute.XOR_MAPPED_ADDRESS, bb);
-    return this;
+    byte[] phrase = reason.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer bb = ByteBuffer.allocate(4 + phrase.length);
+    bb.putShort((short)0);
+    bb.put((byte)(code / 100));
+    bb.put((byte)(code % 100));
+    bb.put(phrase);
+    bb.flip();
+    return setAttribute(StunAttribute.ERROR_CODE, bb);
   }
 
   public StunPacketBuilder setUsername(ByteBuffer username) {
@@ -157,30 +235,158 @@ public class StunPacketBuilder {
     return this;
   }
 
-  public StunPacket build() throws StunProtocolException {
+  /**
+   * Returns the exact number of bytes this packet will take once encoded, including the
+   * MESSAGE-INTEGRITY and FINGERPRINT attributes if they are enabled.
+   *
+   * @return the encoded size of the packet.
+   */
+  public int getEncodedSize() {
     int size = 20;
-    for(ByteBuffer bb: attribBuffers) {
-      size += bb.remaining() + 4;
+    for(int i=0; i<attribs.size(); i++) {
+      size += valueSize(i) + 4;
       size = (size + 3) & ~3;
     }
-    ByteBuffer bb = ByteBuffer.allocate(size);
-    bb.put(makeHeader(size - 20));
+    if(key != null) {
+      size += 24;
+    }
+    if(this.fingerprint) {
+      size += 8;
+    }
+    return size;
+  }
+
+  /**
+   * Encodes the packet directly into the provided buffer, starting at its current position.  The
+   * header and attributes are written once and MESSAGE-INTEGRITY and FINGERPRINT are computed in
+   * place over the written bytes, so no intermediate buffers are needed.  On return the buffers
+   * position is just past the end of the packet.
+   *
+   * @param dst the buffer to write the packet into, heap or direct.
+   * @return the number of bytes written.
+   * @throws StunProtocolException if the MESSAGE-INTEGRITY could not be computed.
+   */
+  public int writeTo(ByteBuffer dst) throws StunProtocolException {
+    StunMetrics metrics = StunUtils.metrics;
+    if(metrics == StunMetrics.NO_OP) {
+      return writePacket(dst);
+    }
+    long startNanos = System.nanoTime();
+    int size = writePacket(dst);
+    metrics.packetBuilt(type.bits, System.nanoTime() - startNanos);
+    return size;
+  }
+
+  private int writePacket(ByteBuffer dst) throws StunProtocolException {
+    int size = getEncodedSize();
+    if(dst.remaining() < size) {
+      throw new IllegalArgumentException("Not enough space in buffer, need:"+size+" have:"+dst.remaining());
+    }
+    int start = dst.position();
+    int unsignedSize = this.fingerprint ? size - 8 : size;
+    dst.putShort((short)type.bits);
+    dst.putShort((short)(unsignedSize - 20));
+    dst.putInt(StunUtils.STUN_MAGIC);
+    dst.putLong(tidHigh).putInt(tidLow);
     for(int i=0; i<attribs.size(); i++) {
-      bb.putShort((short)attribs.get(i).bits);
-      bb.putShort((short)attribBuffers.get(i).remaining());
-      bb.put(attribBuffers.get(i).duplicate());
-      while((bb.position() & 3) != 0) {
-        bb.put(padding);
+      ByteBuffer value = attribBuffers.get(i);
+      dst.putShort((short)attribs.get(i).bits);
+      dst.putShort((short)valueSize(i));
+      if(value == ADDRESS_VALUE) {
+        StunAttribute attr = attribs.get(i);
+        if(attr.isXorAddress()) {
+          addressValues[attr.ordinal()].writeXor(dst, tidHigh, tidLow);
+        } else {
+          addressValues[attr.ordinal()].write(dst);
+        }
+      } else if(value.hasArray()) {
+        dst.put(value.array(), value.arrayOffset() + value.position(), value.remaining());
+      } else {
+        dst.put(value.duplicate());
+      }
+      while(((dst.position() - start) & 3) != 0) {
+        dst.put(padding);
       }
     }
-    bb.flip();
     if(key != null) {
-      bb = StunUtils.addMessageIntegerity(new StunPacket(bb), key).getBytes();
+      StunIntegrityEngine.getDefault().writeMessageIntegerity(dst, start, key);
     }
     if(this.fingerprint) {
-      return StunUtils.addFingerPrint(new StunPacket(bb));
-    } else {
-      return new StunPacket(bb);
+      dst.putShort(start + 2, (short)(size - 20));
+      StunUtils.writeFingerPrint(dst, start);
+    }
+    return size;
+  }
+
+  private int valueSize(int i) {
+    ByteBuffer value = attribBuffers.get(i);
+    if(value == ADDRESS_VALUE) {
+      return addressValues[attribs.get(i).ordinal()].size();
+    }
+    return value.remaining();
+  }
+
+  /**
+   * Encodes the packet into a buffer from the pool, ready to send.  The caller owns the buffer and
+   * has to {@link StunBufferPool#release(ByteBuffer) release} it once it is sent, which can be
+   * done even if sending failed.
+   *
+   * @param pool the pool to take the buffer from.
+   * @return a buffer with the encoded packet between its position and limit.
+   * @throws StunProtocolException if the MESSAGE-INTEGRITY could not be computed, the buffer is
+   *         given back to the pool first.
+   */
+  public ByteBuffer encode(StunBufferPool pool) throws StunProtocolException {
+    ByteBuffer bb = pool.acquire(getEncodedSize());
+    try {
+      writeTo(bb);
+    } catch(StunProtocolException | RuntimeException e) {
+      pool.release(bb);
+      throw e;
+    }
+    bb.flip();
+    return bb;
+  }
+
+  public StunPacket build() throws StunProtocolException {
+    ByteBuffer bb = ByteBuffer.allocate(getEncodedSize());
+    writeTo(bb);
+    bb.flip();
+    return new StunPacket(bb);
+  }
+
+  private static class AddressValue {
+    private int family;
+    private int port;
+    private long high;
+    private long low;
+
+    int size() {
+      return family == 1 ? 8 : 20;
+    }
+
+    void write(ByteBuffer dst) {
+      dst.put((byte)0); // reserved
+      dst.put((byte)family);
+      dst.putShort((short)port);
+      if(family == 1) {
+        dst.putInt((int)low);
+      } else {
+        dst.putLong(high);
+        dst.putLong(low);
+      }
+    }
+
+    void writeXor(ByteBuffer dst, long tidHigh, int tidLow) {
+      dst.put((byte)0); // reserved
+      dst.put((byte)family);
+      dst.putShort((short)(port ^ StunUtils.STUN_SHORT_MAGIC));
+      if(family == 1) {
+        dst.putInt((int)low ^ StunUtils.STUN_MAGIC);
+      } else {
+        dst.putLong(TransactionID.xorIPv6High(high, tidHigh));
+        dst.putLong(TransactionID.xorIPv6Low(low, tidHigh, tidLow));
+      }
     }
   }
-}
\ No newline at end of file
+}
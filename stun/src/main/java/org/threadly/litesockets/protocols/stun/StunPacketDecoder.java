@@ -0,0 +1,345 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A mutable, reusable view over a STUN packet in a {@link ByteBuffer}.  Unlike {@link StunPacket}
+ * no copies or wrapper objects are made, {@link #wrap(ByteBuffer)} just validates the packet and
+ * indexes its attributes, and all accessors return primitives read straight from the buffer.
+ * <p>
+ * This is intended to be held by a single receive thread and re-wrapped over each packet that
+ * comes in.  It is not thread safe, and the wrapped buffer must not be changed while it is in use.
+ * <p>
+ * All attribute offsets are absolute indexes into the wrapped buffer.
+ */
+public class StunPacketDecoder {
+  public static final int NOT_FOUND = -1;
+  private static final int INDEX_STRIDE = 3;
+  private static final int INITIAL_ATTRIBUTES = 16;
+
+  private ByteBuffer buf = StunUtils.EMPTY_BB;
+  private int start;
+  private int length;
+  private boolean valid;
+  private StunValidationResult result = StunValidationResult.TOO_SHORT;
+  // per attribute, in packet order: type, absolute value offset, value length
+  private int[] attrIndex = new int[INITIAL_ATTRIBUTES * INDEX_STRIDE];
+  private int attrCount;
+
+  /**
+   * Wraps the decoder over the packet between the buffers position and limit.  The buffer's
+   * position and limit are not modified.
+   *
+   * @param bb the buffer containing exactly one stun packet.
+   * @return {@code true} if the buffer contains a valid stun packet, {@code false} otherwise.
+   */
+  public boolean wrap(ByteBuffer bb) {
+    buf = bb;
+    start = bb.position();
+    length = bb.remaining();
+    attrCount = 0;
+    StunMetrics metrics = StunUtils.metrics;
+    if(metrics == StunMetrics.NO_OP) {
+      result = indexAttributes();
+      valid = result == StunValidationResult.VALID;
+      return valid;
+    }
+    long startNanos = System.nanoTime();
+    result = indexAttributes();
+    valid = result == StunValidationResult.VALID;
+    if(valid) {
+      StunUtils.reportParsed(metrics, getMessageType(), attrIndex, attrCount, System.nanoTime() - startNanos);
+    } else {
+      metrics.parseFailed(result, System.nanoTime() - startNanos);
+    }
+    return valid;
+  }
+
+  /**
+   * Drops the reference to the currently wrapped buffer.
+   */
+  public void reset() {
+    buf = StunUtils.EMPTY_BB;
+    start = 0;
+    length = 0;
+    attrCount = 0;
+    valid = false;
+    result = StunValidationResult.TOO_SHORT;
+  }
+
+  private StunValidationResult indexAttributes() {
+    if(length < 20) {
+      return StunValidationResult.TOO_SHORT;
+    }
+    if(buf.getInt(start + 4) != StunUtils.STUN_MAGIC) {
+      return StunValidationResult.BAD_MAGIC_COOKIE;
+    }
+    if((buf.getShort(start + 2) & 0xffff) + 20 != length) {
+      return StunValidationResult.BAD_LENGTH;
+    }
+    int pos = start + 20;
+    int end = start + length;
+    while(pos < end) {
+      if(pos + 4 > end) {
+        return StunValidationResult.TRUNCATED_ATTRIBUTE;
+      }
+      int type = buf.getShort(pos) & 0xffff;
+      int size = buf.getShort(pos + 2) & 0xffff;
+      int next = pos + ((4 + size + 3) & ~3);
+      if(next > end) {
+        return StunValidationResult.TRUNCATED_ATTRIBUTE;
+      }
+      if(StunAttribute.fromValueOrNull(type) == null) {
+        return StunValidationResult.UNKNOWN_REQUIRED_ATTRIBUTE;
+      }
+      int idx = attrCount * INDEX_STRIDE;
+      if(idx == attrIndex.length) {
+        attrIndex = Arrays.copyOf(attrIndex, attrIndex.length * 2);
+      }
+      attrIndex[idx] = type;
+      attrIndex[idx + 1] = pos + 4;
+      attrIndex[idx + 2] = size;
+      attrCount++;
+      pos = next;
+    }
+    return StunValidationResult.VALID;
+  }
+
+  public boolean isValid() {
+    return valid;
+  }
+
+  /**
+   * Returns why the last {@link #wrap(ByteBuffer)} failed, or {@link StunValidationResult#VALID}.
+   *
+   * @return the result of validating the wrapped packet.
+   */
+  public StunValidationResult getValidationResult() {
+    return result;
+  }
+
+  public ByteBuffer getBuffer() {
+    return buf;
+  }
+
+  public int getOffset() {
+    return start;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Returns the full 16 bit message type, this can be compared against {@link StunMessageType#bits}.
+   *
+   * @return the message type of the packet.
+   */
+  public int getMessageType() {
+    return buf.getShort(start) & 0xffff;
+  }
+
+  public int getTxID0() {
+    return buf.getInt(start + 8);
+  }
+
+  public int getTxID1() {
+    return buf.getInt(start + 12);
+  }
+
+  public int getTxID2() {
+    return buf.getInt(start + 16);
+  }
+
+  /**
+   * Returns bytes 0-7 of the transaction id, as in {@link TransactionID#getHigh()}.
+   *
+   * @return the first 8 bytes of the transaction id.
+   */
+  public long getTxIDHigh() {
+    return buf.getLong(start + 8);
+  }
+
+  /**
+   * Returns bytes 8-11 of the transaction id, as in {@link TransactionID#getLow()}.
+   *
+   * @return the last 4 bytes of the transaction id.
+   */
+  public int getTxIDLow() {
+    return buf.getInt(start + 16);
+  }
+
+  public boolean isTxID(int tid0, int tid1, int tid2) {
+    return getTxID0() == tid0 && getTxID1() == tid1 && getTxID2() == tid2;
+  }
+
+  public int getAttributeCount() {
+    return attrCount;
+  }
+
+  public int getAttributeType(int attrNumber) {
+    return attrIndex[attrNumber * INDEX_STRIDE];
+  }
+
+  public int getAttributeOffset(int attrNumber) {
+    return attrIndex[attrNumber * INDEX_STRIDE + 1];
+  }
+
+  public int getAttributeLength(int attrNumber) {
+    return attrIndex[attrNumber * INDEX_STRIDE + 2];
+  }
+
+  /**
+   * Finds the first attribute of the given type.
+   *
+   * @param type the attribute type to look for.
+   * @return the attribute number to use with the other attribute accessors or {@link #NOT_FOUND}.
+   */
+  public int findAttribute(int type) {
+    for(int i = 0; i < attrCount; i++) {
+      if(attrIndex[i * INDEX_STRIDE] == type) {
+        return i;
+      }
+    }
+    return NOT_FOUND;
+  }
+
+  public int findAttribute(StunAttribute sa) {
+    return findAttribute(sa.bits);
+  }
+
+  public boolean hasAttribute(StunAttribute sa) {
+    return findAttribute(sa.bits) != NOT_FOUND;
+  }
+
+  /**
+   * Returns the absolute offset of the value of the first attribute of the given type.
+   *
+   * @param sa the attribute to look for.
+   * @return the offset of the value in the buffer or {@link #NOT_FOUND}.
+   */
+  public int getAttributeOffset(StunAttribute sa) {
+    int attrNumber = findAttribute(sa.bits);
+    if(attrNumber == NOT_FOUND) {
+      return NOT_FOUND;
+    }
+    return getAttributeOffset(attrNumber);
+  }
+
+  public int getFingerPrint() {
+    int attrNumber = findAttribute(StunAttribute.FINGERPRINT.bits);
+    if(attrNumber == NOT_FOUND || getAttributeLength(attrNumber) < 4) {
+      throw new IllegalStateException("No Fingerprint found!");
+    }
+    return buf.getInt(getAttributeOffset(attrNumber));
+  }
+
+  public int getPriority() {
+    int attrNumber = findAttribute(StunAttribute.PRIORITY.bits);
+    if(attrNumber == NOT_FOUND || getAttributeLength(attrNumber) < 4) {
+      throw new IllegalStateException("No Priority found!");
+    }
+    return buf.getInt(getAttributeOffset(attrNumber));
+  }
+
+  /**
+   * Returns the attribute number of the mapped address, MAPPED-ADDRESS is preferred over
+   * XOR-MAPPED-ADDRESS.  The attribute is checked to be long enough for its family, so the
+   * accessors never read past it.
+   */
+  private int findMappedAddress() {
+    int attrNumber = findAttribute(StunAttribute.MAPPED_ADDRESS.bits);
+    if(attrNumber == NOT_FOUND) {
+      attrNumber = findAttribute(StunAttribute.XOR_MAPPED_ADDRESS.bits);
+      if(attrNumber == NOT_FOUND) {
+        throw new IllegalStateException("No Mapped Address found!");
+      }
+    }
+    int length = getAttributeLength(attrNumber);
+    int family = length < 8 ? 0 : buf.get(getAttributeOffset(attrNumber) + 1);
+    if(!(family == 1 || (family == 2 && length >= 20))) {
+      throw new IllegalStateException("Bad Mapped Address found!");
+    }
+    return attrNumber;
+  }
+
+  private int findMappedAddress(int family) {
+    int attrNumber = findMappedAddress();
+    if(buf.get(getAttributeOffset(attrNumber) + 1) != family) {
+      throw new IllegalStateException("Mapped Address is not "+(family == 1 ? "IPv4" : "IPv6")+"!");
+    }
+    return attrNumber;
+  }
+
+  public boolean hasAddress() {
+    return findAttribute(StunAttribute.MAPPED_ADDRESS.bits) != NOT_FOUND ||
+        findAttribute(StunAttribute.XOR_MAPPED_ADDRESS.bits) != NOT_FOUND;
+  }
+
+  /**
+   * Returns the address family of the mapped address, MAPPED_ADDRESS is preferred over
+   * XOR_MAPPED_ADDRESS, same as {@link StunPacket#getAddress()}.
+   *
+   * @return {@code 1} for IPv4 or {@code 2} for IPv6.
+   */
+  public int getAddressFamily() {
+    return buf.get(getAttributeOffset(findMappedAddress()) + 1);
+  }
+
+  public int getPort() {
+    int attrNumber = findMappedAddress();
+    int port = buf.getShort(getAttributeOffset(attrNumber) + 2) & 0xffff;
+    if(getAttributeType(attrNumber) == StunAttribute.XOR_MAPPED_ADDRESS.bits) {
+      port ^= StunUtils.STUN_SHORT_MAGIC;
+    }
+    return port;
+  }
+
+  public int getIPv4Address() {
+    int attrNumber = findMappedAddress(1);
+    int offset = getAttributeOffset(attrNumber);
+    int addr = buf.getInt(offset + 4);
+    if(getAttributeType(attrNumber) == StunAttribute.XOR_MAPPED_ADDRESS.bits) {
+      addr ^= StunUtils.STUN_MAGIC;
+    }
+    return addr;
+  }
+
+  public long getIPv6AddressHigh() {
+    int attrNumber = findMappedAddress(2);
+    int offset = getAttributeOffset(attrNumber);
+    long addr = buf.getLong(offset + 4);
+    if(getAttributeType(attrNumber) == StunAttribute.XOR_MAPPED_ADDRESS.bits) {
+      addr ^= ((long)StunUtils.STUN_MAGIC << 32) | (getTxID0() & 0xffffffffL);
+    }
+    return addr;
+  }
+
+  public long getIPv6AddressLow() {
+    int attrNumber = findMappedAddress(2);
+    int offset = getAttributeOffset(attrNumber);
+    long addr = buf.getLong(offset + 12);
+    if(getAttributeType(attrNumber) == StunAttribute.XOR_MAPPED_ADDRESS.bits) {
+      addr ^= buf.getLong(start + 12);
+    }
+    return addr;
+  }
+
+  /**
+   * Creates a {@link StunPacket} from the currently wrapped packet.  This allocates and should
+   * only be used once a packet needs to leave the receive path.
+   *
+   * @return a new {@link StunPacket} of the wrapped packet.
+   * @throws StunProtocolException if the wrapped packet is not valid.
+   */
+  public StunPacket toStunPacket() throws StunProtocolException {
+    if(!valid) {
+      throw StunProtocolException.forResult(result);
+    }
+    ByteBuffer bb = buf.duplicate();
+    bb.limit(start + length);
+    bb.position(start);
+    return new StunPacket(bb);
+  }
+}
@@ -1,16 +1,67 @@
 package org.threadly.litesockets.protocols.stun;
 
+import java.util.EnumMap;
+import java.util.Map;
+
 public class StunProtocolException extends Exception {
 
   private static final long serialVersionUID = 9152822370299419342L;
+  private static final Map<StunValidationResult, StunProtocolException> STACKLESS = new EnumMap<>(StunValidationResult.class);
+  private static volatile boolean stackless = Boolean.getBoolean("litesockets.stun.stacklessExceptions");
+
+  static {
+    for(StunValidationResult r: StunValidationResult.values()) {
+      STACKLESS.put(r, new StunProtocolException(r, false));
+    }
+  }
+
+  private final StunValidationResult validationResult;
 
   StunProtocolException(Throwable t) {
     super(t);
+    validationResult = null;
   }
   StunProtocolException(String msg) {
     super(msg);
+    validationResult = null;
   }
   StunProtocolException(String msg, Throwable t) {
     super(msg, t);
+    validationResult = null;
+  }
+  private StunProtocolException(StunValidationResult result, boolean writableStackTrace) {
+    super(result.getMessage(), null, writableStackTrace, writableStackTrace);
+    validationResult = result;
+  }
+
+  /**
+   * Switches packet validation failures to shared exceptions without stack traces, so malformed
+   * traffic costs about as much to reject as well formed traffic costs to parse.  Can also be
+   * turned on with the {@code litesockets.stun.stacklessExceptions} system property.
+   *
+   * @param enabled {@code true} to throw stackless exceptions for validation failures.
+   */
+  public static void setStacklessValidationErrors(boolean enabled) {
+    stackless = enabled;
+  }
+
+  public static boolean isStacklessValidationErrors() {
+    return stackless;
+  }
+
+  static StunProtocolException forResult(StunValidationResult result) {
+    if(stackless) {
+      return STACKLESS.get(result);
+    }
+    return new StunProtocolException(result, true);
+  }
+
+  /**
+   * Returns why the packet was rejected, if this was thrown for a packet that failed validation.
+   *
+   * @return the validation failure, or {@code null} if this was thrown for another reason.
+   */
+  public StunValidationResult getValidationResult() {
+    return validationResult;
   }
 }
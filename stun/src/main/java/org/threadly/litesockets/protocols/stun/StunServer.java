@@ -0,0 +1,305 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A STUN binding server built on blocking NIO {@link DatagramChannel}s.
+ * <p>
+ * Each worker thread owns its direct receive buffer and {@link StunPacketDecoder}, and responses
+ * are written over the request in the receive buffer by a {@link BindingResponseWriter}.  When the
+ * JVM supports SO_REUSEPORT every worker also gets its own socket bound to the same address, so the
+ * kernel shards datagrams across the workers.  Otherwise all workers share one socket.
+ * <p>
+ * Binding requests are answered with XOR-MAPPED-ADDRESS and FINGERPRINT.  If a {@link KeyLookup} is
+ * set, requests must carry a USERNAME and a valid MESSAGE-INTEGRITY for that user, and the
+ * response is signed with the same key.  Anything else, including requests that fail
+ * authentication, is dropped without a response.
+ * <p>
+ * If a {@link SourceRateLimiter} is set, every datagram is checked against it by source address
+ * before it is parsed, and sources over their rate are dropped.
+ */
+public class StunServer {
+  public static final int DEFAULT_BUFFER_SIZE = 1500;
+  private static final SocketOption<Boolean> SO_REUSEPORT = findReusePort();
+
+  private final InetSocketAddress bindAddress;
+  private final int workerCount;
+  private final List<DatagramChannel> channels = new ArrayList<>();
+  private final List<Thread> workers = new ArrayList<>();
+  private final LongAdder responsesSent = new LongAdder();
+  private final LongAdder packetsDropped = new LongAdder();
+  private final LongAdder packetsRateLimited = new LongAdder();
+  private volatile boolean running = false;
+  private volatile InetSocketAddress localAddress;
+  private volatile KeyLookup keyLookup = null;
+  private volatile SourceRateLimiter rateLimiter = null;
+  private volatile boolean fingerprint = true;
+
+  /**
+   * Creates a server that will listen on {@code bindAddress} with the given number of worker
+   * threads once {@link #start()} is called.
+   *
+   * @param bindAddress the address to listen on, port 0 picks an ephemeral port.
+   * @param workerCount the number of receive threads to use.
+   */
+  public StunServer(InetSocketAddress bindAddress, int workerCount) {
+    if(bindAddress == null) {
+      throw new IllegalArgumentException("Address can not be null!");
+    }
+    if(workerCount < 1) {
+      throw new IllegalArgumentException("Must have at least 1 worker!");
+    }
+    this.bindAddress = bindAddress;
+    this.workerCount = workerCount;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> findReusePort() {
+    try {
+      // only available from java 9
+      Field f = StandardSocketOptions.class.getField("SO_REUSEPORT");
+      return (SocketOption<Boolean>)f.get(null);
+    } catch(NoSuchFieldException | IllegalAccessException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Requires MESSAGE-INTEGRITY on binding requests, looking up the key by the USERNAME in the
+   * request.  Setting {@code null} disables authentication.
+   *
+   * @param keyLookup the lookup for short-term credential keys.
+   * @return this server.
+   */
+  public StunServer setKeyLookup(KeyLookup keyLookup) {
+    this.keyLookup = keyLookup;
+    return this;
+  }
+
+  /**
+   * Limits how fast each source address can get responses, to keep the server from being used
+   * to reflect traffic.  Setting {@code null} disables rate limiting.
+   *
+   * @param rateLimiter the limiter to check every datagram against.
+   * @return this server.
+   */
+  public StunServer setRateLimiter(SourceRateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+    return this;
+  }
+
+  public StunServer enableFingerPrint() {
+    fingerprint = true;
+    return this;
+  }
+
+  public StunServer disableFingerPrint() {
+    fingerprint = false;
+    return this;
+  }
+
+  /**
+   * Binds the sockets and starts the worker threads.
+   *
+   * @throws IOException if the sockets could not be opened or bound.
+   */
+  public synchronized void start() throws IOException {
+    if(running) {
+      throw new IllegalStateException("Server already running!");
+    }
+    StandardProtocolFamily family = bindAddress.getAddress() instanceof Inet6Address ?
+        StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+    try {
+      DatagramChannel first = openChannel(family, bindAddress);
+      localAddress = (InetSocketAddress)first.getLocalAddress();
+      boolean sharded = SO_REUSEPORT != null && first.supportedOptions().contains(SO_REUSEPORT);
+      for(int i=0; i<workerCount; i++) {
+        DatagramChannel channel = first;
+        if(sharded && i > 0) {
+          channel = openChannel(family, localAddress);
+        }
+        final DatagramChannel workerChannel = channel;
+        Thread t = new Thread(() -> runWorker(workerChannel), "StunServer-"+localAddress.getPort()+"-"+i);
+        t.setDaemon(true);
+        workers.add(t);
+      }
+    } catch(IOException e) {
+      closeChannels();
+      workers.clear();
+      throw e;
+    }
+    running = true;
+    for(Thread t: workers) {
+      t.start();
+    }
+  }
+
+  private DatagramChannel openChannel(StandardProtocolFamily family, InetSocketAddress address) throws IOException {
+    DatagramChannel channel = DatagramChannel.open(family);
+    channels.add(channel);
+    if(SO_REUSEPORT != null && channel.supportedOptions().contains(SO_REUSEPORT)) {
+      channel.setOption(SO_REUSEPORT, true);
+    }
+    channel.configureBlocking(true);
+    channel.bind(address);
+    return channel;
+  }
+
+  /**
+   * Closes the sockets and waits for the worker threads to exit.
+   */
+  public synchronized void stop() {
+    running = false;
+    closeChannels();
+    for(Thread t: workers) {
+      try {
+        t.join();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    workers.clear();
+  }
+
+  private void closeChannels() {
+    for(DatagramChannel channel: channels) {
+      try {
+        channel.close();
+      } catch(IOException e) {
+        // nothing we can do
+      }
+    }
+    channels.clear();
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Returns the address the server is listening on, only valid once started.
+   *
+   * @return the bound address.
+   */
+  public InetSocketAddress getLocalAddress() {
+    return localAddress;
+  }
+
+  public long getResponsesSent() {
+    return responsesSent.sum();
+  }
+
+  public long getPacketsDropped() {
+    return packetsDropped.sum();
+  }
+
+  public long getPacketsRateLimited() {
+    return packetsRateLimited.sum();
+  }
+
+  private void runWorker(DatagramChannel channel) {
+    Worker worker = new Worker(channel);
+    while(running) {
+      try {
+        worker.receive();
+      } catch(ClosedChannelException e) {
+        break;
+      } catch(IOException | RuntimeException e) {
+        // a single bad packet or send failure should not kill the worker
+        packetsDropped.increment();
+      }
+    }
+  }
+
+  private class Worker {
+    private final DatagramChannel channel;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+    // reused view handed to the KeyLookup
+    private final ByteBuffer username = receiveBuffer.asReadOnlyBuffer();
+    private final StunPacketDecoder decoder = new StunPacketDecoder();
+    private final StunIntegrityEngine integrity = StunIntegrityEngine.getDefault();
+    private final BindingResponseWriter responseWriter = new BindingResponseWriter(integrity);
+
+    Worker(DatagramChannel channel) {
+      this.channel = channel;
+    }
+
+    void receive() throws IOException {
+      receiveBuffer.clear();
+      SocketAddress from = channel.receive(receiveBuffer);
+      if(from == null) {
+        return;
+      }
+      SourceRateLimiter limiter = rateLimiter;
+      if(limiter != null && !limiter.tryAcquire((InetSocketAddress)from)) {
+        packetsRateLimited.increment();
+        return;
+      }
+      receiveBuffer.flip();
+      if(!decoder.wrap(receiveBuffer) || decoder.getMessageType() != StunMessageType.REQUEST.bits) {
+        packetsDropped.increment();
+        return;
+      }
+      byte[] key = null;
+      KeyLookup kl = keyLookup;
+      if(kl != null) {
+        key = authenticate(kl);
+        if(key == null) {
+          packetsDropped.increment();
+          return;
+        }
+      }
+      // the response is written over the request, which is always large enough to hold it
+      try {
+        responseWriter.rewrite(decoder, (InetSocketAddress)from, key, fingerprint);
+      } catch(StunProtocolException e) {
+        packetsDropped.increment();
+        return;
+      }
+      channel.send(receiveBuffer, from);
+      responsesSent.increment();
+    }
+
+    private byte[] authenticate(KeyLookup kl) {
+      int userAttr = decoder.findAttribute(StunAttribute.USERNAME);
+      if(userAttr == StunPacketDecoder.NOT_FOUND || !decoder.hasAttribute(StunAttribute.MESSAGE_INTEGRITY)) {
+        return null;
+      }
+      username.limit(decoder.getAttributeOffset(userAttr) + decoder.getAttributeLength(userAttr));
+      username.position(decoder.getAttributeOffset(userAttr));
+      byte[] key = kl.getKey(username);
+      if(key == null || !integrity.verifyMessageIntegerity(decoder, key)) {
+        return null;
+      }
+      return key;
+    }
+  }
+
+  /**
+   * Looks up the short-term credential key for a USERNAME.
+   */
+  public interface KeyLookup {
+    /**
+     * Returns the key for the user, or {@code null} if the user is not known.  The buffer is only
+     * valid for the duration of the call.
+     *
+     * @param username the USERNAME attribute value of the request.
+     * @return the key to verify and sign with, or {@code null}.
+     */
+    byte[] getKey(ByteBuffer username);
+  }
+}
@@ -0,0 +1,235 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a TCP or TLS byte stream back into the messages sent on it, from reads of any size.
+ * <p>
+ * With {@link Framing#STUN} (TURN over TCP, RFC 5766 section 2.1) each message is found by its own
+ * header, a STUN message is 20 bytes plus the length in its header, and a ChannelData message is
+ * 4 bytes plus its length padded to 4 (RFC 5766 section 11.5).  The padding is not handed out.
+ * With {@link Framing#RFC4571} (ICE-TCP, RFC 6544) every message is prefixed with a 2 byte length,
+ * and only the message after the prefix is handed out, so it can carry STUN, DTLS or RTP.
+ * <p>
+ * A message that is all in one read is handed to the {@link Listener} as the read buffer itself,
+ * with its position and limit set around the message, so nothing is copied or allocated.  Only a
+ * message that is split across reads is copied, into a buffer from a {@link StunBufferPool} that
+ * is kept and grown as needed until {@link #close()}.
+ * <p>
+ * One decoder is for one connection, it is not thread safe.
+ */
+public class StunStreamDecoder {
+  private static final int STUN_HEADER_SIZE = 20;
+  private static final int CHANNEL_DATA_HEADER_SIZE = 4;
+  private static final int MIN_PENDING_SIZE = 64;
+
+  private final Framing framing;
+  private final StunBufferPool pool;
+  private final Listener listener;
+  // holds a message split across reads, position is how much of it has arrived
+  private ByteBuffer pending;
+  // size of the pending frame, or -1 until enough of its header has arrived
+  private int frameSize = -1;
+  private int messageStart;
+  private int messageSize;
+
+  public StunStreamDecoder(Framing framing, Listener listener) {
+    this(framing, DirectBufferPool.getDefault(), listener);
+  }
+
+  /**
+   * Creates a decoder for one connection.
+   *
+   * @param framing how messages are framed on the stream.
+   * @param pool the pool to take the buffer for split messages from.
+   * @param listener receives each message.
+   */
+  public StunStreamDecoder(Framing framing, StunBufferPool pool, Listener listener) {
+    if(framing == null || pool == null || listener == null) {
+      throw new IllegalArgumentException("Framing, pool and listener can not be null!");
+    }
+    this.framing = framing;
+    this.pool = pool;
+    this.listener = listener;
+  }
+
+  public Framing getFraming() {
+    return framing;
+  }
+
+  /**
+   * Returns how many bytes of a message split across reads are held until the rest arrives.
+   *
+   * @return the number of buffered bytes.
+   */
+  public int getBufferedBytes() {
+    return pending == null ? 0 : pending.position();
+  }
+
+  /**
+   * Decodes the bytes of a read, handing each complete message to the {@link Listener} in order.
+   * All bytes between the position and limit are consumed, on return the position is the limit.
+   * <p>
+   * Once this throws the stream can not be trusted to be in sync any more and the connection
+   * should be closed.
+   *
+   * @param data the bytes read from the connection.
+   * @return the number of messages handed to the listener.
+   * @throws StunProtocolException if the stream holds something that is not a framed message.
+   */
+  public int feed(ByteBuffer data) throws StunProtocolException {
+    int messages = 0;
+    while(data.hasRemaining()) {
+      if(getBufferedBytes() > 0) {
+        if(fillPending(data)) {
+          messages++;
+        }
+        continue;
+      }
+      int start = data.position();
+      int end = data.limit();
+      int size = end - start < framing.headerSize ? -1 : readFrame(data, start);
+      if(size < 0 || end - start < size) {
+        frameSize = size;
+        fillPending(data);
+        continue;
+      }
+      if(messageSize > 0) {
+        data.limit(start + messageStart + messageSize).position(start + messageStart);
+        try {
+          listener.onMessage(data);
+        } finally {
+          data.limit(end).position(start + size);
+        }
+        messages++;
+      } else {
+        data.position(start + size);
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Drops any partly received message and gives the buffer for split messages back to the pool.
+   */
+  public void close() {
+    if(pending != null) {
+      pool.release(pending);
+      pending = null;
+    }
+    frameSize = -1;
+  }
+
+  /**
+   * Copies as much of the pending frame as is in {@code data}, and hands it to the listener once
+   * it is complete.
+   */
+  private boolean fillPending(ByteBuffer data) throws StunProtocolException {
+    if(frameSize < 0) {
+      ensurePending(framing.headerSize);
+      copy(data, framing.headerSize - pending.position());
+      if(pending.position() < framing.headerSize) {
+        return false;
+      }
+      frameSize = readFrame(pending, 0);
+    }
+    ensurePending(frameSize);
+    copy(data, frameSize - pending.position());
+    if(pending.position() < frameSize) {
+      return false;
+    }
+    pending.limit(messageStart + messageSize).position(messageStart);
+    try {
+      if(messageSize > 0) {
+        listener.onMessage(pending);
+      }
+    } finally {
+      pending.clear();
+      frameSize = -1;
+    }
+    return messageSize > 0;
+  }
+
+  private void ensurePending(int size) {
+    if(pending == null) {
+      pending = pool.acquire(Math.max(size, MIN_PENDING_SIZE));
+      pending.clear();
+    } else if(pending.capacity() < size) {
+      ByteBuffer bigger = pool.acquire(size);
+      bigger.clear();
+      pending.flip();
+      bigger.put(pending);
+      pool.release(pending);
+      pending = bigger;
+    }
+  }
+
+  private void copy(ByteBuffer data, int count) {
+    if(data.remaining() <= count) {
+      pending.put(data);
+    } else {
+      int limit = data.limit();
+      data.limit(data.position() + count);
+      pending.put(data);
+      data.limit(limit);
+    }
+  }
+
+  /**
+   * Reads the header of the frame starting at {@code start}, setting where the message is within
+   * the frame.
+   *
+   * @return the size of the whole frame, header and padding included.
+   */
+  private int readFrame(ByteBuffer buf, int start) throws StunProtocolException {
+    if(framing == Framing.RFC4571) {
+      messageStart = 2;
+      messageSize = buf.getShort(start) & 0xffff;
+      return 2 + messageSize;
+    }
+    int first = buf.get(start) & 0xc0;
+    int length = buf.getShort(start + 2) & 0xffff;
+    messageStart = 0;
+    if(first == 0) {
+      if((length & 3) != 0) {
+        throw new StunProtocolException("STUN message length not a multiple of 4: "+length);
+      }
+      messageSize = STUN_HEADER_SIZE + length;
+      return messageSize;
+    } else if(first == 0x40) {
+      messageSize = CHANNEL_DATA_HEADER_SIZE + length;
+      return (messageSize + 3) & ~3;
+    }
+    throw new StunProtocolException("Not a STUN or ChannelData message, first byte: "+(buf.get(start) & 0xff));
+  }
+
+  /**
+   * How messages are delimited on the stream.
+   */
+  public enum Framing {
+    /** STUN and ChannelData messages back to back, as TURN over TCP or TLS sends them. */
+    STUN(CHANNEL_DATA_HEADER_SIZE),
+    /** Every message prefixed with a 2 byte length, as ICE-TCP sends them. */
+    RFC4571(2);
+
+    private final int headerSize;
+
+    Framing(int headerSize) {
+      this.headerSize = headerSize;
+    }
+  }
+
+  /**
+   * Receives each message decoded from the stream.
+   */
+  public interface Listener {
+    /**
+     * Called with a complete message between the buffers position and limit.  The buffer is only
+     * valid for the duration of the call, it is either the read buffer or the decoders own buffer
+     * for split messages, so it must be copied to be kept.
+     *
+     * @param message the message.
+     */
+    void onMessage(ByteBuffer message);
+  }
+}
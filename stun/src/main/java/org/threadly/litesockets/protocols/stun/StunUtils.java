@@ -1,8 +1,10 @@
 package org.threadly.litesockets.protocols.stun;
 
+import java.net.Inet4Address;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.util.Arrays;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.zip.CRC32;
 
@@ -17,6 +19,41 @@ public class StunUtils {
   public static final int STUN_MAGIC = 0x2112a442;
   public static final short STUN_SHORT_MAGIC = 0x2112;
   public static final int STUN_FINGERPRINT_MAGIC = 0x5354554e; 
+  static final int MAC_SCRATCH_SIZE = 64;
+  private static final ThreadLocal<CRC32> CRC = ThreadLocal.withInitial(CRC32::new);
+  // read on every instrumented call, so NO_OP is compared by identity to skip the clock
+  static volatile StunMetrics metrics = StunMetrics.NO_OP;
+  private static final ThreadLocal<MessageDigest> MD5_DIGEST = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch(GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  /**
+   * Installs the metrics the parsing, building and verifying paths of this package report to.
+   *
+   * @param stunMetrics the metrics to install, or {@code null} to go back to {@link StunMetrics#NO_OP}.
+   */
+  public static void setMetrics(StunMetrics stunMetrics) {
+    metrics = stunMetrics == null ? StunMetrics.NO_OP : stunMetrics;
+  }
+
+  public static StunMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Reports a parsed packet and its attributes, from an index laid out as type, offset and length
+   * per attribute.
+   */
+  static void reportParsed(StunMetrics stunMetrics, int messageType, int[] attrIndex, int attrCount, long nanos) {
+    stunMetrics.packetParsed(messageType, nanos);
+    for(int i=0; i<attrCount; i++) {
+      stunMetrics.attributeParsed(attrIndex[i * 3]);
+    }
+  }
 
   public static TransactionID generateTxID() {
     return new TransactionID(
@@ -27,136 +64,340 @@ public class StunUtils {
   }
 
   public static StunPacket addFingerPrint(final StunPacket sp) throws StunProtocolException {
-    ByteBuffer obb = sp.getBytes();
+    ByteBuffer obb = sp.getBuffer();
     ByteBuffer nbb = ByteBuffer.allocate(obb.remaining() + 8);
-    nbb.put(obb);
+    nbb.put(obb.duplicate());
     nbb.putShort(2, (short)(obb.getShort(2)+8));
-    CRC32 crc = new CRC32();
-    crc.update(nbb.array(), nbb.arrayOffset(), nbb.position());
-    nbb.putShort((short)StunAttribute.FINGERPRINT.bits);
-    nbb.putShort((short)4);
-    nbb.putInt(STUN_FINGERPRINT_MAGIC ^ (int)crc.getValue());
+    writeFingerPrint(nbb, 0);
     nbb.flip();
-    return new StunPacket(nbb);
+    return sp.withAppendedAttribute(nbb, StunAttribute.FINGERPRINT);
   }
 
   public static boolean verifyFingerPrint(final StunPacket sp) {
-    if(!sp.hasFingerPrint()) {
+    int offset = sp.getAttributeOffset(StunAttribute.FINGERPRINT);
+    if(offset < 0) {
       return false;
     }
-    ByteBuffer obb = sp.getBytes();
-    int old_crc = sp.getFingerPrint();
-    byte[] ba = new byte[obb.remaining()-8];
-    obb.get(ba);
-    CRC32 crc = new CRC32();
-    crc.update(ba);
-    int new_crc = STUN_FINGERPRINT_MAGIC ^ (int)crc.getValue();
-    return new_crc == old_crc;
+    return verifyFingerPrint(sp.getBuffer(), 0, offset, sp.getBuffer().limit());
+  }
+
+  /**
+   * Checks the FINGERPRINT of the packet the decoder is wrapped over, reading straight from the
+   * received buffer.
+   * 
+   * @param spd a decoder wrapped over a packet.
+   * @return {@code true} if the packet ends with a valid FINGERPRINT attribute.
+   */
+  public static boolean verifyFingerPrint(final StunPacketDecoder spd) {
+    int offset = spd.getAttributeOffset(StunAttribute.FINGERPRINT);
+    if(!spd.isValid() || offset == StunPacketDecoder.NOT_FOUND) {
+      return false;
+    }
+    return verifyFingerPrint(spd.getBuffer(), spd.getOffset(), offset, spd.getOffset() + spd.getLength());
+  }
+
+  private static boolean verifyFingerPrint(ByteBuffer buf, int start, int fpOffset, int end) {
+    StunMetrics stunMetrics = metrics;
+    if(stunMetrics == StunMetrics.NO_OP) {
+      return checkFingerPrint(buf, start, fpOffset, end);
+    }
+    long startNanos = System.nanoTime();
+    boolean valid = checkFingerPrint(buf, start, fpOffset, end);
+    stunMetrics.fingerprintVerified(valid, System.nanoTime() - startNanos);
+    return valid;
+  }
+
+  private static boolean checkFingerPrint(ByteBuffer buf, int start, int fpOffset, int end) {
+    if(fpOffset + 4 != end || (buf.getShort(fpOffset - 2) & 0xffff) != 4) {
+      return false;
+    }
+    return buf.getInt(fpOffset) == (STUN_FINGERPRINT_MAGIC ^ crc32(buf, start, fpOffset - 4));
+  }
+
+  /**
+   * A cheap check that the buffer holds a complete stun packet that can be trusted to not be
+   * something else.  Beyond {@link #isStunPacket(ByteBuffer)} this checks the magic cookie, that
+   * the header length matches the buffer and that the packet ends in a valid FINGERPRINT.  No
+   * attributes are parsed, so this is suitable to drop garbage before building a
+   * {@link StunPacket}.
+   * 
+   * @param buf the buffer to check, its position and limit are not modified.
+   * @return {@code true} if this is a fingerprinted stun packet.
+   */
+  public static boolean isStunPacketWithFingerPrint(ByteBuffer buf) {
+    int start = buf.position();
+    int length = buf.remaining();
+    if(length < 28 || (buf.get(start) & 0xc0) != 0 || buf.getInt(start + 4) != STUN_MAGIC) {
+      return false;
+    }
+    int size = buf.getShort(start + 2) & 0xffff;
+    if(size + 20 != length || (size & 3) != 0) {
+      return false;
+    }
+    int end = start + length;
+    if(buf.getInt(end - 8) != (StunAttribute.FINGERPRINT.bits << 16 | 4)) {
+      return false;
+    }
+    return buf.getInt(end - 4) == (STUN_FINGERPRINT_MAGIC ^ crc32(buf, start, end - 8));
+  }
+
+  /**
+   * Computes the CRC-32 of {@code buf[start, end)} without copying it.  {@link CRC32} is a
+   * hardware accelerated intrinsic on modern JVMs for both heap and direct buffers.
+   */
+  static int crc32(ByteBuffer buf, int start, int end) {
+    CRC32 crc = CRC.get();
+    crc.reset();
+    if(buf.hasArray()) {
+      crc.update(buf.array(), buf.arrayOffset() + start, end - start);
+    } else {
+      ByteBuffer crcbb = buf.duplicate();
+      crcbb.limit(end);
+      crcbb.position(start);
+      crc.update(crcbb);
+    }
+    return (int)crc.getValue();
+  }
+
+  static Mac newIntegrityMac(byte[] key) throws GeneralSecurityException {
+    Mac mac = Mac.getInstance("HmacSHA1");
+    mac.init(new SecretKeySpec(key, "HmacSHA1"));
+    return mac;
   }
 
   public static StunPacket addMessageIntegerity(final StunPacket sp, byte[] key) throws StunProtocolException {
     try {
-      SecretKeySpec signingKey = new SecretKeySpec(key, "HmacSHA1");
-      Mac mac = Mac.getInstance("HmacSHA1");
-      mac.init(signingKey);
-      ByteBuffer obb = sp.getBytes();
-      //Create new Buffer with extra space
-      ByteBuffer nbb = ByteBuffer.allocate( obb.remaining()+24);
-      //Add in old Buffer
-      nbb.put(obb);
-      //Update the length
-      nbb.putShort(2, (short)(obb.getShort(2)+24));
-
-      //Duplicate the buffer
-      ByteBuffer bb2 = nbb.duplicate();
-      //flip duplicated bugger to be read
-      bb2.flip();
-
-      //add new message-int attrib to the buffer
-      nbb.putShort((short)StunAttribute.MESSAGE_INTEGRITY.bits);
-      //add length
-      nbb.putShort((short)mac.getMacLength());      
-      //Do sign and add to buffer
-      nbb.put(mac.doFinal(StunUtils.BBToBA(bb2)));
-      //flip the buffer for use
-      nbb.flip();
-      return new StunPacket(nbb);
-    } catch(StunProtocolException e) {
-      throw e;
-    } catch(Exception e) {
+      return addMessageIntegerity(sp, newIntegrityMac(key));
+    } catch(GeneralSecurityException e) {
+      throw new StunProtocolException(e);
+    }
+  }
+
+  static StunPacket addMessageIntegerity(final StunPacket sp, Mac mac) throws StunProtocolException {
+    ByteBuffer obb = sp.getBytes();
+    //Create new Buffer with extra space
+    ByteBuffer nbb = ByteBuffer.allocate( obb.remaining()+24);
+    //Add in old Buffer
+    nbb.put(obb);
+    //Update the length
+    nbb.putShort(2, (short)(obb.getShort(2)+24));
+    writeMessageIntegerity(nbb, 0, mac);
+    //flip the buffer for use
+    nbb.flip();
+    return sp.withAppendedAttribute(nbb, StunAttribute.MESSAGE_INTEGRITY);
+  }
+
+  /**
+   * Signs the packet that starts at {@code start} and ends at the buffers current position, then
+   * writes the MESSAGE-INTEGRITY attribute at the current position.  The length in the header
+   * must already include the MESSAGE-INTEGRITY attribute.
+   */
+  static void writeMessageIntegerity(ByteBuffer dst, int start, Mac mac) throws StunProtocolException {
+    try {
+      ByteBuffer signed = dst.duplicate();
+      signed.limit(dst.position());
+      signed.position(start);
+      mac.update(signed);
+      dst.putShort((short)StunAttribute.MESSAGE_INTEGRITY.bits);
+      dst.putShort((short)mac.getMacLength());
+      if(dst.hasArray()) {
+        mac.doFinal(dst.array(), dst.arrayOffset() + dst.position());
+        dst.position(dst.position() + mac.getMacLength());
+      } else {
+        dst.put(mac.doFinal());
+      }
+    } catch(GeneralSecurityException e) {
+      throw new StunProtocolException(e);
+    }
+  }
+
+  /**
+   * Same as {@link #writeMessageIntegerity(ByteBuffer, int, Mac)}, but reads direct buffers through
+   * the scratch array so nothing is allocated.
+   */
+  static void writeMessageIntegerity(ByteBuffer dst, int start, HmacSha1 mac,
+                                     byte[] scratch) throws StunProtocolException {
+    updateMac(mac, dst, start, dst.position() - start, scratch);
+    try {
+      mac.doFinal(scratch, 0);
+    } catch(GeneralSecurityException e) {
       throw new StunProtocolException(e);
     }
+    dst.putShort((short)StunAttribute.MESSAGE_INTEGRITY.bits);
+    dst.putShort((short)mac.getMacLength());
+    dst.put(scratch, 0, mac.getMacLength());
+  }
+
+  /**
+   * Computes the CRC over the packet that starts at {@code start} and ends at the buffers current
+   * position, then writes the FINGERPRINT attribute at the current position.  The length in the
+   * header must already include the FINGERPRINT attribute.
+   */
+  static void writeFingerPrint(ByteBuffer dst, int start) {
+    int crc = crc32(dst, start, dst.position());
+    dst.putShort((short)StunAttribute.FINGERPRINT.bits);
+    dst.putShort((short)4);
+    dst.putInt(STUN_FINGERPRINT_MAGIC ^ crc);
   }
 
   public static boolean verifyMessageIntegerity(final StunPacket sp, byte[] key) {
     if(!sp.hasMessageIntegerity()) {
       return false;
     }
-    ByteBuffer sba = ByteBuffer.allocate(sp.getBytes().remaining());
-    sba.put(sp.getBytes());
-    sba.flip();
-
-    int pos = 20;
-    int offset = pos;
-    while(pos < sba.remaining()) {
-      StunAttribute sa = StunAttribute.fromValue(sba.getShort(pos)&0xffff);
-      pos+=2;
-      int sa_size = sba.getShort(pos)&0xffff;
-      pos+=2;
-      offset = pos;
-      if(sa == StunAttribute.MESSAGE_INTEGRITY) {
-        try {
-          SecretKeySpec signingKey = new SecretKeySpec(key, "HmacSHA1");
-          Mac mac = Mac.getInstance("HmacSHA1");
-          mac.init(signingKey);
-          sba.putShort(2, (short)offset);
-          sba.limit(offset-4);
-          byte[] sig = mac.doFinal(BBToBA(sba.duplicate()));
-          sba.limit(sba.capacity());
-          byte[] ba = new byte[sa_size];
-          sba.position(offset);
-          sba.get(ba);
-          return Arrays.equals(ba, sig);
-        } catch (Exception e) {
-          throw new RuntimeException(e);
-        }
+    int offset = sp.getAttributeOffset(StunAttribute.MESSAGE_INTEGRITY);
+    if(offset < 0) {
+      return false;
+    }
+    try {
+      HmacSha1 mac = new HmacSha1();
+      mac.init(mac.computePads(key));
+      return verifyMessageIntegerity(sp.getBuffer(), 0, offset, mac, new byte[MAC_SCRATCH_SIZE]);
+    } catch(GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Verifies the MESSAGE-INTEGRITY of the packet at {@code start} in the buffer without copying
+   * it.  The HMAC is fed straight from the buffer with the header length patched in as a separate
+   * update, and the result is compared in constant time against the signature in the buffer.
+   * 
+   * @param buf the buffer holding the packet, heap or direct, it is not modified.
+   * @param start the absolute index where the packet starts.
+   * @param miOffset the absolute index of the MESSAGE-INTEGRITY value.
+   * @param mac an initialized {@link HmacSha1}.
+   * @param scratch a work array of at least {@link #MAC_SCRATCH_SIZE} bytes.
+   * @return {@code true} if the signature matches.
+   */
+  static boolean verifyMessageIntegerity(ByteBuffer buf, int start, int miOffset, HmacSha1 mac, byte[] scratch) {
+    StunMetrics stunMetrics = metrics;
+    if(stunMetrics == StunMetrics.NO_OP) {
+      return checkMessageIntegerity(buf, start, miOffset, mac, scratch);
+    }
+    long startNanos = System.nanoTime();
+    boolean valid = checkMessageIntegerity(buf, start, miOffset, mac, scratch);
+    stunMetrics.integrityVerified(valid, System.nanoTime() - startNanos);
+    return valid;
+  }
+
+  private static boolean checkMessageIntegerity(ByteBuffer buf, int start, int miOffset, HmacSha1 mac,
+                                                byte[] scratch) {
+    int macLength = mac.getMacLength();
+    if((buf.getShort(miOffset - 2) & 0xffff) != macLength) {
+      return false;
+    }
+    // length as if MESSAGE-INTEGRITY was the last attribute
+    int length = miOffset + macLength - start - 20;
+    updateMac(mac, buf, start, 2, scratch);
+    mac.update((byte)(length >> 8));
+    mac.update((byte)length);
+    updateMac(mac, buf, start + 4, miOffset - 4 - (start + 4), scratch);
+    try {
+      mac.doFinal(scratch, 0);
+    } catch(GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+    int diff = 0;
+    for(int i=0; i<macLength; i++) {
+      diff |= scratch[i] ^ buf.get(miOffset + i);
+    }
+    return diff == 0;
+  }
+
+  private static void updateMac(HmacSha1 mac, ByteBuffer buf, int offset, int length, byte[] scratch) {
+    if(buf.hasArray()) {
+      mac.update(buf.array(), buf.arrayOffset() + offset, length);
+      return;
+    }
+    int pos = offset;
+    int end = offset + length;
+    while(pos < end) {
+      int chunk = Math.min(scratch.length, end - pos);
+      for(int i=0; i<chunk; i++) {
+        scratch[i] = buf.get(pos + i);
       }
-      pos+=sa_size;
-      pos=pos +3 & ~3;
+      mac.update(scratch, 0, chunk);
+      pos += chunk;
     }
-    return false;
   }
 
   public static byte[] unmaskAddress(TransactionID tid, byte[] address) {
     byte[] nba = new byte[address.length];
-    nba[0] = (byte)(address[0]^0x21);
-    nba[1] = (byte)(address[1]^0x12);
-    nba[2] = (byte)(address[2]^0xa4);
-    nba[3] = (byte)(address[3]^0x42);
-    byte[] tidbb = tid.getArray();
-    for(int i = 4; i < nba.length; i++) {
-      nba[i] = (byte)(address[i]^tidbb[i-4]);
+    long high = tid.getHigh();
+    int low = tid.getLow();
+    for(int i = 0; i < nba.length; i++) {
+      int mask;
+      if(i < 4) {
+        mask = STUN_MAGIC >>> (24 - i * 8);
+      } else if(i < 12) {
+        mask = (int)(high >>> (88 - i * 8));
+      } else {
+        mask = low >>> (120 - i * 8);
+      }
+      nba[i] = (byte)(address[i] ^ mask);
     }
     return nba;
   }
 
+  /**
+   * Checks that the bytes between the buffer's position and limit are exactly one well formed
+   * STUN packet.  Nothing is allocated or thrown, so this is cheap enough to run on every datagram,
+   * including garbage.
+   *
+   * @param buf the buffer to check, its position and limit are not changed.
+   * @return {@link StunValidationResult#VALID} or the reason the packet is not valid.
+   */
+  public static StunValidationResult validate(ByteBuffer buf) {
+    return validate(buf, buf.position(), buf.remaining());
+  }
+
+  static StunValidationResult validate(ByteBuffer buf, int start, int length) {
+    if(length < 20) {
+      return StunValidationResult.TOO_SHORT;
+    }
+    if(buf.getInt(start + 4) != STUN_MAGIC) {
+      return StunValidationResult.BAD_MAGIC_COOKIE;
+    }
+    if((buf.getShort(start + 2) & 0xffff) + 20 != length) {
+      return StunValidationResult.BAD_LENGTH;
+    }
+    int pos = start + 20;
+    int end = start + length;
+    while(pos < end) {
+      if(pos + 4 > end) {
+        return StunValidationResult.TRUNCATED_ATTRIBUTE;
+      }
+      int next = pos + ((4 + (buf.getShort(pos + 2) & 0xffff) + 3) & ~3);
+      if(next > end) {
+        return StunValidationResult.TRUNCATED_ATTRIBUTE;
+      }
+      if(StunAttribute.fromValueOrNull(buf.getShort(pos) & 0xffff) == null) {
+        return StunValidationResult.UNKNOWN_REQUIRED_ATTRIBUTE;
+      }
+      pos = next;
+    }
+    return StunValidationResult.VALID;
+  }
+
   public static boolean isStunPacket(ByteBuffer buf) {
     if(buf.remaining() < 8) {
       return false;
     }
-    switch(buf.getShort(buf.position() + 0)) {
-    case 0x0001:
-    case 0x0101:
-    case 0x0111:
-    case 0x0011:
-      return true;
-    default:
-      return false;
-    }
+    return StunMessageType.isValidType(buf.getShort(buf.position()) & 0xffff);
   }
 
   public static int getInt(int pos, byte[] ba) {
-    return ba[pos]<<24 | ba[pos+1]<<16 | ba[pos+2] <<8 | ba[pos+3];
+    return ba[pos]<<24 | (ba[pos+1] & 0xff)<<16 | (ba[pos+2] & 0xff)<<8 | (ba[pos+3] & 0xff);
+  }
+
+  /**
+   * Packs an IPv4 address into an int in network byte order, the first octet in the high byte.
+   *
+   * @param address the address.
+   * @return the address as an int.
+   */
+  public static int getInt(Inet4Address address) {
+    return getInt(0, address.getAddress());
   }
 
   public static short getShort(int pos, byte[] ba) {
@@ -170,12 +411,7 @@ public class StunUtils {
   }
 
   public static byte[] MD5(String md5) {
-    try {
-      MessageDigest md = MessageDigest.getInstance("MD5");
-      return md.digest(md5.getBytes());
-    } catch (java.security.NoSuchAlgorithmException e) {
-      throw new RuntimeException(e);
-    }
+    return MD5_DIGEST.get().digest(md5.getBytes(StandardCharsets.UTF_8));
   }
 
   public static String getHex(ByteBuffer bb) {
@@ -0,0 +1,27 @@
+package org.threadly.litesockets.protocols.stun;
+
+/**
+ * The outcome of validating a buffer as a STUN packet, see {@link StunUtils#validate(java.nio.ByteBuffer)}.
+ */
+public enum StunValidationResult {
+  VALID("Valid stun packet"),
+  TOO_SHORT("Not a valid stun packet, shorter than the header!"),
+  BAD_MAGIC_COOKIE("Not a valid stun packet, bad magic cookie!"),
+  BAD_LENGTH("Not a valid stun packet or bad size!"),
+  TRUNCATED_ATTRIBUTE("Truncated attribute!"),
+  UNKNOWN_REQUIRED_ATTRIBUTE("Unknown comprehension-required attribute!");
+
+  private final String message;
+
+  private StunValidationResult(String message) {
+    this.message = message;
+  }
+
+  public boolean isValid() {
+    return this == VALID;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+}
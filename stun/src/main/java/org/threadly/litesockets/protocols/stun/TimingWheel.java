@@ -0,0 +1,189 @@
+package org.threadly.litesockets.protocols.stun;
+
+/**
+ * A hashed timing wheel for large numbers of short timers, like STUN retransmissions.
+ * <p>
+ * Timers are intrusive: a {@link Task} is the wheel entry itself, so scheduling, cancelling and
+ * rescheduling the same task never allocates.  Scheduling and cancelling are O(1).  Each call to
+ * {@link #advance(long)} only visits the buckets for the ticks that passed, so the cost of a tick
+ * depends on how many timers land in that bucket, not on how many timers are outstanding.
+ * <p>
+ * The wheel does not own a thread, whoever owns it calls {@link #advance(long)} periodically
+ * (usually every tick) with a monotonic time in milliseconds.  Tasks are run on the thread calling
+ * {@link #advance(long)} and must not block.  All methods are thread safe.
+ */
+public class TimingWheel {
+  private final long tickMillis;
+  private final int mask;
+  private final Task[] buckets;
+  private final long startMillis;
+  private long currentTick = 0;
+  private int size = 0;
+
+  /**
+   * Creates a new wheel.
+   *
+   * @param tickMillis the resolution of the wheel.
+   * @param wheelSize the number of buckets, rounded up to a power of 2.  Timers up to
+   * {@code tickMillis * wheelSize} out expire without being looked at more than once.
+   * @param nowMillis the current time, in the same time base later passed to {@link #advance(long)}.
+   */
+  public TimingWheel(long tickMillis, int wheelSize, long nowMillis) {
+    if(tickMillis < 1) {
+      throw new IllegalArgumentException("tickMillis must be positive!");
+    }
+    if(wheelSize < 1) {
+      throw new IllegalArgumentException("wheelSize must be positive!");
+    }
+    int buckets = 1;
+    while(buckets < wheelSize) {
+      buckets <<= 1;
+    }
+    this.tickMillis = tickMillis;
+    this.mask = buckets - 1;
+    this.buckets = new Task[buckets];
+    this.startMillis = nowMillis;
+  }
+
+  public long getTickMillis() {
+    return tickMillis;
+  }
+
+  /**
+   * Returns the time the wheel has been advanced to.
+   *
+   * @return the current time of the wheel in milliseconds.
+   */
+  public synchronized long getCurrentMillis() {
+    return startMillis + currentTick * tickMillis;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Schedules the task to run {@code delayMillis} after the current time of the wheel.  The task
+   * will run on the first {@link #advance(long)} at or after that time, delays are rounded up to
+   * whole ticks.
+   *
+   * @param task the task to schedule, it must not already be scheduled.
+   * @param delayMillis how long from now to run the task.
+   */
+  public synchronized void schedule(Task task, long delayMillis) {
+    if(task.wheel != null) {
+      throw new IllegalStateException("Task is already scheduled!");
+    }
+    long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+    task.deadlineTick = currentTick + ticks;
+    task.wheel = this;
+    int bucket = (int)(task.deadlineTick & mask);
+    task.prev = null;
+    task.next = buckets[bucket];
+    if(task.next != null) {
+      task.next.prev = task;
+    }
+    buckets[bucket] = task;
+    size++;
+  }
+
+  synchronized boolean cancel(Task task) {
+    if(task.wheel != this) {
+      return false;
+    }
+    unlink(task);
+    return true;
+  }
+
+  private void unlink(Task task) {
+    int bucket = (int)(task.deadlineTick & mask);
+    if(task.prev == null) {
+      buckets[bucket] = task.next;
+    } else {
+      task.prev.next = task.next;
+    }
+    if(task.next != null) {
+      task.next.prev = task.prev;
+    }
+    task.next = null;
+    task.prev = null;
+    task.wheel = null;
+    size--;
+  }
+
+  /**
+   * Advances the wheel to {@code nowMillis}, running every task whose time has come.
+   *
+   * @param nowMillis the current time.
+   * @return the number of tasks that were run.
+   */
+  public int advance(long nowMillis) {
+    Task expired = collectExpired(nowMillis);
+    int count = 0;
+    while(expired != null) {
+      Task task = expired;
+      expired = task.nextExpired;
+      task.nextExpired = null;
+      count++;
+      task.expired();
+    }
+    return count;
+  }
+
+  private synchronized Task collectExpired(long nowMillis) {
+    long targetTick = (nowMillis - startMillis) / tickMillis;
+    if(targetTick <= currentTick) {
+      return null;
+    }
+    // past a full rotation every bucket is visited once
+    long ticks = Math.min(targetTick - currentTick, buckets.length);
+    Task expired = null;
+    for(long t = 1; t <= ticks; t++) {
+      Task task = buckets[(int)((currentTick + t) & mask)];
+      while(task != null) {
+        Task next = task.next;
+        if(task.deadlineTick <= targetTick) {
+          unlink(task);
+          task.nextExpired = expired;
+          expired = task;
+        }
+        task = next;
+      }
+    }
+    currentTick = targetTick;
+    return expired;
+  }
+
+  /**
+   * An entry in a {@link TimingWheel}.  A task can be scheduled on one wheel at a time, and can be
+   * scheduled again (including from {@link #expired()}) once it has run or been cancelled.
+   */
+  public abstract static class Task {
+    // written under the wheel's lock, read without it by cancel() and isScheduled()
+    private volatile TimingWheel wheel;
+    private long deadlineTick;
+    private Task next;
+    private Task prev;
+    // links due tasks until they are run, separate from next so they can be rescheduled meanwhile
+    private Task nextExpired;
+
+    /**
+     * Called from {@link TimingWheel#advance(long)} once the task is due.
+     */
+    protected abstract void expired();
+
+    /**
+     * Removes the task from its wheel if it is scheduled.
+     *
+     * @return {@code true} if the task was scheduled and is now cancelled.
+     */
+    public boolean cancel() {
+      TimingWheel tw = wheel;
+      return tw != null && tw.cancel(this);
+    }
+
+    public boolean isScheduled() {
+      return wheel != null;
+    }
+  }
+}
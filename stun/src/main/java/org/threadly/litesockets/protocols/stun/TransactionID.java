@@ -1,51 +1,161 @@
 package org.threadly.litesockets.protocols.stun;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.security.SecureRandom;
 
+/**
+ * The 96 bit STUN transaction id, held as a long (bytes 0-7) and an int (bytes 8-11).
+ * <p>
+ * The hash covers all 96 bits and is mixed with a random per-JVM seed, so peers choosing their own
+ * transaction ids can not line them up in the same hash buckets.
+ */
 public class TransactionID {
-    private final byte[] tid_ba;
-    private final int tid;
+    private static final long SEED = new SecureRandom().nextLong();
+    private static final long MAGIC_HIGH = (long)StunUtils.STUN_MAGIC << 32;
+
+    private final long high;
+    private final int low;
 
     protected TransactionID(byte[] ba) {
         if(ba.length != 12) {
             throw new IllegalArgumentException("Invalid TransactionID size: "+ba.length);
         }
-        this.tid_ba = ba;
-        tid = StunUtils.getInt(0, ba);
+        ByteBuffer bb = ByteBuffer.wrap(ba);
+        this.high = bb.getLong(0);
+        this.low = bb.getInt(8);
     }
 
     public TransactionID(int tid, int tid1, int tid2) {
-        tid_ba = new byte[12];
-        ByteBuffer.wrap(tid_ba).putInt(tid).putInt(tid1).putInt(tid2);
-        this.tid = tid;
+        this(((long)tid << 32) | (tid1 & 0xffffffffL), tid2);
+    }
+
+    public TransactionID(long high, int low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Reads a transaction id from the buffer without changing its position.
+     *
+     * @param bb the buffer to read from.
+     * @param index the absolute index of the first byte of the id.
+     * @return the transaction id.
+     */
+    public static TransactionID read(ByteBuffer bb, int index) {
+        return new TransactionID(bb.getLong(index), bb.getInt(index + 8));
+    }
+
+    /**
+     * Returns the first 8 bytes of the id, big endian.
+     *
+     * @return bytes 0-7 of the transaction id.
+     */
+    public long getHigh() {
+        return high;
+    }
+
+    /**
+     * Returns the last 4 bytes of the id, big endian.
+     *
+     * @return bytes 8-11 of the transaction id.
+     */
+    public int getLow() {
+        return low;
+    }
+
+    /**
+     * Compares against a transaction id held as primitives, like the ones from a
+     * {@link StunPacketDecoder}.
+     *
+     * @param tid0 bytes 0-3.
+     * @param tid1 bytes 4-7.
+     * @param tid2 bytes 8-11.
+     * @return {@code true} if the ids are the same.
+     */
+    public boolean matches(int tid0, int tid1, int tid2) {
+        return (int)(high >>> 32) == tid0 && (int)high == tid1 && low == tid2;
+    }
+
+    /**
+     * Writes the id at the buffer's position, advancing it by 12.
+     *
+     * @param bb the buffer to write to.
+     */
+    public void writeTo(ByteBuffer bb) {
+        bb.putLong(high).putInt(low);
+    }
+
+    /**
+     * XORs the first 8 bytes of an IPv6 address with the magic cookie and transaction id, this both
+     * masks and unmasks.
+     *
+     * @param address bytes 0-7 of the address.
+     * @return the XORed bytes.
+     */
+    public long xorIPv6High(long address) {
+        return xorIPv6High(address, high);
+    }
+
+    static long xorIPv6High(long address, long high) {
+        return address ^ (MAGIC_HIGH | (high >>> 32));
+    }
+
+    /**
+     * XORs the last 8 bytes of an IPv6 address with the transaction id, this both masks and
+     * unmasks.
+     *
+     * @param address bytes 8-15 of the address.
+     * @return the XORed bytes.
+     */
+    public long xorIPv6Low(long address) {
+        return xorIPv6Low(address, high, low);
+    }
+
+    static long xorIPv6Low(long address, long high, int low) {
+        return address ^ ((high << 32) | (low & 0xffffffffL));
     }
-    
+
     public byte[] unmaskAddress(byte[] address) {
       return StunUtils.unmaskAddress(this, address);
     }
 
     public ByteBuffer getByteBuffer() {
-        return ByteBuffer.wrap(tid_ba).asReadOnlyBuffer();
+        ByteBuffer bb = ByteBuffer.allocate(12);
+        writeTo(bb);
+        bb.flip();
+        return bb.asReadOnlyBuffer();
     }
-    
+
     public byte[] getArray() {
       byte[] nba = new byte[12];
-      System.arraycopy(tid_ba, 0, nba, 0, 12);
+      ByteBuffer.wrap(nba).putLong(high).putInt(low);
       return nba;
     }
 
     @Override
     public int hashCode() {
-        return tid;
+        return hash(high, low);
+    }
+
+    static int hash(long high, int low) {
+        long h = high ^ SEED;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h ^= low * 0x9e3779b97f4a7c15L;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int)(h ^ (h >>> 32));
     }
 
     @Override
     public boolean equals(Object o) {
         if(o instanceof TransactionID) {
-            return Arrays.equals(tid_ba, ((TransactionID)o).tid_ba);
+            TransactionID other = (TransactionID)o;
+            return high == other.high && low == other.low;
         }
         return false;
     }
-    
+
+    @Override
+    public String toString() {
+        return String.format("%016x%08x", high, low);
+    }
 }
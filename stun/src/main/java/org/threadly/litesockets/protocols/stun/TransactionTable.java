@@ -0,0 +1,433 @@
+package org.threadly.litesockets.protocols.stun;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * A concurrent map from 96 bit transaction ids to values, built for matching STUN responses to
+ * outstanding requests.
+ * <p>
+ * Keys are stored as primitives in parallel arrays with linear probing, so neither inserts nor
+ * lookups allocate, and lookups can be done straight from a {@link StunPacket} or
+ * {@link StunPacketDecoder} without creating a {@link TransactionID}.
+ * <p>
+ * Every slot has a stamp holding its state and a version that changes on every transition.
+ * Lookups take no locks: they read the stamp, the key and the value, then re-read the stamp and
+ * retry if it changed.  Inserts and removes claim slots by CASing the stamp.  Removed slots are left
+ * as tombstones until they are reused or the table is compacted, compaction rebuilds the arrays
+ * while inserts and removes wait, lookups keep reading the old arrays until the new ones are
+ * published.
+ * <p>
+ * The table holds at most {@code maxEntries} entries (give or take the number of threads inserting
+ * at the same time).  Inserting into a full table evicts the oldest of a sample of entries, which
+ * is handed to the eviction listener.
+ * <p>
+ * If the same id is inserted from two threads at once both inserts may succeed, transaction ids are
+ * expected to be random and owned by whoever inserts them.
+ *
+ * @param <V> the type of the values.
+ */
+public class TransactionTable<V> {
+  private static final long EMPTY = 0;
+  private static final long BUSY = 1;
+  private static final long FULL = 2;
+  private static final long DELETED = 3;
+  private static final long STATE_MASK = 3;
+  private static final long VERSION = 4;
+  private static final int EVICTION_SAMPLE = 16;
+
+  private final StampedLock compactionLock = new StampedLock();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicInteger used = new AtomicInteger();
+  private final AtomicLong insertions = new AtomicLong();
+  private final AtomicInteger evictionCursor = new AtomicInteger();
+  private final int maxEntries;
+  private final int compactThreshold;
+  private final Consumer<? super V> evictionListener;
+  private volatile Slots<V> slots;
+  private volatile int epoch = 0;
+
+  /**
+   * Creates a table without an eviction listener, evicted values are just dropped.
+   *
+   * @param maxEntries the most entries the table will hold.
+   */
+  public TransactionTable(int maxEntries) {
+    this(maxEntries, null);
+  }
+
+  /**
+   * Creates a table.
+   *
+   * @param maxEntries the most entries the table will hold.
+   * @param evictionListener called with values evicted to make room, or {@code null}.
+   */
+  public TransactionTable(int maxEntries, Consumer<? super V> evictionListener) {
+    if(maxEntries < 1 || maxEntries > (1 << 29)) {
+      throw new IllegalArgumentException("maxEntries out of range: "+maxEntries);
+    }
+    int capacity = 4;
+    while(capacity < maxEntries * 2) {
+      capacity <<= 1;
+    }
+    this.maxEntries = maxEntries;
+    this.compactThreshold = capacity - capacity / 4;
+    this.evictionListener = evictionListener;
+    this.slots = new Slots<>(capacity);
+  }
+
+  public int size() {
+    return size.get();
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public V get(TransactionID tid) {
+    return get(tid.getHigh(), tid.getLow());
+  }
+
+  /**
+   * Looks up the transaction a packet belongs to.
+   *
+   * @param sp the received packet.
+   * @return the value for the packet's transaction id, or {@code null}.
+   */
+  public V get(StunPacket sp) {
+    return get(sp.getBuffer().getLong(8), sp.getBuffer().getInt(16));
+  }
+
+  /**
+   * Looks up the transaction the currently wrapped packet belongs to.
+   *
+   * @param spd a decoder wrapped over a valid packet.
+   * @return the value for the packet's transaction id, or {@code null}.
+   */
+  public V get(StunPacketDecoder spd) {
+    return get(spd.getTxIDHigh(), spd.getTxIDLow());
+  }
+
+  /**
+   * Looks up a transaction id, without taking any locks.
+   *
+   * @param high bytes 0-7 of the id.
+   * @param low bytes 8-11 of the id.
+   * @return the value for the id, or {@code null}.
+   */
+  public V get(long high, int low) {
+    while(true) {
+      int e = epoch;
+      Slots<V> s = slots;
+      int idx = find(s, high, low);
+      if(idx >= 0) {
+        long stamp = s.stamps.get(idx);
+        long h = s.highs.get(idx);
+        int l = s.lows.get(idx);
+        V v = s.values.get(idx);
+        if(s.stamps.get(idx) == stamp && (stamp & STATE_MASK) == FULL && h == high && l == low) {
+          return v;
+        }
+      } else if(e == epoch) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Returns the slot holding the key, or -1.  The caller must re-validate the slot's stamp.
+   */
+  private static int find(Slots<?> s, long high, int low) {
+    int idx = TransactionID.hash(high, low) & s.mask;
+    for(int probes = 0; probes <= s.mask; probes++) {
+      long stamp = s.stamps.get(idx);
+      long state = stamp & STATE_MASK;
+      if(state == EMPTY) {
+        return -1;
+      }
+      if(state == FULL && s.highs.get(idx) == high && s.lows.get(idx) == low) {
+        if(s.stamps.get(idx) == stamp) {
+          return idx;
+        }
+        // changed under us, look at the same slot again
+        probes--;
+        continue;
+      }
+      idx = (idx + 1) & s.mask;
+    }
+    return -1;
+  }
+
+  public V putIfAbsent(TransactionID tid, V value) {
+    return putIfAbsent(tid.getHigh(), tid.getLow(), value);
+  }
+
+  /**
+   * Adds an entry unless the id is already in the table.  If the table is full the oldest of a
+   * sample of entries is evicted first.
+   *
+   * @param high bytes 0-7 of the id.
+   * @param low bytes 8-11 of the id.
+   * @param value the value, can not be {@code null}.
+   * @return the existing value if there was one, {@code null} if the value was added.
+   */
+  public V putIfAbsent(long high, int low, V value) {
+    if(value == null) {
+      throw new IllegalArgumentException("Value can not be null!");
+    }
+    while(size.get() >= maxEntries) {
+      V evicted = evictOldest();
+      if(evicted != null && evictionListener != null) {
+        evictionListener.accept(evicted);
+      }
+    }
+    while(true) {
+      Slots<V> s = slots;
+      if(used.get() >= compactThreshold) {
+        compact(s);
+        continue;
+      }
+      long lock = compactionLock.readLock();
+      try {
+        if(s != slots) {
+          continue;
+        }
+        int result = tryInsert(s, high, low, value);
+        if(result >= 0) {
+          V existing = s.values.get(result);
+          if(existing != null) {
+            return existing;
+          }
+        } else if(result == -1) {
+          return null;
+        }
+      } finally {
+        compactionLock.unlockRead(lock);
+      }
+    }
+  }
+
+  /**
+   * Returns -1 if inserted, -2 if the caller should retry, or the index of the existing entry.
+   */
+  private int tryInsert(Slots<V> s, long high, int low, V value) {
+    int hash = TransactionID.hash(high, low);
+    int idx = hash & s.mask;
+    int free = -1;
+    long freeStamp = 0;
+    for(int probes = 0; probes <= s.mask; probes++) {
+      long stamp = s.stamps.get(idx);
+      long state = stamp & STATE_MASK;
+      if(state == EMPTY) {
+        if(free < 0) {
+          free = idx;
+          freeStamp = stamp;
+        }
+        break;
+      } else if(state == DELETED) {
+        if(free < 0) {
+          free = idx;
+          freeStamp = stamp;
+        }
+      } else if(state == FULL && s.highs.get(idx) == high && s.lows.get(idx) == low) {
+        if(s.stamps.get(idx) == stamp) {
+          return idx;
+        }
+        return -2;
+      }
+      idx = (idx + 1) & s.mask;
+    }
+    if(free < 0) {
+      // only tombstones and busy slots left, compaction will sort it out
+      return -2;
+    }
+    long busy = (freeStamp & ~STATE_MASK) + VERSION + BUSY;
+    if(!s.stamps.compareAndSet(free, freeStamp, busy)) {
+      return -2;
+    }
+    if((freeStamp & STATE_MASK) == EMPTY) {
+      used.incrementAndGet();
+    }
+    s.highs.set(free, high);
+    s.lows.set(free, low);
+    s.values.set(free, value);
+    s.born.set(free, insertions.incrementAndGet());
+    s.stamps.set(free, (busy & ~STATE_MASK) + VERSION + FULL);
+    size.incrementAndGet();
+    return -1;
+  }
+
+  public V remove(TransactionID tid) {
+    return remove(tid.getHigh(), tid.getLow(), null);
+  }
+
+  public boolean remove(TransactionID tid, V expected) {
+    return remove(tid.getHigh(), tid.getLow(), expected) != null;
+  }
+
+  /**
+   * Removes the transaction a packet belongs to.
+   *
+   * @param sp the received packet.
+   * @return the removed value, or {@code null}.
+   */
+  public V remove(StunPacket sp) {
+    return remove(sp.getBuffer().getLong(8), sp.getBuffer().getInt(16), null);
+  }
+
+  /**
+   * Removes the transaction the currently wrapped packet belongs to.
+   *
+   * @param spd a decoder wrapped over a valid packet.
+   * @return the removed value, or {@code null}.
+   */
+  public V remove(StunPacketDecoder spd) {
+    return remove(spd.getTxIDHigh(), spd.getTxIDLow(), null);
+  }
+
+  /**
+   * Removes an entry.
+   *
+   * @param high bytes 0-7 of the id.
+   * @param low bytes 8-11 of the id.
+   * @param expected only remove if mapped to this value, or {@code null} to remove any value.
+   * @return the removed value, or {@code null} if nothing was removed.
+   */
+  public V remove(long high, int low, V expected) {
+    long lock = compactionLock.readLock();
+    try {
+      Slots<V> s = slots;
+      while(true) {
+        int idx = find(s, high, low);
+        if(idx < 0) {
+          return null;
+        }
+        long stamp = s.stamps.get(idx);
+        V v = s.values.get(idx);
+        if((stamp & STATE_MASK) != FULL || s.highs.get(idx) != high || s.lows.get(idx) != low) {
+          continue;
+        }
+        if(expected != null && v != expected) {
+          return null;
+        }
+        if(s.stamps.compareAndSet(idx, stamp, (stamp & ~STATE_MASK) + VERSION + DELETED)) {
+          s.values.compareAndSet(idx, v, null);
+          size.decrementAndGet();
+          return v;
+        }
+      }
+    } finally {
+      compactionLock.unlockRead(lock);
+    }
+  }
+
+  private V evictOldest() {
+    long lock = compactionLock.readLock();
+    try {
+      Slots<V> s = slots;
+      int idx = evictionCursor.getAndAdd(EVICTION_SAMPLE) & s.mask;
+      int oldest = -1;
+      long oldestBorn = Long.MAX_VALUE;
+      long oldestStamp = 0;
+      int seen = 0;
+      for(int probes = 0; probes <= s.mask && seen < EVICTION_SAMPLE; probes++) {
+        long stamp = s.stamps.get(idx);
+        if((stamp & STATE_MASK) == FULL) {
+          seen++;
+          long born = s.born.get(idx);
+          if(born < oldestBorn) {
+            oldest = idx;
+            oldestBorn = born;
+            oldestStamp = stamp;
+          }
+        }
+        idx = (idx + 1) & s.mask;
+      }
+      if(oldest < 0) {
+        return null;
+      }
+      V v = s.values.get(oldest);
+      if(s.stamps.compareAndSet(oldest, oldestStamp, (oldestStamp & ~STATE_MASK) + VERSION + DELETED)) {
+        s.values.compareAndSet(oldest, v, null);
+        size.decrementAndGet();
+        return v;
+      }
+      return null;
+    } finally {
+      compactionLock.unlockRead(lock);
+    }
+  }
+
+  private void compact(Slots<V> expected) {
+    long lock = compactionLock.writeLock();
+    try {
+      if(slots != expected) {
+        return;
+      }
+      Slots<V> s = new Slots<>(expected.stamps.length());
+      int count = 0;
+      for(int i=0; i<expected.stamps.length(); i++) {
+        if((expected.stamps.get(i) & STATE_MASK) == FULL) {
+          long high = expected.highs.get(i);
+          int low = expected.lows.get(i);
+          int idx = TransactionID.hash(high, low) & s.mask;
+          while(s.stamps.get(idx) != EMPTY) {
+            idx = (idx + 1) & s.mask;
+          }
+          s.highs.set(idx, high);
+          s.lows.set(idx, low);
+          s.values.set(idx, expected.values.get(i));
+          s.born.set(idx, expected.born.get(i));
+          s.stamps.set(idx, VERSION + FULL);
+          count++;
+        }
+      }
+      used.set(count);
+      slots = s;
+      epoch++;
+    } finally {
+      compactionLock.unlockWrite(lock);
+    }
+  }
+
+  /**
+   * Calls the consumer with every value in the table.  Entries added or removed while iterating
+   * may or may not be seen.
+   *
+   * @param consumer called with each value.
+   */
+  public void forEach(Consumer<? super V> consumer) {
+    Slots<V> s = slots;
+    for(int i=0; i<s.stamps.length(); i++) {
+      if((s.stamps.get(i) & STATE_MASK) == FULL) {
+        V v = s.values.get(i);
+        if(v != null) {
+          consumer.accept(v);
+        }
+      }
+    }
+  }
+
+  private static final class Slots<V> {
+    private final int mask;
+    private final AtomicLongArray stamps;
+    private final AtomicLongArray highs;
+    private final AtomicIntegerArray lows;
+    private final AtomicLongArray born;
+    private final AtomicReferenceArray<V> values;
+
+    Slots(int capacity) {
+      mask = capacity - 1;
+      stamps = new AtomicLongArray(capacity);
+      highs = new AtomicLongArray(capacity);
+      lows = new AtomicIntegerArray(capacity);
+      born = new AtomicLongArray(capacity);
+      values = new AtomicReferenceArray<>(capacity);
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package org.threadly.litesockets.protocols.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DirectBufferPoolTests {
+
+  private static int acquireAndRelease(DirectBufferPool pool, int size) {
+    ByteBuffer bb = pool.acquire(size);
+    pool.release(bb);
+    return bb.capacity();
+  }
+
+  @Test
+  public void sizeClassesAndReuse() {
+    DirectBufferPool pool = new DirectBufferPool(1000, 4, true);
+    assertEquals(1024, pool.getMaxBufferSize());
+    ByteBuffer bb = pool.acquire(100);
+    assertTrue(bb.isDirect());
+    assertEquals(128, bb.capacity());
+    assertEquals(0, bb.position());
+    assertEquals(100, bb.limit());
+    bb.putInt(1).position(50);
+    pool.release(bb);
+    // the same thread gets the same buffer back, reset
+    ByteBuffer again = pool.acquire(65);
+    assertSame(bb, again);
+    assertEquals(0, again.position());
+    assertEquals(65, again.limit());
+    pool.release(again);
+
+    assertEquals(64, acquireAndRelease(pool, 0));
+    assertEquals(64, acquireAndRelease(pool, 64));
+    assertEquals(1024, acquireAndRelease(pool, 1024));
+    // too large to pool
+    ByteBuffer large = pool.acquire(1025);
+    assertEquals(1025, large.capacity());
+    pool.release(large);
+    assertEquals(0, pool.getOutstandingCount());
+    pool.checkLeaks();
+    long allocated = pool.getAllocatedCount();
+    assertEquals(1025, acquireAndRelease(pool, 1025));
+    assertEquals(allocated + 1, pool.getAllocatedCount());
+  }
+
+  @Test
+  public void overflowBetweenThreads() throws Exception {
+    DirectBufferPool pool = new DirectBufferPool(1024, 4, false);
+    List<ByteBuffer> buffers = new ArrayList<>();
+    for(int i=0; i<16; i++) {
+      buffers.add(pool.acquire(200));
+    }
+    assertEquals(16, pool.getAllocatedCount());
+    // released on another thread, which can only cache 4, the rest goes to the shared stack
+    Thread t = new Thread(() -> buffers.forEach(pool::release));
+    t.start();
+    t.join();
+    assertEquals(0, pool.getOutstandingCount());
+    for(int i=0; i<12; i++) {
+      pool.release(pool.acquire(200));
+      buffers.set(i, pool.acquire(200));
+    }
+    assertTrue(pool.getAllocatedCount() < 16 + 12);
+    for(int i=0; i<12; i++) {
+      pool.release(buffers.get(i));
+    }
+  }
+
+  @Test
+  public void leakDetection() {
+    DirectBufferPool pool = new DirectBufferPool(1024, 4, true);
+    ByteBuffer leaked = pool.acquire(100);
+    pool.release(pool.acquire(100));
+    try {
+      pool.checkLeaks();
+      fail();
+    } catch(IllegalStateException e) {
+      assertTrue(e.getMessage().startsWith("1 "));
+      assertEquals("leakDetection", e.getCause().getStackTrace()[1].getMethodName());
+    }
+    pool.release(leaked);
+    pool.checkLeaks();
+    try {
+      pool.release(leaked);
+      fail();
+    } catch(IllegalStateException e) {
+      // expected
+    }
+    try {
+      pool.release(ByteBuffer.allocateDirect(128));
+      fail();
+    } catch(IllegalStateException e) {
+      // expected
+    }
+    try {
+      new DirectBufferPool().checkLeaks();
+      fail();
+    } catch(IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void encodeFromPool() throws Exception {
+    DirectBufferPool pool = new DirectBufferPool(2048, 4, true);
+    StunPacketBuilder spb = new StunPacketBuilder().setUsername(ByteBuffer.wrap("user:peer".getBytes()))
+                                                   .setKey("VOkJxbRl1RmTxUk/WvJxBt".getBytes()).enableFingerPrint();
+    for(int i=0; i<100; i++) {
+      ByteBuffer bb = spb.encode(pool);
+      assertTrue(bb.isDirect());
+      assertEquals(spb.build().getBytes(), bb);
+      pool.release(bb);
+    }
+    pool.checkLeaks();
+    assertEquals(1, pool.getAllocatedCount());
+  }
+}
@@ -0,0 +1,153 @@
+package org.threadly.litesockets.protocols.stun;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class LongTermCredentialCacheTests {
+
+  @Test
+  public void hitsAndMisses() {
+    AtomicInteger loads = new AtomicInteger();
+    LongTermCredentialCache cache = new LongTermCredentialCache((username, realm) -> {
+      loads.incrementAndGet();
+      return username.equals("bob") ? new byte[] {1, 2, 3} : null;
+    });
+    byte[] key = cache.getKey("bob", "example.org");
+    assertArrayEquals(new byte[] {1, 2, 3}, key);
+    assertSame(key, cache.getKey(ByteBuffer.wrap("bob".getBytes(StandardCharsets.UTF_8)),
+                                 ByteBuffer.wrap("example.org".getBytes(StandardCharsets.UTF_8))));
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    // unknown users are remembered too, but not counted as cached keys
+    assertNull(cache.getKey("mallory", "example.org"));
+    assertNull(cache.getKey("mallory", "example.org"));
+    assertEquals(2, loads.get());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void unknownUsersExpire() {
+    AtomicLong clock = new AtomicLong(10_000);
+    AtomicInteger loads = new AtomicInteger();
+    AtomicInteger known = new AtomicInteger();
+    LongTermCredentialCache cache = new LongTermCredentialCache((username, realm) -> {
+      loads.incrementAndGet();
+      return known.get() > 0 ? new byte[] {1} : null;
+    }, 64, 60_000, 1000, clock::get);
+    assertNull(cache.getKey("bob", "realm"));
+    known.set(1);
+    clock.addAndGet(999);
+    assertNull(cache.getKey("bob", "realm"));
+    assertEquals(1, loads.get());
+    clock.addAndGet(1);
+    assertArrayEquals(new byte[] {1}, cache.getKey("bob", "realm"));
+    assertEquals(2, loads.get());
+
+    // invalidating picks up a new user right away
+    known.set(0);
+    assertNull(cache.getKey("alice", "realm"));
+    known.set(1);
+    cache.invalidate("alice", "realm");
+    assertArrayEquals(new byte[] {1}, cache.getKey("alice", "realm"));
+    assertEquals(4, loads.get());
+  }
+
+  @Test
+  public void unknownUsersDoNotPushOutKnownOnes() {
+    AtomicInteger loads = new AtomicInteger();
+    LongTermCredentialCache cache = new LongTermCredentialCache((username, realm) -> {
+      loads.incrementAndGet();
+      return username.startsWith("user") ? new byte[16] : null;
+    }, 64, 60_000);
+    for(int i=0; i<16; i++) {
+      cache.getKey("user"+i, "realm");
+    }
+    assertEquals(16, cache.size());
+    for(int i=0; i<10000; i++) {
+      assertNull(cache.getKey("fake"+i, "realm"));
+    }
+    assertEquals(16, cache.size());
+    loads.set(0);
+    for(int i=0; i<16; i++) {
+      cache.getKey("user"+i, "realm");
+    }
+    assertEquals(0, loads.get());
+  }
+
+  @Test
+  public void realmIsPartOfTheKey() {
+    LongTermCredentialCache cache = new LongTermCredentialCache((username, realm) -> {
+      return (username+"/"+realm).getBytes(StandardCharsets.UTF_8);
+    });
+    assertEquals("bob/a.org", new String(cache.getKey("bob", "a.org"), StandardCharsets.UTF_8));
+    assertEquals("bob/b.org", new String(cache.getKey("bob", "b.org"), StandardCharsets.UTF_8));
+    assertEquals("bo/ba.org", new String(cache.getKey("bo", "ba.org"), StandardCharsets.UTF_8));
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void expiresAfterTtl() {
+    AtomicLong clock = new AtomicLong(10_000);
+    AtomicInteger loads = new AtomicInteger();
+    LongTermCredentialCache cache = new LongTermCredentialCache((username, realm) -> {
+      return new byte[] {(byte)loads.incrementAndGet()};
+    }, 64, 1000, clock::get);
+    assertEquals(1, cache.getKey("bob", "realm")[0]);
+    clock.addAndGet(999);
+    assertEquals(1, cache.getKey("bob", "realm")[0]);
+    clock.addAndGet(1);
+    assertEquals(2, cache.getKey("bob", "realm")[0]);
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void invalidate() {
+    AtomicInteger loads = new AtomicInteger();
+    LongTermCredentialCache cache = new LongTermCredentialCache((username, realm) -> {
+      return new byte[] {(byte)loads.incrementAndGet()};
+    });
+    assertEquals(1, cache.getKey("bob", "realm")[0]);
+    assertEquals(2, cache.getKey("alice", "realm")[0]);
+    cache.invalidate("bob", "realm");
+    assertEquals(1, cache.size());
+    assertEquals(3, cache.getKey("bob", "realm")[0]);
+    assertEquals(2, cache.getKey("alice", "realm")[0]);
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+    assertEquals(4, cache.getKey("alice", "realm")[0]);
+  }
+
+  @Test
+  public void boundedWithRecentlyUsedKept() {
+    LongTermCredentialCache cache = new LongTermCredentialCache((username, realm) -> new byte[16], 64, 60_000);
+    for(int i=0; i<1000; i++) {
+      cache.getKey("user"+i, "realm");
+      // keep one user hot, CLOCK should never pick it while others are unreferenced
+      cache.getKey("hot", "realm");
+    }
+    assertTrue(cache.size() <= 64);
+    long misses = cache.getMissCount();
+    cache.getKey("hot", "realm");
+    assertEquals(misses, cache.getMissCount());
+  }
+
+  @Test
+  public void fromPasswords() {
+    LongTermCredentialCache cache = new LongTermCredentialCache(LongTermCredentialCache.fromPasswords(
+        (username, realm) -> username.equals("user") ? "pass" : null));
+    assertArrayEquals(StunUtils.MD5("user:realm:pass"), cache.getKey("user", "realm"));
+    assertNull(cache.getKey("other", "realm"));
+  }
+}
@@ -0,0 +1,60 @@
+package org.threadly.litesockets.protocols.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class NonceGeneratorTests {
+  private static final InetSocketAddress CLIENT = new InetSocketAddress("10.0.0.1", 5000);
+  private static final long NOW = 1_500_000_000_000L;
+
+  @Test
+  public void validUntilExpired() {
+    NonceGenerator generator = new NonceGenerator(60_000);
+    String nonce = generator.generate(CLIENT, NOW);
+    assertEquals(NonceGenerator.NONCE_LENGTH, nonce.length());
+    assertTrue(generator.isValid(nonce, CLIENT, NOW));
+    assertTrue(generator.isValid(nonce, CLIENT, NOW + 60_000));
+    assertFalse(generator.isValid(nonce, CLIENT, NOW + 61_000));
+    // issued in the future
+    assertFalse(generator.isValid(nonce, CLIENT, NOW - 1000));
+  }
+
+  @Test
+  public void boundToClient() {
+    NonceGenerator generator = new NonceGenerator();
+    String nonce = generator.generate(CLIENT, NOW);
+    assertFalse(generator.isValid(nonce, new InetSocketAddress("10.0.0.2", 5000), NOW));
+    assertFalse(generator.isValid(nonce, new InetSocketAddress("10.0.0.1", 5001), NOW));
+    assertFalse(new NonceGenerator().isValid(nonce, CLIENT, NOW));
+  }
+
+  @Test
+  public void tampered() {
+    NonceGenerator generator = new NonceGenerator();
+    String nonce = generator.generate(CLIENT, NOW);
+    char[] chars = nonce.toCharArray();
+    chars[NonceGenerator.NONCE_LENGTH - 1] = chars[NonceGenerator.NONCE_LENGTH - 1] == '0' ? '1' : '0';
+    assertFalse(generator.isValid(new String(chars), CLIENT, NOW));
+    // same value, not lowercase hex
+    assertFalse(generator.isValid(nonce.toUpperCase().equals(nonce) ? nonce+"0" : nonce.toUpperCase(), CLIENT, NOW));
+    assertFalse(generator.isValid(nonce.substring(1), CLIENT, NOW));
+    assertFalse(generator.isValid("zz"+nonce.substring(2), CLIENT, NOW));
+  }
+
+  @Test
+  public void sharedSecretAndBufferView() {
+    byte[] secret = "0123456789abcdef0123".getBytes(StandardCharsets.US_ASCII);
+    String nonce = new NonceGenerator(60_000, secret).generate(CLIENT, NOW);
+    ByteBuffer bb = ByteBuffer.wrap(("xx"+nonce).getBytes(StandardCharsets.US_ASCII));
+    bb.position(2);
+    assertTrue(new NonceGenerator(60_000, secret).isValid(bb, CLIENT, NOW));
+    assertEquals(2, bb.position());
+  }
+}
@@ -0,0 +1,152 @@
+package org.threadly.litesockets.protocols.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SourceRateLimiterTests {
+  private static final long SECOND = 1000000000L;
+
+  @Test
+  public void burstThenRefill() {
+    SourceRateLimiter limiter = new SourceRateLimiter(10, 5, 64);
+    long key = SourceRateLimiter.key(0x0a000001, 5000);
+    long now = 1000 * SECOND;
+    int burst = 0;
+    while(limiter.tryAcquire(key, now) && burst < 100) {
+      burst++;
+    }
+    // the burst untracked, then a full bucket, and a little more if the sketch aged in between
+    assertTrue("burst "+burst, burst >= 10 && burst <= 20);
+    assertFalse(limiter.tryAcquire(key, now + SECOND / 20));
+    assertEquals(1, limiter.getTrackedSources());
+    // one token every 100ms
+    assertTrue(limiter.tryAcquire(key, now + SECOND / 10));
+    assertFalse(limiter.tryAcquire(key, now + SECOND / 10));
+    // sustained rate over a second
+    int allowed = 0;
+    for(long t=now + SECOND; t<now + 2 * SECOND; t += SECOND / 100) {
+      if(limiter.tryAcquire(key, t)) {
+        allowed++;
+      }
+    }
+    assertTrue("allowed "+allowed, allowed >= 10 && allowed <= 15);
+    // idle long enough to get the full burst back
+    now += 10 * SECOND;
+    for(int i=0; i<5; i++) {
+      assertTrue(limiter.tryAcquire(key, now));
+    }
+    assertFalse(limiter.tryAcquire(key, now));
+  }
+
+  @Test
+  public void slowSenderIsNeverDropped() {
+    SourceRateLimiter limiter = new SourceRateLimiter(1.0, 5, 1024);
+    long key = SourceRateLimiter.key(0x0a000001, 5000);
+    long now = 1000 * SECOND;
+    for(int i=0; i<100; i++) {
+      assertTrue("packet "+i, limiter.tryAcquire(key, now + i * 10 * SECOND));
+    }
+  }
+
+  @Test
+  public void lightSourcesAreNotTracked() {
+    SourceRateLimiter limiter = new SourceRateLimiter(10, 5, 1024);
+    long now = 1000 * SECOND;
+    for(int i=0; i<500; i++) {
+      long key = SourceRateLimiter.key(0x0a000000 + i, 5000);
+      assertTrue(limiter.tryAcquire(key, now));
+      assertTrue(limiter.tryAcquire(key, now));
+    }
+    assertEquals(0, limiter.getTrackedSources());
+  }
+
+  @Test
+  public void floodOfSourcesIsBounded() {
+    SourceRateLimiter limiter = new SourceRateLimiter(10, 5, 256);
+    assertEquals(256, limiter.getMaxSources());
+    long heavy = SourceRateLimiter.key(0x0a000001, 5000);
+    long now = 1000 * SECOND;
+    while(limiter.tryAcquire(heavy, now)) {
+      // drain the burst
+    }
+    for(int i=0; i<100000; i++) {
+      limiter.tryAcquire(SourceRateLimiter.key(0xc0a80000 + i, i), now);
+      // a few repeat senders among them
+      if(i % 1000 == 0) {
+        for(int j=0; j<10; j++) {
+          limiter.tryAcquire(SourceRateLimiter.key(0x0b000000 + i, 1), now);
+        }
+      }
+    }
+    assertTrue(limiter.getTrackedSources() <= limiter.getMaxSources());
+    // the flood did not push out the source being limited
+    assertFalse(limiter.tryAcquire(heavy, now));
+  }
+
+  @Test
+  public void keys() throws Exception {
+    InetSocketAddress v4 = new InetSocketAddress("10.0.0.1", 5000);
+    assertEquals(SourceRateLimiter.key(0x0a000001, 5000), SourceRateLimiter.key(v4));
+    assertNotEquals(SourceRateLimiter.key(0x0a000001, 5001), SourceRateLimiter.key(v4));
+    assertEquals(SourceRateLimiter.key(0xc0a80001, 5000),
+                 SourceRateLimiter.key(new InetSocketAddress("192.168.0.1", 5000)));
+    assertNotEquals(SourceRateLimiter.key(0x0a000001, 0), SourceRateLimiter.key(0x0a000002, 0));
+    long v6 = SourceRateLimiter.key(new InetSocketAddress("fd00::1", 5000));
+    assertEquals(SourceRateLimiter.key(0xfd00000000000000L, 1, 5000), v6);
+    assertNotEquals(SourceRateLimiter.key(new InetSocketAddress("fd00::2", 5000)), v6);
+    assertTrue(v6 < 0);
+    assertTrue(SourceRateLimiter.key(v4) > 0);
+
+    try {
+      new SourceRateLimiter(0, 5, 64);
+      fail();
+    } catch(IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      new SourceRateLimiter(10, 5, 4);
+      fail();
+    } catch(IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void concurrentTakes() throws Exception {
+    SourceRateLimiter limiter = new SourceRateLimiter(1, 100, 64);
+    long key = SourceRateLimiter.key(0x0a000001, 5000);
+    long now = System.nanoTime();
+    while(limiter.tryAcquire(key, now)) {
+      // get the source a bucket
+    }
+    // long enough to refill the bucket
+    long later = now + 100 * SECOND;
+    AtomicInteger allowed = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    for(int i=0; i<4; i++) {
+      Thread t = new Thread(() -> {
+        for(int j=0; j<10000; j++) {
+          if(limiter.tryAcquire(key, later)) {
+            allowed.incrementAndGet();
+          }
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    for(Thread t: threads) {
+      t.join();
+    }
+    assertEquals(100, allowed.get());
+  }
+}
@@ -0,0 +1,139 @@
+package org.threadly.litesockets.protocols.stun;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Holds the hot paths to the bytes they allocate per call, so a change that starts allocating on
+ * them fails here.  Budgets that are not 0 are what the path allocates today on a 64 bit JVM with
+ * compressed oops, with some room for other JVMs.
+ */
+public class StunAllocationTests {
+  private static final byte[] KEY = "password".getBytes();
+  private static final int WARMUP_CALLS = 20000;
+  private static final int MEASURED_CALLS = 5000;
+  private static final int ROUNDS = 5;
+
+  private StunPacketBuilder builder;
+  private ByteBuffer packet;
+  private StunPacket parsed;
+  private StunPacketDecoder decoder;
+
+  @Before
+  public void setup() throws StunProtocolException {
+    builder = new StunPacketBuilder().setType(StunMessageType.REQUEST)
+                                     .setUsername(ByteBuffer.wrap("remote:local".getBytes()))
+                                     .setAttribute(StunAttribute.PRIORITY, ByteBuffer.allocate(4).putInt(0, 12345))
+                                     .setAttribute(StunAttribute.USE_CANDIDATE, ByteBuffer.allocate(0))
+                                     .setKey(KEY).enableFingerPrint();
+    packet = ByteBuffer.allocate(builder.getEncodedSize());
+    builder.writeTo(packet);
+    packet.flip();
+    parsed = new StunPacket(packet);
+    decoder = new StunPacketDecoder();
+    decoder.wrap(packet);
+  }
+
+  @Test
+  public void decode() throws Exception {
+    assertWithin("StunPacketDecoder.wrap", 0, () -> decoder.wrap(packet));
+  }
+
+  @Test
+  public void parse() throws Exception {
+    assertWithin("new StunPacket", 512, () -> new StunPacket(packet));
+    assertWithin("StunPacket.getAttribute", 160, () -> parsed.getAttribute(StunAttribute.USERNAME));
+  }
+
+  @Test
+  public void build() throws Exception {
+    ByteBuffer heap = ByteBuffer.allocate(1500);
+    assertWithin("StunPacketBuilder.writeTo heap", 0, () -> builder.writeTo((ByteBuffer)heap.clear()));
+    // the CRC of a direct buffer is taken over a duplicate
+    ByteBuffer direct = ByteBuffer.allocateDirect(1500);
+    assertWithin("StunPacketBuilder.writeTo direct", 128, () -> builder.writeTo((ByteBuffer)direct.clear()));
+    assertWithin("StunPacketBuilder.build", 1024, () -> builder.build());
+  }
+
+  @Test
+  public void verify() throws Exception {
+    StunIntegrityEngine engine = StunIntegrityEngine.getDefault();
+    assertWithin("verifyMessageIntegerity decoder", 0, () -> engine.verifyMessageIntegerity(decoder, KEY));
+    assertWithin("verifyMessageIntegerity packet", 0, () -> engine.verifyMessageIntegerity(parsed, KEY));
+    assertWithin("verifyFingerPrint decoder", 0, () -> StunUtils.verifyFingerPrint(decoder));
+    assertWithin("verifyFingerPrint packet", 0, () -> StunUtils.verifyFingerPrint(parsed));
+  }
+
+  @Test
+  public void respond() throws Exception {
+    BindingResponseWriter writer = new BindingResponseWriter();
+    ByteBuffer buf = ByteBuffer.allocate(256);
+    StunPacketDecoder request = new StunPacketDecoder();
+    InetSocketAddress mapped = new InetSocketAddress("10.0.0.1", 5000);
+    assertWithin("BindingResponseWriter.rewrite", 0, () -> {
+      buf.clear();
+      buf.put(packet.array(), 0, packet.limit()).flip();
+      request.wrap(buf);
+      writer.rewrite(request, mapped, KEY, true);
+    });
+  }
+
+  private interface Operation {
+    void run() throws Exception;
+  }
+
+  private static com.sun.management.ThreadMXBean threadBean() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+    assumeTrue(sunBean.isThreadAllocatedMemorySupported());
+    sunBean.setThreadAllocatedMemoryEnabled(true);
+    return sunBean;
+  }
+
+  /**
+   * Returns the bytes allocated per call once the operation is warmed up.  The lowest of several
+   * rounds is used, so a round that happened to load a class or resize a map does not count.
+   *
+   * @param op the operation to measure.
+   * @return the bytes allocated per call.
+   * @throws Exception if the operation throws.
+   */
+  private static long bytesPerCall(Operation op) throws Exception {
+    com.sun.management.ThreadMXBean bean = threadBean();
+    long threadId = Thread.currentThread().getId();
+    for(int i=0; i<WARMUP_CALLS; i++) {
+      op.run();
+    }
+    long best = Long.MAX_VALUE;
+    for(int r=0; r<ROUNDS; r++) {
+      long start = bean.getThreadAllocatedBytes(threadId);
+      for(int i=0; i<MEASURED_CALLS; i++) {
+        op.run();
+      }
+      long allocated = bean.getThreadAllocatedBytes(threadId) - start;
+      best = Math.min(best, allocated / MEASURED_CALLS);
+    }
+    return best;
+  }
+
+  /**
+   * Fails if the operation allocates more than the budget per call.
+   *
+   * @param name what is measured, for the failure message.
+   * @param budget the most bytes a call may allocate.
+   * @param op the operation to measure.
+   * @throws Exception if the operation throws.
+   */
+  private static void assertWithin(String name, long budget, Operation op) throws Exception {
+    long bytes = bytesPerCall(op);
+    assertTrue(name+" allocated "+bytes+" bytes per call, budget is "+budget, bytes <= budget);
+  }
+}
@@ -0,0 +1,228 @@
+package org.threadly.litesockets.protocols.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class StunClientTransactionTests {
+  private static final InetSocketAddress DEST = new InetSocketAddress("127.0.0.1", 3478);
+
+  private static class RecordingTask extends TimingWheel.Task {
+    private final List<String> log;
+    private final String name;
+
+    RecordingTask(List<String> log, String name) {
+      this.log = log;
+      this.name = name;
+    }
+
+    @Override
+    protected void expired() {
+      log.add(name);
+    }
+  }
+
+  @Test
+  public void timingWheelOrder() {
+    List<String> log = new ArrayList<>();
+    TimingWheel tw = new TimingWheel(10, 8, 1000);
+    RecordingTask a = new RecordingTask(log, "a");
+    RecordingTask b = new RecordingTask(log, "b");
+    RecordingTask c = new RecordingTask(log, "c");
+    RecordingTask d = new RecordingTask(log, "d");
+    tw.schedule(a, 15);
+    tw.schedule(b, 50);
+    // past a full rotation of the wheel
+    tw.schedule(c, 250);
+    tw.schedule(d, 40);
+    assertEquals(4, tw.size());
+    assertTrue(d.cancel());
+    assertFalse(d.cancel());
+    assertEquals(0, tw.advance(1010));
+    assertEquals(1, tw.advance(1020));
+    assertEquals(1, tw.advance(1100));
+    assertEquals(0, tw.advance(1200));
+    assertEquals(1, tw.advance(1250));
+    assertEquals(0, tw.size());
+    assertEquals("[a, b, c]", log.toString());
+    assertEquals(1250, tw.getCurrentMillis());
+
+    // tasks can be scheduled again once run
+    tw.schedule(a, 10);
+    assertTrue(a.isScheduled());
+    assertEquals(1, tw.advance(10000));
+    assertFalse(a.isScheduled());
+  }
+
+  @Test
+  public void timingWheelRescheduleFromTask() {
+    TimingWheel tw = new TimingWheel(1, 16, 0);
+    int[] runs = new int[1];
+    TimingWheel.Task t = new TimingWheel.Task() {
+      @Override
+      protected void expired() {
+        if(++runs[0] < 5) {
+          tw.schedule(this, 1);
+        }
+      }
+    };
+    tw.schedule(t, 1);
+    for(int i=1; i<=10; i++) {
+      tw.advance(i);
+    }
+    assertEquals(5, runs[0]);
+
+    // a task due on the same tick can be rescheduled by another before it runs
+    List<String> log = new ArrayList<>();
+    RecordingTask a = new RecordingTask(log, "a");
+    RecordingTask b = new RecordingTask(log, "b");
+    TimingWheel.Task c = new TimingWheel.Task() {
+      @Override
+      protected void expired() {
+        log.add("c");
+        if(!a.isScheduled()) {
+          tw.schedule(a, 1);
+        }
+        if(!b.isScheduled()) {
+          tw.schedule(b, 1);
+        }
+      }
+    };
+    tw.schedule(c, 1);
+    tw.schedule(a, 1);
+    tw.schedule(b, 1);
+    assertEquals(3, tw.advance(11));
+    assertEquals("[c, a, b]", log.toString());
+    assertEquals(2, tw.size());
+    assertEquals(2, tw.advance(12));
+    assertEquals(5, log.size());
+  }
+
+  @Test
+  public void retransmitAndTimeout() throws Exception {
+    List<ByteBuffer> sent = new ArrayList<>();
+    long start = StunClientTransactionManager.currentTimeMillis();
+    StunClientTransactionManager stm =
+        new StunClientTransactionManager((bb, dest) -> sent.add(bb), null, 100, 3, 2);
+    StunPacket request = new StunPacketBuilder().build();
+    CompletableFuture<StunPacket> f = stm.sendRequest(request, DEST);
+    assertEquals(1, sent.size());
+    assertEquals(request.getBytes(), sent.get(0));
+    stm.tick(start + 50);
+    assertEquals(1, sent.size());
+    stm.tick(start + 150);
+    assertEquals(2, sent.size());
+    stm.tick(start + 250);
+    assertEquals(2, sent.size());
+    stm.tick(start + 380);
+    assertEquals(3, sent.size());
+    // Rm * RTO after the last transmission
+    stm.tick(start + 450);
+    assertFalse(f.isDone());
+    stm.tick(start + 650);
+    assertEquals(3, sent.size());
+    assertTrue(f.isCompletedExceptionally());
+    assertEquals(0, stm.getOutstandingCount());
+    try {
+      f.get();
+      fail();
+    } catch(ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+  }
+
+  @Test
+  public void responseCompletesTransaction() throws Exception {
+    List<ByteBuffer> sent = new ArrayList<>();
+    long start = StunClientTransactionManager.currentTimeMillis();
+    StunClientTransactionManager stm =
+        new StunClientTransactionManager((bb, dest) -> sent.add(bb), null, 100, 7, 16);
+    StunPacket request = new StunPacketBuilder().build();
+    CompletableFuture<StunPacket> f = stm.sendRequest(request, DEST);
+    StunPacket other = new StunPacketBuilder().setType(StunMessageType.SUCCESS).build();
+    assertFalse(stm.handleResponse(other));
+    // a request with the same id is not a response
+    assertFalse(stm.handleResponse(request));
+    StunPacket response = new StunPacketBuilder().setType(StunMessageType.SUCCESS)
+                                                 .setTxID(request.getTxID()).build();
+    assertTrue(stm.handleResponse(response));
+    assertEquals(response, f.get());
+    assertEquals(0, stm.getOutstandingCount());
+    assertFalse(stm.handleResponse(response));
+    stm.tick(start + 10000);
+    assertEquals(1, sent.size());
+  }
+
+  @Test
+  public void cancelStopsRetransmits() throws Exception {
+    List<ByteBuffer> sent = new ArrayList<>();
+    long start = StunClientTransactionManager.currentTimeMillis();
+    StunClientTransactionManager stm =
+        new StunClientTransactionManager((bb, dest) -> sent.add(bb), null, 100, 7, 16);
+    CompletableFuture<StunPacket> f = stm.sendRequest(new StunPacketBuilder().build(), DEST);
+    f.cancel(false);
+    stm.tick(start + 150);
+    assertEquals(1, sent.size());
+    assertEquals(0, stm.getOutstandingCount());
+  }
+
+  @Test
+  public void sendFailureFailsTransaction() throws Exception {
+    StunClientTransactionManager stm = new StunClientTransactionManager((bb, dest) -> {
+      throw new IOException("unreachable");
+    }, null, 100, 7, 16);
+    CompletableFuture<StunPacket> f = stm.sendRequest(new StunPacketBuilder().build(), DEST);
+    assertTrue(f.isCompletedExceptionally());
+    assertEquals(0, stm.getOutstandingCount());
+  }
+
+  @Test
+  public void manyTransactionsWithScheduler() throws Exception {
+    ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor();
+    try {
+      StunClientTransactionManager stm = new StunClientTransactionManager((bb, dest) -> { }, ses, 100, 2, 2);
+      List<CompletableFuture<StunPacket>> answered = new ArrayList<>();
+      List<CompletableFuture<StunPacket>> unanswered = new ArrayList<>();
+      for(int i=0; i<10000; i++) {
+        StunPacket request = new StunPacketBuilder().build();
+        if(i % 2 == 0) {
+          answered.add(stm.sendRequest(request, DEST));
+          stm.handleResponse(new StunPacketBuilder().setType(StunMessageType.SUCCESS)
+                                                    .setTxID(request.getTxID()).build());
+        } else {
+          unanswered.add(stm.sendRequest(request, DEST));
+        }
+      }
+      for(CompletableFuture<StunPacket> f: answered) {
+        assertEquals(StunMessageType.SUCCESS, f.get(5, TimeUnit.SECONDS).getMessageType());
+      }
+      for(CompletableFuture<StunPacket> f: unanswered) {
+        try {
+          f.get(5, TimeUnit.SECONDS);
+          fail();
+        } catch(ExecutionException e) {
+          assertTrue(e.getCause() instanceof TimeoutException);
+        }
+      }
+      assertEquals(0, stm.getOutstandingCount());
+      stm.shutdown();
+    } finally {
+      ses.shutdownNow();
+    }
+  }
+}
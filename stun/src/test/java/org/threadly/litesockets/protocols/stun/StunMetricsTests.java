@@ -0,0 +1,122 @@
+package org.threadly.litesockets.protocols.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class StunMetricsTests {
+  private static final byte[] KEY = "password".getBytes();
+
+  @After
+  public void uninstall() {
+    StunUtils.setMetrics(null);
+  }
+
+  @Test
+  public void noOpByDefault() {
+    assertSame(StunMetrics.NO_OP, StunUtils.getMetrics());
+  }
+
+  @Test
+  public void recordsParsingAndVerifying() throws Exception {
+    StunMetricsRecorder recorder = new StunMetricsRecorder();
+    StunUtils.setMetrics(recorder);
+    StunPacket request = new StunPacketBuilder().setType(StunMessageType.REQUEST)
+                                                .setUsername(ByteBuffer.wrap("user".getBytes()))
+                                                .setKey(KEY).enableFingerPrint().build();
+    StunPacketDecoder decoder = new StunPacketDecoder();
+    assertTrue(decoder.wrap(request.getBytes()));
+    assertTrue(StunIntegrityEngine.getDefault().verifyMessageIntegerity(decoder, KEY));
+    assertFalse(StunUtils.verifyMessageIntegerity(request, "wrong".getBytes()));
+    assertTrue(StunUtils.verifyFingerPrint(decoder));
+    assertFalse(decoder.wrap(ByteBuffer.allocate(10)));
+    try {
+      new StunPacket(ByteBuffer.allocate(24));
+      fail();
+    } catch(StunProtocolException e) {
+      // expected
+    }
+
+    StunMetricsSnapshot snapshot = recorder.snapshot();
+    // build() parses the packet it encoded
+    assertEquals(2, snapshot.getParsedCount(StunMessageType.REQUEST));
+    assertEquals(0, snapshot.getParsedCount(StunMessageType.SUCCESS));
+    assertEquals(1, snapshot.getBuiltCount(StunMessageType.REQUEST));
+    assertEquals(2, snapshot.getAttributeCount(StunAttribute.USERNAME));
+    assertEquals(2, snapshot.getAttributeCount(StunAttribute.FINGERPRINT));
+    assertEquals(0, snapshot.getAttributeCount(StunAttribute.PRIORITY));
+    assertEquals(1, snapshot.getParseFailureCount(StunValidationResult.TOO_SHORT));
+    assertEquals(1, snapshot.getParseFailureCount(StunValidationResult.BAD_MAGIC_COOKIE));
+    assertEquals(1, snapshot.getIntegrityValidCount());
+    assertEquals(1, snapshot.getIntegrityInvalidCount());
+    assertEquals(1, snapshot.getFingerprintValidCount());
+    assertEquals(0, snapshot.getFingerprintInvalidCount());
+    assertEquals(4, snapshot.getParseLatency().getCount());
+    assertEquals(1, snapshot.getBuildLatency().getCount());
+    assertEquals(2, snapshot.getIntegrityLatency().getCount());
+    assertEquals(1, snapshot.getFingerprintLatency().getCount());
+
+    Map<String, Long> exported = snapshot.toMap();
+    assertEquals(Long.valueOf(2), exported.get("stun.parsed.REQUEST"));
+    assertEquals(Long.valueOf(1), exported.get("stun.parse_failures.TOO_SHORT"));
+    assertEquals(Long.valueOf(1), exported.get("stun.integrity.invalid"));
+    assertEquals(Long.valueOf(2), exported.get("stun.latency.integrity.count"));
+    assertFalse(exported.containsKey("stun.parsed.SUCCESS"));
+
+    // nothing is recorded once uninstalled
+    StunUtils.setMetrics(null);
+    decoder.wrap(request.getBytes());
+    assertEquals(2, recorder.snapshot().getParsedCount(StunMessageType.REQUEST));
+  }
+
+  @Test
+  public void recordsInPlaceResponses() throws Exception {
+    StunMetricsRecorder recorder = new StunMetricsRecorder();
+    StunUtils.setMetrics(recorder);
+    ByteBuffer bb = ByteBuffer.allocate(256);
+    bb.put(new StunPacketBuilder().build().getBytes()).flip();
+    StunPacketDecoder decoder = new StunPacketDecoder();
+    decoder.wrap(bb);
+    new BindingResponseWriter().rewrite(decoder, new InetSocketAddress("10.0.0.1", 5000), KEY, true);
+    assertEquals(1, recorder.snapshot().getBuiltCount(StunMessageType.SUCCESS));
+  }
+
+  @Test
+  public void histogramBuckets() {
+    for(long v : new long[] {0, 1, 3, 4, 7, 8, 9, 10, 100, 1000, 123456789, Long.MAX_VALUE}) {
+      int bucket = LatencyHistogram.bucketFor(v);
+      assertTrue(v+" in "+bucket, LatencyHistogram.lowerBound(bucket) <= v && v <= LatencyHistogram.upperBound(bucket));
+    }
+    for(int i=1; i<LatencyHistogram.BUCKET_COUNT; i++) {
+      assertEquals(LatencyHistogram.upperBound(i - 1) + 1, LatencyHistogram.lowerBound(i));
+    }
+    assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketFor(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void histogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.snapshot().getPercentile(99));
+    for(int i=1; i<=1000; i++) {
+      histogram.record(i * 1000);
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(1000, snapshot.getCount());
+    assertEquals(500500, snapshot.getMean(), 0.001);
+    long p50 = snapshot.getPercentile(50);
+    assertTrue("p50 "+p50, p50 >= 500000 && p50 <= 500000 * 5 / 4);
+    long p99 = snapshot.getPercentile(99);
+    assertTrue("p99 "+p99, p99 >= 990000 && p99 <= 990000 * 5 / 4);
+    long max = snapshot.getMax();
+    assertTrue("max "+max, max >= 1000000 && max <= 1000000 * 5 / 4);
+  }
+}
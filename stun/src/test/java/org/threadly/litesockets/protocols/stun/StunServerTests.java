@@ -0,0 +1,117 @@
+package org.threadly.litesockets.protocols.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StunServerTests {
+  private static final byte[] KEY = "VOkJxbRl1RmTxUk/WvJxBt".getBytes();
+
+  private StunServer server;
+  private DatagramSocket client;
+
+  @Before
+  public void setup() throws Exception {
+    server = new StunServer(new InetSocketAddress("127.0.0.1", 0), 4);
+    client = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+    client.setSoTimeout(5000);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+    client.close();
+  }
+
+  private StunPacket roundTrip(StunPacket request) throws Exception {
+    ByteBuffer bb = request.getBytes();
+    byte[] ba = StunUtils.BBToBA(bb);
+    client.send(new DatagramPacket(ba, ba.length, server.getLocalAddress()));
+    DatagramPacket dp = new DatagramPacket(new byte[1500], 1500);
+    client.receive(dp);
+    return new StunPacket(ByteBuffer.wrap(dp.getData(), 0, dp.getLength()));
+  }
+
+  @Test
+  public void bindingRequests() throws Exception {
+    server.start();
+    for(int i=0; i<1000; i++) {
+      StunPacket request = new StunPacketBuilder().build();
+      StunPacket response = roundTrip(request);
+      assertEquals(StunMessageType.SUCCESS, response.getMessageType());
+      assertEquals(request.getTxID(), response.getTxID());
+      assertEquals(client.getLocalSocketAddress(), response.getAddress());
+      assertTrue(StunUtils.verifyFingerPrint(response));
+    }
+    // the counter is bumped after the send, so the last response can beat it
+    long deadline = System.currentTimeMillis() + 5000;
+    while(server.getResponsesSent() < 1000 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertEquals(1000, server.getResponsesSent());
+  }
+
+  @Test
+  public void bindingRequestsWithIntegrity() throws Exception {
+    server.setKeyLookup((username) -> "user:peer".equals(new String(StunUtils.BBToBA(username))) ? KEY : null);
+    server.start();
+    StunPacket request = new StunPacketBuilder().setUsername(ByteBuffer.wrap("user:peer".getBytes()))
+                                                .setKey(KEY).enableFingerPrint().build();
+    StunPacket response = roundTrip(request);
+    assertEquals(request.getTxID(), response.getTxID());
+    assertTrue(StunUtils.verifyMessageIntegerity(response, KEY));
+    assertTrue(StunUtils.verifyFingerPrint(response));
+
+    // wrong key is dropped
+    request = new StunPacketBuilder().setUsername(ByteBuffer.wrap("user:peer".getBytes()))
+                                     .setKey("wrong".getBytes()).build();
+    client.setSoTimeout(200);
+    try {
+      roundTrip(request);
+      fail();
+    } catch(SocketTimeoutException e) {
+      // expected
+    }
+    assertEquals(1, server.getResponsesSent());
+  }
+
+  @Test
+  public void rateLimited() throws Exception {
+    server.setRateLimiter(new SourceRateLimiter(1, 10, 64));
+    server.start();
+    client.setSoTimeout(200);
+    int answered = 0;
+    try {
+      while(answered < 100) {
+        assertEquals(StunMessageType.SUCCESS, roundTrip(new StunPacketBuilder().build()).getMessageType());
+        answered++;
+      }
+      fail();
+    } catch(SocketTimeoutException e) {
+      // expected
+    }
+    // the burst untracked, then a full bucket
+    assertTrue("answered "+answered, answered >= 20 && answered <= 30);
+    assertEquals(1, server.getPacketsRateLimited());
+    assertEquals(answered, server.getResponsesSent());
+  }
+
+  @Test
+  public void stopAndRestart() throws Exception {
+    server.start();
+    assertTrue(server.isRunning());
+    server.stop();
+    server.start();
+    assertEquals(StunMessageType.SUCCESS, roundTrip(new StunPacketBuilder().build()).getMessageType());
+  }
+}
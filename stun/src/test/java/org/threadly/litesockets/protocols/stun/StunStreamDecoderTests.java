@@ -0,0 +1,211 @@
+package org.threadly.litesockets.protocols.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.threadly.litesockets.protocols.stun.StunStreamDecoder.Framing;
+
+public class StunStreamDecoderTests {
+  private final DirectBufferPool pool = new DirectBufferPool(1024, 4, true);
+  private final List<ByteBuffer> messages = new ArrayList<>();
+  private final List<ByteBuffer> views = new ArrayList<>();
+
+  private StunStreamDecoder newDecoder(Framing framing) {
+    return new StunStreamDecoder(framing, pool, (bb) -> {
+      views.add(bb);
+      ByteBuffer copy = ByteBuffer.allocate(bb.remaining());
+      copy.put(bb).flip();
+      messages.add(copy);
+    });
+  }
+
+  private static ByteBuffer stun(int attributeSize) throws StunProtocolException {
+    StunPacketBuilder spb = new StunPacketBuilder().setType(StunMessageType.INDICATION);
+    if(attributeSize > 0) {
+      spb.setAttribute(StunAttribute.DATA, ByteBuffer.wrap(new byte[attributeSize]));
+    }
+    return spb.build().getBytes();
+  }
+
+  private static ByteBuffer channelData(int channel, int length) {
+    ByteBuffer bb = ByteBuffer.allocate(4 + length);
+    bb.putShort((short)channel).putShort((short)length);
+    for(int i=0; i<length; i++) {
+      bb.put((byte)i);
+    }
+    bb.flip();
+    return bb;
+  }
+
+  private static ByteBuffer concat(List<ByteBuffer> parts, boolean pad, boolean prefix) {
+    int size = 0;
+    for(ByteBuffer part : parts) {
+      size += part.remaining() + 5;
+    }
+    ByteBuffer stream = ByteBuffer.allocate(size);
+    for(ByteBuffer part : parts) {
+      if(prefix) {
+        stream.putShort((short)part.remaining());
+      }
+      stream.put(part.duplicate());
+      while(pad && (stream.position() & 3) != 0) {
+        stream.put((byte)0);
+      }
+    }
+    stream.flip();
+    return stream;
+  }
+
+  @Test
+  public void contiguousMessagesAreNotCopied() throws StunProtocolException {
+    List<ByteBuffer> sent = new ArrayList<>();
+    sent.add(stun(0));
+    sent.add(channelData(0x4001, 5));
+    sent.add(stun(100));
+    ByteBuffer stream = concat(sent, true, false);
+    StunStreamDecoder decoder = newDecoder(Framing.STUN);
+    assertEquals(3, decoder.feed(stream));
+    assertFalse(stream.hasRemaining());
+    assertEquals(sent, messages);
+    for(ByteBuffer view : views) {
+      assertSame(stream, view);
+    }
+    assertEquals(0, decoder.getBufferedBytes());
+    assertEquals(0, pool.getOutstandingCount());
+  }
+
+  @Test
+  public void splitMessages() throws StunProtocolException {
+    List<ByteBuffer> sent = new ArrayList<>();
+    sent.add(stun(8));
+    sent.add(channelData(0x4002, 3));
+    sent.add(stun(0));
+    ByteBuffer stream = concat(sent, true, false);
+    StunStreamDecoder decoder = newDecoder(Framing.STUN);
+    int count = 0;
+    while(stream.hasRemaining()) {
+      ByteBuffer one = ByteBuffer.allocate(1);
+      one.put(stream.get()).flip();
+      count += decoder.feed(one);
+    }
+    assertEquals(3, count);
+    assertEquals(sent, messages);
+    for(ByteBuffer view : views) {
+      assertTrue(view.isDirect());
+    }
+    // the buffer for split messages is kept until closed
+    assertEquals(1, pool.getOutstandingCount());
+    decoder.close();
+    pool.checkLeaks();
+  }
+
+  @Test
+  public void randomReads() throws StunProtocolException {
+    Random random = new Random(42);
+    List<ByteBuffer> sent = new ArrayList<>();
+    for(int i=0; i<200; i++) {
+      if(random.nextBoolean()) {
+        sent.add(stun(random.nextInt(3) * random.nextInt(400)));
+      } else {
+        sent.add(channelData(0x4000 + i, random.nextInt(1500)));
+      }
+    }
+    ByteBuffer stream = concat(sent, true, false);
+    StunStreamDecoder decoder = newDecoder(Framing.STUN);
+    int count = 0;
+    boolean copied = false;
+    boolean viewed = false;
+    while(stream.hasRemaining()) {
+      int end = Math.min(stream.limit(), stream.position() + 1 + random.nextInt(3000));
+      ByteBuffer read = stream.duplicate();
+      read.limit(end);
+      stream.position(end);
+      count += decoder.feed(read);
+      for(ByteBuffer view : views) {
+        copied |= view != read;
+        viewed |= view == read;
+      }
+      views.clear();
+    }
+    assertEquals(sent.size(), count);
+    assertEquals(sent, messages);
+    assertTrue(copied && viewed);
+    decoder.close();
+    pool.checkLeaks();
+  }
+
+  @Test
+  public void rfc4571() throws StunProtocolException {
+    List<ByteBuffer> sent = new ArrayList<>();
+    sent.add(stun(0));
+    // RTP and DTLS travel on the same connection, and need no padding
+    sent.add(ByteBuffer.wrap(new byte[] {(byte)0x80, 0, 1, 2, 3}));
+    sent.add(ByteBuffer.allocate(0));
+    sent.add(ByteBuffer.wrap(new byte[] {22, 1, 2}));
+    ByteBuffer stream = concat(sent, false, true);
+    StunStreamDecoder decoder = newDecoder(Framing.RFC4571);
+    ByteBuffer first = stream.duplicate();
+    first.limit(21);
+    stream.position(21);
+    assertEquals(0, decoder.feed(first));
+    assertEquals(21, decoder.getBufferedBytes());
+    assertEquals(3, decoder.feed(stream));
+    sent.remove(2);
+    assertEquals(sent, messages);
+    assertNotSame(stream, views.get(0));
+    assertSame(stream, views.get(1));
+    decoder.close();
+    pool.checkLeaks();
+  }
+
+  @Test
+  public void listenerMovingTheBuffer() throws StunProtocolException {
+    List<ByteBuffer> sent = new ArrayList<>();
+    sent.add(stun(4));
+    sent.add(stun(12));
+    ByteBuffer stream = concat(sent, true, false);
+    StunStreamDecoder decoder = new StunStreamDecoder(Framing.STUN, pool, (bb) -> {
+      messages.add(ByteBuffer.allocate(bb.remaining()).put(bb.duplicate()));
+      bb.position(bb.limit()).limit(bb.capacity());
+    });
+    assertEquals(2, decoder.feed(stream));
+    assertEquals(2, messages.size());
+    assertEquals(sent.get(1).remaining(), messages.get(1).capacity());
+  }
+
+  @Test
+  public void garbage() throws StunProtocolException {
+    StunStreamDecoder decoder = newDecoder(Framing.STUN);
+    try {
+      decoder.feed(ByteBuffer.wrap(new byte[] {(byte)0x80, 0, 0, 4}));
+      fail();
+    } catch(StunProtocolException e) {
+      // expected
+    }
+    decoder = newDecoder(Framing.STUN);
+    assertEquals(0, decoder.feed(ByteBuffer.wrap(new byte[] {0, 1})));
+    try {
+      decoder.feed(ByteBuffer.wrap(new byte[] {0, 6}));
+      fail();
+    } catch(StunProtocolException e) {
+      // expected
+    }
+    decoder.close();
+    pool.checkLeaks();
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void nullListener() {
+    new StunStreamDecoder(Framing.STUN, pool, null);
+  }
+}
@@ -5,10 +5,14 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ThreadLocalRandom;
@@ -284,7 +288,7 @@ public class StunTests {
       StunPacket sp2 = new StunPacket(sp.getBytes());
       assertEquals(sp.getMessageType(), sp2.getMessageType());
       assertEquals(sp.getTxID(), sp2.getTxID());
-      assertEquals(sp.getAddress(), sp2.getAddress());
+      assertEquals(isa, sp2.getAddress());
       assertTrue(StunUtils.isStunPacket(sp.getBytes()));
       assertTrue(StunUtils.isStunPacket(sp2.getBytes()));
     }
@@ -328,7 +332,7 @@ public class StunTests {
       StunPacket sp2 = new StunPacket(sp.getBytes());
       assertEquals(sp.getMessageType(), sp2.getMessageType());
       assertEquals(sp.getTxID(), sp2.getTxID());
-      assertEquals(sp.getAddress(), sp2.getAddress());
+      assertEquals(isa, sp2.getAddress());
       assertTrue(StunUtils.isStunPacket(sp.getBytes()));
       assertTrue(StunUtils.isStunPacket(sp2.getBytes()));
     }
@@ -363,7 +367,7 @@ public class StunTests {
       StunPacket sp2 = new StunPacket(sp.getBytes());
       assertEquals(sp.getMessageType(), sp2.getMessageType());
       assertEquals(sp.getTxID(), sp2.getTxID());
-      assertEquals(sp.getAddress(), sp2.getAddress());
+      assertEquals(isa, sp2.getAddress());
       assertTrue(StunUtils.isStunPacket(sp.getBytes()));
       assertTrue(StunUtils.isStunPacket(sp2.getBytes()));
     }
@@ -401,7 +405,7 @@ public class StunTests {
       assertTrue(StunUtils.verifyFingerPrint(sp));
       assertEquals(sp.getMessageType(), sp2.getMessageType());
       assertEquals(sp.getTxID(), sp2.getTxID());
-      assertEquals(sp.getAddress(), sp2.getAddress());
+      assertEquals(isa, sp2.getAddress());
       assertTrue(StunUtils.isStunPacket(sp.getBytes()));
       assertTrue(StunUtils.isStunPacket(sp2.getBytes()));
     }
@@ -423,12 +427,297 @@ public class StunTests {
     assertTrue(StunUtils.isStunPacket(sbb.build().getBytes()));
     assertFalse(StunUtils.isStunPacket(ByteBuffer.wrap(new byte[4])));
     ByteBuffer bb = ByteBuffer.wrap(new byte[8]);
-    bb.putShort((short)4);
+    bb.putShort((short)2);
     bb.position(0);
     assertFalse(StunUtils.isStunPacket(bb));
     assertEquals(txID,sbb.build().getTxID());
   }
 
+  @Test
+  public void testTransactionID() throws Exception {
+    byte[] ba = new byte[12];
+    ThreadLocalRandom.current().nextBytes(ba);
+    ByteBuffer bb = ByteBuffer.wrap(ba);
+    TransactionID tid = new TransactionID(ba.clone());
+    assertEquals(tid, new TransactionID(bb.getInt(0), bb.getInt(4), bb.getInt(8)));
+    assertEquals(tid, new TransactionID(bb.getLong(0), bb.getInt(8)));
+    assertEquals(tid, TransactionID.read(bb, 0));
+    assertEquals(tid.hashCode(), TransactionID.read(bb, 0).hashCode());
+    assertTrue(tid.matches(bb.getInt(0), bb.getInt(4), bb.getInt(8)));
+    assertFalse(tid.matches(bb.getInt(0), bb.getInt(4), bb.getInt(8) + 1));
+    assertEquals(bb, tid.getByteBuffer());
+    assertEquals(ByteBuffer.wrap(ba), ByteBuffer.wrap(tid.getArray()));
+
+    // the primitive xor helpers agree with the byte[] version
+    byte[] ip6 = InetAddress.getByName("2001:db8:1234:5678:11:2233:4455:6677").getAddress();
+    ByteBuffer masked = ByteBuffer.wrap(tid.unmaskAddress(ip6));
+    ByteBuffer ip6bb = ByteBuffer.wrap(ip6);
+    assertEquals(masked.getLong(0), tid.xorIPv6High(ip6bb.getLong(0)));
+    assertEquals(masked.getLong(8), tid.xorIPv6Low(ip6bb.getLong(8)));
+    assertEquals(ByteBuffer.wrap(ip6), ByteBuffer.wrap(tid.unmaskAddress(masked.array())));
+
+    // the builder takes the id as primitives too
+    InetSocketAddress isa = new InetSocketAddress(InetAddress.getByAddress(ip6), 5000);
+    StunPacket sp = new StunPacketBuilder().setTxID(tid.getHigh(), tid.getLow())
+                                           .setXorMappedAddress(isa).build();
+    assertEquals(tid, sp.getTxID());
+    assertEquals(isa, sp.getAddress(StunAttribute.XOR_MAPPED_ADDRESS));
+
+    // ids that only differ past the first 4 bytes still spread over the buckets
+    boolean[] buckets = new boolean[1024];
+    int used = 0;
+    for(int i=0; i<1024; i++) {
+      int b = new TransactionID(0x01020304, 0, i).hashCode() & 1023;
+      if(!buckets[b]) {
+        buckets[b] = true;
+        used++;
+      }
+    }
+    assertTrue(used > 512);
+  }
+
+  @Test
+  public void testPrimitiveAddresses() throws Exception {
+    // RFC 5769 sample responses
+    StunPacket sp = new StunPacket(SAMPLE_STUN_RESP1);
+    assertEquals(1, sp.getAddressFamily());
+    assertEquals(0xc0000201, sp.getIPv4Address());
+    assertEquals(32853, sp.getPort());
+    sp = new StunPacket(SAMPLE_STUN_RESP2);
+    assertEquals(2, sp.getAddressFamily());
+    assertEquals(0x20010db812345678L, sp.getIPv6AddressHigh());
+    assertEquals(0x0011223344556677L, sp.getIPv6AddressLow());
+    assertEquals(32853, sp.getPort());
+    try {
+      sp.getIPv4Address();
+      fail();
+    } catch(IllegalStateException e) {
+      // expected
+    }
+
+    // the primitive setters encode the same bytes as the sample, and mask with the final txid
+    StunPacketBuilder spb = new StunPacketBuilder().setType(StunMessageType.SUCCESS)
+        .setXorMappedAddress(0x20010db812345678L, 0x0011223344556677L, 32853)
+        .setTxID(sp.getTxID());
+    StunPacket built = spb.build();
+    assertEquals(xorAddressBytes(sp), xorAddressBytes(built));
+    assertEquals(sp.getAddress(), built.getAddress());
+
+    spb.setXorMappedAddress(0xc0000201, 3478).setMappedAddress(0x7f000001, 1234);
+    built = spb.build();
+    assertEquals(2, built.getAttributes().size());
+    // MAPPED-ADDRESS wins, same as getAddress()
+    assertEquals(0x7f000001, built.getIPv4Address());
+    assertEquals(new InetSocketAddress("127.0.0.1", 1234), built.getAddress());
+    StunPacketDecoder spd = new StunPacketDecoder();
+    spd.wrap(spb.removeAttribute(StunAttribute.MAPPED_ADDRESS).build().getBytes());
+    assertEquals(0xc0000201, spd.getIPv4Address());
+    assertEquals(3478, spd.getPort());
+    try {
+      spb.setXorMappedAddress(new byte[5], 1);
+      fail();
+    } catch(IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testHighByteAddresses() throws Exception {
+    StunPacketDecoder spd = new StunPacketDecoder();
+    for(String ip : new String[] {"192.168.1.1", "1.2.3.200", "255.128.0.129", "2001:db8::ff:80"}) {
+      InetSocketAddress isa = new InetSocketAddress(InetAddress.getByName(ip), 40000);
+      StunPacket sp = new StunPacketBuilder().setType(StunMessageType.SUCCESS)
+                                             .setXorMappedAddress(isa).build();
+      assertEquals(isa, sp.getAddress());
+      assertTrue(spd.wrap(sp.getBytes()));
+      assertEquals(sp.getPort(), spd.getPort());
+      sp = new StunPacketBuilder().setType(StunMessageType.SUCCESS).setMappedAddress(isa)
+                                  .setXorAddress(StunAttribute.XOR_PEER_ADDRESS, isa).build();
+      assertEquals(isa, sp.getAddress());
+      assertEquals(isa, sp.getAddress(StunAttribute.XOR_PEER_ADDRESS));
+    }
+    assertEquals(0xc0a80101, StunUtils.getInt(0, new byte[] {(byte)192, (byte)168, 1, 1}));
+  }
+
+  @Test
+  public void decoderShortAddresses() throws Exception {
+    StunPacketDecoder spd = new StunPacketDecoder();
+    byte[][] values = new byte[][] {
+      new byte[0], new byte[] {0, 1, 0, 80}, new byte[] {0, 2, 0, 80, 1, 2, 3, 4}, new byte[] {0, 3, 0, 80, 1, 2, 3, 4}
+    };
+    for(byte[] value : values) {
+      for(StunAttribute attr : new StunAttribute[] {StunAttribute.MAPPED_ADDRESS, StunAttribute.XOR_MAPPED_ADDRESS}) {
+        // the bytes after the attribute would be read as the address if it was not checked
+        ByteBuffer bb = new StunPacketBuilder().setType(StunMessageType.SUCCESS)
+                                               .setAttribute(attr, ByteBuffer.wrap(value))
+                                               .setAttribute(StunAttribute.SOFTWARE, ByteBuffer.allocate(32))
+                                               .build().getBytes();
+        assertTrue(spd.wrap(bb));
+        assertTrue(spd.hasAddress());
+        for(Runnable accessor : new Runnable[] {spd::getAddressFamily, spd::getPort, spd::getIPv4Address,
+                                                spd::getIPv6AddressHigh, spd::getIPv6AddressLow}) {
+          try {
+            accessor.run();
+            fail();
+          } catch(IllegalStateException e) {
+            // expected
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void decoderShortIntAttributes() throws Exception {
+    StunPacketDecoder spd = new StunPacketDecoder();
+    for(int length=0; length<4; length++) {
+      // at the end, and followed by another attribute the value would run into
+      for(boolean last : new boolean[] {true, false}) {
+        StunPacketBuilder spb = new StunPacketBuilder().setType(StunMessageType.REQUEST)
+                                                       .setAttribute(StunAttribute.PRIORITY,
+                                                                     ByteBuffer.allocate(length));
+        if(!last) {
+          spb.setAttribute(StunAttribute.SOFTWARE, ByteBuffer.allocate(32));
+        }
+        assertTrue(spd.wrap(spb.build().getBytes()));
+        assertTrue(spd.hasAttribute(StunAttribute.PRIORITY));
+        try {
+          spd.getPriority();
+          fail();
+        } catch(IllegalStateException e) {
+          // expected
+        }
+      }
+    }
+    // a truncated FINGERPRINT that is not the last attribute still parses
+    ByteBuffer bb = new StunPacketBuilder().setType(StunMessageType.REQUEST)
+                                           .setAttribute(StunAttribute.FINGERPRINT, ByteBuffer.allocate(2))
+                                           .setAttribute(StunAttribute.SOFTWARE, ByteBuffer.allocate(32))
+                                           .build().getBytes();
+    if(spd.wrap(bb)) {
+      try {
+        spd.getFingerPrint();
+        fail();
+      } catch(IllegalStateException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void ipv4ToInt() throws Exception {
+    Inet4Address ip = (Inet4Address)InetAddress.getByAddress(new byte[] {(byte)192, (byte)168, 1, 2});
+    assertEquals(0xC0A80102, StunUtils.getInt(ip));
+    assertEquals(-1, StunUtils.getInt((Inet4Address)InetAddress.getByName("255.255.255.255")));
+    assertEquals(0x7f000001, StunUtils.getInt((Inet4Address)InetAddress.getByName("127.0.0.1")));
+  }
+
+  private static ByteBuffer xorAddressBytes(StunPacket sp) {
+    StunPacketDecoder spd = new StunPacketDecoder();
+    assertTrue(spd.wrap(sp.getBytes()));
+    int attr = spd.findAttribute(StunAttribute.XOR_MAPPED_ADDRESS);
+    ByteBuffer bb = sp.getBytes();
+    bb.position(spd.getAttributeOffset(attr));
+    bb.limit(spd.getAttributeOffset(attr) + spd.getAttributeLength(attr));
+    return bb;
+  }
+
+  private static void assertInvalid(StunValidationResult expected, ByteBuffer bb) {
+    assertEquals(expected, StunUtils.validate(bb));
+    StunPacketDecoder spd = new StunPacketDecoder();
+    assertFalse(spd.wrap(bb));
+    assertEquals(expected, spd.getValidationResult());
+    try {
+      new StunPacket(bb);
+      fail();
+    } catch(StunProtocolException e) {
+      assertEquals(expected, e.getValidationResult());
+    }
+  }
+
+  @Test
+  public void testTurnMessages() throws Exception {
+    assertTrue(StunMessageType.ALLOCATE_REQUEST.isRequest());
+    assertEquals(StunMessageType.ALLOCATE_SUCCESS, StunMessageType.ALLOCATE_REQUEST.getSuccessType());
+    assertEquals(StunMessageType.CHANNEL_BIND_FAILURE, StunMessageType.CHANNEL_BIND_REQUEST.getErrorType());
+    assertEquals(StunMessageType.FAILURE, StunMessageType.REQUEST.getErrorType());
+    assertTrue(StunMessageType.DATA_INDICATION.isIndication());
+    assertTrue(StunMessageType.REFRESH_FAILURE.isResponse());
+    assertTrue(StunMessageType.REFRESH_FAILURE.isError());
+    assertFalse(StunMessageType.REFRESH_SUCCESS.isError());
+
+    InetSocketAddress peer = new InetSocketAddress("2001:db8::1", 3478);
+    InetSocketAddress relayed = new InetSocketAddress("192.0.2.15", 49152);
+    StunPacket sp = new StunPacketBuilder().setType(StunMessageType.ALLOCATE_FAILURE)
+        .setXorAddress(StunAttribute.XOR_PEER_ADDRESS, peer)
+        .setXorAddress(StunAttribute.XOR_RELAYED_ADDRESS, relayed)
+        .setMappedAddress(relayed)
+        .setErrorCode(437, "Allocation Mismatch")
+        .build();
+    assertTrue(StunUtils.isStunPacket(sp.getBytes()));
+    assertEquals(StunMessageType.ALLOCATE_FAILURE, sp.getMessageType());
+    assertEquals(peer, sp.getAddress(StunAttribute.XOR_PEER_ADDRESS));
+    assertEquals(relayed, sp.getAddress(StunAttribute.XOR_RELAYED_ADDRESS));
+    assertEquals(relayed, sp.getAddress(StunAttribute.MAPPED_ADDRESS));
+    assertEquals(437, sp.getErrorCode());
+    // masked on the wire
+    ByteBuffer masked = sp.getAttribute(StunAttribute.XOR_RELAYED_ADDRESS);
+    assertEquals(49152 ^ StunUtils.STUN_SHORT_MAGIC, masked.getShort(2) & 0xffff);
+    try {
+      sp.getAddress(StunAttribute.XOR_MAPPED_ADDRESS);
+      fail();
+    } catch(IllegalStateException e) {
+    }
+    try {
+      new StunPacketBuilder().setXorAddress(StunAttribute.MAPPED_ADDRESS, peer);
+      fail();
+    } catch(IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void testValidationResults() throws Exception {
+    assertEquals(StunValidationResult.VALID, StunUtils.validate(SAMPLE_STUN_REQ1));
+    ByteBuffer good = new StunPacketBuilder().setUsername(ByteBuffer.wrap("user".getBytes())).build().getBytes();
+    assertInvalid(StunValidationResult.TOO_SHORT, ByteBuffer.wrap(new byte[19]));
+    ByteBuffer bb = ByteBuffer.allocate(good.remaining());
+    bb.put(good.duplicate()).flip();
+    bb.putInt(4, 0x12345678);
+    assertInvalid(StunValidationResult.BAD_MAGIC_COOKIE, bb);
+    bb.put(good.duplicate()).flip();
+    bb.putShort(2, (short)4);
+    assertInvalid(StunValidationResult.BAD_LENGTH, bb);
+    bb.put(good.duplicate()).flip();
+    bb.putShort(22, (short)9);
+    assertInvalid(StunValidationResult.TRUNCATED_ATTRIBUTE, bb);
+    bb.put(good.duplicate()).flip();
+    bb.putShort(20, (short)0x7f00);
+    assertInvalid(StunValidationResult.UNKNOWN_REQUIRED_ATTRIBUTE, bb);
+    // unknown optional attributes are fine
+    bb.putShort(20, (short)0xc057);
+    assertEquals(StunValidationResult.VALID, StunUtils.validate(bb));
+
+    StunProtocolException.setStacklessValidationErrors(true);
+    try {
+      StunProtocolException first = null;
+      for(int i=0; i<2; i++) {
+        try {
+          new StunPacket(ByteBuffer.wrap(new byte[4]));
+          fail();
+        } catch(StunProtocolException e) {
+          assertEquals(0, e.getStackTrace().length);
+          assertEquals(StunValidationResult.TOO_SHORT, e.getValidationResult());
+          if(first != null) {
+            assertTrue(first == e);
+          }
+          first = e;
+        }
+      }
+    } finally {
+      StunProtocolException.setStacklessValidationErrors(false);
+    }
+  }
+
   @Test
   public void testBadPort() throws UnknownHostException {
     StunPacketBuilder sbb = new StunPacketBuilder();
@@ -473,4 +762,311 @@ public class StunTests {
     fail();
   }
 
+  @Test
+  public void testTruncatedAttribute() throws Exception {
+    ByteBuffer bb = ByteBuffer.allocate(SAMPLE_STUN_RESP1.remaining());
+    bb.put(SAMPLE_STUN_RESP1.duplicate());
+    bb.flip();
+    // claim the FINGERPRINT value runs past the end of the packet
+    bb.putShort(bb.limit()-6, (short)8);
+    try {
+      new StunPacket(bb);
+    } catch(StunProtocolException e) {
+      return;
+    }
+    fail();
+  }
+
+  @Test
+  public void testRepeatedAttributeAccess() throws Exception {
+    StunPacket sp = new StunPacket(SAMPLE_STUN_REQ1);
+    for(int i=0; i<3; i++) {
+      assertEquals("evtj:h6vY", new String(StunUtils.BBToBA(sp.getUsername())));
+      assertEquals(0x6e0001ff, sp.getPriority().getInt());
+      assertEquals(0xe57a3bcf, sp.getFingerPrint());
+      assertEquals(20, sp.getMessageIntegerity().remaining());
+      assertTrue(sp.hasFingerPrint());
+      assertTrue(sp.hasMessageIntegerity());
+      assertFalse(sp.hasAddress());
+    }
+  }
+
+  @Test
+  public void testDecoderReuse() throws Exception {
+    StunPacketDecoder spd = new StunPacketDecoder();
+    assertTrue(spd.wrap(SAMPLE_STUN_REQ1));
+    StunPacket sp = new StunPacket(SAMPLE_STUN_REQ1);
+    assertEquals(StunMessageType.REQUEST.bits, spd.getMessageType());
+    assertEquals(sp.getTxID(), new TransactionID(spd.getTxID0(), spd.getTxID1(), spd.getTxID2()));
+    assertEquals(6, spd.getAttributeCount());
+    assertEquals(StunAttribute.USERNAME.bits, spd.getAttributeType(3));
+    assertEquals(9, spd.getAttributeLength(3));
+    assertEquals(sp.getPriority().getInt(), spd.getPriority());
+    assertEquals(sp.getFingerPrint(), spd.getFingerPrint());
+    assertFalse(spd.hasAddress());
+    assertEquals(StunPacketDecoder.NOT_FOUND, spd.findAttribute(StunAttribute.REALM));
+
+    assertTrue(spd.wrap(SAMPLE_STUN_RESP1));
+    assertEquals(StunMessageType.SUCCESS.bits, spd.getMessageType());
+    assertEquals(1, spd.getAddressFamily());
+    assertEquals(32853, spd.getPort());
+    assertEquals(InetAddress.getByName("192.0.2.1"), 
+        InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(spd.getIPv4Address()).array()));
+
+    assertTrue(spd.wrap(SAMPLE_STUN_RESP2));
+    assertEquals(2, spd.getAddressFamily());
+    assertEquals(32853, spd.getPort());
+    ByteBuffer ipv6 = ByteBuffer.allocate(16).putLong(spd.getIPv6AddressHigh()).putLong(spd.getIPv6AddressLow());
+    assertEquals(InetAddress.getByName("2001:db8:1234:5678:11:2233:4455:6677"), InetAddress.getByAddress(ipv6.array()));
+    assertEquals(new StunPacket(SAMPLE_STUN_RESP2).getBytes(), spd.toStunPacket().getBytes());
+
+    assertFalse(spd.wrap(ByteBuffer.wrap(new byte[8])));
+    assertFalse(spd.isValid());
+    assertEquals(0, SAMPLE_STUN_RESP2.position());
+  }
+
+  @Test
+  public void testDecoderOffsetBuffer() throws Exception {
+    ByteBuffer bb = ByteBuffer.allocateDirect(SAMPLE_STUN_RESP1.remaining() + 10);
+    bb.position(10);
+    bb.put(SAMPLE_STUN_RESP1.duplicate());
+    bb.position(10);
+    StunPacketDecoder spd = new StunPacketDecoder();
+    assertTrue(spd.wrap(bb));
+    assertEquals(10, spd.getOffset());
+    assertEquals(32853, spd.getPort());
+    assertEquals(spd.getOffset() + 24, spd.getAttributeOffset(StunAttribute.SOFTWARE));
+  }
+
+  @Test
+  public void testWriteToDirectBuffer() throws Exception {
+    StunPacket sp = new StunPacket(SAMPLE_STUN_REQ1);
+    StunPacketBuilder spb = new StunPacketBuilder();
+    spb.setPaddingByte((byte)0x20);
+    spb.setTxID(sp.getTxID());
+    spb.setAttribute(StunAttribute.SOFTWARE, sp.getSoftware());
+    spb.setAttribute(StunAttribute.PRIORITY, sp.getPriority());
+    spb.setAttribute(StunAttribute.ICE_CONTROLLED, sp.getIceControlled());
+    spb.setUsername(sp.getUsername());
+    spb.setKey("VOkJxbRl1RmTxUk/WvJxBt".getBytes());
+    spb.enableFingerPrint();
+    assertEquals(SAMPLE_STUN_REQ1.remaining(), spb.getEncodedSize());
+
+    ByteBuffer bb = ByteBuffer.allocateDirect(200);
+    bb.position(7);
+    assertEquals(SAMPLE_STUN_REQ1.remaining(), spb.writeTo(bb));
+    assertEquals(7 + SAMPLE_STUN_REQ1.remaining(), bb.position());
+    bb.limit(bb.position());
+    bb.position(7);
+    assertEquals(SAMPLE_STUN_REQ1, bb);
+    assertEquals(SAMPLE_STUN_REQ1, spb.build().getBytes());
+    try {
+      spb.writeTo(ByteBuffer.allocate(20));
+      fail();
+    } catch(IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testIntegrityEngine() throws Exception {
+    StunIntegrityEngine sie = new StunIntegrityEngine(2);
+    byte[] key = "VOkJxbRl1RmTxUk/WvJxBt".getBytes();
+    StunPacket sp = new StunPacket(SAMPLE_STUN_RESP1);
+    for(int i=0; i<10; i++) {
+      assertTrue(sie.verifyMessageIntegerity(sp, key));
+      // push the real key out of the cache with other credentials
+      assertFalse(sie.verifyMessageIntegerity(sp, ("other"+i).getBytes()));
+    }
+    StunPacketBuilder spb = sp.createBuilder();
+    spb.removeAttribute(StunAttribute.MESSAGE_INTEGRITY);
+    spb.removeAttribute(StunAttribute.FINGERPRINT);
+    StunPacket signed = sie.addMessageIntegerity(spb.build(), key);
+    assertTrue(StunUtils.verifyMessageIntegerity(signed, key));
+    assertTrue(sie.verifyMessageIntegerity(signed, key));
+  }
+
+  @Test
+  public void testHmacSha1() throws Exception {
+    HmacSha1 hmac = new HmacSha1();
+    byte[] out = new byte[HmacSha1.MAC_LENGTH + 3];
+    for(int keyLength: new int[] {1, 16, 64, 65, 200}) {
+      byte[] key = new byte[keyLength];
+      ThreadLocalRandom.current().nextBytes(key);
+      byte[] pads = hmac.computePads(key);
+      for(int dataLength: new int[] {0, 1, 55, 64, 1000}) {
+        byte[] data = new byte[dataLength];
+        ThreadLocalRandom.current().nextBytes(data);
+        hmac.init(pads);
+        hmac.update(data, 0, dataLength);
+        hmac.doFinal(out, 3);
+        byte[] expected = StunUtils.newIntegrityMac(key).doFinal(data);
+        assertEquals(ByteBuffer.wrap(expected), ByteBuffer.wrap(out, 3, HmacSha1.MAC_LENGTH));
+      }
+    }
+  }
+
+  @Test
+  public void testVerifyIntegrityDirectBuffer() throws Exception {
+    byte[] key = "VOkJxbRl1RmTxUk/WvJxBt".getBytes();
+    // RFC 5769 long-term credential sample
+    byte[] ltKey = MessageDigest.getInstance("MD5").digest(
+        "\u30DE\u30C8\u30EA\u30C3\u30AF\u30B9:example.org:TheMatrIX".getBytes(StandardCharsets.UTF_8));
+    ByteBuffer bb = ByteBuffer.allocateDirect(SAMPLE_STUN_REQ2.remaining() + 4);
+    bb.position(4);
+    bb.put(SAMPLE_STUN_REQ2.duplicate());
+    bb.position(4);
+    StunPacket sp = new StunPacket(bb);
+    StunIntegrityEngine sie = new StunIntegrityEngine();
+    StunPacketDecoder spd = new StunPacketDecoder();
+    assertTrue(spd.wrap(bb));
+    assertTrue(StunUtils.verifyMessageIntegerity(sp, ltKey));
+    assertTrue(sie.verifyMessageIntegerity(sp, ltKey));
+    assertFalse(sie.verifyMessageIntegerity(sp, key));
+    for(StunPacket p: new StunPacket[] {new StunPacket(SAMPLE_STUN_RESP1), new StunPacket(SAMPLE_STUN_RESP2)}) {
+      assertTrue(StunUtils.verifyMessageIntegerity(p, key));
+      assertTrue(sie.verifyMessageIntegerity(p, key));
+      assertFalse(sie.verifyMessageIntegerity(p, "VOkJxbRl1RmTxUk/WvJxBT".getBytes()));
+    }
+    assertTrue(sie.verifyMessageIntegerity(spd, ltKey));
+    assertEquals(4, bb.position());
+
+    // flip one bit of the signature
+    bb.put(bb.limit() - 1, (byte)(bb.get(bb.limit() - 1) ^ 1));
+    assertFalse(StunUtils.verifyMessageIntegerity(new StunPacket(bb), ltKey));
+    assertFalse(sie.verifyMessageIntegerity(spd, ltKey));
+  }
+
+  @Test
+  public void testBindingResponseRewrite() throws Exception {
+    byte[] key = "VOkJxbRl1RmTxUk/WvJxBt".getBytes();
+    BindingResponseWriter writer = new BindingResponseWriter(new StunIntegrityEngine());
+    InetSocketAddress[] addresses = new InetSocketAddress[] {
+        new InetSocketAddress("192.0.2.1", 32853),
+        new InetSocketAddress("2001:db8:1234:5678:11:2233:4455:6677", 32853)};
+    for(InetSocketAddress mapped: addresses) {
+      for(byte[] k: new byte[][] {null, key}) {
+        for(boolean fingerprint: new boolean[] {false, true}) {
+          StunPacketBuilder expected = new StunPacketBuilder().setType(StunMessageType.SUCCESS)
+              .setTxID(new StunPacket(SAMPLE_STUN_REQ1).getTxID()).setXorMappedAddress(mapped).setKey(k);
+          if(fingerprint) {
+            expected.enableFingerPrint();
+          }
+          for(ByteBuffer bb: new ByteBuffer[] {ByteBuffer.allocate(200), ByteBuffer.allocateDirect(200)}) {
+            bb.position(7);
+            bb.put(SAMPLE_STUN_REQ1.duplicate());
+            bb.flip();
+            bb.position(7);
+            StunPacketDecoder spd = new StunPacketDecoder();
+            assertTrue(spd.wrap(bb));
+            int size = writer.rewrite(spd, mapped, k, fingerprint);
+            assertEquals(expected.getEncodedSize(), size);
+            assertEquals(BindingResponseWriter.getResponseSize(mapped.getAddress() instanceof Inet6Address,
+                                                               k != null, fingerprint), size);
+            assertEquals(7, bb.position());
+            assertEquals(7 + size, bb.limit());
+            assertEquals(expected.build().getBytes(), bb);
+            StunPacket response = new StunPacket(bb);
+            assertEquals(mapped, response.getAddress(StunAttribute.XOR_MAPPED_ADDRESS));
+            if(k != null) {
+              assertTrue(StunUtils.verifyMessageIntegerity(response, k));
+            }
+          }
+        }
+      }
+    }
+    try {
+      writer.rewriteIPv4(ByteBuffer.allocate(40), 0, 0, 0, key, true);
+      fail();
+    } catch(IllegalArgumentException e) {
+      // expected, not a STUN packet and too small
+    }
+  }
+
+  @Test
+  public void testFingerPrintStreaming() throws Exception {
+    for(ByteBuffer sample: new ByteBuffer[] {SAMPLE_STUN_REQ1, SAMPLE_STUN_RESP1, SAMPLE_STUN_RESP2}) {
+      ByteBuffer direct = ByteBuffer.allocateDirect(sample.remaining());
+      direct.put(sample.duplicate());
+      direct.flip();
+      assertTrue(StunUtils.isStunPacketWithFingerPrint(sample));
+      assertTrue(StunUtils.isStunPacketWithFingerPrint(direct));
+      assertTrue(StunUtils.verifyFingerPrint(new StunPacket(direct)));
+      StunPacketDecoder spd = new StunPacketDecoder();
+      assertTrue(spd.wrap(direct));
+      assertTrue(StunUtils.verifyFingerPrint(spd));
+      direct.put(24, (byte)(direct.get(24) ^ 0x01));
+      assertFalse(StunUtils.isStunPacketWithFingerPrint(direct));
+      assertFalse(StunUtils.verifyFingerPrint(spd));
+    }
+    // SAMPLE_STUN_REQ2 has no fingerprint
+    assertFalse(StunUtils.isStunPacketWithFingerPrint(SAMPLE_STUN_REQ2));
+    assertFalse(StunUtils.isStunPacketWithFingerPrint(ByteBuffer.allocate(28)));
+
+    StunPacket sp = StunUtils.addFingerPrint(new StunPacketBuilder().build());
+    assertTrue(sp.hasFingerPrint());
+    assertTrue(StunUtils.verifyFingerPrint(sp));
+    assertEquals(new StunPacket(sp.getBytes()).getAttributes(), sp.getAttributes());
+    assertTrue(StunUtils.isStunPacketWithFingerPrint(sp.getBytes()));
+  }
+
+  @Test
+  public void testRtcPacketClassifier() throws Exception {
+    ByteBuffer dtls = ByteBuffer.allocate(13);
+    dtls.put(0, (byte)22);
+    ByteBuffer channelData = ByteBuffer.allocate(8);
+    channelData.putShort(0, (short)0x4001);
+    ByteBuffer rtp = ByteBuffer.allocate(12);
+    rtp.putShort(0, (short)0x8060);
+    ByteBuffer rtcp = ByteBuffer.allocate(8);
+    rtcp.putShort(0, (short)0x80c8);
+    ByteBuffer shortRtp = ByteBuffer.allocate(8);
+    shortRtp.putShort(0, (short)0x8060);
+    ByteBuffer junk = ByteBuffer.allocate(20);
+    junk.put(0, (byte)0xff);
+
+    ByteBuffer[] packets = new ByteBuffer[] {SAMPLE_STUN_REQ1, dtls, channelData, rtp, rtcp, shortRtp, junk, 
+                                             ByteBuffer.allocate(1)};
+    RtcPacketType[] expected = new RtcPacketType[] {RtcPacketType.STUN, RtcPacketType.DTLS, 
+                                                    RtcPacketType.TURN_CHANNEL_DATA, RtcPacketType.RTP, 
+                                                    RtcPacketType.RTCP, RtcPacketType.UNKNOWN, 
+                                                    RtcPacketType.UNKNOWN, RtcPacketType.UNKNOWN};
+    RtcPacketType[] types = new RtcPacketType[packets.length];
+    RtcPacketClassifier.classify(packets, 0, packets.length, types);
+    for(int i=0; i<packets.length; i++) {
+      assertEquals(expected[i], types[i]);
+      assertEquals(expected[i], RtcPacketClassifier.classify(packets[i]));
+    }
+
+    final int[] counts = new int[RtcPacketType.values().length];
+    RtcPacketDemultiplexer demux = new RtcPacketDemultiplexer(new RtcPacketDemultiplexer.Handler() {
+      @Override
+      public void onStun(ByteBuffer bb) {
+        counts[RtcPacketType.STUN.ordinal()]++;
+      }
+      @Override
+      public void onDtls(ByteBuffer bb) {
+        counts[RtcPacketType.DTLS.ordinal()]++;
+      }
+      @Override
+      public void onChannelData(ByteBuffer bb) {
+        counts[RtcPacketType.TURN_CHANNEL_DATA.ordinal()]++;
+      }
+      @Override
+      public void onRtp(ByteBuffer bb) {
+        counts[RtcPacketType.RTP.ordinal()]++;
+      }
+      @Override
+      public void onRtcp(ByteBuffer bb) {
+        counts[RtcPacketType.RTCP.ordinal()]++;
+      }
+    });
+    demux.dispatch(packets, 0, packets.length);
+    assertEquals(1, counts[RtcPacketType.STUN.ordinal()]);
+    assertEquals(1, counts[RtcPacketType.DTLS.ordinal()]);
+    assertEquals(1, counts[RtcPacketType.TURN_CHANNEL_DATA.ordinal()]);
+    assertEquals(1, counts[RtcPacketType.RTP.ordinal()]);
+    assertEquals(1, counts[RtcPacketType.RTCP.ordinal()]);
+  }
+
 }
@@ -0,0 +1,150 @@
+package org.threadly.litesockets.protocols.stun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TransactionTableTests {
+
+  @Test
+  public void putGetRemove() throws Exception {
+    TransactionTable<String> table = new TransactionTable<>(16);
+    StunPacket sp = new StunPacketBuilder().build();
+    TransactionID tid = sp.getTxID();
+    assertNull(table.get(tid));
+    assertNull(table.putIfAbsent(tid, "a"));
+    assertEquals("a", table.putIfAbsent(tid, "b"));
+    assertEquals(1, table.size());
+    assertEquals("a", table.get(tid));
+    assertEquals("a", table.get(sp));
+    StunPacketDecoder spd = new StunPacketDecoder();
+    spd.wrap(sp.getBytes());
+    assertEquals("a", table.get(spd));
+    assertEquals("a", table.get(new TransactionID(spd.getTxID0(), spd.getTxID1(), spd.getTxID2())));
+    assertNull(table.get(new TransactionID(tid.getHigh(), tid.getLow() + 1)));
+
+    assertFalse(table.remove(tid, "b"));
+    assertTrue(table.remove(tid, "a"));
+    assertNull(table.get(tid));
+    assertNull(table.remove(sp));
+    assertNull(table.putIfAbsent(tid, "c"));
+    assertEquals("c", table.remove(spd));
+    assertEquals(0, table.size());
+  }
+
+  @Test
+  public void tombstonesAreCompacted() {
+    TransactionTable<Integer> table = new TransactionTable<>(64);
+    List<TransactionID> live = new ArrayList<>();
+    for(int i=0; i<32; i++) {
+      TransactionID tid = StunUtils.generateTxID();
+      live.add(tid);
+      table.putIfAbsent(tid, i);
+    }
+    // far more inserts and removes than there are slots
+    for(int i=0; i<100000; i++) {
+      TransactionID tid = StunUtils.generateTxID();
+      assertNull(table.putIfAbsent(tid, i));
+      assertEquals(Integer.valueOf(i), table.get(tid));
+      assertEquals(Integer.valueOf(i), table.remove(tid));
+    }
+    assertEquals(32, table.size());
+    for(int i=0; i<live.size(); i++) {
+      assertEquals(Integer.valueOf(i), table.get(live.get(i)));
+    }
+  }
+
+  @Test
+  public void fullTableEvictsOldest() {
+    AtomicInteger evicted = new AtomicInteger();
+    AtomicInteger newestEvicted = new AtomicInteger(-1);
+    TransactionTable<Integer> table = new TransactionTable<>(100, (v) -> {
+      evicted.incrementAndGet();
+      newestEvicted.set(Math.max(newestEvicted.get(), v));
+    });
+    TransactionID last = null;
+    for(int i=0; i<1000; i++) {
+      last = StunUtils.generateTxID();
+      table.putIfAbsent(last, i);
+    }
+    assertEquals(100, table.size());
+    assertEquals(900, evicted.get());
+    assertEquals(Integer.valueOf(999), table.get(last));
+    // approximately the oldest, never anything close to the newest
+    assertTrue(newestEvicted.get() < 990);
+    AtomicInteger count = new AtomicInteger();
+    table.forEach((v) -> count.incrementAndGet());
+    assertEquals(100, count.get());
+  }
+
+  @Test
+  public void concurrentAccess() throws Exception {
+    TransactionTable<Long> table = new TransactionTable<>(1024);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for(int t=0; t<4; t++) {
+      Thread thread = new Thread(() -> {
+        try {
+          TransactionID[] mine = new TransactionID[64];
+          for(int i=0; i<100000; i++) {
+            int slot = i & 63;
+            if(mine[slot] != null) {
+              assertEquals(Long.valueOf(mine[slot].getHigh()), table.get(mine[slot]));
+              assertEquals(Long.valueOf(mine[slot].getHigh()), table.remove(mine[slot]));
+              assertNull(table.get(mine[slot]));
+            }
+            mine[slot] = new TransactionID(ThreadLocalRandom.current().nextLong(),
+                                           ThreadLocalRandom.current().nextInt());
+            assertNull(table.putIfAbsent(mine[slot], mine[slot].getHigh()));
+          }
+        } catch(Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for(Thread thread: threads) {
+      thread.join();
+    }
+    if(failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    assertEquals(4 * 64, table.size());
+  }
+
+  @Test
+  public void transactionManagerMatchesFromDecoder() throws Exception {
+    List<ByteBuffer> sent = new ArrayList<>();
+    StunClientTransactionManager stm =
+        new StunClientTransactionManager((bb, dest) -> sent.add(bb), null, 100, 7, 16, 2);
+    StunPacket first = new StunPacketBuilder().build();
+    CompletableFuture<StunPacket> f1 = stm.sendRequest(first, null);
+    StunPacket request = new StunPacketBuilder().build();
+    CompletableFuture<StunPacket> f2 = stm.sendRequest(request, null);
+    StunPacketDecoder spd = new StunPacketDecoder();
+    spd.wrap(new StunPacketBuilder().setType(StunMessageType.SUCCESS).setTxID(request.getTxID()).build().getBytes());
+    assertTrue(stm.handleResponse(spd));
+    assertEquals(request.getTxID(), f2.get().getTxID());
+    assertFalse(stm.handleResponse(spd));
+
+    // a third transaction evicts the oldest
+    stm.sendRequest(new StunPacketBuilder().build(), null);
+    stm.sendRequest(new StunPacketBuilder().build(), null);
+    assertTrue(f1.isCompletedExceptionally());
+    assertEquals(2, stm.getOutstandingCount());
+    stm.shutdown();
+    assertEquals(0, stm.getOutstandingCount());
+  }
+}
@@ -0,0 +1,54 @@
+package org.threadly.litesockets.protocols.turn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes TURN ChannelData messages (RFC 5766 section 11.4), a 4 byte header holding the
+ * channel number and the payload length, followed by the payload.
+ * <p>
+ * All methods use absolute indexes and never change the buffers position or limit.
+ */
+public final class ChannelData {
+  public static final int HEADER_SIZE = 4;
+  public static final int MIN_CHANNEL = 0x4000;
+  public static final int MAX_CHANNEL = 0x7FFF;
+
+  private ChannelData() {}
+
+  public static boolean isValidChannel(int channel) {
+    return channel >= MIN_CHANNEL && channel <= MAX_CHANNEL;
+  }
+
+  /**
+   * Checks that the buffer holds a ChannelData message, the first 2 bits are {@code 01} and the
+   * payload fits in the buffer.  Over UDP up to 3 bytes of padding may follow the payload.
+   *
+   * @param buf the buffer to check.
+   * @return {@code true} if this is a ChannelData message.
+   */
+  public static boolean isChannelData(ByteBuffer buf) {
+    return buf.remaining() >= HEADER_SIZE && (buf.get(buf.position()) & 0xc0) == 0x40 &&
+        HEADER_SIZE + getLength(buf) <= buf.remaining();
+  }
+
+  public static int getChannel(ByteBuffer buf) {
+    return buf.getShort(buf.position()) & 0xffff;
+  }
+
+  public static int getLength(ByteBuffer buf) {
+    return buf.getShort(buf.position() + 2) & 0xffff;
+  }
+
+  /**
+   * Writes the ChannelData header at {@code index}, the payload is expected to follow it.
+   *
+   * @param buf the buffer to write to.
+   * @param index the absolute index to write the header at.
+   * @param channel the channel number.
+   * @param length the payload length.
+   */
+  public static void writeHeader(ByteBuffer buf, int index, int channel, int length) {
+    buf.putShort(index, (short)channel);
+    buf.putShort(index + 2, (short)length);
+  }
+}
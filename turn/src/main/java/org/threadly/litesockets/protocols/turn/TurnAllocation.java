@@ -0,0 +1,201 @@
+package org.threadly.litesockets.protocols.turn;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Arrays;
+
+import org.threadly.litesockets.protocols.stun.TimingWheel;
+import org.threadly.litesockets.protocols.stun.TransactionID;
+
+/**
+ * The state of one allocation, only ever touched by the {@link TurnServer} event loop thread.
+ * <p>
+ * Permissions and channel bindings are kept in small parallel arrays and scanned linearly.  Clients
+ * rarely talk to more than a handful of peers, and this keeps the relay path free of boxing,
+ * hashing and iterators.
+ */
+final class TurnAllocation extends TimingWheel.Task {
+  static final int MAX_PERMISSIONS = 64;
+  static final int MAX_CHANNELS = 64;
+  private static final int INITIAL_SIZE = 4;
+
+  final TurnServer server;
+  final InetSocketAddress client;
+  final DatagramChannel relay;
+  final InetSocketAddress relayAddress;
+  final String username;
+  final TransactionID allocateTxID;
+  SelectionKey selectionKey;
+  long expiresMillis;
+
+  private InetAddress[] permissionPeers = new InetAddress[INITIAL_SIZE];
+  private long[] permissionExpires = new long[INITIAL_SIZE];
+  private int permissionCount = 0;
+  private int[] channelNumbers = new int[INITIAL_SIZE];
+  private InetSocketAddress[] channelPeers = new InetSocketAddress[INITIAL_SIZE];
+  private long[] channelExpires = new long[INITIAL_SIZE];
+  private int channelCount = 0;
+
+  TurnAllocation(TurnServer server, InetSocketAddress client, DatagramChannel relay,
+                 InetSocketAddress relayAddress, String username, TransactionID allocateTxID) {
+    this.server = server;
+    this.client = client;
+    this.relay = relay;
+    this.relayAddress = relayAddress;
+    this.username = username;
+    this.allocateTxID = allocateTxID;
+  }
+
+  @Override
+  protected void expired() {
+    server.allocationTimerExpired(this);
+  }
+
+  /**
+   * Installs or refreshes the permission for a peer.
+   *
+   * @return {@code false} if the allocation already has {@link #MAX_PERMISSIONS} permissions.
+   */
+  boolean addPermission(InetAddress peer, long expires) {
+    for(int i=0; i<permissionCount; i++) {
+      if(permissionPeers[i].equals(peer)) {
+        permissionExpires[i] = expires;
+        return true;
+      }
+    }
+    if(permissionCount == MAX_PERMISSIONS) {
+      return false;
+    }
+    if(permissionCount == permissionPeers.length) {
+      permissionPeers = Arrays.copyOf(permissionPeers, permissionCount * 2);
+      permissionExpires = Arrays.copyOf(permissionExpires, permissionCount * 2);
+    }
+    permissionPeers[permissionCount] = peer;
+    permissionExpires[permissionCount] = expires;
+    permissionCount++;
+    return true;
+  }
+
+  boolean hasPermission(InetAddress peer, long now) {
+    for(int i=0; i<permissionCount; i++) {
+      if(permissionPeers[i].equals(peer)) {
+        return permissionExpires[i] > now;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds an unexpired channel binding by channel number.
+   *
+   * @return the binding index for {@link #getChannelPeer(int)}, or {@code -1}.
+   */
+  int findChannel(int channel, long now) {
+    for(int i=0; i<channelCount; i++) {
+      if(channelNumbers[i] == channel) {
+        return channelExpires[i] > now ? i : -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Finds an unexpired channel binding by peer address.
+   *
+   * @return the binding index for {@link #getChannelNumber(int)}, or {@code -1}.
+   */
+  int findChannel(InetSocketAddress peer, long now) {
+    for(int i=0; i<channelCount; i++) {
+      if(channelPeers[i].equals(peer)) {
+        return channelExpires[i] > now ? i : -1;
+      }
+    }
+    return -1;
+  }
+
+  int getChannelNumber(int index) {
+    return channelNumbers[index];
+  }
+
+  InetSocketAddress getChannelPeer(int index) {
+    return channelPeers[index];
+  }
+
+  /**
+   * A channel can be bound if neither the channel nor the peer is bound yet, or if they are
+   * already bound to each other, in which case binding refreshes it.
+   */
+  boolean canBindChannel(int channel, InetSocketAddress peer) {
+    for(int i=0; i<channelCount; i++) {
+      if(channelNumbers[i] == channel || channelPeers[i].equals(peer)) {
+        return channelNumbers[i] == channel && channelPeers[i].equals(peer);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Installs or refreshes a channel binding, {@link #canBindChannel(int, InetSocketAddress)} must
+   * be checked first.
+   *
+   * @return {@code false} if the allocation already has {@link #MAX_CHANNELS} channels.
+   */
+  boolean bindChannel(int channel, InetSocketAddress peer, long expires) {
+    for(int i=0; i<channelCount; i++) {
+      if(channelNumbers[i] == channel) {
+        channelExpires[i] = expires;
+        return true;
+      }
+    }
+    if(channelCount == MAX_CHANNELS) {
+      return false;
+    }
+    if(channelCount == channelNumbers.length) {
+      channelNumbers = Arrays.copyOf(channelNumbers, channelCount * 2);
+      channelPeers = Arrays.copyOf(channelPeers, channelCount * 2);
+      channelExpires = Arrays.copyOf(channelExpires, channelCount * 2);
+    }
+    channelNumbers[channelCount] = channel;
+    channelPeers[channelCount] = peer;
+    channelExpires[channelCount] = expires;
+    channelCount++;
+    return true;
+  }
+
+  int getPermissionCount() {
+    return permissionCount;
+  }
+
+  int getChannelCount() {
+    return channelCount;
+  }
+
+  /**
+   * Drops expired permissions and channel bindings.
+   */
+  void purge(long now) {
+    int kept = 0;
+    for(int i=0; i<permissionCount; i++) {
+      if(permissionExpires[i] > now) {
+        permissionPeers[kept] = permissionPeers[i];
+        permissionExpires[kept] = permissionExpires[i];
+        kept++;
+      }
+    }
+    Arrays.fill(permissionPeers, kept, permissionCount, null);
+    permissionCount = kept;
+    kept = 0;
+    for(int i=0; i<channelCount; i++) {
+      if(channelExpires[i] > now) {
+        channelNumbers[kept] = channelNumbers[i];
+        channelPeers[kept] = channelPeers[i];
+        channelExpires[kept] = channelExpires[i];
+        kept++;
+      }
+    }
+    Arrays.fill(channelPeers, kept, channelCount, null);
+    channelCount = kept;
+  }
+}
@@ -0,0 +1,255 @@
+package org.threadly.litesockets.protocols.turn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import org.threadly.litesockets.protocols.stun.DirectBufferPool;
+import org.threadly.litesockets.protocols.stun.StunAttribute;
+import org.threadly.litesockets.protocols.stun.StunClientTransactionManager;
+import org.threadly.litesockets.protocols.stun.StunMessageType;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.StunUtils;
+
+/**
+ * A small blocking TURN client for a single UDP allocation, enough to drive a {@link TurnServer}
+ * from tests, benchmarks and health checks.
+ * <p>
+ * Requests are retransmitted until a response arrives or they time out, and the long-term
+ * credential handshake, the initial 401 challenge and any 438 (Stale Nonce), is handled
+ * transparently.  Anything other than the expected response that arrives while a request is
+ * outstanding is discarded.  Between requests, relayed ChannelData and Data indications are left on
+ * {@link #getChannel()} for the caller to read.
+ * <p>
+ * This is not thread safe.
+ */
+public class TurnClient implements Closeable {
+  public static final long RETRANSMIT_MILLIS = 250;
+  public static final long TIMEOUT_MILLIS = 5000;
+  private static final int MAX_AUTH_ATTEMPTS = 3;
+
+  private final DatagramChannel channel;
+  private final Selector selector;
+  private final String username;
+  private final String password;
+  private final ByteBuffer receiveBuffer = ByteBuffer.allocate(65536);
+  private final ByteBuffer channelDataBuffer = ByteBuffer.allocateDirect(65536);
+  private final DirectBufferPool bufferPool = DirectBufferPool.getDefault();
+  private String realm;
+  private String nonce;
+  private byte[] key;
+
+  /**
+   * Opens a socket connected to the server, no requests are sent until one of the request methods
+   * is called.
+   *
+   * @param server the TURN server address.
+   * @param username the long-term credential username.
+   * @param password the long-term credential password.
+   * @throws IOException if the socket could not be opened.
+   */
+  public TurnClient(InetSocketAddress server, String username, String password) throws IOException {
+    this.username = username;
+    this.password = password;
+    this.selector = Selector.open();
+    this.channel = DatagramChannel.open(server.getAddress() instanceof Inet6Address ?
+        StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+    try {
+      channel.configureBlocking(false);
+      channel.connect(server);
+      channel.register(selector, SelectionKey.OP_READ);
+    } catch(IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the connected, non-blocking socket used to talk to the server.
+   *
+   * @return the clients socket.
+   */
+  public DatagramChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Requests a UDP allocation.
+   *
+   * @param lifetimeSeconds the requested lifetime, the server may grant a different one.
+   * @return the relayed transport address.
+   * @throws IOException if the request failed or timed out.
+   */
+  public InetSocketAddress allocate(int lifetimeSeconds) throws IOException {
+    StunPacket response = request(StunMessageType.ALLOCATE_REQUEST, (spb) -> {
+      spb.setAttribute(StunAttribute.REQUESTED_TRANSPORT, ByteBuffer.allocate(4).put(0, (byte)17));
+      spb.setAttribute(StunAttribute.LIFETIME, ByteBuffer.allocate(4).putInt(0, lifetimeSeconds));
+    });
+    return response.getAddress(StunAttribute.XOR_RELAYED_ADDRESS);
+  }
+
+  /**
+   * Refreshes the allocation, a lifetime of 0 deletes it.
+   *
+   * @param lifetimeSeconds the requested lifetime.
+   * @return the lifetime the server granted.
+   * @throws IOException if the request failed or timed out.
+   */
+  public int refresh(int lifetimeSeconds) throws IOException {
+    StunPacket response = request(StunMessageType.REFRESH_REQUEST, (spb) -> {
+      spb.setAttribute(StunAttribute.LIFETIME, ByteBuffer.allocate(4).putInt(0, lifetimeSeconds));
+    });
+    return response.getAttribute(StunAttribute.LIFETIME).getInt(0);
+  }
+
+  public void createPermission(InetSocketAddress peer) throws IOException {
+    request(StunMessageType.CREATE_PERMISSION_REQUEST, (spb) -> {
+      spb.setXorAddress(StunAttribute.XOR_PEER_ADDRESS, peer);
+    });
+  }
+
+  public void bindChannel(int channelNumber, InetSocketAddress peer) throws IOException {
+    request(StunMessageType.CHANNEL_BIND_REQUEST, (spb) -> {
+      spb.setAttribute(StunAttribute.CHANNEL_NUMBER, ByteBuffer.allocate(4).putShort(0, (short)channelNumber));
+      spb.setXorAddress(StunAttribute.XOR_PEER_ADDRESS, peer);
+    });
+  }
+
+  /**
+   * Sends data to a peer in a Send indication, a permission for the peer must be installed.
+   *
+   * @param peer the peer to relay the data to.
+   * @param data the data to send.
+   * @throws IOException if the indication could not be sent.
+   */
+  public void send(InetSocketAddress peer, ByteBuffer data) throws IOException {
+    ByteBuffer indication;
+    try {
+      indication = new StunPacketBuilder().setType(StunMessageType.SEND_INDICATION)
+                                          .setXorAddress(StunAttribute.XOR_PEER_ADDRESS, peer)
+                                          .setAttribute(StunAttribute.DATA, data).encode(bufferPool);
+    } catch(StunProtocolException e) {
+      throw new IOException(e);
+    }
+    try {
+      channel.write(indication);
+    } finally {
+      bufferPool.release(indication);
+    }
+  }
+
+  /**
+   * Sends data to a peer over a bound channel.  The payload is copied behind the ChannelData
+   * header in a reused direct buffer, so this does not allocate.
+   *
+   * @param channelNumber the bound channel.
+   * @param payload the data to send, its position is not changed.
+   * @throws IOException if the data could not be sent.
+   */
+  public void sendChannelData(int channelNumber, ByteBuffer payload) throws IOException {
+    channelDataBuffer.clear();
+    ChannelData.writeHeader(channelDataBuffer, 0, channelNumber, payload.remaining());
+    channelDataBuffer.position(ChannelData.HEADER_SIZE);
+    channelDataBuffer.put(payload.duplicate());
+    channelDataBuffer.flip();
+    channel.write(channelDataBuffer);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      channel.close();
+    } finally {
+      selector.close();
+    }
+  }
+
+  private StunPacket request(StunMessageType type, Consumer<StunPacketBuilder> attributes) throws IOException {
+    for(int i=0; i<MAX_AUTH_ATTEMPTS; i++) {
+      StunPacketBuilder spb = new StunPacketBuilder().setType(type);
+      attributes.accept(spb);
+      if(key != null) {
+        spb.setUsername(ByteBuffer.wrap(username.getBytes(StandardCharsets.UTF_8)));
+        spb.setAttribute(StunAttribute.REALM, ByteBuffer.wrap(realm.getBytes(StandardCharsets.UTF_8)));
+        spb.setAttribute(StunAttribute.NONCE, ByteBuffer.wrap(nonce.getBytes(StandardCharsets.UTF_8)));
+        spb.setKey(key);
+      }
+      StunPacket response;
+      try {
+        response = transact(spb.build());
+      } catch(StunProtocolException e) {
+        throw new IOException(e);
+      }
+      if(!response.getMessageType().isError()) {
+        if(key != null && !StunUtils.verifyMessageIntegerity(response, key)) {
+          throw new IOException("Bad MESSAGE-INTEGRITY in response");
+        }
+        return response;
+      }
+      int code = response.getErrorCode();
+      if((code == 401 && key == null) || code == 438) {
+        realm = getString(response.getAttribute(StunAttribute.REALM));
+        nonce = getString(response.getAttribute(StunAttribute.NONCE));
+        key = TurnServer.longTermKey(username, realm, password);
+        continue;
+      }
+      ByteBuffer error = response.getAttribute(StunAttribute.ERROR_CODE);
+      error.position(4);
+      throw new TurnErrorException(code, getString(error));
+    }
+    throw new TurnErrorException(401, "Unauthorized");
+  }
+
+  private StunPacket transact(StunPacket request) throws IOException {
+    long deadline = StunClientTransactionManager.currentTimeMillis() + TIMEOUT_MILLIS;
+    long nextSend = 0;
+    while(true) {
+      long now = StunClientTransactionManager.currentTimeMillis();
+      if(now >= deadline) {
+        throw new SocketTimeoutException("No response from TURN server");
+      }
+      if(now >= nextSend) {
+        channel.write(request.getBytes());
+        nextSend = now + RETRANSMIT_MILLIS;
+      }
+      selector.select(Math.max(1, Math.min(nextSend, deadline) - now));
+      selector.selectedKeys().clear();
+      while(true) {
+        receiveBuffer.clear();
+        if(channel.receive(receiveBuffer) == null) {
+          break;
+        }
+        receiveBuffer.flip();
+        if(!StunUtils.isStunPacket(receiveBuffer)) {
+          continue;
+        }
+        try {
+          ByteBuffer copy = ByteBuffer.allocate(receiveBuffer.remaining());
+          copy.put(receiveBuffer);
+          copy.flip();
+          StunPacket response = new StunPacket(copy);
+          if(response.getMessageType().isResponse() && response.getTxID().equals(request.getTxID())) {
+            return response;
+          }
+        } catch(StunProtocolException e) {
+          // not for us
+        }
+      }
+    }
+  }
+
+  private static String getString(ByteBuffer bb) {
+    return StandardCharsets.UTF_8.decode(bb.duplicate()).toString();
+  }
+}
@@ -0,0 +1,26 @@
+package org.threadly.litesockets.protocols.turn;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link TurnClient} when the server answers a request with an error response.
+ */
+public class TurnErrorException extends IOException {
+  private static final long serialVersionUID = -3186047719442021387L;
+
+  private final int errorCode;
+
+  public TurnErrorException(int errorCode, String reason) {
+    super("TURN error "+errorCode+": "+reason);
+    this.errorCode = errorCode;
+  }
+
+  /**
+   * Returns the ERROR-CODE of the response, for example {@code 437} for an allocation mismatch.
+   *
+   * @return the error code.
+   */
+  public int getErrorCode() {
+    return errorCode;
+  }
+}
@@ -0,0 +1,711 @@
+package org.threadly.litesockets.protocols.turn;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.threadly.litesockets.protocols.stun.LongTermCredentialCache;
+import org.threadly.litesockets.protocols.stun.NonceGenerator;
+import org.threadly.litesockets.protocols.stun.StunAttribute;
+import org.threadly.litesockets.protocols.stun.StunClientTransactionManager;
+import org.threadly.litesockets.protocols.stun.StunIntegrityEngine;
+import org.threadly.litesockets.protocols.stun.StunMessageType;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+import org.threadly.litesockets.protocols.stun.StunPacketBuilder;
+import org.threadly.litesockets.protocols.stun.StunProtocolException;
+import org.threadly.litesockets.protocols.stun.StunUtils;
+import org.threadly.litesockets.protocols.stun.TimingWheel;
+
+/**
+ * A TURN relay server (RFC 5766) for UDP allocations requested over UDP.
+ * <p>
+ * A single event loop thread owns a {@link Selector} over the listening socket and every relayed
+ * socket, along with all allocation state, so nothing on the relay path takes a lock.  STUN
+ * formatted requests are parsed into {@link StunPacket}s and authenticated with the long-term
+ * credential mechanism.  ChannelData messages from clients, and datagrams from peers that have a
+ * channel bound, are the fast path: the allocation is found by the source address, the channel by
+ * a short scan, and the payload is forwarded straight out of the direct receive buffer without
+ * parsing STUN, copying or allocating.  Datagrams from peers without a channel are forwarded to
+ * the client as Data indications.
+ * <p>
+ * Allocations, permissions and channel bindings expire unless refreshed.  Allocation lifetimes are
+ * tracked on a {@link TimingWheel}, which also periodically purges expired permissions and
+ * channels.  The server answers plain binding requests as well.
+ */
+public class TurnServer {
+  public static final int DEFAULT_LIFETIME_SECONDS = 600;
+  public static final int MAX_LIFETIME_SECONDS = 3600;
+  public static final int PERMISSION_LIFETIME_SECONDS = 300;
+  public static final int CHANNEL_LIFETIME_SECONDS = 600;
+  public static final int DEFAULT_MAX_ALLOCATIONS = 10000;
+  private static final int UDP_TRANSPORT = 17;
+  private static final int BUFFER_SIZE = 65536;
+  // datagrams read from one socket per wakeup, so a busy client can not starve the others
+  private static final int DRAIN_BATCH = 64;
+  private static final long TICK_MILLIS = 1000;
+  private static final int WHEEL_SIZE = 512;
+  private static final long PURGE_INTERVAL_MILLIS = 60_000;
+
+  private final InetSocketAddress bindAddress;
+  private final InetAddress relayAddress;
+  private final String realm;
+  private final ByteBuffer realmBytes;
+  private final LongTermCredentialCache credentials;
+  private final NonceGenerator nonces = new NonceGenerator();
+  private final LongSupplier clock;
+  private final LongAdder packetsRelayed = new LongAdder();
+  private final LongAdder packetsDropped = new LongAdder();
+  private volatile int maxAllocations = DEFAULT_MAX_ALLOCATIONS;
+  private volatile int allocationCount = 0;
+  private volatile boolean running = false;
+  private volatile InetSocketAddress localAddress;
+  private Selector selector;
+  private DatagramChannel listenChannel;
+  private SelectionKey listenKey;
+  private Thread loop;
+
+  // only touched by the event loop thread once started
+  private final Map<InetSocketAddress, TurnAllocation> allocations = new HashMap<>();
+  private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private final StunPacketBuilder builder = new StunPacketBuilder();
+  private TimingWheel wheel;
+  private long now;
+
+  /**
+   * Creates a server that will listen on {@code bindAddress} once {@link #start()} is called.
+   *
+   * @param bindAddress the address to listen for clients on, port 0 picks an ephemeral port.
+   * @param relayAddress the address to open relayed sockets on, this is handed out to clients so
+   *        it can not be a wildcard address.
+   * @param realm the REALM clients authenticate against.
+   * @param credentials the lookup for long-term credential keys, keys it returns are cached for
+   *        {@link LongTermCredentialCache#DEFAULT_TTL_MILLIS} and unknown users for
+   *        {@link LongTermCredentialCache#DEFAULT_NEGATIVE_TTL_MILLIS}.  It is called on the thread
+   *        handling packets, so it should not block for long.
+   */
+  public TurnServer(InetSocketAddress bindAddress, InetAddress relayAddress, String realm,
+                    CredentialLookup credentials) {
+    this(bindAddress, relayAddress, realm, credentials, StunClientTransactionManager::currentTimeMillis);
+  }
+
+  TurnServer(InetSocketAddress bindAddress, InetAddress relayAddress, String realm,
+             CredentialLookup credentials, LongSupplier clock) {
+    if(bindAddress == null || relayAddress == null) {
+      throw new IllegalArgumentException("Address can not be null!");
+    }
+    if(relayAddress.isAnyLocalAddress()) {
+      throw new IllegalArgumentException("Relay address can not be a wildcard address!");
+    }
+    if(realm == null || realm.isEmpty()) {
+      throw new IllegalArgumentException("Must have a realm!");
+    }
+    if(credentials == null) {
+      throw new IllegalArgumentException("Credentials can not be null!");
+    }
+    this.bindAddress = bindAddress;
+    this.relayAddress = relayAddress;
+    this.realm = realm;
+    this.realmBytes = ByteBuffer.wrap(realm.getBytes(StandardCharsets.UTF_8));
+    this.credentials = new LongTermCredentialCache(credentials::getKey, LongTermCredentialCache.DEFAULT_MAX_ENTRIES,
+                                                   LongTermCredentialCache.DEFAULT_TTL_MILLIS, clock);
+    this.clock = clock;
+  }
+
+  /**
+   * Computes the long-term credential key, MD5(username ":" realm ":" password), as a
+   * {@link CredentialLookup} is expected to return it.
+   *
+   * @param username the username.
+   * @param realm the realm.
+   * @param password the password.
+   * @return the 16 byte key.
+   */
+  public static byte[] longTermKey(String username, String realm, String password) {
+    return StunUtils.MD5(username+":"+realm+":"+password);
+  }
+
+  /**
+   * Drops the cached key for a user, so a changed password takes effect on their next request
+   * instead of when the cached key expires.
+   *
+   * @param username the username.
+   */
+  public void invalidateCredentials(String username) {
+    credentials.invalidate(username, realm);
+  }
+
+  /**
+   * Limits the number of allocations, further Allocate requests are rejected with 486 (Allocation
+   * Quota Reached).
+   *
+   * @param maxAllocations the maximum number of allocations.
+   * @return this server.
+   */
+  public TurnServer setMaxAllocations(int maxAllocations) {
+    if(maxAllocations < 1) {
+      throw new IllegalArgumentException("Must allow at least 1 allocation!");
+    }
+    this.maxAllocations = maxAllocations;
+    return this;
+  }
+
+  /**
+   * Binds the listening socket and starts the event loop thread.
+   *
+   * @throws IOException if the socket could not be opened or bound.
+   */
+  public synchronized void start() throws IOException {
+    if(running) {
+      throw new IllegalStateException("Server already running!");
+    }
+    selector = Selector.open();
+    try {
+      listenChannel = DatagramChannel.open(family(bindAddress.getAddress()));
+      listenChannel.configureBlocking(false);
+      listenChannel.bind(bindAddress);
+      listenKey = listenChannel.register(selector, SelectionKey.OP_READ);
+    } catch(IOException e) {
+      if(listenChannel != null) {
+        listenChannel.close();
+      }
+      selector.close();
+      throw e;
+    }
+    localAddress = (InetSocketAddress)listenChannel.getLocalAddress();
+    now = clock.getAsLong();
+    wheel = new TimingWheel(TICK_MILLIS, WHEEL_SIZE, now);
+    running = true;
+    loop = new Thread(this::runLoop, "TurnServer-"+localAddress.getPort());
+    loop.setDaemon(true);
+    loop.start();
+  }
+
+  private static StandardProtocolFamily family(InetAddress address) {
+    return address instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+  }
+
+  /**
+   * Stops the event loop and closes the listening socket and every relayed socket.
+   */
+  public synchronized void stop() {
+    if(!running) {
+      return;
+    }
+    running = false;
+    selector.wakeup();
+    try {
+      loop.join();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Returns the address the server is listening on, only valid once started.
+   *
+   * @return the bound address.
+   */
+  public InetSocketAddress getLocalAddress() {
+    return localAddress;
+  }
+
+  public String getRealm() {
+    return realm;
+  }
+
+  public int getAllocationCount() {
+    return allocationCount;
+  }
+
+  public long getPacketsRelayed() {
+    return packetsRelayed.sum();
+  }
+
+  public long getPacketsDropped() {
+    return packetsDropped.sum();
+  }
+
+  /**
+   * Returns the time the loop last caught up to, packets received after it may still be handled
+   * with an older time.  Only valid once started.
+   *
+   * @return the time of the last completed loop, rounded down to a tick.
+   */
+  long getLoopMillis() {
+    return wheel.getCurrentMillis();
+  }
+
+  private void runLoop() {
+    try {
+      while(running) {
+        try {
+          selector.select(TICK_MILLIS);
+          now = clock.getAsLong();
+          Set<SelectionKey> selected = selector.selectedKeys();
+          // checked directly so client traffic does not cost an iterator per wakeup
+          if(selected.remove(listenKey)) {
+            receiveFromClients();
+          }
+          if(!selected.isEmpty()) {
+            Iterator<SelectionKey> it = selected.iterator();
+            while(it.hasNext()) {
+              SelectionKey key = it.next();
+              it.remove();
+              if(key.isValid()) {
+                receiveFromPeers((TurnAllocation)key.attachment());
+              }
+            }
+          }
+          wheel.advance(now);
+        } catch(ClosedSelectorException e) {
+          break;
+        } catch(IOException | RuntimeException e) {
+          packetsDropped.increment();
+        }
+      }
+    } finally {
+      closeAll();
+    }
+  }
+
+  private void closeAll() {
+    for(TurnAllocation alloc: new ArrayList<>(allocations.values())) {
+      removeAllocation(alloc);
+    }
+    try {
+      listenChannel.close();
+      selector.close();
+    } catch(IOException e) {
+      // nothing we can do
+    }
+  }
+
+  private void receiveFromClients() throws IOException {
+    for(int i=0; i<DRAIN_BATCH; i++) {
+      receiveBuffer.clear();
+      // the JDK reuses the sender address while the sender does not change
+      InetSocketAddress from = (InetSocketAddress)listenChannel.receive(receiveBuffer);
+      if(from == null) {
+        return;
+      }
+      receiveBuffer.flip();
+      try {
+        if(ChannelData.isChannelData(receiveBuffer)) {
+          relayToPeer(from);
+        } else if(StunUtils.isStunPacket(receiveBuffer)) {
+          handleStun(from);
+        } else {
+          packetsDropped.increment();
+        }
+      } catch(IOException | RuntimeException e) {
+        // a single bad packet or send failure should not stop the rest of the batch
+        packetsDropped.increment();
+      }
+    }
+  }
+
+  private void relayToPeer(InetSocketAddress from) throws IOException {
+    TurnAllocation alloc = allocations.get(from);
+    int idx = alloc == null ? -1 : alloc.findChannel(ChannelData.getChannel(receiveBuffer), now);
+    if(idx < 0) {
+      packetsDropped.increment();
+      return;
+    }
+    InetSocketAddress peer = alloc.getChannelPeer(idx);
+    if(!alloc.hasPermission(peer.getAddress(), now)) {
+      packetsDropped.increment();
+      return;
+    }
+    receiveBuffer.limit(ChannelData.HEADER_SIZE + ChannelData.getLength(receiveBuffer));
+    receiveBuffer.position(ChannelData.HEADER_SIZE);
+    alloc.relay.send(receiveBuffer, peer);
+    packetsRelayed.increment();
+  }
+
+  private void receiveFromPeers(TurnAllocation alloc) throws IOException {
+    for(int i=0; i<DRAIN_BATCH; i++) {
+      // leave room to write the ChannelData header in front of the payload
+      receiveBuffer.clear();
+      receiveBuffer.position(ChannelData.HEADER_SIZE);
+      InetSocketAddress from = (InetSocketAddress)alloc.relay.receive(receiveBuffer);
+      if(from == null) {
+        return;
+      }
+      int length = receiveBuffer.position() - ChannelData.HEADER_SIZE;
+      try {
+        if(!alloc.hasPermission(from.getAddress(), now)) {
+          packetsDropped.increment();
+          continue;
+        }
+        int idx = alloc.findChannel(from, now);
+        if(idx >= 0) {
+          ChannelData.writeHeader(receiveBuffer, 0, alloc.getChannelNumber(idx), length);
+          receiveBuffer.flip();
+          listenChannel.send(receiveBuffer, alloc.client);
+        } else {
+          ByteBuffer data = receiveBuffer.duplicate();
+          data.flip();
+          data.position(ChannelData.HEADER_SIZE);
+          builder.clearAllAttributes();
+          builder.setType(StunMessageType.DATA_INDICATION);
+          builder.setTxID(StunUtils.generateTxID());
+          builder.setKey(null);
+          builder.disableFingerPrint();
+          builder.setXorAddress(StunAttribute.XOR_PEER_ADDRESS, from);
+          builder.setAttribute(StunAttribute.DATA, data);
+          send(alloc.client);
+        }
+        packetsRelayed.increment();
+      } catch(IOException | RuntimeException e) {
+        packetsDropped.increment();
+      }
+    }
+  }
+
+  private void handleStun(InetSocketAddress from) throws IOException {
+    StunPacket request;
+    try {
+      request = new StunPacket(receiveBuffer);
+    } catch(StunProtocolException e) {
+      packetsDropped.increment();
+      return;
+    }
+    switch(request.getMessageType()) {
+    case REQUEST:
+      startResponse(request, StunMessageType.SUCCESS);
+      builder.setXorMappedAddress(from);
+      send(from);
+      break;
+    case ALLOCATE_REQUEST:
+      allocate(request, from);
+      break;
+    case REFRESH_REQUEST:
+      refresh(request, from);
+      break;
+    case CREATE_PERMISSION_REQUEST:
+      createPermission(request, from);
+      break;
+    case CHANNEL_BIND_REQUEST:
+      bindChannel(request, from);
+      break;
+    case SEND_INDICATION:
+      sendIndication(request, from);
+      break;
+    default:
+      packetsDropped.increment();
+    }
+  }
+
+  private void allocate(StunPacket request, InetSocketAddress from) throws IOException {
+    byte[] key = authenticate(request, from);
+    if(key == null) {
+      return;
+    }
+    TurnAllocation alloc = allocations.get(from);
+    if(alloc != null) {
+      if(alloc.allocateTxID.equals(request.getTxID())) {
+        // retransmitted request, answer it again
+        sendAllocateSuccess(request, from, alloc, key);
+      } else {
+        sendError(request, from, 437, "Allocation Mismatch", key);
+      }
+      return;
+    }
+    ByteBuffer transport = request.getAttribute(StunAttribute.REQUESTED_TRANSPORT);
+    if(transport.remaining() < 4) {
+      sendError(request, from, 400, "Bad Request", key);
+      return;
+    }
+    if(transport.get(0) != UDP_TRANSPORT) {
+      sendError(request, from, 442, "Unsupported Transport Protocol", key);
+      return;
+    }
+    if(allocations.size() >= maxAllocations) {
+      sendError(request, from, 486, "Allocation Quota Reached", key);
+      return;
+    }
+    DatagramChannel relay = DatagramChannel.open(family(relayAddress));
+    try {
+      relay.configureBlocking(false);
+      relay.bind(new InetSocketAddress(relayAddress, 0));
+      alloc = new TurnAllocation(this, from, relay, (InetSocketAddress)relay.getLocalAddress(),
+                                 getString(request.getUsername()), request.getTxID());
+      alloc.selectionKey = relay.register(selector, SelectionKey.OP_READ, alloc);
+    } catch(IOException e) {
+      relay.close();
+      sendError(request, from, 508, "Insufficient Capacity", key);
+      return;
+    }
+    long lifetimeMillis = desiredLifetime(request) * 1000L;
+    alloc.expiresMillis = now + lifetimeMillis;
+    wheel.schedule(alloc, Math.min(lifetimeMillis, PURGE_INTERVAL_MILLIS));
+    allocations.put(from, alloc);
+    allocationCount = allocations.size();
+    sendAllocateSuccess(request, from, alloc, key);
+  }
+
+  private void sendAllocateSuccess(StunPacket request, InetSocketAddress from, TurnAllocation alloc,
+                                   byte[] key) throws IOException {
+    startResponse(request, StunMessageType.ALLOCATE_SUCCESS);
+    builder.setXorAddress(StunAttribute.XOR_RELAYED_ADDRESS, alloc.relayAddress);
+    builder.setAttribute(StunAttribute.LIFETIME, lifetime((int)((alloc.expiresMillis - now) / 1000)));
+    builder.setXorMappedAddress(from);
+    builder.setKey(key);
+    send(from);
+  }
+
+  private void refresh(StunPacket request, InetSocketAddress from) throws IOException {
+    byte[] key = authenticate(request, from);
+    TurnAllocation alloc = key == null ? null : findAllocation(request, from, key);
+    if(alloc == null) {
+      return;
+    }
+    ByteBuffer requested = request.getAttribute(StunAttribute.LIFETIME);
+    int lifetime = 0;
+    if(requested.remaining() >= 4 && requested.getInt(0) == 0) {
+      removeAllocation(alloc);
+    } else {
+      lifetime = desiredLifetime(request);
+      alloc.expiresMillis = now + lifetime * 1000L;
+    }
+    startResponse(request, StunMessageType.REFRESH_SUCCESS);
+    builder.setAttribute(StunAttribute.LIFETIME, lifetime(lifetime));
+    builder.setKey(key);
+    send(from);
+  }
+
+  private void createPermission(StunPacket request, InetSocketAddress from) throws IOException {
+    byte[] key = authenticate(request, from);
+    TurnAllocation alloc = key == null ? null : findAllocation(request, from, key);
+    if(alloc == null) {
+      return;
+    }
+    InetSocketAddress peer = getPeerAddress(request);
+    if(peer == null) {
+      sendError(request, from, 400, "Bad Request", key);
+    } else if(isIPv4(peer.getAddress()) != isIPv4(relayAddress)) {
+      sendError(request, from, 443, "Peer Address Family Mismatch", key);
+    } else if(!alloc.addPermission(peer.getAddress(), now + PERMISSION_LIFETIME_SECONDS * 1000L)) {
+      sendError(request, from, 508, "Insufficient Capacity", key);
+    } else {
+      startResponse(request, StunMessageType.CREATE_PERMISSION_SUCCESS);
+      builder.setKey(key);
+      send(from);
+    }
+  }
+
+  private void bindChannel(StunPacket request, InetSocketAddress from) throws IOException {
+    byte[] key = authenticate(request, from);
+    TurnAllocation alloc = key == null ? null : findAllocation(request, from, key);
+    if(alloc == null) {
+      return;
+    }
+    ByteBuffer channelNumber = request.getAttribute(StunAttribute.CHANNEL_NUMBER);
+    int channel = channelNumber.remaining() < 4 ? 0 : channelNumber.getShort(0) & 0xffff;
+    InetSocketAddress peer = getPeerAddress(request);
+    if(peer == null || !ChannelData.isValidChannel(channel) || !alloc.canBindChannel(channel, peer)) {
+      sendError(request, from, 400, "Bad Request", key);
+    } else if(isIPv4(peer.getAddress()) != isIPv4(relayAddress)) {
+      sendError(request, from, 443, "Peer Address Family Mismatch", key);
+    } else if(!alloc.bindChannel(channel, peer, now + CHANNEL_LIFETIME_SECONDS * 1000L) ||
+              !alloc.addPermission(peer.getAddress(), now + PERMISSION_LIFETIME_SECONDS * 1000L)) {
+      sendError(request, from, 508, "Insufficient Capacity", key);
+    } else {
+      startResponse(request, StunMessageType.CHANNEL_BIND_SUCCESS);
+      builder.setKey(key);
+      send(from);
+    }
+  }
+
+  private void sendIndication(StunPacket request, InetSocketAddress from) throws IOException {
+    TurnAllocation alloc = allocations.get(from);
+    InetSocketAddress peer = alloc == null ? null : getPeerAddress(request);
+    ByteBuffer data = request.getAttribute(StunAttribute.DATA);
+    if(peer == null || !data.hasRemaining() || !alloc.hasPermission(peer.getAddress(), now)) {
+      packetsDropped.increment();
+      return;
+    }
+    alloc.relay.send(data, peer);
+    packetsRelayed.increment();
+  }
+
+  /**
+   * Checks the long-term credentials of a request, answering it with the matching error if they
+   * are missing or wrong.
+   *
+   * @return the key to sign the response with, or {@code null} if the request was rejected.
+   */
+  private byte[] authenticate(StunPacket request, InetSocketAddress from) throws IOException {
+    ByteBuffer username = request.getAttribute(StunAttribute.USERNAME);
+    ByteBuffer requestRealm = request.getAttribute(StunAttribute.REALM);
+    ByteBuffer requestNonce = request.getAttribute(StunAttribute.NONCE);
+    if(!request.hasMessageIntegerity()) {
+      sendChallenge(request, from, 401, "Unauthorized");
+      return null;
+    }
+    if(!username.hasRemaining() || !requestRealm.hasRemaining() || !requestNonce.hasRemaining()) {
+      sendError(request, from, 400, "Bad Request", null);
+      return null;
+    }
+    if(!nonces.isValid(requestNonce, from, now)) {
+      sendChallenge(request, from, 438, "Stale Nonce");
+      return null;
+    }
+    byte[] key = null;
+    if(requestRealm.equals(realmBytes)) {
+      key = credentials.getKey(username, requestRealm);
+    }
+    if(key == null || !StunIntegrityEngine.getDefault().verifyMessageIntegerity(request, key)) {
+      sendChallenge(request, from, 401, "Unauthorized");
+      return null;
+    }
+    return key;
+  }
+
+  /**
+   * Finds the allocation for the clients 5-tuple, answering the request with an error if there is
+   * none or it belongs to another user.
+   */
+  private TurnAllocation findAllocation(StunPacket request, InetSocketAddress from, byte[] key) throws IOException {
+    TurnAllocation alloc = allocations.get(from);
+    if(alloc == null) {
+      sendError(request, from, 437, "Allocation Mismatch", key);
+    } else if(!alloc.username.equals(getString(request.getUsername()))) {
+      sendError(request, from, 441, "Wrong Credentials", null);
+      return null;
+    }
+    return alloc;
+  }
+
+  void allocationTimerExpired(TurnAllocation alloc) {
+    if(allocations.get(alloc.client) != alloc) {
+      return;
+    }
+    long remaining = alloc.expiresMillis - now;
+    if(remaining <= 0) {
+      removeAllocation(alloc);
+      return;
+    }
+    alloc.purge(now);
+    wheel.schedule(alloc, Math.min(remaining, PURGE_INTERVAL_MILLIS));
+  }
+
+  private void removeAllocation(TurnAllocation alloc) {
+    allocations.remove(alloc.client, alloc);
+    allocationCount = allocations.size();
+    alloc.cancel();
+    if(alloc.selectionKey != null) {
+      alloc.selectionKey.cancel();
+    }
+    try {
+      alloc.relay.close();
+    } catch(IOException e) {
+      // nothing we can do
+    }
+  }
+
+  private static int desiredLifetime(StunPacket request) {
+    ByteBuffer requested = request.getAttribute(StunAttribute.LIFETIME);
+    if(requested.remaining() < 4) {
+      return DEFAULT_LIFETIME_SECONDS;
+    }
+    long seconds = requested.getInt(0) & 0xffffffffL;
+    return (int)Math.max(DEFAULT_LIFETIME_SECONDS, Math.min(seconds, MAX_LIFETIME_SECONDS));
+  }
+
+  private static ByteBuffer lifetime(int seconds) {
+    return ByteBuffer.allocate(4).putInt(0, seconds);
+  }
+
+  private static InetSocketAddress getPeerAddress(StunPacket request) {
+    try {
+      return request.getAddress(StunAttribute.XOR_PEER_ADDRESS);
+    } catch(IllegalStateException e) {
+      return null;
+    }
+  }
+
+  private static boolean isIPv4(InetAddress address) {
+    return address instanceof Inet4Address;
+  }
+
+  private static String getString(ByteBuffer bb) {
+    return StandardCharsets.UTF_8.decode(bb.duplicate()).toString();
+  }
+
+  private void startResponse(StunPacket request, StunMessageType type) {
+    builder.clearAllAttributes();
+    builder.setType(type);
+    builder.setTxID(request.getTxID());
+    builder.setKey(null);
+    if(request.hasFingerPrint()) {
+      builder.enableFingerPrint();
+    } else {
+      builder.disableFingerPrint();
+    }
+  }
+
+  private void sendError(StunPacket request, InetSocketAddress from, int code, String reason,
+                         byte[] key) throws IOException {
+    startResponse(request, request.getMessageType().getErrorType());
+    builder.setErrorCode(code, reason);
+    builder.setKey(key);
+    send(from);
+  }
+
+  private void sendChallenge(StunPacket request, InetSocketAddress from, int code, String reason) throws IOException {
+    startResponse(request, request.getMessageType().getErrorType());
+    builder.setErrorCode(code, reason);
+    builder.setAttribute(StunAttribute.REALM, realmBytes);
+    builder.setAttribute(StunAttribute.NONCE,
+                         ByteBuffer.wrap(nonces.generate(from, now).getBytes(StandardCharsets.US_ASCII)));
+    send(from);
+  }
+
+  private void send(InetSocketAddress to) throws IOException {
+    sendBuffer.clear();
+    try {
+      builder.writeTo(sendBuffer);
+    } catch(StunProtocolException e) {
+      packetsDropped.increment();
+      return;
+    }
+    sendBuffer.flip();
+    listenChannel.send(sendBuffer, to);
+  }
+
+  /**
+   * Looks up long-term credential keys.
+   */
+  public interface CredentialLookup {
+    /**
+     * Returns the key for the user, see {@link TurnServer#longTermKey(String, String, String)}.
+     *
+     * @param username the USERNAME of the request.
+     * @param realm the REALM of the request.
+     * @return the key to verify and sign with, or {@code null} if the user is not known.
+     */
+    byte[] getKey(String username, String realm);
+  }
+}
@@ -0,0 +1,198 @@
+package org.threadly.litesockets.protocols.turn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.threadly.litesockets.protocols.stun.StunAttribute;
+import org.threadly.litesockets.protocols.stun.StunMessageType;
+import org.threadly.litesockets.protocols.stun.StunPacket;
+
+public class TurnServerTests {
+  private static final String REALM = "litesockets.test";
+  private static final InetAddress LOCALHOST = InetAddress.getLoopbackAddress();
+
+  private final AtomicLong clock = new AtomicLong(1000000);
+  private TurnServer server;
+  private DatagramChannel peer;
+
+  @Before
+  public void start() throws IOException {
+    server = new TurnServer(new InetSocketAddress(LOCALHOST, 0), LOCALHOST, REALM, (user, realm) -> {
+      return "bob".equals(user) ? TurnServer.longTermKey(user, realm, "secret") : null;
+    }, clock::get);
+    server.start();
+    peer = DatagramChannel.open();
+    peer.configureBlocking(false);
+    peer.bind(new InetSocketAddress(LOCALHOST, 0));
+  }
+
+  @After
+  public void stop() throws IOException {
+    server.stop();
+    peer.close();
+  }
+
+  private TurnClient newClient() throws IOException {
+    return new TurnClient(server.getLocalAddress(), "bob", "secret");
+  }
+
+  private static ByteBuffer receive(DatagramChannel channel, long timeoutMillis) throws Exception {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    ByteBuffer bb = ByteBuffer.allocate(65536);
+    while(System.currentTimeMillis() < deadline) {
+      if(channel.receive(bb) != null) {
+        bb.flip();
+        return bb;
+      }
+      Thread.sleep(1);
+    }
+    return null;
+  }
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while(!condition.getAsBoolean()) {
+      if(System.currentTimeMillis() > deadline) {
+        fail("Timed out waiting for condition");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private static ByteBuffer payload(String s) {
+    return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void relayOverChannel() throws Exception {
+    try(TurnClient client = newClient()) {
+      InetSocketAddress relayed = client.allocate(600);
+      assertEquals(LOCALHOST, relayed.getAddress());
+      assertEquals(1, server.getAllocationCount());
+      InetSocketAddress peerAddress = (InetSocketAddress)peer.getLocalAddress();
+      client.bindChannel(0x4001, peerAddress);
+
+      client.sendChannelData(0x4001, payload("to peer"));
+      ByteBuffer received = receive(peer, 5000);
+      assertEquals(payload("to peer"), received);
+
+      peer.send(payload("to client"), relayed);
+      received = receive(client.getChannel(), 5000);
+      assertTrue(ChannelData.isChannelData(received));
+      assertEquals(0x4001, ChannelData.getChannel(received));
+      assertEquals(9, ChannelData.getLength(received));
+      received.position(ChannelData.HEADER_SIZE);
+      assertEquals(payload("to client"), received);
+      assertEquals(2, server.getPacketsRelayed());
+    }
+  }
+
+  @Test
+  public void relayWithIndications() throws Exception {
+    try(TurnClient client = newClient()) {
+      InetSocketAddress relayed = client.allocate(600);
+      InetSocketAddress peerAddress = (InetSocketAddress)peer.getLocalAddress();
+      // no permission yet, both directions are dropped
+      long dropped = server.getPacketsDropped();
+      client.send(peerAddress, payload("dropped"));
+      peer.send(payload("dropped"), relayed);
+      waitFor(() -> server.getPacketsDropped() >= dropped + 2);
+      assertNull(receive(client.getChannel(), 100));
+      assertNull(receive(peer, 100));
+
+      client.createPermission(peerAddress);
+      client.send(peerAddress, payload("to peer"));
+      assertEquals(payload("to peer"), receive(peer, 5000));
+      peer.send(payload("to client"), relayed);
+      StunPacket indication = new StunPacket(receive(client.getChannel(), 5000));
+      assertEquals(StunMessageType.DATA_INDICATION, indication.getMessageType());
+      assertEquals(peerAddress, indication.getAddress(StunAttribute.XOR_PEER_ADDRESS));
+      assertEquals(payload("to client"), indication.getAttribute(StunAttribute.DATA));
+    }
+  }
+
+  @Test
+  public void errorResponses() throws Exception {
+    try(TurnClient client = new TurnClient(server.getLocalAddress(), "bob", "wrong")) {
+      client.allocate(600);
+      fail();
+    } catch(TurnErrorException e) {
+      assertEquals(401, e.getErrorCode());
+    }
+    try(TurnClient client = newClient()) {
+      try {
+        client.refresh(600);
+        fail();
+      } catch(TurnErrorException e) {
+        assertEquals(437, e.getErrorCode());
+      }
+      client.allocate(600);
+      try {
+        client.allocate(600);
+        fail();
+      } catch(TurnErrorException e) {
+        assertEquals(437, e.getErrorCode());
+      }
+      try {
+        client.bindChannel(0x3fff, (InetSocketAddress)peer.getLocalAddress());
+        fail();
+      } catch(TurnErrorException e) {
+        assertEquals(400, e.getErrorCode());
+      }
+      client.bindChannel(0x4000, (InetSocketAddress)peer.getLocalAddress());
+      try {
+        client.bindChannel(0x4001, (InetSocketAddress)peer.getLocalAddress());
+        fail();
+      } catch(TurnErrorException e) {
+        assertEquals(400, e.getErrorCode());
+      }
+    }
+    server.setMaxAllocations(1);
+    try(TurnClient client = newClient()) {
+      client.allocate(600);
+      fail();
+    } catch(TurnErrorException e) {
+      assertEquals(486, e.getErrorCode());
+    }
+  }
+
+  @Test
+  public void refreshAndExpire() throws Exception {
+    try(TurnClient client = newClient()) {
+      client.allocate(60);
+      assertEquals(TurnServer.MAX_LIFETIME_SECONDS, client.refresh(100000));
+      assertEquals(0, client.refresh(0));
+      assertEquals(0, server.getAllocationCount());
+      InetSocketAddress relayed = client.allocate(TurnServer.DEFAULT_LIFETIME_SECONDS);
+      assertNotNull(relayed);
+      client.bindChannel(0x4000, (InetSocketAddress)peer.getLocalAddress());
+
+      // the permission lapses before the channel and the allocation
+      long later = clock.addAndGet((TurnServer.PERMISSION_LIFETIME_SECONDS + 1) * 1000L);
+      // the server reads the clock once per wakeup, data in the same batch as the bind is not late
+      waitFor(() -> server.getLoopMillis() > later - 1000);
+      long dropped = server.getPacketsDropped();
+      client.sendChannelData(0x4000, payload("late"));
+      waitFor(() -> server.getPacketsDropped() > dropped);
+      assertNull(receive(peer, 100));
+
+      clock.addAndGet(TurnServer.DEFAULT_LIFETIME_SECONDS * 1000L);
+      waitFor(() -> server.getAllocationCount() == 0);
+    }
+  }
+}